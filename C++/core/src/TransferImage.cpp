@@ -5,8 +5,21 @@
 #include <string>
 #include <chrono>
 #include <thread>
+#include <cstring>
+#include <cstdlib>
 #include <zmq.hpp>
 
+#if defined(__unix__) || defined(__APPLE__)
+#include <sys/mman.h>
+#include <sys/stat.h>
+#include <sys/socket.h>
+#include <sys/un.h>
+#include <fcntl.h>
+#include <unistd.h>
+#define DAIS_SHM_SUPPORTED
+#define DAIS_IPC_SUPPORTED
+#endif
+
 #include "TransferImage_Utils.h"
 #include "TransferImage.h"
 
@@ -20,18 +33,30 @@ namespace DAIS
 const std::string strCanGet("can get");
 const std::string strReady("ready");
 const std::string strDone("done");
+const std::string strReadyShm("ready shm");
+const std::string strShmHint("shm:");
+const std::string strShmWritten("shm ");
 
 //aux internal functions to send/receive initial handshake message
 void Handshake_GiveImage(const imgParams_t& imgParams,connectionParams_t& cnnParams);
 void Handshake_GetImage(imgParams_t& imgParams,connectionParams_t& cnnParams);
 
+//aux internal functions to handle the ipc:// endpoints
+void BindIpc(connectionParams_t& cnnParams);
+std::string LocalPeerAddress(const std::string& addr);
+
+//aux internal functions to handle the shared memory segments
+std::string OfferShm(void);
+bool AcceptShm(std::string& path);
+void MapShm(connectionParams_t& cnnParams,const size_t length);
+
 void StartSendingOneImage(const imgParams_t& imgParams,connectionParams_t& cnnParams,
                           const char* addr, const int timeOut)
 {
 	//init the context and get the socket
 	cnnParams.context  = new zmq::context_t(1);
 	cnnParams.socket   = new zmq::socket_t(*(cnnParams.context), ZMQ_PAIR);
-	cnnParams.addr     = std::string("tcp://")+std::string(addr);
+	cnnParams.addr     = LocalPeerAddress(FullAddress(addr));
 	cnnParams.timeOut  = timeOut;
 	cnnParams.isSender = true;
 
@@ -56,6 +81,7 @@ void StartReceivingOneImage(imgParams_t& imgParams,connectionParams_t& cnnParams
 	char chrString[128];
 	sprintf(chrString,"tcp://*:%d",port);
 	cnnParams.socket->bind(chrString);
+	BindIpc(cnnParams);
 
 	//the common routine to implement the initial handshake
 	Handshake_GetImage(imgParams,cnnParams);
@@ -76,6 +102,7 @@ void StartServingOneImage(const imgParams_t& imgParams,connectionParams_t& cnnPa
 	char chrString[128];
 	sprintf(chrString,"tcp://*:%d",port);
 	cnnParams.socket->bind(chrString);
+	BindIpc(cnnParams);
 
 	//wait for the connection-requesting message
 	waitForFirstMessage(cnnParams,"No connection requested yet.");
@@ -110,7 +137,7 @@ void StartRequestingOneImage(imgParams_t& imgParams,connectionParams_t& cnnParam
 	//init the context and get the socket
 	cnnParams.context  = new zmq::context_t(1);
 	cnnParams.socket   = new zmq::socket_t(*(cnnParams.context), ZMQ_PAIR);
-	cnnParams.addr     = std::string("tcp://")+std::string(addr);
+	cnnParams.addr     = LocalPeerAddress(FullAddress(addr));
 	cnnParams.timeOut  = timeOut;
 	cnnParams.isSender = false;
 
@@ -128,6 +155,10 @@ void StartRequestingOneImage(imgParams_t& imgParams,connectionParams_t& cnnParam
 
 void Handshake_GiveImage(const imgParams_t& imgParams,connectionParams_t& cnnParams)
 {
+	//offer the voxel data over the shared memory, the receiver may decline it
+	cnnParams.releaseShm();
+	cnnParams.shmPath = OfferShm();
+
 	//build the initial handshake header/message...
 	std::ostringstream hdrMsg;
 	hdrMsg << "v1 dimNumber " << imgParams.dim;
@@ -135,6 +166,8 @@ void Handshake_GiveImage(const imgParams_t& imgParams,connectionParams_t& cnnPar
 		hdrMsg << " " << imgParams.sizes[i];
 
 	hdrMsg << " " << imgParams.voxelType << " " << imgParams.backendType << " ";
+	if (!cnnParams.shmPath.empty())
+		hdrMsg << strShmHint << cnnParams.shmPath << " ";
 	//...and convert it into a string
 	std::string hdrStr(hdrMsg.str());
 
@@ -160,6 +193,19 @@ void Handshake_GiveImage(const imgParams_t& imgParams,connectionParams_t& cnnPar
 	    msgString[3] != 'd' ||
 	    msgString[4] != 'y')
 		throw new runtime_error("Protocol error, expected initial confirmation from the receiver.");
+
+	//has the receiver accepted the shared memory?
+	if (!cnnParams.shmPath.empty())
+	{
+		if (recLength >= (int)strReadyShm.size()
+		  && std::strncmp(msgString,strReadyShm.c_str(),strReadyShm.size()) == 0)
+		{
+			cnnParams.useShm = true;
+			MapShm(cnnParams,imgParams.howManyBytes());
+		}
+		else
+			cnnParams.releaseShm();
+	}
 }
 
 void Handshake_GetImage(imgParams_t& imgParams,connectionParams_t& cnnParams)
@@ -195,8 +241,9 @@ void Handshake_GetImage(imgParams_t& imgParams,connectionParams_t& cnnParams)
 		throw new runtime_error("Couldn't read complete initial (handshake) message. Stopping.");
 
 	//parse it into the imgParams structure, or complain
-	std::cout << "Received: " << msgString << "\n";
-	std::istringstream hdrMsg(msgString);
+	std::string hdrStr(msgString,recLength);
+	std::cout << "Received: " << hdrStr << "\n";
+	std::istringstream hdrMsg(hdrStr);
 
 	//parse by empty space
 	std::string token;
@@ -219,6 +266,12 @@ void Handshake_GetImage(imgParams_t& imgParams,connectionParams_t& cnnParams)
 	hdrMsg >> imgParams.backendType;
 	if (imgParams.backendType.find("Img") == std::string::npos)
 		throw new runtime_error("Protocol error: Expected image storage hint.");
+
+	//is the voxel data offered over the shared memory?
+	//NB: it is decided in ReceiveMetadata() whether it will be used
+	cnnParams.releaseShm();
+	if (hdrMsg >> token && token.find(strShmHint) == 0)
+		cnnParams.shmPath = token.substr(strShmHint.size());
 }
 
 
@@ -247,8 +300,13 @@ void SendMetadata(connectionParams_t& cnnParams,const std::list<std::string>& me
 
 void ReceiveMetadata(connectionParams_t& cnnParams,std::list<std::string>& metaData)
 {
+	//accept the shared memory if it was offered and we can reach it
+	cnnParams.useShm = AcceptShm(cnnParams.shmPath);
+	if (!cnnParams.useShm) cnnParams.shmPath.clear();
+
 	//sends flag that we're free to go, first comes the image metadata
-	zmq::message_t msgReady(strReady.c_str(),strReady.size());
+	const std::string& strReadyReply = cnnParams.useShm ? strReadyShm : strReady;
+	zmq::message_t msgReady(strReadyReply.c_str(),strReadyReply.size());
 	cnnParams.socket->send(msgReady,zmq::send_flags::none);
 
 	waitForFirstMessage(cnnParams,"Timeout when waiting for metadata.");
@@ -293,7 +351,8 @@ template <typename VT>
 void TransmitOneArrayImage(connectionParams_t& cnnParams,const imgParams_t& imgParams,VT* const data)
 {
 	//the length of the corresponding/input basic type array
-	const size_t arrayLength   = imgParams.howManyVoxels();
+	//(which is shorter than the number of voxels for the bit-packed types)
+	const size_t arrayLength   = imgParams.howManyArrayElements(imgParams.howManyVoxels());
 	const size_t arrayElemSize = imgParams.howManyBytesPerVoxel();
 
 	TransmitChunkFromOneImage(cnnParams,data,arrayLength,arrayElemSize);
@@ -322,7 +381,8 @@ void TransmitOnePlanarImage(connectionParams_t& cnnParams,const imgParams_t& img
 	//shifting the data pointer in planeSize steps,
 	//
 	//SEE BELOW FOR GENERAL CASE OF PLACING THE OUTPUT DATA
-	const long planeSize = imgParams.sizes[0] * imgParams.sizes[1];
+	//(the planeSize is the length of the storage array of one plane)
+	const long planeSize = imgParams.howManyArrayElements(imgParams.sizes[0] * imgParams.sizes[1]);
 	long offset=0;
 
 	//cached....
@@ -345,11 +405,71 @@ void TransmitOnePlanarImage(connectionParams_t& cnnParams,const imgParams_t& img
 }
 
 
+template <typename VT>
+void TransmitChunkViaShm(connectionParams_t& cnnParams,VT* const data,
+                         const size_t arrayLength, const size_t arrayElemSize,
+                         const bool comingMore)
+{
+	const size_t chunkSize = arrayLength*arrayElemSize;
+
+	if (cnnParams.isSender)
+	{
+		if (cnnParams.shmOffset+chunkSize > cnnParams.shmLength)
+			throw new runtime_error("Image data does not fit into the shared memory.");
+
+		//the data in the shared memory has the same byte order as if it went over the socket
+		VT* const shmChunk = reinterpret_cast<VT*>(cnnParams.shmData+cnnParams.shmOffset);
+		std::memcpy(shmChunk,data,chunkSize);
+		SwapEndianness(shmChunk,arrayLength);
+		cnnParams.shmOffset += chunkSize;
+
+		//the last chunk? then let the receiver know the data is ready
+		if (!comingMore)
+		{
+			std::ostringstream smsg;
+			smsg << strShmWritten << cnnParams.shmOffset;
+			std::string msg(smsg.str());
+			cnnParams.socket->send(zmq::const_buffer(msg.c_str(),msg.size()),zmq::send_flags::none);
+		}
+	}
+	else
+	{
+		//the first chunk? then wait until the sender has written all data
+		if (cnnParams.shmData == NULL)
+		{
+			waitForNextMessage(cnnParams);
+			zmq::message_t msg;
+			if (!cnnParams.socket->recv(msg).has_value())
+				throw new runtime_error("Empty shared memory announcement received.");
+
+			std::string smsg(msg.data<char>(),msg.size());
+			if (smsg.find(strShmWritten) != 0)
+				throw new runtime_error("Protocol error, expected voxel data in the shared memory.");
+
+			MapShm(cnnParams,std::stoul(smsg.substr(strShmWritten.size())));
+		}
+
+		if (cnnParams.shmOffset+chunkSize > cnnParams.shmLength)
+			throw new runtime_error("Shared memory does not contain all image data.");
+
+		std::memcpy(data,cnnParams.shmData+cnnParams.shmOffset,chunkSize);
+		SwapEndianness(data,arrayLength);
+		cnnParams.shmOffset += chunkSize;
+	}
+}
+
 template <typename VT>
 void TransmitChunkFromOneImage(connectionParams_t& cnnParams,VT* const data,
                               const size_t arrayLength, const size_t arrayElemSize,
                               const bool comingMore)
 {
+	if (cnnParams.useShm)
+	{
+		//the voxel data goes through the shared memory instead
+		TransmitChunkViaShm(cnnParams,data,arrayLength,arrayElemSize,comingMore);
+		return;
+	}
+
 	if (arrayLength < 1024 || arrayElemSize == 1)
 	{
 		//array that is short enough to be hosted entirely with byte[] array,
@@ -453,6 +573,193 @@ void FinishReceivingOneImage(connectionParams_t& cnnParams)
 }
 
 //-----------
+std::string IpcAddress(const int port)
+{
+	char chrString[128];
+	sprintf(chrString,"ipc:///tmp/imgtransfer-%d",port);
+	return std::string(chrString);
+}
+
+std::string FullAddress(const char* addr)
+{
+	const std::string sAddr(addr);
+	return sAddr.find("://") != std::string::npos ? sAddr : std::string("tcp://")+sAddr;
+}
+
+void BindIpc(connectionParams_t& cnnParams)
+{
+#ifdef DAIS_IPC_SUPPORTED
+	try {
+		cnnParams.socket->bind(IpcAddress(cnnParams.port));
+	}
+	catch (zmq::error_t&) {
+		//not a problem, the peers can still use the tcp:// endpoint
+	}
+#endif
+}
+
+#ifdef DAIS_IPC_SUPPORTED
+//is anybody accepting connections on the unix domain socket at the \e path?
+bool IsSocketLive(const std::string& path)
+{
+	struct sockaddr_un sAddr;
+	if (path.size() >= sizeof(sAddr.sun_path)) return false;
+	memset(&sAddr,0,sizeof(sAddr));
+	sAddr.sun_family = AF_UNIX;
+	strcpy(sAddr.sun_path,path.c_str());
+
+	const int fd = socket(AF_UNIX,SOCK_STREAM,0);
+	if (fd < 0) return false;
+	//NB: the peer's ZeroMQ sees just a connection that closes before any greeting
+	const bool isLive = connect(fd,(struct sockaddr*)&sAddr,sizeof(sAddr)) == 0;
+	close(fd);
+	return isLive;
+}
+#endif
+
+std::string LocalPeerAddress(const std::string& addr)
+{
+#ifdef DAIS_IPC_SUPPORTED
+	if (addr.find("tcp://") != 0) return addr;
+
+	//split tcp://host:port
+	const size_t colonPos = addr.rfind(':');
+	if (colonPos == std::string::npos || colonPos < 6) return addr;
+	const std::string host(addr.substr(6,colonPos-6));
+	const int port = atoi(addr.c_str()+colonPos+1);
+	if (port <= 0) return addr;
+
+	//is the peer on this computer?
+	char hostName[256];
+	if (gethostname(hostName,sizeof(hostName)) != 0) hostName[0] = 0;
+	hostName[sizeof(hostName)-1] = 0;
+	if (host != "localhost" && host.find("127.") != 0 && host != "[::1]" && host != hostName)
+		return addr;
+
+	//is the peer listening also on the ipc:// endpoint?
+	//NB: the socket file exists only if the peer is using the C++ ZeroMQ,
+	//    and it stays there also when the peer has crashed, hence the connect test
+	const std::string ipcAddr(IpcAddress(port));
+	struct stat st;
+	if (stat(ipcAddr.c_str()+6,&st) != 0 || !S_ISSOCK(st.st_mode)) return addr;
+	if (!IsSocketLive(ipcAddr.substr(6))) return addr;
+
+	return ipcAddr;
+#else
+	return addr;
+#endif
+}
+
+
+static std::string shmDirectory("/dev/shm");
+static const std::string shmPrefix("imgtransfer-");
+
+void SetShmDirectory(const char* dir)
+{
+	shmDirectory = dir != NULL ? std::string(dir) : std::string();
+}
+
+std::string OfferShm(void)
+{
+#ifdef DAIS_SHM_SUPPORTED
+	if (shmDirectory.empty()) return std::string();
+
+	//create a new (empty) file with a unique name
+	std::string path(shmDirectory+"/"+shmPrefix+"XXXXXX");
+	const int fd = mkstemp(&path[0]);
+	if (fd < 0) return std::string();
+	close(fd);
+
+	return path;
+#else
+	return std::string();
+#endif
+}
+
+bool AcceptShm(std::string& path)
+{
+#ifdef DAIS_SHM_SUPPORTED
+	if (path.empty() || shmDirectory.empty()) return false;
+
+	//only a segment right in our shm directory, after the symbolic links are resolved
+	char* realFile = realpath(path.c_str(),NULL);
+	char* realDir  = realpath(shmDirectory.c_str(),NULL);
+	bool accepted = false;
+	if (realFile != NULL && realDir != NULL)
+	{
+		const std::string file(realFile), dir(realDir);
+		const size_t slash = file.rfind('/');
+		struct stat st;
+		accepted = slash != std::string::npos
+		  && file.compare(0,slash,dir) == 0 && slash == dir.size()
+		  && file.compare(slash+1,shmPrefix.size(),shmPrefix) == 0
+		  && stat(realFile,&st) == 0 && S_ISREG(st.st_mode)
+		  && access(realFile,R_OK) == 0;
+		if (accepted) path = file;
+	}
+	free(realFile);
+	free(realDir);
+	return accepted;
+#else
+	return false;
+#endif
+}
+
+void MapShm(connectionParams_t& cnnParams,const size_t length)
+{
+#ifdef DAIS_SHM_SUPPORTED
+	cnnParams.shmOffset = 0;
+	cnnParams.shmLength = length;
+	if (length == 0) return;
+
+	const int fd = open(cnnParams.shmPath.c_str(), cnnParams.isSender ? O_RDWR : O_RDONLY);
+	if (fd < 0)
+		throw new runtime_error("Cannot open the shared memory.");
+
+	if (cnnParams.isSender)
+	{
+		if (ftruncate(fd,(off_t)length) != 0)
+		{
+			close(fd);
+			throw new runtime_error("Cannot allocate the shared memory.");
+		}
+	}
+	else
+	{
+		struct stat st;
+		if (fstat(fd,&st) != 0 || (size_t)st.st_size < length)
+		{
+			close(fd);
+			throw new runtime_error("Shared memory is shorter than announced.");
+		}
+	}
+
+	void* data = mmap(NULL,length, cnnParams.isSender ? PROT_READ|PROT_WRITE : PROT_READ,
+	                  MAP_SHARED,fd,0);
+	close(fd);
+	if (data == MAP_FAILED)
+		throw new runtime_error("Cannot map the shared memory.");
+
+	cnnParams.shmData = static_cast<char*>(data);
+#else
+	throw new runtime_error("Shared memory is not supported on this system.");
+#endif
+}
+
+void connectionParams::releaseShm()
+{
+#ifdef DAIS_SHM_SUPPORTED
+	if (shmData != NULL) munmap(shmData,shmLength);
+	//only the sender, who has created the file, removes it
+	if (isSender && !shmPath.empty()) unlink(shmPath.c_str());
+#endif
+	shmData   = NULL;
+	shmLength = 0;
+	shmOffset = 0;
+	useShm    = false;
+	shmPath.clear();
+}
+
 void waitForFirstMessage(connectionParams_t& cnnParams, const char* errMsg, const int _timeOut)
 {
 	int timeWaited = 0;
@@ -515,11 +822,11 @@ void ImagesAsEventsSender::connect()
 	//init the context and get the socket
 	cnnParams.context  = new zmq::context_t(1);
 	cnnParams.socket   = new zmq::socket_t(*(cnnParams.context), ZMQ_PAIR);
-	cnnParams.addr     = this->addr;
 	cnnParams.timeOut  = this->timeOut;
 	cnnParams.isSender = true;
 
 	//connects the socket with the given address
+	cnnParams.addr     = LocalPeerAddress(this->addr);
 	cnnParams.socket->connect(cnnParams.addr);
 
 	//send the "v0" initiator-header
@@ -592,6 +899,9 @@ void ImagesAsEventsSender::sendOneImage(const imgParams_t& imgParams, VT* const
 		 msgString[2] != 'n' ||
 		 msgString[3] != 'e')
 		throw new runtime_error("Protocol error, expected final confirmation from the receiver.");
+
+	//the receiver has read the voxel data, the shared memory is not needed anymore
+	cnnParams.releaseShm();
 }
 
 
@@ -602,11 +912,11 @@ void ImagesAsFixedSequenceSender::connect()
 	//init the context and get the socket
 	cnnParams.context  = new zmq::context_t(1);
 	cnnParams.socket   = new zmq::socket_t(*(cnnParams.context), ZMQ_PAIR);
-	cnnParams.addr     = this->addr;
 	cnnParams.timeOut  = this->timeOut;
 	cnnParams.isSender = true;
 
 	//connects the socket with the given address
+	cnnParams.addr     = LocalPeerAddress(this->addr);
 	cnnParams.socket->connect(cnnParams.addr);
 
 	isConnected = true;
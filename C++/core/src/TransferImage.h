@@ -98,6 +98,31 @@ void StartReceivingOneImage(imgParams_t& imgParams,connectionParams_t& cnnParams
 void StartRequestingOneImage(imgParams_t& imgParams,connectionParams_t& cnnParams,
                              const char* addr, const int timeOut = 60);
 
+/**
+ * The addresses of peers are given either as "host:port", which means
+ * tcp://host:port, or as complete ZeroMQ endpoints such as "ipc:///path".
+ *
+ * The listening functions (StartReceivingOneImage() and StartServingOneImage())
+ * bind, in addition to the given tcp:// port, also the IpcAddress() of this
+ * port. The connecting functions use this ipc:// endpoint automatically when
+ * asked to connect to a tcp:// port of this computer that has such endpoint,
+ * the transfer then avoids the TCP stack. Note that the Java implementation
+ * cannot provide such endpoints because ZeroMQ for Java emulates the ipc://
+ * transport over TCP.
+ */
+std::string FullAddress(const char* addr);
+std::string IpcAddress(const int port);
+
+/**
+ * Sets the directory in which the sending functions create the shared memory
+ * segments to offer them to the receiving peer, NULL disables the shared memory.
+ * Default is "/dev/shm". The receiving peer accepts the segment only if it
+ * can access it, that is, if it lives on the same computer, and only if it is
+ * a segment in its own directory set here. The transfer otherwise continues
+ * over the socket, as usual.
+ */
+void SetShmDirectory(const char* dir);
+
 //meta data Message Separator
 const char mdMsgSep[] = "__QWE__";
 const int mdMsgSepLen = 7;
@@ -127,6 +152,10 @@ void ReceiveMetadata(connectionParams_t& cnnParams,std::list<std::string>& metaD
  * It is assumed that the storage type of the original image is 'ArrayImg'
  * -- the image is transmitted in one shot (from user's perspective).
  *
+ * The bit-packed voxel types (BitType, Unsigned12BitType) are transmitted
+ * in their storage form, the \e data must be then an array of 64-bit words
+ * (e.g., unsigned long) of the length imgParams::howManyArrayElements().
+ *
  * See StartSendingOneImage() for an overview of necessary calls.
  * See StartReceivingOneImage() for an overview of necessary calls.
  */
@@ -251,7 +280,7 @@ public:
 	                     const char* imgsName = NULL)
 	{
 		//backup all transfer metadata
-		this->addr = std::string("tcp://")+std::string(addr);
+		this->addr = FullAddress(addr);
 		this->timeOut = timeOut;
 		isConnected = false;
 
@@ -18,6 +18,11 @@ namespace DAIS
  * ArrayImg is represented as a single buffer containing the whole image,
  * PlanarImg is a sequence of 2D slices, that populate the remaining
  * imgParams.dim-2 dimensions of the original image.
+ *
+ * The bit-packed types (BitType and Unsigned12BitType) are stored, similarly
+ * to imglib2, in arrays of 64-bit words where the voxels follow one after
+ * another starting from the least significant bit of the first word; every
+ * plane of the PlanarImg starts with its own word.
  */
 typedef struct imgParams
 {
@@ -48,13 +53,22 @@ typedef struct imgParams
 		Long,
 		UnsignedLong,
 		Float,
-		Double
+		Double,
+		ARGB,
+		Bit,
+		Unsigned12Bit
 	} voxelTypes;
 
 	//convenience convertor function: enum-ed variant of the voxelType variable
 	voxelTypes enumVoxelType() const
 	{
 		voxelTypes vt;
+		if (voxelType.find("Unsigned12Bit") != std::string::npos) vt = Unsigned12Bit;
+		else
+		if (voxelType.find("Bit") != std::string::npos) vt = Bit;
+		else
+		if (voxelType.find("ARGB") != std::string::npos) vt = ARGB;
+		else
 		if (voxelType.find("UnsignedByte") != std::string::npos) vt = UnsignedByte;
 		else
 		if (voxelType.find("Byte") != std::string::npos) vt = Byte;
@@ -95,7 +109,8 @@ typedef struct imgParams
 		return cnt;
 	}
 
-	//convenience calculator function: how many Bytes occupies one Voxel
+	//convenience calculator function: how many Bytes occupies one Voxel,
+	//or one 64-bit word of the storage array for the bit-packed types
 	long howManyBytesPerVoxel() const
 	{
 		long voxelSize;
@@ -124,15 +139,56 @@ typedef struct imgParams
 			case Double:
 				voxelSize = 8;
 				break;
+			case ARGB:
+				voxelSize = 4;
+				break;
+			case Bit:
+			case Unsigned12Bit:
+				voxelSize = 8;
+				break;
 		}
 
 		return voxelSize;
 	}
 
+	//convenience calculator function: how many bits occupies one Voxel
+	//inside the storage array, non-zero only for the bit-packed types
+	int howManyBitsPerPackedVoxel() const
+	{
+		switch (enumVoxelType())
+		{
+			case Bit:
+				return 1;
+			case Unsigned12Bit:
+				return 12;
+			default:
+				return 0;
+		}
+	}
+
+	//convenience calculator function: how long is the storage array
+	//(in the units of howManyBytesPerVoxel()) to hold the given number of Voxels
+	long howManyArrayElements(const long voxels) const
+	{
+		const long bits = howManyBitsPerPackedVoxel();
+		if (bits == 0) return voxels;
+
+		return (voxels*bits +63) / 64;
+	}
+
 	//convenience calculator function: how many Bytes is this image?
 	long howManyBytes() const
 	{
-		return (howManyBytesPerVoxel() * howManyVoxels());
+		//the bit-packed PlanarImg starts every plane with a new word
+		if (dim > 2 && howManyBitsPerPackedVoxel() > 0
+		    && backendType.find("PlanarImg") != std::string::npos)
+		{
+			const long planeSize = (long)sizes[0] * (long)sizes[1];
+			return (howManyBytesPerVoxel() * howManyArrayElements(planeSize)
+			        * (howManyVoxels() / planeSize));
+		}
+
+		return (howManyBytesPerVoxel() * howManyArrayElements(howManyVoxels()));
 	}
 
 	//-----------
@@ -166,9 +222,9 @@ typedef struct connectionParams
 	zmq::context_t* context = NULL;
 	zmq::socket_t*  socket  = NULL;
 
-	//connection details: tcp://localhost:this.port if isSender==false
+	//connection details: tcp://localhost:this.port (and IpcAddress(port)) if listening
 	int port = 0;
-	//connection details: tcp://this.addr           if isSender==true
+	//connection details: the endpoint of the peer, e.g. tcp://host:port, if connecting
 	std::string addr;
 
 	/**
@@ -184,9 +240,26 @@ typedef struct connectionParams
 	//direction of this connection: from array to socket is when isSender==true
 	bool isSender = false;
 
+	//the shared memory segment (a file in /dev/shm) that substitutes the socket
+	//for the voxel data when both peers live on the same computer, the segment
+	//is offered by the sender in the header and accepted with "ready shm"
+	std::string shmPath;
+	//the mapped segment and its length in Bytes
+	char*  shmData   = NULL;
+	size_t shmLength = 0;
+	//where in the shmData the next chunk of voxel data goes
+	size_t shmOffset = 0;
+	//true if the peer has accepted the shared memory for the current image
+	bool useShm = false;
+
+	//unmaps the shared memory segment, the sender also removes its file
+	void releaseShm();
+
 	//returns the attributes to the initial state in a way polite for ZeroMQ
 	void clear()
 	{
+		releaseShm();
+
 		if (port != 0)
 		{
 			char chrString[1024];
@@ -1,6 +1,7 @@
 package de.mpicbg.ulman.nodeNetImgSink;
 
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
 import org.knime.core.node.defaultnodesettings.DialogComponentColumnNameSelection;
 import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
 import org.knime.knip.base.data.img.ImgPlusValue;
@@ -34,6 +35,14 @@ public class WriterNodeDialog extends DefaultNodeSettingsPane {
                            "TCP/IP port to listen at:", /*step*/ 1, /*componentwidth*/ 5));
         addDialogComponent(new DialogComponentNumber(WriterNodeModel.createSettingsModel_TimeOut(),
                 "Seconds to wait for initial connection:", /*step*/ 5, /*componentwidth*/ 5));
+        addDialogComponent(new DialogComponentBoolean(WriterNodeModel.createSettingsModel_Ipc(),
+                           "Listen also at local ipc:// endpoint"));
+        addDialogComponent(new DialogComponentNumber(WriterNodeModel.createSettingsModel_TransferLimit(),
+                           "Bandwidth limit of this node in MB/s (0 = none):", /*step*/ 10, /*componentwidth*/ 5));
+        addDialogComponent(new DialogComponentNumber(WriterNodeModel.createSettingsModel_ProcessLimit(),
+                           "Bandwidth limit of all transfers in MB/s (0 = none):", /*step*/ 10, /*componentwidth*/ 5));
+        addDialogComponent(new DialogComponentNumber(WriterNodeModel.createSettingsModel_Connections(),
+                           "Parallel connections (at consecutive ports):", /*step*/ 1, /*componentwidth*/ 5));
     }
 }
 
@@ -2,11 +2,19 @@ package de.mpicbg.ulman.nodeNetImgSink;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import org.knime.core.data.DataRow;
 import org.knime.core.data.DataTableSpec;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.defaultnodesettings.SettingsModelString;
 import org.knime.core.node.ExecutionContext;
@@ -23,7 +31,10 @@ import org.knime.knip.base.node.NodeUtils;
 
 import net.imagej.ImgPlus;
 import de.mpicbg.ulman.imgtransfer.ImgTransfer;
+import de.mpicbg.ulman.imgtransfer.PipelinedSender;
 import de.mpicbg.ulman.imgtransfer.ProgressCallback;
+import de.mpicbg.ulman.imgtransfer.ProgressEstimator;
+import de.mpicbg.ulman.imgtransfer.RateLimiter;
 
 
 /**
@@ -64,9 +75,53 @@ public class WriterNodeModel extends NodeModel
 		return new SettingsModelString(WriterNodeModel.CFG_IMGCOL,"");
 	}
 
+	/*
+	 * A helper class to provide the same variable model for the ipc:// flag.
+	 * This class is called from WriterNodeDialog's constructor.
+	 */
+	static
+	SettingsModelBoolean createSettingsModel_Ipc()
+	{
+		return new SettingsModelBoolean(WriterNodeModel.CFG_IPC,false);
+	}
+
+	/*
+	 * A helper class to provide the same variable model for the bandwidth limit
+	 * of this node's transfers, in MB/s. This class is called from WriterNodeDialog's constructor.
+	 */
+	static
+	SettingsModelIntegerBounded createSettingsModel_TransferLimit()
+	{
+		return new SettingsModelIntegerBounded(WriterNodeModel.CFG_RATE,0,0,Integer.MAX_VALUE);
+	}
+
+	/*
+	 * A helper class to provide the same variable model for the bandwidth limit
+	 * of all transfers in this KNIME, in MB/s. This class is called from WriterNodeDialog's constructor.
+	 */
+	static
+	SettingsModelIntegerBounded createSettingsModel_ProcessLimit()
+	{
+		return new SettingsModelIntegerBounded(WriterNodeModel.CFG_RATEALL,0,0,Integer.MAX_VALUE);
+	}
+
 	static final String CFG_PORTOUT = "ServingPort";
 	static final String CFG_TIMEOUT = "ServingTimeOut";
 	static final String CFG_IMGCOL  = "ServingColumn";
+	static final String CFG_IPC     = "ServingIpc";
+	static final String CFG_RATE    = "ServingRateLimit";
+	static final String CFG_RATEALL = "ServingProcessRateLimit";
+	static final String CFG_CONNS   = "ServingConnections";
+
+	/*
+	 * A helper class to provide the same variable model for the number of
+	 * parallel connections. This class is called from WriterNodeDialog's constructor.
+	 */
+	static
+	SettingsModelIntegerBounded createSettingsModel_Connections()
+	{
+		return new SettingsModelIntegerBounded(WriterNodeModel.CFG_CONNS,1,1,64);
+	}
 
 	/// port to listen at
 	private final SettingsModelIntegerBounded m_portNo
@@ -80,12 +135,47 @@ public class WriterNodeModel extends NodeModel
 	private final SettingsModelString m_selectedImgColumn
 		= WriterNodeModel.createSettingsModel_ImgColumn();
 
+	/// listen also at the ipc:// endpoint?
+	private final SettingsModelBoolean m_ipc
+		= WriterNodeModel.createSettingsModel_Ipc();
+
+	/// bandwidth limits (MB/s) of this node's transfers, and of all transfers
+	private final SettingsModelIntegerBounded m_transferLimit
+		= WriterNodeModel.createSettingsModel_TransferLimit();
+	private final SettingsModelIntegerBounded m_processLimit
+		= WriterNodeModel.createSettingsModel_ProcessLimit();
+
+	/// number of parallel connections (at consecutive ports) to serve the images
+	private final SettingsModelIntegerBounded m_connections
+		= WriterNodeModel.createSettingsModel_Connections();
+
 	private class MyLogger implements ProgressCallback
 	{
+		private final ExecutionMonitor exec;
+		final ProgressEstimator progress;
+
+		MyLogger(final ExecutionMonitor _exec, final int imagesTotal)
+		{ exec = _exec; progress = new ProgressEstimator(imagesTotal); }
+
 		@Override
 		public void info(String msg) { logger.info(msg); }
 		@Override
-		public void setProgress(float arg0) { /* empty */ }
+		public void setProgress(float howFar)
+		{
+			progress.setImageProgress(howFar);
+			showProgress();
+		}
+
+		///to be called after every transferred image
+		synchronized
+		void imageFinished()
+		{
+			progress.imageFinished();
+			showProgress();
+		}
+
+		private void showProgress()
+		{ exec.setProgress(progress.getProgress(), "Serving images... "+progress.getRemainingTime()); }
 	}
 
 	/**
@@ -133,45 +223,168 @@ public class WriterNodeModel extends NodeModel
 		final BufferedDataTable data = inData[0];
 		final int colSpec = data.getSpec().findColumnIndex(m_selectedImgColumn.getStringValue());
 
-		//counters of received images, and expected no. of images to be sent
-		int cnt = 1, cntE = (int)data.size();
-		logger.info("SendImages node: going to serve "+cntE+" images");
-
-		//create server instance
-		MyLogger myLogger = new MyLogger();
-		ImgTransfer Server = new ImgTransfer(m_portNo.getIntValue(), cntE,
-		                                     m_timeOut.getIntValue(), myLogger);
-
-		for (final DataRow row : data)
+		//expected no. of images to be sent
+		final int cntE = (int)data.size();
+		final int conns = m_connections.getIntValue();
+		logger.info("SendImages node: going to serve "+cntE+" images over "+conns+" connection(s)");
+
+		MyLogger myLogger = new MyLogger(exec, cntE);
+		//NB: all connections share the bandwidth limit of this node
+		final RateLimiter limiter = RateLimiter.forTransfer(
+		  RateLimiter.fromMegaBytesPerSecond(m_transferLimit.getIntValue()), 0,
+		  RateLimiter.fromMegaBytesPerSecond(m_processLimit.getIntValue()));
+		try
 		{
-			// Check if execution got canceled.
-			exec.checkCanceled();
-			//TODO close the receiving interface after abort!
-
-			//get next image
-			final ImgPlusCell<?> cell = (ImgPlusCell<?>)row.getCell(colSpec);
-			if (!cell.isMissing())
+			if (conns == 1)
 			{
-				final ImgPlus<?> i = cell.getImgPlus();
-				//TODO: row key or truly the image name, currently the later
-
-				logger.info("SendImages node: serving "+cnt+"/"+cntE+": "+i.getName());
-				Server.serveImage((ImgPlus)i);
+				serveImages(data, colSpec, 0, 1, createServer(0, 1, cntE, limiter, myLogger), exec, myLogger);
+				return null;
 			}
-			//NB: if cell is missing, we just skip it
 
-			//count every processed row, not images...
-			++cnt;
+			//the k-th (non-missing) image goes over the connection k % conns,
+			//we need to know how many images every connection will serve
+			int cntI = 0;
+			for (final DataRow row : data)
+				if (!row.getCell(colSpec).isMissing()) ++cntI;
+
+			//every connection walks through the table on its own, and serves its images
+			final List<ImgTransfer> servers = new ArrayList<>(conns);
+			for (int c = 0; c < conns; ++c)
+			{
+				final int part = c;
+				//NB: the per-image progress of parallel transfers would be mixed up, only info() is passed
+				servers.add(createServer(part, conns, (cntI + conns-1 - part) / conns, limiter,
+				  new ProgressCallback() {
+					@Override
+					public void info(String msg) { logger.info("connection "+part+": "+msg); }
+					@Override
+					public void setProgress(float howFar) {}
+				  }));
+			}
 
-			// Update progress indicator.
-			exec.setProgress(cnt / cntE);
+			final ExecutorService workers = Executors.newFixedThreadPool(conns);
+			boolean allServed = false;
+			try
+			{
+				final List<Future<?>> jobs = new ArrayList<>(conns);
+				for (int c = 0; c < conns; ++c)
+				{
+					final int part = c;
+					jobs.add(workers.submit(() -> {
+						serveImages(data, colSpec, part, conns, servers.get(part), exec, myLogger);
+						return null;
+					}));
+				}
+
+				for (final Future<?> job : jobs)
+				{
+					try { job.get(); }
+					catch (ExecutionException e)
+					{
+						if (e.getCause() instanceof Exception) throw (Exception)e.getCause();
+						throw e;
+					}
+				}
+				allServed = true;
+			}
+			finally
+			{
+				//stops the remaining connections if some failed, they then close themselves
+				//NB: the workers are not interrupted as it could break their ZeroMQ calls
+				if (!allServed)
+					for (final ImgTransfer server : servers) server.abort();
+				workers.shutdown();
+				workers.awaitTermination(1, TimeUnit.MINUTES);
+			}
+		}
+		finally
+		{
+			limiter.close();
 		}
 
-		Server.hangUpAndClose();
 		//return new BufferedDataTable[] { null };
 		return null;
     }
 
+	/**
+	 * Creates the server of the partition \e part (out of \e parts) of \e partSize
+	 * images, at the port m_portNo + \e part. The partition's images are announced to
+	 * the requester (see ImgTransfer.setPartition()), which can therefore restore their
+	 * original order. The images are sent within the bandwidth \e limiter.
+	 */
+	private
+	ImgTransfer createServer(final int part, final int parts, final int partSize,
+	                         final RateLimiter limiter, final ProgressCallback transferLogger)
+	{
+		ImgTransfer Server = new ImgTransfer(m_portNo.getIntValue() + part, partSize,
+		                                     m_timeOut.getIntValue(), transferLogger);
+		if (parts > 1) Server.setPartition(part, parts);
+		Server.setRateLimiter(limiter);
+		Server.setIpcEndpoints(m_ipc.getBooleanValue());
+		return Server;
+	}
+
+	/**
+	 * Serves the (non-missing) images of the \e data that belong to the partition
+	 * \e part (out of \e parts) with the \e Server of this partition. The \e Server
+	 * is closed at the end, also when the serving fails.
+	 */
+	private
+	void serveImages(final BufferedDataTable data, final int colSpec,
+	                 final int part, final int parts, final ImgTransfer Server,
+	                 final ExecutionContext exec, final MyLogger myLogger)
+	throws Exception
+	{
+		//the next image is packed while the current one is being served,
+		//within a quarter of the available memory (shared by all connections)
+		final PipelinedSender pipeline = new PipelinedSender(Server, true,
+		  Runtime.getRuntime().maxMemory() / 4 / parts);
+
+		try
+		{
+			//counters of processed rows, and of non-missing images
+			int cnt = 1, cntI = 0;
+			for (final DataRow row : data)
+			{
+				// Check if execution got canceled.
+				exec.checkCanceled();
+				//TODO close the receiving interface after abort!
+
+				//get next image
+				final ImgPlusCell<?> cell = (ImgPlusCell<?>)row.getCell(colSpec);
+				if (!cell.isMissing())
+				{
+					//is this image ours?
+					if (cntI++ % parts == part)
+					{
+						final ImgPlus<?> i = cell.getImgPlus();
+						//TODO: row key or truly the image name, currently the later
+
+						logger.info("SendImages node: serving "+cnt+"/"+data.size()+": "+i.getName());
+						//NB: the progress indicator is updated once the image is sent
+						pipeline.send((ImgPlus)i, myLogger::imageFinished);
+					}
+				}
+				else
+				{
+					//NB: if cell is missing, we just skip it (but count it as processed),
+					//    only the first partition counts it not to count it parts-times
+					if (part == 0) myLogger.imageFinished();
+				}
+
+				//count every processed row, not images...
+				++cnt;
+			}
+
+			pipeline.hangUpAndClose();
+		}
+		finally
+		{
+			//NB: closes the Server if the serving has failed
+			pipeline.close();
+		}
+	}
+
     /**
      * {@inheritDoc}
      */
@@ -193,6 +406,10 @@ public class WriterNodeModel extends NodeModel
         m_portNo.saveSettingsTo(settings);
         m_timeOut.saveSettingsTo(settings);
         m_selectedImgColumn.saveSettingsTo(settings);
+        m_ipc.saveSettingsTo(settings);
+        m_transferLimit.saveSettingsTo(settings);
+        m_processLimit.saveSettingsTo(settings);
+        m_connections.saveSettingsTo(settings);
     }
 
     /**
@@ -208,6 +425,11 @@ public class WriterNodeModel extends NodeModel
         m_portNo.loadSettingsFrom(settings);
         m_timeOut.loadSettingsFrom(settings);
         m_selectedImgColumn.loadSettingsFrom(settings);
+        //NB: workflows saved before this option existed do not have it
+        if (settings.containsKey(CFG_IPC)) m_ipc.loadSettingsFrom(settings);
+        if (settings.containsKey(CFG_RATE)) m_transferLimit.loadSettingsFrom(settings);
+        if (settings.containsKey(CFG_RATEALL)) m_processLimit.loadSettingsFrom(settings);
+        if (settings.containsKey(CFG_CONNS)) m_connections.loadSettingsFrom(settings);
     }
 
     /**
@@ -224,6 +446,10 @@ public class WriterNodeModel extends NodeModel
         m_portNo.validateSettings(settings);
         m_timeOut.validateSettings(settings);
         m_selectedImgColumn.validateSettings(settings);
+        if (settings.containsKey(CFG_IPC)) m_ipc.validateSettings(settings);
+        if (settings.containsKey(CFG_RATE)) m_transferLimit.validateSettings(settings);
+        if (settings.containsKey(CFG_RATEALL)) m_processLimit.validateSettings(settings);
+        if (settings.containsKey(CFG_CONNS)) m_connections.validateSettings(settings);
     }
 
     /**
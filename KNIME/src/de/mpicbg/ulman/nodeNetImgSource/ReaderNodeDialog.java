@@ -1,6 +1,7 @@
 package de.mpicbg.ulman.nodeNetImgSource;
 
 import org.knime.core.node.defaultnodesettings.DefaultNodeSettingsPane;
+import org.knime.core.node.defaultnodesettings.DialogComponentBoolean;
 import org.knime.core.node.defaultnodesettings.DialogComponentNumber;
 
 /**
@@ -28,6 +29,10 @@ public class ReaderNodeDialog extends DefaultNodeSettingsPane {
                            "TCP/IP port to listen at:", /*step*/ 1, /*componentwidth*/ 5));
         addDialogComponent(new DialogComponentNumber(ReaderNodeModel.createSettingsModel_TimeOut(),
                 "Seconds to wait for initial connection:", /*step*/ 5, /*componentwidth*/ 5));
+        addDialogComponent(new DialogComponentBoolean(ReaderNodeModel.createSettingsModel_Ipc(),
+                           "Listen also at local ipc:// endpoint"));
+        addDialogComponent(new DialogComponentNumber(ReaderNodeModel.createSettingsModel_Prefetch(),
+                           "Images received ahead:", /*step*/ 1, /*componentwidth*/ 5));
     }
 }
 
@@ -10,6 +10,7 @@ import org.knime.core.data.def.DefaultRow;
 import org.knime.core.node.BufferedDataContainer;
 import org.knime.core.node.BufferedDataTable;
 import org.knime.core.node.CanceledExecutionException;
+import org.knime.core.node.defaultnodesettings.SettingsModelBoolean;
 import org.knime.core.node.defaultnodesettings.SettingsModelIntegerBounded;
 import org.knime.core.node.ExecutionContext;
 import org.knime.core.node.ExecutionMonitor;
@@ -18,13 +19,23 @@ import org.knime.core.node.NodeLogger;
 import org.knime.core.node.NodeModel;
 import org.knime.core.node.NodeSettingsRO;
 import org.knime.core.node.NodeSettingsWO;
+import org.knime.core.node.port.PortObjectSpec;
+import org.knime.core.node.streamable.BufferedDataTableRowOutput;
+import org.knime.core.node.streamable.OutputPortRole;
+import org.knime.core.node.streamable.PartitionInfo;
+import org.knime.core.node.streamable.PortInput;
+import org.knime.core.node.streamable.PortOutput;
+import org.knime.core.node.streamable.RowOutput;
+import org.knime.core.node.streamable.StreamableOperator;
 
 import org.knime.knip.base.data.img.ImgPlusCell;
 import org.knime.knip.base.data.img.ImgPlusCellFactory;
 
 import net.imagej.ImgPlus;
 import de.mpicbg.ulman.imgtransfer.ImgTransfer;
+import de.mpicbg.ulman.imgtransfer.PrefetchingReceiver;
 import de.mpicbg.ulman.imgtransfer.ProgressCallback;
+import de.mpicbg.ulman.imgtransfer.ProgressEstimator;
 
 
 /**
@@ -59,8 +70,30 @@ public class ReaderNodeModel extends NodeModel
 		return new SettingsModelIntegerBounded(ReaderNodeModel.CFG_TIMEOUT,60,0,Integer.MAX_VALUE);
 	}
 
+	/*
+	 * A helper class to provide the same variable model for the ipc:// flag.
+	 * This class is called from ReaderNodeDialog's constructor.
+	 */
+	static
+	SettingsModelBoolean createSettingsModel_Ipc()
+	{
+		return new SettingsModelBoolean(ReaderNodeModel.CFG_IPC,false);
+	}
+
+	/*
+	 * A helper class to provide the same variable model for the prefetching depth.
+	 * This class is called from ReaderNodeDialog's constructor.
+	 */
+	static
+	SettingsModelIntegerBounded createSettingsModel_Prefetch()
+	{
+		return new SettingsModelIntegerBounded(ReaderNodeModel.CFG_PREFETCH,1,0,16);
+	}
+
 	static final String CFG_PORTIN = "ReceivingPort";
 	static final String CFG_TIMEOUT = "ReceivingTimeOut";
+	static final String CFG_IPC = "ReceivingIpc";
+	static final String CFG_PREFETCH = "ReceivingPrefetch";
 
 	/// port to listen at
 	private final SettingsModelIntegerBounded m_portNo
@@ -70,15 +103,43 @@ public class ReaderNodeModel extends NodeModel
 	private final SettingsModelIntegerBounded m_timeOut
 		= ReaderNodeModel.createSettingsModel_TimeOut();
 
+	/// listen also at the ipc:// endpoint?
+	private final SettingsModelBoolean m_ipc
+		= ReaderNodeModel.createSettingsModel_Ipc();
+
+	/// how many images to receive ahead while the current one is being stored
+	private final SettingsModelIntegerBounded m_prefetch
+		= ReaderNodeModel.createSettingsModel_Prefetch();
+
 	/// the fixed table specification, created once and for all
 	final DataTableSpec outTableSpec;
 
 	private class MyLogger implements ProgressCallback
 	{
+		private final ExecutionMonitor exec;
+		final ProgressEstimator progress;
+
+		MyLogger(final ExecutionMonitor _exec, final int imagesTotal)
+		{ exec = _exec; progress = new ProgressEstimator(imagesTotal); }
+
 		@Override
 		public void info(String msg) { logger.info(msg); }
 		@Override
-		public void setProgress(float arg0) { /* empty */ }
+		public void setProgress(float howFar)
+		{
+			progress.setImageProgress(howFar);
+			showProgress();
+		}
+
+		///to be called after every transferred image
+		void imageFinished()
+		{
+			progress.imageFinished();
+			showProgress();
+		}
+
+		private void showProgress()
+		{ exec.setProgress(progress.getProgress(), "Receiving images... "+progress.getRemainingTime()); }
 	}
 
 	/**
@@ -126,53 +187,115 @@ public class ReaderNodeModel extends NodeModel
 		// Note, this container can also handle arbitrary big data tables, it
 		// will buffer to disc if necessary.
 		BufferedDataContainer container = exec.createDataContainer(outTableSpec);
+		final BufferedDataTableRowOutput output = new BufferedDataTableRowOutput(container);
+
+		receiveImages(output, exec);
+		return new BufferedDataTable[] { output.getDataTable() };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public OutputPortRole[] getOutputPortRoles()
+    {
+		//the images come one after another over a single connection,
+		//so there is only one (not distributed) stream of rows
+		return new OutputPortRole[] { OutputPortRole.NONDISTRIBUTED };
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public StreamableOperator createStreamableOperator(final PartitionInfo partitionInfo,
+                                                       final PortObjectSpec[] inSpecs)
+    throws InvalidSettingsException
+    {
+		return new StreamableOperator()
+		{
+			@Override
+			public void runFinal(final PortInput[] inputs, final PortOutput[] outputs,
+			                     final ExecutionContext exec)
+			throws Exception
+			{
+				//every received image is pushed downstream right away,
+				//so no more than the streaming window is kept in memory
+				receiveImages((RowOutput)outputs[0], exec);
+			}
+		};
+    }
 
+	/**
+	 * Receives all images and pushes them, as rows with the ImgPlusCell,
+	 * into the \e output (which gets closed at the end). This is shared
+	 * by the normal (execute()) and streaming (createStreamableOperator())
+	 * executions of this node.
+	 */
+	private
+	void receiveImages(final RowOutput output, final ExecutionContext exec)
+	throws Exception
+	{
 		//helper class to create new table cells with received images
 		final ImgPlusCellFactory imgPlusCellFactory = new ImgPlusCellFactory(exec);
 
 		//create receiver instance
-		MyLogger myLogger = new MyLogger();
+		MyLogger myLogger = new MyLogger(exec, 1);
 		ImgTransfer Receiver = new ImgTransfer(m_portNo.getIntValue(), m_timeOut.getIntValue(), myLogger);
+		Receiver.setIpcEndpoints(m_ipc.getBooleanValue());
+
+		//receive the next images while the current one is being turned into a table cell,
+		//the prefetched images may occupy up to a quarter of the available memory
+		final PrefetchingReceiver images = new PrefetchingReceiver(Receiver, false,
+		  m_prefetch.getIntValue(), Runtime.getRuntime().maxMemory() / 4);
 
 		//counters of received images, and expected no. of images to be received
 		int cnt = 0, cntE = 0;
 
-		while (Receiver.isThereNextImage())
+		try
 		{
-			// Check if execution got canceled.
-			exec.checkCanceled();
-			//TODO close the receiving interface after abort!
+			while (images.hasNext())
+			{
+				// Check if execution got canceled.
+				exec.checkCanceled();
 
-			//get next image
-			final ImgPlus<?> i = Receiver.receiveImage();
+				//get next image
+				final ImgPlus<?> i = images.next();
 
-			//first image?
-			if (cnt == 0)
-			{
-				cntE = Receiver.getExpectedNumberOfImages();
-				if (cntE == 0) cntE = 1; //make sure we don't divide by zero later
+				//first image?
+				if (cnt == 0)
+				{
+					cntE = Receiver.getExpectedNumberOfImages();
+					if (cntE == 0) cntE = 1; //make sure we don't divide by zero later
+					myLogger.progress.setImagesTotal(cntE);
 
-				logger.info("ReceiveImages node: going to receive "+cntE+" images");
-			}
+					logger.info("ReceiveImages node: going to receive "+cntE+" images");
+				}
 
-			++cnt;
-			logger.info("ReceiveImages node: received "+cnt+"/"+cntE+": "+i.getName());
+				++cnt;
+				logger.info("ReceiveImages node: received "+cnt+"/"+cntE+": "+i.getName());
 
-			//turn the image into a table cell
-			@SuppressWarnings("unchecked")
-			ImgPlusCell<?> ic = imgPlusCellFactory.createCell((ImgPlus)i);
+				//turn the image into a table cell
+				@SuppressWarnings("unchecked")
+				ImgPlusCell<?> ic = imgPlusCellFactory.createCell((ImgPlus)i);
 
-			//add the image as another row into the output table
-			final RowKey key = new RowKey( i.getName() );
-			container.addRowToTable(new DefaultRow(key, ic));
+				//push the image as another row into the output table
+				final RowKey key = new RowKey( i.getName() );
+				output.push(new DefaultRow(key, ic));
 
-			// Update progress indicator.
-			exec.setProgress(cnt / cntE);
+				// Update progress indicator.
+				myLogger.imageFinished();
+			}
+		}
+		finally
+		{
+			//stops the receiving in the background if we have not got all the images,
+			//e.g., after a cancel or a failure, and frees the port in any case
+			images.close();
 		}
 
-		container.close();
-		return new BufferedDataTable[] { container.getTable() };
-    }
+		output.close();
+	}
 
     /**
      * {@inheritDoc}
@@ -194,6 +317,8 @@ public class ReaderNodeModel extends NodeModel
         // tODO save user settings to the config object.
         m_portNo.saveSettingsTo(settings);
         m_timeOut.saveSettingsTo(settings);
+        m_ipc.saveSettingsTo(settings);
+        m_prefetch.saveSettingsTo(settings);
     }
 
     /**
@@ -208,6 +333,9 @@ public class ReaderNodeModel extends NodeModel
         // method below.
         m_portNo.loadSettingsFrom(settings);
         m_timeOut.loadSettingsFrom(settings);
+        //NB: workflows saved before this option existed do not have it
+        if (settings.containsKey(CFG_IPC)) m_ipc.loadSettingsFrom(settings);
+        if (settings.containsKey(CFG_PREFETCH)) m_prefetch.loadSettingsFrom(settings);
     }
 
     /**
@@ -223,6 +351,8 @@ public class ReaderNodeModel extends NodeModel
         // Do not actually set any values of any member variables.
         m_portNo.validateSettings(settings);
         m_timeOut.validateSettings(settings);
+        if (settings.containsKey(CFG_IPC)) m_ipc.validateSettings(settings);
+        if (settings.containsKey(CFG_PREFETCH)) m_prefetch.validateSettings(settings);
     }
 
     /**
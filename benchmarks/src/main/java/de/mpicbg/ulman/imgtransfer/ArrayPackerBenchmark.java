@@ -0,0 +1,113 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zeromq.ZMQ;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures ArrayPacker.transmitArray() on both ends of a socket pair:
+ * the array is pushed into one socket and pulled from the other one
+ * within the same benchmark operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArrayPackerBenchmark
+{
+	@Param({"inproc", "tcp"})
+	public String transport;
+
+	@Param({"byte", "short", "float", "double"})
+	public String arrayType;
+
+	///array length in elements
+	@Param({"65536", "4194304"})
+	public int arrayLength;
+
+	ZMQ.Context zmqContext;
+	ZMQ.Socket sender, receiver;
+	ArrayPacker packer, unpacker;
+	Object srcArray, dstArray;
+	long bytes;
+
+	@Setup
+	public void setup()
+	{
+		zmqContext = ZMQ.context(1);
+		final ZMQ.Socket[] sockets = BenchmarkUtils.createSocketPair(zmqContext, transport, "arrayPacker");
+		sender = sockets[1];
+		receiver = sockets[0];
+
+		srcArray = BenchmarkUtils.createArray(arrayType, arrayLength);
+		dstArray = BenchmarkUtils.createArray(arrayType, arrayLength);
+		bytes = (long)arrayLength * BenchmarkUtils.elemSize(arrayType);
+
+		packer   = new ArrayPacker(srcArray, sender,   ArrayPacker.FROM_ARRAY_TO_SOCKET);
+		unpacker = new ArrayPacker(dstArray, receiver, ArrayPacker.FROM_SOCKET_TO_ARRAY);
+	}
+
+	@TearDown
+	public void tearDown()
+	{
+		sender.close();
+		receiver.close();
+		zmqContext.term();
+	}
+
+	@Benchmark
+	public Object transmitArray(final TrafficCounter traffic)
+	{
+		//NB: the voxel data always follow some leading message part in the protocol
+		//    (the metadata), the receiving ArrayPacker relies on it
+		sender.send("chunk", ZMQ.SNDMORE);
+		packer.transmitArray(srcArray, false);
+
+		receiver.recv(0);
+		unpacker.transmitArray(dstArray, false);
+
+		traffic.add(bytes);
+		return dstArray;
+	}
+}
@@ -0,0 +1,172 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgFactory;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.RealType;
+
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+
+import java.util.Random;
+import java.util.StringTokenizer;
+
+/**
+ * Shared helpers of the benchmarks: creation of test data
+ * and of connected pairs of sockets.
+ */
+class BenchmarkUtils
+{
+	/// returns an array of the basic \e type ("byte", "short", "float" or "double") filled with noise
+	static
+	Object createArray(final String type, final int length)
+	{
+		final Random rnd = new Random(42);
+		switch (type)
+		{
+		case "byte":
+			final byte[] b = new byte[length];
+			rnd.nextBytes(b);
+			return b;
+		case "short":
+			final short[] s = new short[length];
+			for (int i=0; i < length; ++i) s[i] = (short)rnd.nextInt();
+			return s;
+		case "float":
+			final float[] f = new float[length];
+			for (int i=0; i < length; ++i) f[i] = rnd.nextFloat();
+			return f;
+		case "double":
+			final double[] d = new double[length];
+			for (int i=0; i < length; ++i) d[i] = rnd.nextDouble();
+			return d;
+		default:
+			throw new RuntimeException("Unsupported array type: "+type);
+		}
+	}
+
+	/// how many Bytes is one element of the array of the basic \e type
+	static
+	int elemSize(final String type)
+	{
+		switch (type)
+		{
+		case "byte":   return 1;
+		case "short":  return 2;
+		case "float":  return 4;
+		case "double": return 8;
+		default:
+			throw new RuntimeException("Unsupported array type: "+type);
+		}
+	}
+
+	/**
+	 * Creates PAIR sockets, the [0] is bound and the [1] is connected to it,
+	 * over the \e transport that is either "inproc" or "tcp" (loopback).
+	 */
+	static
+	ZMQ.Socket[] createSocketPair(final ZMQ.Context ctx, final String transport, final String name)
+	{
+		final ZMQ.Socket[] sockets = new ZMQ.Socket[2];
+		sockets[0] = ctx.socket(SocketType.PAIR);
+		sockets[1] = ctx.socket(SocketType.PAIR);
+
+		if (transport.equals("inproc"))
+		{
+			sockets[0].bind("inproc://"+name);
+			sockets[1].connect("inproc://"+name);
+		}
+		else
+		if (transport.equals("tcp"))
+		{
+			final int port = sockets[0].bindToRandomPort("tcp://127.0.0.1");
+			sockets[1].connect("tcp://127.0.0.1:"+port);
+		}
+		else
+			throw new RuntimeException("Unsupported transport: "+transport);
+
+		return sockets;
+	}
+
+	/**
+	 * Creates an image of the given \e voxelType (e.g., "FloatType"), \e backend
+	 * ("ArrayImg" or "PlanarImg") and \e size (e.g., "512x512x32") filled with noise.
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	static
+	ImgPlus<?> createImage(final String voxelType, final String backend, final String size)
+	{
+		final StringTokenizer sizeST = new StringTokenizer(size, "x");
+		final long[] dims = new long[sizeST.countTokens()];
+		for (int i=0; i < dims.length; ++i)
+			dims[i] = Long.parseLong(sizeST.nextToken());
+
+		NativeType type = null;
+		for (Class<? extends NativeType> aClass : ImgPacker.SUPPORTED_VOXEL_CLASSES)
+			if (aClass.getSimpleName().equals(voxelType))
+				try {
+					type = aClass.newInstance();
+				} catch (InstantiationException | IllegalAccessException e) {
+					throw new RuntimeException(e);
+				}
+		if (type == null)
+			throw new RuntimeException("Unsupported voxel type: "+voxelType);
+
+		final Img img;
+		if (backend.equals("ArrayImg"))
+			img = new ArrayImgFactory(type).create(dims);
+		else
+		if (backend.equals("PlanarImg"))
+			img = new PlanarImgFactory(type).create(dims);
+		else
+			throw new RuntimeException("Unsupported backend: "+backend);
+
+		final Random rnd = new Random(42);
+		for (Object v : img)
+			((RealType)v).setReal(rnd.nextInt(100));
+
+		return new ImgPlus<>(img);
+	}
+
+	/// how many Bytes of voxel data is in the image created with createImage()
+	static
+	long imageBytes(final ImgPlus<?> img, final String voxelType)
+	{
+		final int elemSize;
+		if (voxelType.contains("Byte")) elemSize = 1;
+		else if (voxelType.contains("Short")) elemSize = 2;
+		else if (voxelType.contains("Float")) elemSize = 4;
+		else elemSize = 8;
+
+		return img.size() * elemSize;
+	}
+}
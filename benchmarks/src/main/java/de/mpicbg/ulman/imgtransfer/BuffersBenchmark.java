@@ -0,0 +1,104 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import de.mpicbg.ulman.imgtransfer.buffers.Buffer;
+import de.mpicbg.ulman.imgtransfer.buffers.DoubleBuffer;
+import de.mpicbg.ulman.imgtransfer.buffers.FloatBuffer;
+import de.mpicbg.ulman.imgtransfer.buffers.ShortBuffer;
+
+/**
+ * Measures the conversion between the basic-type arrays and the
+ * (direct) ByteBuffer, that is, the Buffer implementations alone.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BuffersBenchmark
+{
+	@Param({"byte", "short", "float", "double"})
+	public String arrayType;
+
+	///chunk length in elements
+	@Param({"4096", "1048576"})
+	public int chunkLength;
+
+	Buffer buffer;
+	Object array;
+	ByteBuffer bytes;
+
+	@Setup
+	public void setup()
+	{
+		switch (arrayType)
+		{
+		case "byte":   buffer = new de.mpicbg.ulman.imgtransfer.buffers.ByteBuffer(); break;
+		case "short":  buffer = new ShortBuffer(); break;
+		case "float":  buffer = new FloatBuffer(); break;
+		case "double": buffer = new DoubleBuffer(); break;
+		}
+		array = BenchmarkUtils.createArray(arrayType, chunkLength);
+		bytes = ByteBuffer.allocateDirect(chunkLength * buffer.getElemSize());
+	}
+
+	@Benchmark
+	public ByteBuffer send(final TrafficCounter traffic)
+	{
+		bytes.clear();
+		buffer.send(bytes, array, 0, chunkLength);
+		traffic.add(bytes.capacity());
+		return bytes;
+	}
+
+	@Benchmark
+	public Object recv(final TrafficCounter traffic)
+	{
+		bytes.clear();
+		buffer.recv(bytes, array, 0, chunkLength);
+		traffic.add(bytes.capacity());
+		return array;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import net.imagej.ImgPlus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zeromq.ZMQ;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures one complete ImgPacker.packAndSend() together with the matching
+ * ImgPacker.receiveAndUnpack(), that is, the header and ready/done handshakes,
+ * the metadata and the voxel data, of one image. The receiving side runs
+ * in its own thread as it would in the real world.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ImgPackerBenchmark
+{
+	@Param({"inproc", "tcp"})
+	public String transport;
+
+	@Param({"UnsignedByteType", "UnsignedShortType", "FloatType", "DoubleType"})
+	public String voxelType;
+
+	@Param({"ArrayImg", "PlanarImg"})
+	public String backend;
+
+	@Param({"256x256", "1024x1024", "512x512x32"})
+	public String size;
+
+	ZMQ.Context zmqContext;
+	ZMQ.Socket sender, receiver;
+	ImgPlus<?> img;
+	long bytes;
+
+	Thread receivingThread;
+	volatile boolean keepReceiving;
+	volatile Throwable receivingError;
+
+	@Setup
+	public void setup()
+	{
+		zmqContext = ZMQ.context(1);
+		final ZMQ.Socket[] sockets = BenchmarkUtils.createSocketPair(zmqContext, transport, "imgPacker");
+		sender = sockets[1];
+		receiver = sockets[0];
+
+		img = BenchmarkUtils.createImage(voxelType, backend, size);
+		bytes = BenchmarkUtils.imageBytes(img, voxelType);
+
+		//the receiving side: keeps receiving images until told to stop
+		receiver.setReceiveTimeOut(100);
+		keepReceiving = true;
+		receivingThread = new Thread(() -> {
+			try {
+				while (keepReceiving)
+				{
+					final byte[] header = receiver.recv(0);
+					if (header != null)
+						ImgPacker.receiveAndUnpack(new String(header), receiver, null);
+				}
+			}
+			catch (Throwable t) {
+				receivingError = t;
+			}
+		}, "benchmark receiver");
+		receivingThread.start();
+	}
+
+	@TearDown
+	public void tearDown()
+	throws InterruptedException
+	{
+		keepReceiving = false;
+		receivingThread.join();
+		sender.close();
+		receiver.close();
+		zmqContext.term();
+
+		if (receivingError != null)
+			throw new RuntimeException("receiving side failed", receivingError);
+	}
+
+	@SuppressWarnings({"unchecked","rawtypes"})
+	@Benchmark
+	public void packAndUnpack(final TrafficCounter traffic)
+	{
+		//NB: returns after the receiver has confirmed the image is received complete
+		ImgPacker.packAndSend((ImgPlus)img, sender, 60, null);
+		traffic.add(bytes);
+	}
+}
@@ -0,0 +1,368 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman;
+
+import org.scijava.io.IOService;
+import net.imagej.Dataset;
+import net.imagej.DatasetService;
+import net.imagej.ImageJ;
+import net.imagej.ImgPlus;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import de.mpicbg.ulman.imgtransfer.ImgPool;
+import de.mpicbg.ulman.imgtransfer.ImgTransfer;
+import de.mpicbg.ulman.imgtransfer.PipelinedSender;
+import de.mpicbg.ulman.imgtransfer.metrics.Phase;
+import de.mpicbg.ulman.imgtransfer.metrics.TransferListener;
+import de.mpicbg.ulman.imgtransfer.metrics.TransferMetrics;
+import de.mpicbg.ulman.imgtransfer.metrics.TransferStats;
+
+/**
+ * Headless command-line tool to send, or serve, files with images, and to receive,
+ * or request, images into files -- the four transfer modes of ImgTransfer. It
+ * is thus compatible with all peers (Fiji, KNIME, C++).
+ *
+ * The files are read (or written) in parallel by the \e -j threads, while
+ * the images already read are being sent (or the next image is already being
+ * received). At most \e -j images are read ahead (or wait to be written).
+ * The throughput statistics are printed at the end.
+ */
+public class BulkTransfer
+{
+	static void usage()
+	{
+		System.out.println("Usage: BulkTransfer [-j threads] [-t timeout] send    address:port  files_or_folders...");
+		System.out.println("       BulkTransfer [-j threads] [-t timeout] serve   port          files_or_folders...");
+		System.out.println("       BulkTransfer [-j threads] [-t timeout] receive port          output_folder");
+		System.out.println("       BulkTransfer [-j threads] [-t timeout] request address:port  output_folder");
+		System.out.println("  -j  number of threads to read/write the files, default is the number of CPUs");
+		System.out.println("  -t  connection timeout in seconds, default is 60");
+	}
+
+	public static void main(final String... args)
+	{
+		int threads = Runtime.getRuntime().availableProcessors();
+		int timeOut = 60;
+
+		//parse the options
+		int a = 0;
+		try {
+			for (; a+1 < args.length && args[a].startsWith("-"); a += 2)
+			{
+				if (args[a].equals("-j")) threads = Math.max(Integer.parseInt(args[a+1]), 1);
+				else
+				if (args[a].equals("-t")) timeOut = Integer.parseInt(args[a+1]);
+				else
+					throw new IllegalArgumentException("unknown option "+args[a]);
+			}
+			if (args.length - a < 3)
+				throw new IllegalArgumentException("missing arguments");
+		}
+		catch (IllegalArgumentException e) {
+			System.out.println("BulkTransfer: "+e.getMessage());
+			usage();
+			System.exit(2);
+		}
+		if (!isMode(args[a]))
+		{
+			System.out.println("BulkTransfer: unknown mode "+args[a]);
+			usage();
+			System.exit(2);
+		}
+
+		System.setProperty("java.awt.headless", "true");
+		final ImageJ ij = new ImageJ();
+		final BulkTransfer bt = new BulkTransfer(ij, threads, timeOut);
+
+		int exitCode = 0;
+		try {
+			System.out.println(bt.runJob(args[a], args[a+1], Arrays.asList(args).subList(a+2, args.length)));
+		}
+		catch (Exception e) {
+			System.out.println("BulkTransfer error: "+e.getMessage());
+			exitCode = 1;
+		}
+		finally {
+			ij.context().dispose();
+		}
+		System.exit(exitCode);
+	}
+
+	///is the \e mode one of the four transfer modes?
+	static
+	boolean isMode(final String mode)
+	{
+		return mode.equals("send") || mode.equals("serve")
+		    || mode.equals("receive") || mode.equals("request");
+	}
+
+
+	// -------- the state --------
+	final IOService io;
+	final DatasetService datasets;
+	final int threads;
+	final int timeOut;
+
+	BulkTransfer(final ImageJ ij, final int _threads, final int _timeOut)
+	{
+		io = ij.context().getService(IOService.class);
+		datasets = ij.context().getService(DatasetService.class);
+		threads = _threads;
+		timeOut = _timeOut;
+	}
+
+	/**
+	 * Runs one transfer in the given \e mode (see usage()) with the \e peer and
+	 * the files or the output folder given in \e paths. Returns the summary
+	 * with the throughput statistics. This may be called from several threads
+	 * at the same time, every call measures only its own transfers.
+	 */
+	String runJob(final String mode, final String peer, final List<String> paths)
+	throws Exception
+	{
+		if (!isMode(mode))
+			throw new IllegalArgumentException("unknown mode "+mode);
+		if (paths.isEmpty())
+			throw new IllegalArgumentException("missing files or output folder");
+
+		final Throughput stats = new Throughput();
+		currentJob.set(stats);
+		TransferMetrics.addListener(stats);
+		try {
+			final long startTime = System.nanoTime();
+			if (mode.equals("send") || mode.equals("serve"))
+				sendFiles(mode.equals("send"), peer, listFiles(paths));
+			else
+				receiveFiles(mode.equals("receive"), peer, new File(paths.get(0)));
+			return stats.summary(System.nanoTime() - startTime);
+		}
+		finally {
+			TransferMetrics.removeListener(stats);
+			currentJob.remove();
+		}
+	}
+
+	///the Throughput of the job run by the current thread, inherited by the threads
+	///started for the job (e.g., the one of the PipelinedSender)
+	static final InheritableThreadLocal<Throughput> currentJob = new InheritableThreadLocal<>();
+
+	/**
+	 * Sums up the TransferStats of all transfers made for the
+	 * job it belongs to (see currentJob and TransferListener).
+	 */
+	static class Throughput implements TransferListener
+	{
+		int images = 0, failed = 0;
+		long bytes = 0, transferNanos = 0, payloadNanos = 0;
+
+		@Override
+		public synchronized
+		void transferFinished(final TransferStats s)
+		{
+			if (currentJob.get() != this) return;
+			if (!s.isSucceeded()) { ++failed; return; }
+			++images;
+			bytes += s.getBytes();
+			transferNanos += s.getTransferNanos();
+			payloadNanos  += s.getPhaseNanos(Phase.PAYLOAD);
+		}
+
+		synchronized
+		String summary(final long wallNanos)
+		{
+			return String.format("BulkTransfer: %d images (%d failed), %.1f MB in %.2f s,"
+			  +" overall %.1f MB/s, transfers %.1f MB/s, voxel data %.1f MB/s",
+			  images, failed, bytes/1e6, wallNanos/1e9,
+			  rate(bytes, wallNanos), rate(bytes, transferNanos), rate(bytes, payloadNanos));
+		}
+
+		static double rate(final long bytes, final long nanos)
+		{ return nanos > 0 ? bytes * 1000.0 / nanos : 0.0; }
+	}
+
+
+	// -------- sending --------
+	///expands the folders in \e paths into their (sorted) files
+	static
+	List<File> listFiles(final List<String> paths)
+	{
+		final List<File> files = new ArrayList<>();
+		for (String p : paths)
+		{
+			final File f = new File(p);
+			if (f.isDirectory())
+			{
+				final File[] content = f.listFiles(File::isFile);
+				if (content == null) continue;
+				Arrays.sort(content);
+				files.addAll(Arrays.asList(content));
+			}
+			else
+				files.add(f);
+		}
+		return files;
+	}
+
+	@SuppressWarnings({"unchecked","rawtypes"})
+	void sendFiles(final boolean push, final String peer, final List<File> files)
+	throws IOException, InterruptedException, ExecutionException
+	{
+		final ImgTransfer Sender = push ?
+		  new ImgTransfer(ImgTransfer.expandAddress(peer), files.size(), timeOut, null) :
+		  new ImgTransfer(Integer.parseInt(peer), files.size(), timeOut, null);
+		System.out.println("BulkTransfer: going to "+(push ? "send " : "serve ")+files.size()+" images");
+		//the next image is packed while the current one is being sent
+		final PipelinedSender pipeline = new PipelinedSender(Sender, !push, Runtime.getRuntime().maxMemory() / 4);
+
+		//the files are being read ahead, at most this.threads of them
+		final ExecutorService readers = Executors.newFixedThreadPool(threads);
+		try {
+			final ArrayDeque<Future<ImgPlus<?>>> readAhead = new ArrayDeque<>(threads);
+			int nextToRead = 0;
+			for (int cnt = 0; cnt < files.size(); ++cnt)
+			{
+				while (nextToRead < files.size() && readAhead.size() < threads)
+				{
+					final File f = files.get(nextToRead++);
+					readAhead.add(readers.submit(() -> readImage(f)));
+				}
+
+				final ImgPlus<?> i = readAhead.poll().get();
+				pipeline.send((ImgPlus)i);
+				System.out.println("BulkTransfer: "+(push ? "sending " : "serving ")+(cnt+1)+"/"+files.size()+": "+i.getName());
+			}
+			pipeline.hangUpAndClose();
+		}
+		finally {
+			readers.shutdownNow();
+			//NB: frees the socket (and the port) and the sending thread if something has failed
+			pipeline.close();
+		}
+	}
+
+	ImgPlus<?> readImage(final File f)
+	throws IOException
+	{
+		final Object data = io.open(f.getPath());
+		if (!(data instanceof Dataset))
+			throw new IOException("Not an image: "+f.getPath());
+
+		final ImgPlus<?> i = ((Dataset)data).getImgPlus();
+		if (i.getName() == null || i.getName().isEmpty()) i.setName(f.getName());
+		return i;
+	}
+
+
+	// -------- receiving --------
+	@SuppressWarnings({"unchecked","rawtypes"})
+	void receiveFiles(final boolean listen, final String peer, final File outFolder)
+	throws IOException, InterruptedException, ExecutionException
+	{
+		if (!outFolder.isDirectory() && !outFolder.mkdirs())
+			throw new IOException("Cannot create the output folder "+outFolder.getPath());
+
+		final ImgTransfer Receiver = listen ?
+		  new ImgTransfer(Integer.parseInt(peer), timeOut, null) :
+		  new ImgTransfer(ImgTransfer.expandAddress(peer), timeOut, null);
+
+		//the images are given back once written, the next same-shaped images are received into them
+		final ImgPool written = new ImgPool(threads+1);
+		Receiver.setImgPool(written);
+
+		//the received images are being written in the background, at most this.threads of them
+		final ExecutorService writers = Executors.newFixedThreadPool(threads);
+		final Semaphore pendingWrites = new Semaphore(threads);
+		final List<Future<?>> writes = new ArrayList<>();
+		final Set<String> usedNames = new HashSet<>();
+		try {
+			int cnt = 0;
+			while (Receiver.isThereNextImage())
+			{
+				final ImgPlus<?> i = listen ? Receiver.receiveImage() : Receiver.requestImage();
+				if (i == null) continue;
+
+				++cnt;
+				System.out.println("BulkTransfer: received "+cnt+"/"+Receiver.getExpectedNumberOfImages()+": "+i.getName());
+
+				final File f = new File(outFolder, fileName(i.getName(), cnt, usedNames));
+				pendingWrites.acquire();
+				writes.add(writers.submit(() -> {
+					try {
+						io.save(datasets.create((ImgPlus)i), f.getPath());
+						written.release(i);
+					}
+					finally {
+						pendingWrites.release();
+					}
+					return null;
+				}));
+			}
+
+			//wait for the writers, and report their problems
+			for (Future<?> w : writes) w.get();
+		}
+		finally {
+			//NB: closes the connection also when the receiving or some writing has failed
+			Receiver.close();
+			writers.shutdown();
+			writers.awaitTermination(1, TimeUnit.MINUTES);
+		}
+	}
+
+	///returns the unique name of the file to save the \e cnt-th image \e imgName into
+	static
+	String fileName(final String imgName, final int cnt, final Set<String> usedNames)
+	{
+		String name = imgName == null ? "" : imgName.replaceAll("[^A-Za-z0-9._-]", "_");
+		//NB: names made only of dots would refer to the output folder or its parent
+		if (name.matches("\\.*")) name = "image_"+cnt;
+		if (!name.contains(".")) name += ".tif";
+
+		if (!usedNames.add(name))
+		{
+			final int dot = name.lastIndexOf('.');
+			name = name.substring(0,dot) + "_" + cnt + name.substring(dot);
+			usedNames.add(name);
+		}
+		return name;
+	}
+}
@@ -31,6 +31,7 @@ import org.scijava.app.StatusService;
 import org.scijava.log.LogService;
 
 import de.mpicbg.ulman.imgtransfer.ProgressCallback;
+import de.mpicbg.ulman.imgtransfer.ProgressEstimator;
 
 public class FijiLogger implements ProgressCallback
 {
@@ -38,10 +39,14 @@ public class FijiLogger implements ProgressCallback
 	final static long initTime = System.currentTimeMillis();
 
 	FijiLogger(final LogService _log, final StatusService _bar)
-	{ log = _log; bar = _bar; }
+	{ this(_log, _bar, 1); }
+
+	FijiLogger(final LogService _log, final StatusService _bar, final int imagesTotal)
+	{ log = _log; bar = _bar; progress = new ProgressEstimator(imagesTotal); }
 
 	final LogService log;
 	final StatusService bar;
+	final ProgressEstimator progress;
 
 	@Override
 	public void info(String msg)
@@ -49,5 +54,26 @@ public class FijiLogger implements ProgressCallback
 
 	@Override
 	public void setProgress(float howFar)
-	{ bar.showProgress((int)(100 * howFar), 100); }
+	{
+		progress.setImageProgress(howFar);
+		showProgress();
+	}
+
+	///to be called after every transferred image
+	synchronized
+	void imageFinished()
+	{
+		progress.imageFinished();
+		showProgress();
+	}
+
+	synchronized
+	void setImagesTotal(final int imagesTotal)
+	{ progress.setImagesTotal(imagesTotal); }
+
+	private void showProgress()
+	{
+		bar.showStatus((int)(1000 * progress.getProgress()), 1000,
+		               "Transferring images... "+progress.getRemainingTime());
+	}
 }
@@ -71,6 +71,11 @@ public class ReceiveImage implements Command
 			description = "The port number should be higher than 1024 such as 54545.")
 	private int portNo = 54545;
 
+	@Parameter(label = "listen also at local ipc:// endpoint:",
+			description = "Partners on this computer can then connect also to the address"
+			+" ipc://<temp folder>/imgtransfer-<port>.")
+	private boolean ipcEndpoint = false;
+
 	@Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false)
 	private String firewallMsg = "Make sure the firewall is not blocking incoming connections to Fiji.";
 
@@ -84,7 +89,8 @@ public class ReceiveImage implements Command
 	@Parameter(label = "address:port of the serving party:",
 			description = "The address can be anything as example.net or IP address"
 			+" as 10.0.0.2 delimited with ':' followed by a port number higher than"
-			+" 1024 such as 54545. It is important not to use any spaces.",
+			+" 1024 such as 54545. It is important not to use any spaces."
+			+" A complete endpoint, e.g. ipc:///tmp/imgtransfer-54545, is accepted too.",
 			columns=15)
 	private String remoteURL = "replace_me:54545";
 
@@ -109,9 +115,9 @@ public class ReceiveImage implements Command
 		final FijiLogger flog = new FijiLogger(log, status);
 		try {
 			if (transferMode == 'A')
-				imgP = ImgTransfer.receiveImage(portNo, timeoutTime, flog);
+				imgP = ImgTransfer.receiveImage(portNo, timeoutTime, flog, ipcEndpoint);
 			else
-				imgP = ImgTransfer.requestImage("tcp://"+remoteURL, timeoutTime, flog);
+				imgP = ImgTransfer.requestImage(ImgTransfer.expandAddress(remoteURL), timeoutTime, flog);
 
 			log.info("ReceiveImage plugin: received "+imgP.getName());
 		}
@@ -40,8 +40,14 @@ import net.imagej.display.ImageDisplayService;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.mpicbg.ulman.imgtransfer.ImgTransfer;
+import de.mpicbg.ulman.imgtransfer.OrderedImages;
+import de.mpicbg.ulman.imgtransfer.PrefetchingReceiver;
+import de.mpicbg.ulman.imgtransfer.ProgressCallback;
 
 @Plugin(type = Command.class, menuPath = "File>Import>Receive Multiple Images")
 public class ReceiveImages implements Command
@@ -72,6 +78,11 @@ public class ReceiveImages implements Command
 			description = "The port number should be higher than 1024 such as 54545.")
 	private int portNo = 54545;
 
+	@Parameter(label = "listen also at local ipc:// endpoint:",
+			description = "Partners on this computer can then connect also to the address"
+			+" ipc://<temp folder>/imgtransfer-<port>.")
+	private boolean ipcEndpoint = false;
+
 	@Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false)
 	private String firewallMsg = "Make sure the firewall is not blocking incoming connections to Fiji.";
 
@@ -85,7 +96,8 @@ public class ReceiveImages implements Command
 	@Parameter(label = "address:port of the serving party:",
 			description = "The address can be anything as example.net or IP address"
 			+" as 10.0.0.2 delimited with ':' followed by a port number higher than"
-			+" 1024 such as 54545. It is important not to use any spaces.",
+			+" 1024 such as 54545. It is important not to use any spaces."
+			+" A complete endpoint, e.g. ipc:///tmp/imgtransfer-54545, is accepted too.",
 			columns=15)
 	private String remoteURL = "replace_me:54545";
 
@@ -103,30 +115,57 @@ public class ReceiveImages implements Command
 			min="1")
 	private int timeoutTime = 60;
 
+	@Parameter(label = "Parallel connections:",
+			description = "The images are received concurrently over this many connections,"
+			+" at the consecutive ports starting from the one given above, and are displayed"
+			+" in their original order. The sending partner must use the same number of connections.",
+			min="1", max="64")
+	private int connections = 1;
+
+	@Parameter(label = "Images received ahead:",
+			description = "While an image is being displayed, up to this many next images"
+			+" are received in the background (within a quarter of the available memory)."
+			+" Zero receives every image only after the previous one is displayed.",
+			min="0", max="16")
+	private int prefetchDepth = 1;
+
 	// ----------- executive part -----------
 	@Override
 	public void run()
 	{
 		final FijiLogger flog = new FijiLogger(log, status);
 
+		if (connections > 1)
+		{
+			receiveInParallel(flog);
+			return;
+		}
+
 		//number of received images, total expected no. of images
 		int cnt = 0, cntE = 0;
 
 		try {
-			if (transferMode == 'A')
-			{
-				final ImgTransfer Receiver = new ImgTransfer(portNo, timeoutTime, flog);
+			final ImgTransfer Receiver = transferMode == 'A' ?
+			  new ImgTransfer(portNo, timeoutTime, flog) :
+			  new ImgTransfer(ImgTransfer.expandAddress(remoteURL), timeoutTime, flog);
+			Receiver.setIpcEndpoints(ipcEndpoint);
 
-				while (Receiver.isThereNextImage())
+			//NB: the prefetched images may occupy up to a quarter of the available memory
+			final PrefetchingReceiver images = new PrefetchingReceiver(Receiver,
+			  transferMode != 'A', prefetchDepth, Runtime.getRuntime().maxMemory() / 4);
+
+			try {
+				while (images.hasNext())
 				{
 					//get next image and display it
-					final ImgPlus<?> i = Receiver.receiveImage();
+					final ImgPlus<?> i = images.next();
 					ui.getDisplayService().createDisplay(i);
 
 					//show the special banner after the very first transfer
 					if (cnt == 0)
 					{
 						cntE = Receiver.getExpectedNumberOfImages();
+						flog.setImagesTotal(cntE);
 						log.info("ReceiveImages plugin: going to receive "+cntE+" images");
 					}
 
@@ -134,40 +173,100 @@ public class ReceiveImages implements Command
 					if (i != null)
 					{
 						++cnt;
-						status.showProgress(cnt,cntE);
+						flog.imageFinished();
 						log.info("ReceiveImages plugin: received "+cnt+"/"+cntE+": "+i.getName());
 					}
 				}
 			}
-			else
-			{
-				final ImgTransfer Receiver = new ImgTransfer("tcp://"+remoteURL, timeoutTime, flog);
+			finally {
+				images.close();
+			}
+		}
+		catch (IOException e) {
+			log.error(e.getMessage());
+		}
+	}
 
-				while (Receiver.isThereNextImage())
-				{
-					//get next image and display it
-					final ImgPlus<?> i = Receiver.requestImage();
-					ui.getDisplayService().createDisplay(i);
+	/**
+	 * Receives, or requests, the images over this.connections parallel connections
+	 * (see ImgTransfer.setPartition()), and displays them in their original order.
+	 * At most two images per connection wait for their turn to be displayed.
+	 */
+	private
+	void receiveInParallel(final FijiLogger flog)
+	{
+		final OrderedImages images = new OrderedImages(connections, 2*connections);
+		//total expected no. of images, every connection adds its own part
+		final AtomicInteger cntE = new AtomicInteger(0);
 
-					//show the special banner after the very first transfer
-					if (cnt == 0)
-					{
-						cntE = Receiver.getExpectedNumberOfImages();
-						log.info("ReceiveImages plugin: going to receive "+cntE+" images");
-					}
+		final List<ImgTransfer> receivers = new ArrayList<>(connections);
+		for (int c = 0; c < connections; ++c)
+		{
+			final int part = c;
+			//NB: the per-image progress of parallel transfers would be mixed up, only info() is passed
+			final ProgressCallback clog = new ProgressCallback() {
+				@Override
+				public void info(String msg) { flog.info("connection "+part+": "+msg); }
+				@Override
+				public void setProgress(float howFar) {}
+			};
 
-					//have we actually got something?
-					if (i != null)
+			final ImgTransfer Receiver = transferMode == 'A' ?
+			  new ImgTransfer(portNo + part, timeoutTime, clog) :
+			  new ImgTransfer(ImgTransfer.shiftAddress(ImgTransfer.expandAddress(remoteURL), part), timeoutTime, clog);
+			Receiver.setIpcEndpoints(ipcEndpoint);
+			receivers.add(Receiver);
+
+			final Thread receiver = new Thread(() -> {
+				try {
+					int k = 0;
+					while (Receiver.isThereNextImage())
 					{
-						++cnt;
-						status.showProgress(cnt,cntE);
-						log.info("ReceiveImages plugin: received "+cnt+"/"+cntE+": "+i.getName());
+						final ImgPlus<?> i = transferMode == 'A' ? Receiver.receiveImage() : Receiver.requestImage();
+						if (i == null) continue;
+
+						if (k == 0) flog.setImagesTotal(cntE.addAndGet(Receiver.getExpectedNumberOfImages()));
+						images.put(OrderedImages.position(Receiver, k++), i);
 					}
 				}
+				catch (IOException e) {
+					log.error("connection "+part+": "+e.getMessage());
+				}
+				catch (InterruptedException e) {
+					log.error("connection "+part+": interrupted");
+					Receiver.close();
+				}
+				finally {
+					images.producerFinished();
+				}
+			}, "ReceiveImages connection "+part);
+			receiver.start();
+		}
+
+		//display the images in the order they were sent
+		boolean allTaken = false;
+		try {
+			int cnt = 0;
+			ImgPlus<?> i;
+			while ((i = images.takeNext()) != null)
+			{
+				ui.getDisplayService().createDisplay(i);
+				++cnt;
+				flog.imageFinished();
+				log.info("ReceiveImages plugin: received "+cnt+"/"+cntE.get()+": "+i.getName());
 			}
+			allTaken = true;
 		}
-		catch (IOException e) {
-			log.error(e.getMessage());
+		catch (InterruptedException e) {
+			log.error("ReceiveImages plugin: interrupted");
+		}
+		finally {
+			//if the displaying has failed, the connections are stopped, they then close themselves
+			if (!allTaken)
+			{
+				images.close();
+				for (final ImgTransfer Receiver : receivers) Receiver.abort();
+			}
 		}
 	}
 }
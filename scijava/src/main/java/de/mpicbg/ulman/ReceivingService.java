@@ -0,0 +1,181 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman;
+
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.service.AbstractService;
+import org.scijava.service.SciJavaService;
+import org.scijava.service.Service;
+import org.scijava.app.StatusService;
+import org.scijava.display.DisplayService;
+import org.scijava.event.EventService;
+import org.scijava.log.LogService;
+import net.imagej.ImgPlus;
+
+import java.io.IOException;
+
+import de.mpicbg.ulman.imgtransfer.ImgTransfer;
+
+/**
+ * Keeps receiving images in the background: it listens at its port all the
+ * time, and receives every batch of images that any sender pushes there,
+ * one batch after another, without anyone having to start the ReceiveImages
+ * command for every batch. Every received image is announced with the
+ * ImageReceivedEvent and, optionally, displayed. The receiving happens on
+ * the service's own thread, it never blocks the UI.
+ *
+ * Use the ReceivingServiceCommand, or start() and stop() directly.
+ */
+@Plugin(type = Service.class)
+public class ReceivingService extends AbstractService implements SciJavaService
+{
+	@Parameter
+	private LogService log;
+
+	@Parameter
+	private StatusService status;
+
+	@Parameter
+	private EventService events;
+
+	@Parameter
+	private DisplayService display;
+
+	/**
+	 * For how long, in seconds, one listening waits for a sender before
+	 * the port is re-bound, this is also the longest time stop() takes.
+	 */
+	static final int LISTENING_PERIOD = 5;
+
+	///the port being listened at, valid only when isListening()
+	private int portNo = 54545;
+	///should the received images be displayed too?
+	private boolean displayImages = true;
+	///should the port be listened at also at its ipc:// endpoint?
+	private boolean ipcEndpoint = false;
+
+	///the listening thread, or null if not listening
+	private Thread listener = null;
+	///flags the listener to finish
+	private volatile boolean stopRequested = false;
+
+	/**
+	 * Starts listening at the \e port, every received image is announced
+	 * with the ImageReceivedEvent and also displayed if \e displayImages.
+	 * If already listening, the listening is restarted with the new settings.
+	 */
+	public synchronized
+	void start(final int port, final boolean _displayImages)
+	{ start(port, _displayImages, false); }
+
+	/**
+	 * The same as start() above, and the \e port is listened at also at its
+	 * ipc:// endpoint if \e _ipcEndpoint (see ImgTransfer.setIpcEndpoints()).
+	 */
+	public synchronized
+	void start(final int port, final boolean _displayImages, final boolean _ipcEndpoint)
+	{
+		stop();
+
+		portNo = port;
+		displayImages = _displayImages;
+		ipcEndpoint = _ipcEndpoint;
+		stopRequested = false;
+
+		listener = new Thread(this::listen, "ReceivingService at port "+port);
+		listener.setDaemon(true);
+		listener.start();
+		log.info("ReceivingService: listening at port "+port);
+	}
+
+	///stops listening, returns after the currently received batch is over
+	public synchronized
+	void stop()
+	{
+		if (listener == null) return;
+
+		stopRequested = true;
+		try {
+			listener.join();
+		}
+		catch (InterruptedException e) {
+			log.warn("ReceivingService: interrupted while stopping");
+		}
+		listener = null;
+		log.info("ReceivingService: stopped listening at port "+portNo);
+	}
+
+	public synchronized
+	boolean isListening()
+	{ return listener != null; }
+
+	///returns the port being listened at, valid only when isListening()
+	public synchronized
+	int getPortNo()
+	{ return portNo; }
+
+	@Override
+	public void dispose()
+	{ stop(); }
+
+	///the body of the listening thread
+	private void listen()
+	{
+		final FijiLogger flog = new FijiLogger(log, status);
+
+		while (!stopRequested)
+		{
+			//NB: the receiver binds the port only for one batch of images,
+			//    it is re-bound right away for the next batch
+			final ImgTransfer Receiver = new ImgTransfer(portNo, LISTENING_PERIOD, flog);
+			Receiver.setIpcEndpoints(ipcEndpoint);
+			int cnt = 0;
+
+			try {
+				while (Receiver.isThereNextImage())
+				{
+					final ImgPlus<?> i = Receiver.receiveImage();
+					if (i == null) continue;
+
+					++cnt;
+					if (cnt == 1) flog.setImagesTotal(Receiver.getExpectedNumberOfImages());
+					flog.imageFinished();
+					log.info("ReceivingService: received "+cnt+"/"+Receiver.getExpectedNumberOfImages()+": "+i.getName());
+
+					events.publish(new ImageReceivedEvent(i, portNo));
+					if (displayImages) display.createDisplay(i);
+				}
+			}
+			catch (IOException e) {
+				//NB: no sender has connected during the LISTENING_PERIOD, that is fine
+				if (cnt > 0) log.error("ReceivingService: "+e.getMessage());
+			}
+		}
+	}
+}
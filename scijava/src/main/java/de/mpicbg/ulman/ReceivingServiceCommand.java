@@ -0,0 +1,83 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman;
+
+import org.scijava.command.Command;
+import org.scijava.plugin.Parameter;
+import org.scijava.plugin.Plugin;
+import org.scijava.ItemVisibility;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+@Plugin(type = Command.class, menuPath = "File>Import>Keep Receiving Images")
+public class ReceivingServiceCommand implements Command
+{
+	@Parameter
+	private ReceivingService receiver;
+
+	@Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false, initializer="getHostURL")
+	private String hostURLmsg = "";
+
+	private String hostURL = "";
+	void getHostURL() throws UnknownHostException
+	{
+		hostURL = InetAddress.getLocalHost().getHostAddress();
+		hostURLmsg = "Tell your sending partners this address: ";
+		hostURLmsg += hostURL + ":";
+		hostURLmsg += new Integer(portNo).toString();
+	}
+
+	@Parameter(label = "port to listen at:", callback="getHostURL", min="1025", max="65535",
+			description = "The port number should be higher than 1024 such as 54545.")
+	private int portNo = 54545;
+
+	@Parameter(label = "listen also at local ipc:// endpoint:",
+			description = "Partners on this computer can then connect also to the address"
+			+" ipc://<temp folder>/imgtransfer-<port>.")
+	private boolean ipcEndpoint = false;
+
+	@Parameter(label = "display the received images:")
+	private boolean displayImages = true;
+
+	@Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false)
+	private String firewallMsg = "Make sure the firewall is not blocking incoming connections to Fiji.";
+
+	@Parameter(label = "Receiving in the background:", choices = {"start", "stop"})
+	private String action = "start";
+
+	// ----------- executive part -----------
+	@Override
+	public void run()
+	{
+		if (action.equals("start"))
+			receiver.start(portNo, displayImages, ipcEndpoint);
+		else
+			receiver.stop();
+	}
+}
@@ -40,6 +40,7 @@ import java.net.UnknownHostException;
 import java.io.IOException;
 
 import de.mpicbg.ulman.imgtransfer.ImgTransfer;
+import de.mpicbg.ulman.imgtransfer.RateLimiter;
 
 @Plugin(type = Command.class, menuPath = "File>Export>Send Current Image")
 public class SendImage implements Command
@@ -60,7 +61,8 @@ public class SendImage implements Command
 	@Parameter(label = "address:port of the receiving party:",
 			description = "The address can be anything as example.net or IP address"
 			+" as 10.0.0.2 delimited with ':' followed by a port number higher than"
-			+" 1024 such as 54545. It is important not to use any spaces.",
+			+" 1024 such as 54545. It is important not to use any spaces."
+			+" A complete endpoint, e.g. ipc:///tmp/imgtransfer-54545, is accepted too.",
 			columns=15)
 	private String remoteURL = "replace_me:54545";
 
@@ -84,6 +86,11 @@ public class SendImage implements Command
 			description = "The port number should be higher than 1024 such as 54545.")
 	private int portNo = 54545;
 
+	@Parameter(label = "listen also at local ipc:// endpoint:",
+			description = "Partners on this computer can then connect also to the address"
+			+" ipc://<temp folder>/imgtransfer-<port>.")
+	private boolean ipcEndpoint = false;
+
 	@Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false)
 	private String firewallMsg = "Make sure the firewall is not blocking incoming connections to Fiji.";
 
@@ -101,26 +108,44 @@ public class SendImage implements Command
 			min="1")
 	private int timeoutTime = 60;
 
+	@Parameter(label = "Bandwidth limit of this transfer in MB/s:",
+			description = "Sending of the images is slowed down not to exceed this rate,"
+			+" which leaves the network to other services. Zero means no limit.",
+			min="0")
+	private double transferLimit = 0;
+
+	@Parameter(label = "Bandwidth limit of all transfers in MB/s:",
+			description = "All transfers running concurrently in this Fiji together"
+			+" do not exceed this rate. Zero means no limit.",
+			min="0")
+	private double processLimit = 0;
+
 	// ----------- executive part ----------- 
 	@SuppressWarnings({"unchecked","rawtypes"})
 	@Override
 	public void run()
 	{
 		final FijiLogger flog = new FijiLogger(log, status);
+		final RateLimiter limiter = RateLimiter.forTransfer(
+		  RateLimiter.fromMegaBytesPerSecond(transferLimit), 0,
+		  RateLimiter.fromMegaBytesPerSecond(processLimit));
 		try {
 			if (transferMode == 'A')
 			{
 				log.info("SendImage plugin: sending "+imgP.getName());
-				ImgTransfer.sendImage((ImgPlus) imgP, "tcp://"+remoteURL, timeoutTime, flog);
+				ImgTransfer.sendImage((ImgPlus) imgP, ImgTransfer.expandAddress(remoteURL), timeoutTime, flog, limiter);
 			}
 			else
 			{
 				log.info("SendImage plugin: serving "+imgP.getName());
-				ImgTransfer.serveImage((ImgPlus) imgP, portNo, timeoutTime, flog);
+				ImgTransfer.serveImage((ImgPlus) imgP, portNo, timeoutTime, flog, limiter, ipcEndpoint);
 			}
 		}
 		catch (IOException e) {
 			log.error(e.getMessage());
 		}
+		finally {
+			limiter.close();
+		}
 	}
 }
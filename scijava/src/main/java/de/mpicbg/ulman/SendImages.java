@@ -40,8 +40,18 @@ import net.imagej.display.ImageDisplayService;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 import de.mpicbg.ulman.imgtransfer.ImgTransfer;
+import de.mpicbg.ulman.imgtransfer.PipelinedSender;
+import de.mpicbg.ulman.imgtransfer.ProgressCallback;
+import de.mpicbg.ulman.imgtransfer.RateLimiter;
 
 @Plugin(type = Command.class, menuPath = "File>Export>Send All Opened Images")
 public class SendImages implements Command
@@ -66,7 +76,8 @@ public class SendImages implements Command
 	@Parameter(label = "address:port of the receiving party:",
 			description = "The address can be anything as example.net or IP address"
 			+" as 10.0.0.2 delimited with ':' followed by a port number higher than"
-			+" 1024 such as 54545. It is important not to use any spaces.",
+			+" 1024 such as 54545. It is important not to use any spaces."
+			+" A complete endpoint, e.g. ipc:///tmp/imgtransfer-54545, is accepted too.",
 			columns=15)
 	private String remoteURL = "replace_me:54545";
 
@@ -90,6 +101,11 @@ public class SendImages implements Command
 			description = "The port number should be higher than 1024 such as 54545.")
 	private int portNo = 54545;
 
+	@Parameter(label = "listen also at local ipc:// endpoint:",
+			description = "Partners on this computer can then connect also to the address"
+			+" ipc://<temp folder>/imgtransfer-<port>.")
+	private boolean ipcEndpoint = false;
+
 	@Parameter(visibility = ItemVisibility.MESSAGE, persist = false, required = false)
 	private String firewallMsg = "Make sure the firewall is not blocking incoming connections to Fiji.";
 
@@ -107,61 +123,153 @@ public class SendImages implements Command
 			min="1")
 	private int timeoutTime = 60;
 
+	@Parameter(label = "Bandwidth limit of this transfer in MB/s:",
+			description = "Sending of the images is slowed down not to exceed this rate,"
+			+" which leaves the network to other services. Zero means no limit.",
+			min="0")
+	private double transferLimit = 0;
+
+	@Parameter(label = "Bandwidth limit of all transfers in MB/s:",
+			description = "All transfers running concurrently in this Fiji together"
+			+" do not exceed this rate. Zero means no limit.",
+			min="0")
+	private double processLimit = 0;
+
+	@Parameter(label = "Parallel connections:",
+			description = "The images are sent concurrently over this many connections,"
+			+" at the consecutive ports starting from the one given above."
+			+" The receiving partner must use the same number of connections.",
+			min="1", max="64")
+	private int connections = 1;
+
 	// ----------- executive part -----------
-	@SuppressWarnings({"unchecked","rawtypes"})
 	@Override
 	public void run()
 	{
-		final FijiLogger flog = new FijiLogger(log, status);
+		//all images to transfer, in the order of their displays
+		final List<ImgPlus<?>> imgs = new ArrayList<>();
+		for (ImageDisplay ID : ui.getImageDisplays())
+			imgs.add(ui.getActiveDataset(ID).getImgPlus());
+		final int cntE = imgs.size();
+
+		final FijiLogger flog = new FijiLogger(log, status, cntE);
+		//NB: all connections share the bandwidth limit of this transfer
+		final RateLimiter limiter = RateLimiter.forTransfer(
+		  RateLimiter.fromMegaBytesPerSecond(transferLimit), 0,
+		  RateLimiter.fromMegaBytesPerSecond(processLimit));
 
-		//number of received images, total no. of images to transfer
-		int cnt = 1;
-		final int cntE = ui.getImageDisplays().size();
+		log.info("SendImages plugin: going to "+(transferMode == 'A' ? "send " : "serve ")
+		         +cntE+" images over "+connections+" connection(s)");
 
 		try {
-			if (transferMode == 'A')
+			if (connections == 1)
+				transferPartition(imgs, 0, 1, createSender(imgs.size(), 0, 1, limiter, flog), flog);
+			else
 			{
-				//setup the tranfer object
-				final ImgTransfer Sender
-					= new ImgTransfer("tcp://"+remoteURL, cntE, timeoutTime, flog);
-
-				log.info("SendImages plugin: going to send "+cntE+" images");
-				for (ImageDisplay ID : ui.getImageDisplays())
+				//every connection transfers every connections-th image, see ImgTransfer.setPartition()
+				final List<ImgTransfer> senders = new ArrayList<>(connections);
+				for (int c = 0; c < connections; ++c)
 				{
-					log.info("SendImages plugin: sending "+cnt+"/"+cntE+": "
-						+ui.getActiveDataset(ID).getImgPlus().getName());
+					final int part = c;
+					//NB: the per-image progress of parallel transfers would be mixed up, only info() is passed
+					final ProgressCallback clog = new ProgressCallback() {
+						@Override
+						public void info(String msg) { flog.info("connection "+part+": "+msg); }
+						@Override
+						public void setProgress(float howFar) {}
+					};
+					senders.add(createSender(imgs.size(), part, connections, limiter, clog));
+				}
 
-					//send the image
-					Sender.sendImage( (ImgPlus)ui.getActiveDataset(ID).getImgPlus() );
+				final ExecutorService workers = Executors.newFixedThreadPool(connections);
+				boolean allTransferred = false;
+				try {
+					final List<Future<?>> jobs = new ArrayList<>(connections);
+					for (int c = 0; c < connections; ++c)
+					{
+						final int part = c;
+						jobs.add(workers.submit(() -> { transferPartition(imgs, part, connections, senders.get(part), flog); return null; }));
+					}
 
-					status.showProgress(cnt,cntE);
-					++cnt;
+					for (final Future<?> job : jobs) job.get();
+					allTransferred = true;
+				}
+				finally {
+					//stops the remaining connections if some failed, they then close themselves
+					//NB: the workers are not interrupted as it could break their ZeroMQ calls
+					if (!allTransferred)
+						for (final ImgTransfer Sender : senders) Sender.abort();
+					workers.shutdown();
+					workers.awaitTermination(1, TimeUnit.MINUTES);
 				}
-				Sender.hangUpAndClose();
 			}
-			else
-			{
-				//setup the tranfer object
-				final ImgTransfer Sender
-					= new ImgTransfer(portNo, cntE, timeoutTime, flog);
+		}
+		catch (ExecutionException e) {
+			log.error(e.getCause().getMessage());
+		}
+		catch (InterruptedException e) {
+			log.error("SendImages plugin: interrupted");
+		}
+		catch (IOException e) {
+			log.error(e.getMessage());
+		}
+		finally {
+			limiter.close();
+		}
+	}
 
-				log.info("SendImages plugin: going to serve "+cntE+" images");
-				for (ImageDisplay ID : ui.getImageDisplays())
-				{
-					log.info("SendImages plugin: serving "+cnt+"/"+cntE+": "
-						+ui.getActiveDataset(ID).getImgPlus().getName());
+	/**
+	 * Creates the transfer object of the partition \e part (out of \e parts) of
+	 * the \e cntImgs images, with its own connection (see ImgTransfer.shiftAddress())
+	 * and within the bandwidth \e limiter.
+	 */
+	private
+	ImgTransfer createSender(final int cntImgs, final int part, final int parts,
+	                         final RateLimiter limiter, final ProgressCallback clog)
+	{
+		//number of images of this partition
+		final int cntP = (cntImgs + parts-1 - part) / parts;
 
-					//send the image
-					Sender.serveImage( (ImgPlus)ui.getActiveDataset(ID).getImgPlus() );
+		final ImgTransfer Sender = transferMode == 'A' ?
+			new ImgTransfer(ImgTransfer.shiftAddress(ImgTransfer.expandAddress(remoteURL), part), cntP, timeoutTime, clog) :
+			new ImgTransfer(portNo + part, cntP, timeoutTime, clog);
+		if (parts > 1) Sender.setPartition(part, parts);
+		Sender.setRateLimiter(limiter);
+		Sender.setIpcEndpoints(ipcEndpoint);
+		return Sender;
+	}
 
-					status.showProgress(cnt,cntE);
-					++cnt;
-				}
-				Sender.hangUpAndClose();
+	/**
+	 * Sends, or serves, the images of the partition \e part (out of \e parts)
+	 * with the \e Sender of this partition. The \e Sender is closed at the end,
+	 * also when the transfer fails.
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	private
+	void transferPartition(final List<ImgPlus<?>> imgs, final int part, final int parts,
+	                       final ImgTransfer Sender, final FijiLogger flog)
+	throws IOException
+	{
+		//the next image is packed while the current one is being sent,
+		//within a quarter of the available memory (shared by all connections)
+		final PipelinedSender pipeline = new PipelinedSender(Sender, transferMode != 'A',
+		  Runtime.getRuntime().maxMemory() / 4 / parts);
+
+		try {
+			for (int cnt = part; cnt < imgs.size(); cnt += parts)
+			{
+				final ImgPlus<?> i = imgs.get(cnt);
+				log.info("SendImages plugin: "+(transferMode == 'A' ? "sending " : "serving ")
+				         +(cnt+1)+"/"+imgs.size()+": "+i.getName());
+
+				//send the image, the progress is updated once it is sent
+				pipeline.send( (ImgPlus)i, flog::imageFinished );
 			}
+			pipeline.hangUpAndClose();
 		}
-		catch (IOException e) {
-			log.error(e.getMessage());
+		finally {
+			//NB: closes the Sender if the transfer has failed
+			pipeline.close();
 		}
 	}
 }
@@ -0,0 +1,370 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman;
+
+import net.imagej.ImageJ;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMsg;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-running process that executes the BulkTransfer jobs submitted over its
+ * local control channel, so that the scripts need not start a JVM and the
+ * SciJava context for every transfer. The ImageJ context (with its file
+ * readers and writers) and the ZeroMQ context are created only once.
+ *
+ * The control channel is the ZeroMQ socket bound at tcp://127.0.0.1:port
+ * (only local clients can connect). As every local user could connect, the
+ * daemon creates a random token in the file ~/.imgtransfer/daemon-port.token
+ * that only its user can read (see controlTokenFile()), and executes only the
+ * requests that present this token. Every request is a two-part message: the
+ * token, and the text with the words of the job (separated with spaces, or
+ * with newlines if some word contains spaces). It is replied with one message
+ * that starts with "ok" or "error" followed by the result. The jobs are:
+ * <pre>
+ *   send    address:port  files_or_folders...
+ *   serve   port          files_or_folders...
+ *   receive port          output_folder
+ *   request address:port  output_folder
+ *   status                how many jobs are running
+ *   shutdown              stops the daemon after the running jobs are over
+ * </pre>
+ * The jobs run in parallel, every request is replied when its job is over.
+ * A REQ socket of any ZeroMQ binding can be the client, e.g., in Python:
+ * <pre>
+ *   t = open(os.path.expanduser("~/.imgtransfer/daemon-54500.token")).read().strip()
+ *   s = zmq.Context().socket(zmq.REQ); s.connect("tcp://127.0.0.1:54500")
+ *   s.send_multipart([t.encode(), b"send otherhost:54545 /data/images"]); print(s.recv_string())
+ * </pre>
+ * or this class itself with the -c option.
+ */
+public class TransferDaemon
+{
+	public static final int DEFAULT_CONTROL_PORT = 54500;
+
+	///the ZeroMQ context of the control channel (of both the daemon and the client)
+	private static final ZMQ.Context zmqContext = ZMQ.context(1);
+
+	static void usage()
+	{
+		System.out.println("Usage: TransferDaemon [-p control_port] [-j threads] [-t timeout]");
+		System.out.println("       TransferDaemon [-p control_port] -c job words...");
+		System.out.println("  -p  the port of the local control channel, default is "+DEFAULT_CONTROL_PORT);
+		System.out.println("  -j  number of threads to read/write the files per job, default is the number of CPUs");
+		System.out.println("  -t  connection timeout of the transfers in seconds, default is 60");
+		System.out.println("  -c  submits the job to the running daemon, and prints its result");
+	}
+
+	public static void main(final String... args)
+	{
+		int controlPort = DEFAULT_CONTROL_PORT;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int timeOut = 60;
+
+		int a = 0;
+		try {
+			for (; a < args.length && args[a].startsWith("-"); a += 2)
+			{
+				if (args[a].equals("-c")) break;
+				if (a+1 >= args.length) throw new IllegalArgumentException("missing value of "+args[a]);
+
+				if (args[a].equals("-p")) controlPort = Integer.parseInt(args[a+1]);
+				else
+				if (args[a].equals("-j")) threads = Math.max(Integer.parseInt(args[a+1]), 1);
+				else
+				if (args[a].equals("-t")) timeOut = Integer.parseInt(args[a+1]);
+				else
+					throw new IllegalArgumentException("unknown option "+args[a]);
+			}
+		}
+		catch (IllegalArgumentException e) {
+			System.out.println("TransferDaemon: "+e.getMessage());
+			usage();
+			System.exit(2);
+		}
+
+		if (a < args.length && args[a].equals("-c"))
+		{
+			final String reply = submit(controlPort, Arrays.asList(args).subList(a+1, args.length));
+			System.out.println(reply);
+			System.exit(reply.startsWith("ok") ? 0 : 1);
+		}
+
+		System.setProperty("java.awt.headless", "true");
+		final ImageJ ij = new ImageJ();
+		try {
+			new TransferDaemon(new BulkTransfer(ij, threads, timeOut)::runJob).serve(controlPort);
+		}
+		finally {
+			ij.context().dispose();
+		}
+		System.exit(0);
+	}
+
+	///returns the address of the control channel at the \e controlPort
+	static
+	String controlAddress(final int controlPort)
+	{ return "tcp://127.0.0.1:"+controlPort; }
+
+	///returns the file with the token of the daemon listening at the \e controlPort
+	static
+	Path controlTokenFile(final int controlPort)
+	{ return Paths.get(System.getProperty("user.home"), ".imgtransfer", "daemon-"+controlPort+".token"); }
+
+	/**
+	 * Creates a new random token for the daemon listening at the \e controlPort,
+	 * and stores it in the controlTokenFile() that only this user can read and write.
+	 * On systems without the POSIX permissions, the file is as private as the home folder.
+	 */
+	static
+	String createToken(final int controlPort)
+	throws IOException
+	{
+		final byte[] random = new byte[32];
+		new SecureRandom().nextBytes(random);
+		final StringBuilder token = new StringBuilder();
+		for (byte b : random) token.append(String.format("%02x", b));
+
+		final Path file = controlTokenFile(controlPort);
+		final boolean posix = file.getFileSystem().supportedFileAttributeViews().contains("posix");
+		if (!Files.isDirectory(file.getParent()))
+		{
+			if (posix) Files.createDirectories(file.getParent(),
+			             PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+			else Files.createDirectories(file.getParent());
+		}
+
+		//NB: a new file is created, so that nobody else could have opened it in the meantime
+		Files.deleteIfExists(file);
+		try {
+			if (posix) Files.createFile(file,
+			             PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+			else Files.createFile(file);
+		}
+		catch (FileAlreadyExistsException e) {
+			throw new IOException("another daemon is just starting at the port "+controlPort);
+		}
+		Files.write(file, token.toString().getBytes(StandardCharsets.US_ASCII));
+		return token.toString();
+	}
+
+	///reads the token of the daemon listening at the \e controlPort, or returns null if there is none
+	static
+	String readToken(final int controlPort)
+	{
+		try {
+			return new String(Files.readAllBytes(controlTokenFile(controlPort)), StandardCharsets.US_ASCII).trim();
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Sends the \e job to the daemon listening at the \e controlPort,
+	 * waits for the job to be over, and returns the daemon's reply.
+	 */
+	public static
+	String submit(final int controlPort, final List<String> job)
+	{
+		final String token = readToken(controlPort);
+		if (token == null)
+			return "error cannot read "+controlTokenFile(controlPort)+", is the daemon running?";
+
+		final ZMQ.Socket socket = zmqContext.socket(ZMQ.REQ);
+		try {
+			socket.setLinger(0);
+			socket.connect(controlAddress(controlPort));
+			socket.sendMore(token);
+			socket.send(joinWords(job));
+
+			final String reply = socket.recvStr();
+			return reply != null ? reply : "error no reply from the daemon";
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	///joins the \e words with spaces, or with newlines if some word contains a space
+	static
+	String joinWords(final List<String> words)
+	{
+		boolean spaces = false;
+		for (String w : words) spaces |= w.contains(" ");
+		return String.join(spaces ? "\n" : " ", words);
+	}
+
+	///splits the \e msg into the words, see joinWords()
+	static
+	List<String> splitWords(final String msg)
+	{
+		final List<String> words = new ArrayList<>();
+		final String m = msg.trim();
+		for (String w : m.contains("\n") ? m.split("\n") : m.split("\\s+"))
+			if (!w.isEmpty()) words.add(w);
+		return words;
+	}
+
+
+	// -------- the daemon --------
+	///executes one job, see BulkTransfer.runJob()
+	interface JobRunner
+	{
+		String runJob(String mode, String peer, List<String> paths) throws Exception;
+	}
+
+	///the executor of the jobs, created once for all of them
+	final JobRunner bulk;
+
+	///the replies of the finished jobs, every one is the envelope (to whom) and the text
+	private final ConcurrentLinkedQueue<ZMsg> replies = new ConcurrentLinkedQueue<>();
+
+	///how many jobs are running
+	private final AtomicInteger runningJobs = new AtomicInteger(0);
+
+	TransferDaemon(final JobRunner _bulk)
+	{ bulk = _bulk; }
+
+	/**
+	 * Listens at the local \e controlPort, and executes the received jobs
+	 * until the "shutdown" job arrives. Only the jobs with the token from
+	 * the controlTokenFile() are accepted.
+	 */
+	void serve(final int controlPort)
+	{
+		final ZMQ.Socket socket = zmqContext.socket(ZMQ.ROUTER);
+		final ExecutorService jobs = Executors.newCachedThreadPool();
+		boolean tokenCreated = false;
+		try {
+			socket.setLinger(0);
+			//NB: the replies of the finished jobs are sent out in between the waitings
+			socket.setReceiveTimeOut(50);
+			socket.bind(controlAddress(controlPort));
+
+			//NB: only after the bind, not to replace the token of another daemon at this port
+			final byte[] tokenBytes;
+			try {
+				tokenBytes = createToken(controlPort).getBytes(StandardCharsets.US_ASCII);
+				tokenCreated = true;
+			}
+			catch (IOException e) {
+				System.out.println("TransferDaemon: cannot create the token file: "+e.getMessage());
+				return;
+			}
+			System.out.println("TransferDaemon: listening at "+controlAddress(controlPort)
+			                   +", token is in "+controlTokenFile(controlPort));
+
+			boolean shutdown = false;
+			while (!shutdown || runningJobs.get() > 0 || !replies.isEmpty())
+			{
+				ZMsg reply;
+				while ((reply = replies.poll()) != null) reply.send(socket);
+
+				final ZMsg request = ZMsg.recvMsg(socket);
+				if (request == null) continue;
+
+				//the request is: the envelope (the client's identity, the empty delimiter), the token, the job
+				final String job = request.removeLast().getString(ZMQ.CHARSET);
+				final byte[] requestToken = request.size() > 2 ? request.removeLast().getData() : new byte[0];
+				final List<String> words = splitWords(job);
+				final String cmd = words.isEmpty() ? "" : words.get(0);
+
+				if (!MessageDigest.isEqual(requestToken, tokenBytes))
+				{
+					System.out.println("TransferDaemon: rejected a request without the valid token");
+					reply(request, "error not authorized, the token from "+controlTokenFile(controlPort)+" is required");
+				}
+				else
+				if (cmd.equals("status"))
+					reply(request, "ok "+runningJobs.get()+" jobs running");
+				else
+				if (cmd.equals("shutdown"))
+				{
+					shutdown = true;
+					reply(request, "ok shutting down after "+runningJobs.get()+" running jobs");
+				}
+				else
+				if (shutdown)
+					reply(request, "error the daemon is shutting down");
+				else
+				if (!BulkTransfer.isMode(cmd) || words.size() < 3)
+					reply(request, "error unknown job: "+job);
+				else
+				{
+					System.out.println("TransferDaemon: starting job: "+job);
+					runningJobs.incrementAndGet();
+					jobs.submit(() -> {
+						try {
+							reply(request, "ok "+bulk.runJob(cmd, words.get(1), words.subList(2, words.size())));
+						}
+						catch (Exception e) {
+							reply(request, "error "+e.getMessage());
+						}
+						finally {
+							runningJobs.decrementAndGet();
+						}
+					});
+				}
+			}
+		}
+		finally {
+			jobs.shutdownNow();
+			socket.close();
+			if (tokenCreated)
+			{
+				try { Files.deleteIfExists(controlTokenFile(controlPort)); }
+				catch (IOException e) { /* nothing to be done */ }
+			}
+		}
+		System.out.println("TransferDaemon: finished");
+	}
+
+	///queues the \e text to be replied to the sender of the \e request (whose job is already removed)
+	private void reply(final ZMsg request, final String text)
+	{
+		request.addLast(text);
+		replies.add(request);
+	}
+}
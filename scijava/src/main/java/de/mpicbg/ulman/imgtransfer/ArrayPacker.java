@@ -58,6 +58,9 @@ public class ArrayPacker
 		return timeOut;
 	}
 
+	///how often, in milliseconds, is the socket checked for the incoming data
+	static final int POLLING_PERIOD = 10;
+
 	/**
 	 * This one checks periodically (until timeout period) if
 	 * there is some incoming data (a message sent with no SNDMORE
@@ -69,27 +72,22 @@ public class ArrayPacker
 	 * Units are seconds.
 	 *
 	 * It finishes "nicely" if there is some, or finishes
-	 * with an exception complaining about timeout.
+	 * with an exception complaining about timeout, or with the
+	 * ConnectionBrokenException as soon as the peer is found gone.
 	 */
 	public static
 	void waitForFirstMessage(final ZMQ.Socket socket, final int _timeOut)
 	{
-		int timeWaited = 0;
-		while (timeWaited < _timeOut
-		  && (socket.getEvents() & ZMQ.EVENT_CONNECTED) != ZMQ.EVENT_CONNECTED)
+		final long deadline = System.nanoTime() + _timeOut * 1000000000L;
+		while ((socket.getEvents() & ZMQ.Poller.POLLIN) == 0)
 		{
-			//if nothing found, wait a while before another checking attempt
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+			ConnectionMonitor.checkConnection(socket);
+			if (System.nanoTime() - deadline >= 0)
+				throw new RuntimeException("Reached timeout for the first incoming data.");
 
-			++timeWaited;
+			//if nothing found, wait a while before another checking attempt
+			pollingPause();
 		}
-
-		if ((socket.getEvents() & ZMQ.EVENT_CONNECTED) != ZMQ.EVENT_CONNECTED)
-			throw new RuntimeException("Reached timeout for the first incoming data.");
 	}
 
 	public static
@@ -99,7 +97,14 @@ public class ArrayPacker
 	/**
 	 * This one checks periodically (until timeout period) if
 	 * there is next part of some incoming data (a message sent
-	 * with SNDMORE flag) reported on the socket.
+	 * with SNDMORE flag) reported on the socket. If no multi-part
+	 * message is being received, it waits for the first part of
+	 * a new message instead (which is the case of the voxel data
+	 * that follows the BinaryHeader).
+	 *
+	 * If the socket exchanges heartbeats with the peer, the timeout
+	 * is not applied because the peer is known to be alive (just slow),
+	 * and a dead peer is reported with the ConnectionBrokenException.
 	 *
 	 * It finishes "nicely" if there is some, or finishes
 	 * with an exception complaining about timeout.
@@ -107,21 +112,29 @@ public class ArrayPacker
 	public static
 	void waitForNextMessage(final ZMQ.Socket socket)
 	{
-		int timeWaited = 0;
-		while (timeWaited < timeOut && !socket.hasReceiveMore())
+		final boolean useTimeOut = !ConnectionMonitor.hasHeartbeats(socket);
+		final long deadline = System.nanoTime() + timeOut * 1000000000L;
+		while (!socket.hasReceiveMore() && (socket.getEvents() & ZMQ.Poller.POLLIN) == 0)
 		{
-			//if nothing found, wait a while before another checking attempt
-			try {
-				Thread.sleep(1000);
-			} catch (InterruptedException e) {
-				e.printStackTrace();
-			}
+			ConnectionMonitor.checkConnection(socket);
+			if (useTimeOut && System.nanoTime() - deadline >= 0)
+				throw new RuntimeException("Reached timeout for the next incoming data.");
 
-			++timeWaited;
+			//if nothing found, wait a while before another checking attempt
+			pollingPause();
 		}
+	}
 
-		if (!socket.hasReceiveMore())
-			throw new RuntimeException("Reached timeout for the next incoming data.");
+	///sleeps for POLLING_PERIOD, an interrupt is turned into a RuntimeException
+	private static
+	void pollingPause()
+	{
+		try {
+			Thread.sleep(POLLING_PERIOD);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while waiting for the incoming data.");
+		}
 	}
 
 	//-------------------
@@ -145,6 +158,40 @@ public class ArrayPacker
 	///cached value, helper: how many bytes the basic type occupies (e.g., float = 4 B)
 	final int arrayElemSize;
 
+	///how many bytes of the voxel data has been transmitted so far with this object
+	long transmittedBytes = 0;
+	///how many chunks (message parts) has been transmitted so far with this object
+	long transmittedChunks = 0;
+
+	/**
+	 * Minimal period, in milliseconds, between two reports to the ProgressCallback.
+	 * The completion of the transmission is always reported.
+	 */
+	private static int progressReportPeriod = 250;
+
+	/// sets this.progressReportPeriod
+	public static
+	void setProgressReportPeriod(final int millis)
+	{
+		progressReportPeriod = millis < 0 ? 250 : millis;
+	}
+
+	/// reads current this.progressReportPeriod
+	public static
+	int getProgressReportPeriod()
+	{
+		return progressReportPeriod;
+	}
+
+	///if not null, it is fed with the fraction of this.progressTotalBytes transmitted so far
+	private ProgressCallback progress = null;
+	///how many bytes are expected to be transmitted in total with this object
+	private long progressTotalBytes;
+	///the next report is considered only once this.transmittedBytes reaches this value...
+	private long progressNextBytes;
+	///...and the report is made only if it is not earlier than this time
+	private long progressNextTime;
+
 
 	///constant for the constructor: tells that we want a sender
 	public final static int FROM_ARRAY_TO_SOCKET = 1;
@@ -164,32 +211,16 @@ public class ArrayPacker
 	 * into the \e socket.
 	 */
 	ArrayPacker(final Object sampleArray, final ZMQ.Socket socket, final int direction)
+	{ this(createBuffer(sampleArray), socket, direction); }
+
+	/**
+	 * The same as the constructor above except that the connector between the arrays
+	 * and the ByteBuffer is given explicitly, e.g., the ScatteringBuffer.
+	 */
+	ArrayPacker(final Buffer buffer, final ZMQ.Socket socket, final int direction)
 	{
-		if (sampleArray instanceof byte[])
-		{
-			arrayVsBuffer = new ByteBuffer();
-			arrayElemSize = arrayVsBuffer.getElemSize();
-		}
-		else
-		if (sampleArray instanceof short[])
-		{
-			arrayVsBuffer = new ShortBuffer();
-			arrayElemSize = arrayVsBuffer.getElemSize();
-		}
-		else
-		if (sampleArray instanceof float[])
-		{
-			arrayVsBuffer = new FloatBuffer();
-			arrayElemSize = arrayVsBuffer.getElemSize();
-		}
-		else
-		if (sampleArray instanceof double[])
-		{
-			arrayVsBuffer = new DoubleBuffer();
-			arrayElemSize = arrayVsBuffer.getElemSize();
-		}
-		else
-			throw new RuntimeException("Does not recognize this array type.");
+		arrayVsBuffer = buffer;
+		arrayElemSize = arrayVsBuffer.getElemSize();
 
 		switch (direction)
 		{
@@ -204,19 +235,118 @@ public class ArrayPacker
 		}
 	}
 
+	/**
+	 * The same as the constructor above except that the voxel data is written
+	 * into, or read from, the shared memory \e segment instead of a socket.
+	 */
+	ArrayPacker(final Object sampleArray, final ShmTransfer.Segment segment, final int direction)
+	{ this(createBuffer(sampleArray), segment, direction); }
+
+	ArrayPacker(final Buffer buffer, final ShmTransfer.Segment segment, final int direction)
+	{
+		arrayVsBuffer = buffer;
+		arrayElemSize = arrayVsBuffer.getElemSize();
+
+		switch (direction)
+		{
+		case FROM_ARRAY_TO_SOCKET:
+			arrayVsSocket = new SendToShm(segment, arrayVsBuffer);
+			break;
+		case FROM_SOCKET_TO_ARRAY:
+			arrayVsSocket = new RecvFromShm(segment, arrayVsBuffer);
+			break;
+		default:
+			throw new RuntimeException("Does not recognize the job.");
+		}
+	}
+
+	/**
+	 * The same as the constructors above except that the arrays are
+	 * transmitted with the given \e socket, e.g., the PackedImage.Packer.
+	 */
+	ArrayPacker(final Buffer buffer, final Socket socket)
+	{
+		arrayVsBuffer = buffer;
+		arrayElemSize = arrayVsBuffer.getElemSize();
+		arrayVsSocket = socket;
+	}
+
+	///if not null, the chunks of the arrays are taken from it instead of being converted
+	private PackedImage packed = null;
+
+	///makes the arrays to be sent as they were already converted into the chunks in the \e packed
+	void setPackedImage(final PackedImage _packed)
+	{ packed = _packed; }
+
+	/**
+	 * Makes this object to report to the \e log how far it is with transmitting
+	 * of the \e totalBytes, that is, the whole image. The reports are made at
+	 * most every 1 percent of the \e totalBytes and at most every
+	 * progressReportPeriod milliseconds, the reporting is thus negligible
+	 * compared to the transmission itself.
+	 */
+	void setProgressCallback(final ProgressCallback log, final long totalBytes)
+	{
+		progress = totalBytes > 0 ? log : null;
+		progressTotalBytes = totalBytes;
+		progressNextBytes = transmittedBytes + totalBytes/100;
+		progressNextTime = System.currentTimeMillis() + progressReportPeriod;
+	}
+
+	///returns how many bytes one element of the \e sampleArray occupies
+	static
+	int getElemSize(final Object sampleArray)
+	{ return createBuffer(sampleArray).getElemSize(); }
+
+	///returns how many bytes the whole \e array occupies, this is not necessarily
+	///the number of voxels times the voxel size (e.g., for the bit-packed types)
+	static
+	long getByteSize(final Object array)
+	{
+		final Buffer b = createBuffer(array);
+		return (long)b.getElemCount(array) * (long)b.getElemSize();
+	}
+
+	static
+	Buffer createBuffer(final Object sampleArray)
+	{
+		if (sampleArray instanceof byte[])
+			return new ByteBuffer();
+		else
+		if (sampleArray instanceof short[])
+			return new ShortBuffer();
+		else
+		if (sampleArray instanceof int[])
+			return new IntBuffer();
+		else
+		if (sampleArray instanceof long[])
+			return new LongBuffer();
+		else
+		if (sampleArray instanceof float[])
+			return new FloatBuffer();
+		else
+		if (sampleArray instanceof double[])
+			return new DoubleBuffer();
+		else
+			throw new RuntimeException("Does not recognize this array type.");
+	}
+
 	void transmitArray(final Object array, boolean comingMore)
 	{
 		//the length of the corresponding/input basic type array
 		//(because we got Object instead of, e.g., float[] for the parameter)
 		final int arrayLength = arrayVsBuffer.getElemCount(array);
 
+		if (packed != null && arrayVsSocket instanceof SendToSocket)
+			((SendToSocket)arrayVsSocket).setPackedChunks(packed.takeChunks(array));
+
 		if (arrayLength < 1024 || arrayElemSize == 1)
 		{
 			//array that is short enough to be hosted entirely with byte[] array,
 			//will be sent in one shot
 			//NB: the else branch below cannot handle when arrayLength < arrayElemSize,
 			//    and why to split the short arrays anyways?
-			arrayVsSocket.transmit(array, 0, arrayLength, (comingMore? ZMQ.SNDMORE : 0));
+			transmitChunk(array, 0, arrayLength, (comingMore? ZMQ.SNDMORE : 0));
 		}
 		else
 		{
@@ -228,12 +358,66 @@ public class ArrayPacker
 			//NB: firstBlockLen >= lastBlockLen
 
 			for (int p=0; p < (arrayElemSize-1); ++p)
-				arrayVsSocket.transmit(array, p*firstBlocksLen, firstBlocksLen,
+				transmitChunk(array, p*firstBlocksLen, firstBlocksLen,
 				  (comingMore || lastBlockLen > 0 || p < arrayElemSize-2 ? ZMQ.SNDMORE : 0));
 
 			if (lastBlockLen > 0)
-				arrayVsSocket.transmit(array, (arrayElemSize-1)*firstBlocksLen, lastBlockLen,
+				transmitChunk(array, (arrayElemSize-1)*firstBlocksLen, lastBlockLen,
 				  (comingMore? ZMQ.SNDMORE : 0));
 		}
 	}
+
+	/**
+	 * Makes the chunks sent over the socket to start with the codec byte and
+	 * to be encoded as the \e codecs decide, or the received chunks to be
+	 * decoded (see ChunkCodec). Has no effect on the shared memory transfers.
+	 */
+	void setChunkCodecs(final CodecController codecs)
+	{
+		if (arrayVsSocket instanceof SendToSocket)
+			((SendToSocket)arrayVsSocket).setChunkCodecs(codecs);
+		else
+		if (arrayVsSocket instanceof RecvFromSocket)
+			((RecvFromSocket)arrayVsSocket).setChunkCodecs(codecs);
+	}
+
+	/**
+	 * Makes the chunks sent over the socket to be sent within the bandwidth
+	 * \e limiter of the transfer, null for no limit of this transfer (the limit
+	 * of the whole process still applies). Has no effect on the shared memory
+	 * transfers.
+	 */
+	void setRateLimiter(final RateLimiter limiter)
+	{
+		if (arrayVsSocket instanceof SendToSocket)
+			((SendToSocket)arrayVsSocket).setRateLimiter(limiter);
+	}
+
+	///returns once all transmitted data is in place, must be called after the last transmitArray()
+	void flush()
+	{
+		arrayVsSocket.flush();
+	}
+
+	private
+	void transmitChunk(final Object array, int offset, int length, final int flags)
+	{
+		arrayVsSocket.transmit(array, offset, length, flags);
+		transmittedBytes += (long)length * arrayElemSize;
+		++transmittedChunks;
+
+		if (progress != null && transmittedBytes >= progressNextBytes) reportProgress();
+	}
+
+	private
+	void reportProgress()
+	{
+		final long now = System.currentTimeMillis();
+		if (now >= progressNextTime || transmittedBytes >= progressTotalBytes)
+		{
+			progress.setProgress((float)((double)transmittedBytes / (double)progressTotalBytes));
+			progressNextTime = now + progressReportPeriod;
+		}
+		progressNextBytes = transmittedBytes + progressTotalBytes/100;
+	}
 }
@@ -0,0 +1,330 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The compact, fixed-layout header of the protocol "v2". It carries in one
+ * frame everything the text header "v1" together with the metadata message
+ * carry in two frames, and it can be parsed without any allocations (except
+ * when the dims array needs to grow). It is used only once the peer has
+ * advertised it understands it, see Session.
+ *
+ * The layout, all multi-byte integers are big-endian:
+ * <pre>
+ * offset  size  content
+ *  0       2    magic "v2"
+ *  2       1    layout revision of this header, LAYOUT_REVISION
+ *  3       1    voxel type, index into ImgPacker.SUPPORTED_VOXEL_CLASSES
+ *  4       1    image backend, index into BACKENDS
+ *  5       1    byte order of the voxel data, BIG_ENDIAN or LITTLE_ENDIAN
+ *  6       1    codec of the voxel data, CODEC_RAW or CODEC_ADAPTIVE (see ChunkCodec)
+ *  7       1    number of dimensions n
+ *  8       8*n  sizes of the dimensions
+ *  then    2+k  length k of the shared memory token (0 if not offered), the token
+ *  then    2    number of metadata entries, every entry is:
+ *          2+k  length k of the key, the key in UTF-8
+ *          4+v  length v of the value, the value in UTF-8
+ * </pre>
+ * The receiver rejects headers of higher LAYOUT_REVISION than it knows,
+ * newer revisions shall only append fields after the metadata.
+ */
+class BinaryHeader
+{
+	static final byte MAGIC0 = 'v';
+	static final byte MAGIC1 = '2';
+	static final byte LAYOUT_REVISION = 1;
+
+	///the image backends, the order must not change (new ones go at the end)
+	static final String[] BACKENDS = { "ArrayImg", "PlanarImg", "CellImg" };
+
+	static final byte BIG_ENDIAN    = 0;
+	static final byte LITTLE_ENDIAN = 1;
+
+	static final byte CODEC_RAW = 0;
+	///every chunk sent over the socket starts with a byte telling its encoding, see ChunkCodec
+	static final byte CODEC_ADAPTIVE = 1;
+
+	static final String IMAGENAME = "imagename";
+	///comma-separated PlaneCache keys of all planes of the PlanarImg, see PlaneCache
+	static final String PLANEKEYS = "planekeys";
+
+	// -------- the content --------
+	int voxelType;
+	int backend;
+	int byteOrder = BIG_ENDIAN;
+	int codec = CODEC_RAW;
+
+	int numDimensions;
+	///the sizes, only the first numDimensions items are valid
+	long[] dims = new long[5];
+
+	// -------- the content: writing --------
+	private String shmToken = null;
+	private String imageName = null;
+	private String planeKeys = null;
+
+	// -------- the content: parsing --------
+	///the last parsed frame, the tokens and metadata are referenced into it
+	private byte[] frame = null;
+	private int shmTokenPos, shmTokenLen;
+	private int metadataPos, metadataCnt;
+
+	///the reused output buffer
+	private byte[] buf = new byte[256];
+
+
+	///returns true if the \e data begins with the magic of this header
+	static
+	boolean isBinaryHeader(final byte[] data)
+	{
+		return data.length > 2 && data[0] == MAGIC0 && data[1] == MAGIC1;
+	}
+
+	///returns the index of the \e backendStr in BACKENDS, or -1
+	static
+	int backendIndex(final String backendStr)
+	{
+		for (int i=0; i < BACKENDS.length; ++i)
+			if (BACKENDS[i].equals(backendStr)) return i;
+		return -1;
+	}
+
+	void setDimensions(final int n)
+	{
+		if (dims.length < n) dims = new long[n];
+		numDimensions = n;
+	}
+
+
+	// -------- writing --------
+	///sets the shared memory token to be sent, or null
+	void setShmToken(final String token)
+	{ shmToken = token; }
+
+	void setImageName(final String name)
+	{ imageName = name; }
+
+	///sets the keys of the planes to be sent, or null
+	void setPlaneKeys(final String keys)
+	{ planeKeys = keys; }
+
+	/**
+	 * Writes the content into the internal buffer, returns the
+	 * length of the data, see getBuffer().
+	 */
+	int write()
+	{
+		final byte[] shm  = shmToken  != null ? shmToken.getBytes(StandardCharsets.UTF_8) : null;
+		final byte[] name = imageName != null ? imageName.getBytes(StandardCharsets.UTF_8) : null;
+		final byte[] keys = planeKeys != null ? planeKeys.getBytes(StandardCharsets.UTF_8) : null;
+
+		final int length = 8 + 8*numDimensions
+		                 + 2 + (shm != null ? shm.length : 0)
+		                 + 2 + (name != null ? 2+IMAGENAME.length() + 4+name.length : 0)
+		                     + (keys != null ? 2+PLANEKEYS.length() + 4+keys.length : 0);
+		if (buf.length < length) buf = new byte[length];
+
+		buf[0] = MAGIC0;
+		buf[1] = MAGIC1;
+		buf[2] = LAYOUT_REVISION;
+		buf[3] = (byte)voxelType;
+		buf[4] = (byte)backend;
+		buf[5] = (byte)byteOrder;
+		buf[6] = (byte)codec;
+		buf[7] = (byte)numDimensions;
+		int pos = 8;
+		for (int i=0; i < numDimensions; ++i)
+			pos = putLong(dims[i], pos);
+
+		pos = putBytes(shm, 2, pos);
+
+		pos = putShort((name != null ? 1 : 0) + (keys != null ? 1 : 0), pos);
+		if (name != null)
+		{
+			pos = putBytes(IMAGENAME.getBytes(StandardCharsets.UTF_8), 2, pos);
+			pos = putBytes(name, 4, pos);
+		}
+		if (keys != null)
+		{
+			pos = putBytes(PLANEKEYS.getBytes(StandardCharsets.UTF_8), 2, pos);
+			pos = putBytes(keys, 4, pos);
+		}
+
+		return pos;
+	}
+
+	byte[] getBuffer()
+	{ return buf; }
+
+	private int putShort(final int v, int pos)
+	{
+		buf[pos++] = (byte)(v >>> 8);
+		buf[pos++] = (byte)v;
+		return pos;
+	}
+
+	private int putLong(final long v, int pos)
+	{
+		for (int s=56; s >= 0; s -= 8)
+			buf[pos++] = (byte)(v >>> s);
+		return pos;
+	}
+
+	///writes the length of the \e data on \e lenSize bytes, and the \e data itself
+	private int putBytes(final byte[] data, final int lenSize, int pos)
+	{
+		final int len = data != null ? data.length : 0;
+		for (int s=8*(lenSize-1); s >= 0; s -= 8)
+			buf[pos++] = (byte)(len >>> s);
+		if (len > 0) System.arraycopy(data, 0, buf, pos, len);
+		return pos+len;
+	}
+
+
+	@Override
+	public
+	String toString()
+	{
+		final StringBuilder sb = new StringBuilder("v2 dims");
+		for (int i=0; i < numDimensions; ++i)
+			sb.append(i == 0 ? ' ' : 'x').append(dims[i]);
+		sb.append(" type #").append(voxelType)
+		  .append(' ').append(backend < BACKENDS.length ? BACKENDS[backend] : "?")
+		  .append(byteOrder == BIG_ENDIAN ? " big-endian" : " little-endian")
+		  .append(" codec #").append(codec);
+		return sb.toString();
+	}
+
+
+	// -------- parsing --------
+	/**
+	 * Parses the \e data into this object, the data must not be modified
+	 * as long as the shared memory token or metadata are to be read.
+	 */
+	void parse(final byte[] data)
+	{
+		if (!isBinaryHeader(data))
+			throw new RuntimeException("Protocol error, expected v2 header.");
+		if (data.length < 8 || data[2] > LAYOUT_REVISION)
+			throw new RuntimeException("Protocol error, unsupported revision of the v2 header.");
+
+		frame = data;
+		voxelType = data[3] & 0xFF;
+		backend   = data[4] & 0xFF;
+		byteOrder = data[5] & 0xFF;
+		codec     = data[6] & 0xFF;
+		setDimensions(data[7] & 0xFF);
+		if (backend >= BACKENDS.length)
+			throw new RuntimeException("Unsupported image backend type, sorry.");
+
+		int pos = 8;
+		checkLength(pos + 8*numDimensions + 2);
+		for (int i=0; i < numDimensions; ++i, pos += 8)
+			dims[i] = getLong(pos);
+
+		shmTokenLen = getShort(pos);
+		shmTokenPos = pos+2;
+		pos = shmTokenPos + shmTokenLen;
+		checkLength(pos + 2);
+
+		metadataCnt = getShort(pos);
+		metadataPos = pos+2;
+
+		//validate the metadata entries
+		pos = metadataPos;
+		for (int i=0; i < metadataCnt; ++i)
+		{
+			checkLength(pos + 2);
+			pos += 2 + getShort(pos);
+			checkLength(pos + 4);
+			final int valLen = getInt(pos);
+			if (valLen < 0)
+				throw new RuntimeException("Protocol error, corrupted v2 header.");
+			pos += 4 + valLen;
+		}
+		checkLength(pos);
+	}
+
+	///returns the offered shared memory token, or null
+	String getShmToken()
+	{
+		return shmTokenLen > 0 ?
+		  new String(frame, shmTokenPos, shmTokenLen, StandardCharsets.UTF_8) : null;
+	}
+
+	///returns the value of the metadata entry \e key, or null
+	String getMetadata(final String key)
+	{
+		int pos = metadataPos;
+		for (int i=0; i < metadataCnt; ++i)
+		{
+			final int keyLen = getShort(pos);
+			final int valPos = pos + 2 + keyLen;
+			final int valLen = getInt(valPos);
+			if (equalsAscii(pos+2, keyLen, key))
+				return new String(frame, valPos+4, valLen, StandardCharsets.UTF_8);
+			pos = valPos + 4 + valLen;
+		}
+		return null;
+	}
+
+	private boolean equalsAscii(final int pos, final int len, final String str)
+	{
+		if (len != str.length()) return false;
+		for (int i=0; i < len; ++i)
+			if (frame[pos+i] != (byte)str.charAt(i)) return false;
+		return true;
+	}
+
+	private void checkLength(final int length)
+	{
+		if (frame.length < length)
+			throw new RuntimeException("Protocol error, truncated v2 header.");
+	}
+
+	private int getShort(final int pos)
+	{
+		return ((frame[pos] & 0xFF) << 8) | (frame[pos+1] & 0xFF);
+	}
+
+	private int getInt(final int pos)
+	{
+		return ((frame[pos] & 0xFF) << 24) | ((frame[pos+1] & 0xFF) << 16)
+		     | ((frame[pos+2] & 0xFF) << 8) | (frame[pos+3] & 0xFF);
+	}
+
+	private long getLong(final int pos)
+	{
+		long v = 0;
+		for (int i=0; i < 8; ++i)
+			v = (v << 8) | (frame[pos+i] & 0xFF);
+		return v;
+	}
+}
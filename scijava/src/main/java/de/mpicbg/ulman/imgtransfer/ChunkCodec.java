@@ -0,0 +1,171 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The encodings of the individual chunks of the voxel data, used when the
+ * BinaryHeader says BinaryHeader.CODEC_ADAPTIVE. Every chunk (message part)
+ * sent over the socket then starts with one byte that tells its encoding,
+ * the encoded data follow:
+ * <pre>
+ * RAW     the chunk as it is (as without the CODEC_ADAPTIVE)
+ * FAST    the chunk compressed with the Deflater at its BEST_SPEED level
+ * STRONG  the chunk compressed with the Deflater at its DEFAULT_COMPRESSION level
+ * </pre>
+ * The encoded chunk is never longer than the raw one, the sender falls
+ * back to RAW if the compression does not pay off. The receiver knows the
+ * length of the decoded chunk from the image size.
+ *
+ * The CodecController decides which encoding is used for which chunk.
+ */
+public class ChunkCodec
+{
+	public static final byte RAW    = 0;
+	public static final byte FAST   = 1;
+	public static final byte STRONG = 2;
+
+	///how many encodings there are, they are numbered from 0
+	public static final int COUNT = 3;
+
+	///human readable names of the encodings, e.g., for the logs
+	public static final String[] NAMES = { "raw", "fast", "strong" };
+
+	///Deflater levels of the encodings
+	private static final int[] LEVELS = { 0, Deflater.BEST_SPEED, Deflater.DEFAULT_COMPRESSION };
+
+	//reused objects, created on demand, one instance of this class serves one transfer at a time
+	private final Deflater[] deflaters = new Deflater[COUNT];
+	private Inflater inflater = null;
+	private byte[] plain = new byte[0];
+	private byte[] encoded = new byte[0];
+
+	/**
+	 * Encodes the \e length bytes that are in the \e data from its position
+	 * on (the \e data position is not changed) with the \e codec. Returns
+	 * the length of the encoded chunk, including the leading codec byte,
+	 * that is available in getEncoded(), or -1 if it would not be shorter
+	 * than the raw chunk (in which case the caller should send it raw).
+	 */
+	public
+	int encode(final byte codec, final ByteBuffer data, final int length)
+	{
+		if (codec == RAW) return -1;
+
+		//NB: the Deflater of Java 8 works only with arrays
+		if (plain.length < length) plain = new byte[length];
+		if (encoded.length < length) encoded = new byte[length];
+		data.duplicate().get(plain, 0, length);
+
+		if (deflaters[codec] == null) deflaters[codec] = new Deflater(LEVELS[codec]);
+		final Deflater deflater = deflaters[codec];
+		deflater.reset();
+		deflater.setInput(plain, 0, length);
+		deflater.finish();
+
+		encoded[0] = codec;
+		int size = 1;
+		while (!deflater.finished() && size < length)
+			size += deflater.deflate(encoded, size, length-size);
+
+		return deflater.finished() ? size : -1;
+	}
+
+	///returns the array with the last encoded chunk, see encode()
+	public
+	byte[] getEncoded()
+	{ return encoded; }
+
+	/**
+	 * Decodes the chunk of \e size bytes, with the leading codec byte, that
+	 * is at the beginning of the \e chunk into a buffer of \e length bytes,
+	 * the buffer is returned (and it is owned by the caller).
+	 */
+	public
+	ByteBuffer decode(final ByteBuffer chunk, final int size, final int length)
+	{
+		final byte codec = chunk.get(0);
+		if (codec == RAW)
+		{
+			if (size-1 != length)
+				throw new RuntimeException("Protocol error, unexpected length of a raw chunk.");
+			final ByteBuffer raw = chunk.duplicate();
+			raw.position(1);
+			raw.limit(size);
+			return raw.slice();
+		}
+		if (codec != FAST && codec != STRONG)
+			throw new RuntimeException("Protocol error, unknown codec of a chunk: "+codec);
+
+		if (encoded.length < size) encoded = new byte[size];
+		final ByteBuffer src = chunk.duplicate();
+		src.position(0);
+		src.get(encoded, 0, size);
+
+		final byte[] decoded = new byte[length];
+		if (inflater == null) inflater = new Inflater();
+		inflater.reset();
+		inflater.setInput(encoded, 1, size-1);
+		try {
+			int done = 0;
+			while (done < length && !inflater.finished())
+			{
+				final int n = inflater.inflate(decoded, done, length-done);
+				if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+				done += n;
+			}
+			if (done != length)
+				throw new RuntimeException("Protocol error, a chunk decoded into unexpected length.");
+		}
+		catch (DataFormatException e) {
+			throw new RuntimeException("Protocol error, cannot decode a chunk: "+e.getMessage());
+		}
+		return ByteBuffer.wrap(decoded);
+	}
+
+	///releases the native resources of the (de)compressors
+	public
+	void close()
+	{
+		for (int i=0; i < COUNT; ++i)
+			if (deflaters[i] != null)
+			{
+				deflaters[i].end();
+				deflaters[i] = null;
+			}
+		if (inflater != null)
+		{
+			inflater.end();
+			inflater = null;
+		}
+	}
+}
@@ -0,0 +1,228 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Decides, chunk by chunk, which ChunkCodec encoding is the fastest way to
+ * get the chunk over to the receiver: it estimates, for every encoding, the
+ * time to encode the chunk plus the time to send the encoded chunk over the
+ * link, and picks the smallest estimate.
+ *
+ * The estimates are based on measurements taken while sending:
+ * - the cost (nanoseconds per byte) and compression ratio of the encodings
+ *   are measured on every encoded chunk, and additionally on a short sample
+ *   of a chunk (which is not sent) on the first chunk of every transfer and
+ *   then every PROBE_PERIOD chunks to keep the measurements of the not-chosen
+ *   encodings recent,
+ * - the link speed is measured over every whole transfer (from its first
+ *   chunk until the receiver confirms it has got it all), before the first
+ *   transfer is over, DEFAULT_LINK_SPEED is assumed.
+ *
+ * Hence, the fast links end up with raw chunks, the slow links with the
+ * compressed ones, and the incompressible data (e.g., noise) with the raw
+ * chunks regardless of the link.
+ *
+ * One controller lives in every Session (connection) and it also holds
+ * the ChunkCodec for the (de)coding of the chunks of this connection.
+ */
+public class CodecController
+{
+	/**
+	 * Allows the sender to use the encodings at all (provided the receiver
+	 * has advertised it understands them, see Session). Default is true.
+	 */
+	private static boolean enabled = true;
+
+	/// sets this.enabled
+	public static
+	void setEnabled(final boolean _enabled)
+	{ enabled = _enabled; }
+
+	/// reads current this.enabled
+	public static
+	boolean isEnabled()
+	{ return enabled; }
+
+	///chunks shorter than this are always sent raw
+	static final int MIN_CHUNK_BYTES = 4096;
+	///how long sample of a chunk is used to measure the encodings
+	static final int SAMPLE_BYTES = 1 << 16;
+	///every this many chunks, the not-chosen encodings are measured on a sample
+	static final int PROBE_PERIOD = 16;
+	///the link speed assumed before it is measured, in bytes per second
+	static final double DEFAULT_LINK_SPEED = 100 << 20;
+	///the weight of the new measurement in the running averages
+	private static final double ALPHA = 0.3;
+
+	///the (de)coder of the chunks of this connection
+	private final ChunkCodec codec = new ChunkCodec();
+
+	public
+	ChunkCodec getCodec()
+	{ return codec; }
+
+	//the measurements of the encodings: encoding cost and encoded-to-raw size ratio
+	private final double[] encodeNanosPerByte = new double[ChunkCodec.COUNT];
+	private final double[] sizeRatio = new double[ChunkCodec.COUNT];
+	private final boolean[] measured = new boolean[ChunkCodec.COUNT];
+
+	///the measured link speed in bytes per nanosecond, 0 if not measured yet
+	private double linkBytesPerNano = 0;
+
+	//the bookkeeping of the current transfer
+	private long transferStartNanos, transferWireBytes, transferEncodeNanos;
+	private final long[] transferChunks = new long[ChunkCodec.COUNT];
+	private int chunksToProbe = 0;
+
+	public
+	CodecController()
+	{
+		//the raw chunks cost nothing and have the raw size
+		encodeNanosPerByte[ChunkCodec.RAW] = 0;
+		sizeRatio[ChunkCodec.RAW] = 1;
+		measured[ChunkCodec.RAW] = true;
+	}
+
+	///resets the bookkeeping of the transfer, call before the first chunk is sent
+	public
+	void startTransfer()
+	{
+		transferStartNanos  = System.nanoTime();
+		transferWireBytes   = 0;
+		transferEncodeNanos = 0;
+		for (int c=0; c < ChunkCodec.COUNT; ++c) transferChunks[c] = 0;
+
+		//another image may compress differently, measure it on its first chunk
+		chunksToProbe = 0;
+	}
+
+	///updates the link speed, call after the receiver has confirmed the last chunk
+	public
+	void finishTransfer()
+	{
+		//NB: the encoding happens before sending, it is not the link
+		final long nanos = System.nanoTime() - transferStartNanos - transferEncodeNanos;
+		if (nanos <= 0 || transferWireBytes == 0) return;
+
+		final double speed = (double)transferWireBytes / (double)nanos;
+		linkBytesPerNano = linkBytesPerNano == 0 ? speed : ALPHA*speed + (1-ALPHA)*linkBytesPerNano;
+	}
+
+	/**
+	 * Returns the encoding for the \e length bytes of the chunk that is in
+	 * the \e data from its position on (the position is not changed).
+	 */
+	public
+	byte choose(final ByteBuffer data, final int length)
+	{
+		if (length < MIN_CHUNK_BYTES) return ChunkCodec.RAW;
+
+		//measure the encodings on a sample first if they are not known or due to refresh
+		if (--chunksToProbe <= 0)
+		{
+			for (byte c=1; c < ChunkCodec.COUNT; ++c) sample(c, data, length);
+			chunksToProbe = PROBE_PERIOD;
+		}
+
+		final double link = linkBytesPerNano > 0 ? linkBytesPerNano : DEFAULT_LINK_SPEED/1e9;
+		byte best = ChunkCodec.RAW;
+		double bestTime = Double.MAX_VALUE;
+		for (byte c=0; c < ChunkCodec.COUNT; ++c)
+		{
+			if (!measured[c]) continue;
+			final double time = encodeNanosPerByte[c] + sizeRatio[c]/link;
+			if (time < bestTime)
+			{
+				bestTime = time;
+				best = c;
+			}
+		}
+		return best;
+	}
+
+	///encodes (but does not send) a sample of the chunk with the \e encoding to measure it
+	private
+	void sample(final byte encoding, final ByteBuffer data, final int length)
+	{
+		final int len = Math.min(length, SAMPLE_BYTES);
+		final long start = System.nanoTime();
+		final int size = codec.encode(encoding, data, len);
+		measure(encoding, len, size > 0 ? size : len, System.nanoTime()-start);
+	}
+
+	private
+	void measure(final byte encoding, final int rawBytes, final int wireBytes, final long nanos)
+	{
+		final double cost  = (double)nanos / (double)rawBytes;
+		final double ratio = (double)wireBytes / (double)rawBytes;
+		if (measured[encoding])
+		{
+			encodeNanosPerByte[encoding] = ALPHA*cost  + (1-ALPHA)*encodeNanosPerByte[encoding];
+			sizeRatio[encoding]          = ALPHA*ratio + (1-ALPHA)*sizeRatio[encoding];
+		}
+		else
+		{
+			encodeNanosPerByte[encoding] = cost;
+			sizeRatio[encoding]          = ratio;
+			measured[encoding] = true;
+		}
+	}
+
+	/**
+	 * Records that the chunk of \e rawBytes was encoded with the \e encoding
+	 * into \e wireBytes (the raw size if the encoding has not paid off) in
+	 * \e nanos, and that it was \e sentAs the given encoding.
+	 */
+	public
+	void chunkSent(final byte encoding, final int rawBytes, final int wireBytes,
+	               final long nanos, final byte sentAs)
+	{
+		if (encoding != ChunkCodec.RAW) measure(encoding, rawBytes, wireBytes, nanos);
+		transferWireBytes   += wireBytes;
+		transferEncodeNanos += nanos;
+		++transferChunks[sentAs];
+	}
+
+	///reports the encodings used in the last transfer and the measured link speed
+	@Override
+	public
+	String toString()
+	{
+		final StringBuilder sb = new StringBuilder("chunks");
+		for (int c=0; c < ChunkCodec.COUNT; ++c)
+			sb.append(' ').append(ChunkCodec.NAMES[c]).append(':').append(transferChunks[c]);
+		sb.append(", link ");
+		if (linkBytesPerNano > 0)
+			sb.append(String.format("%.1f MB/s", linkBytesPerNano*1e9 / (1 << 20)));
+		else
+			sb.append("not measured");
+		return sb.toString();
+	}
+}
@@ -0,0 +1,206 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Watches the connection of a socket so that a dead peer is noticed within
+ * about a second, and not only after the ArrayPacker's connection-broken timeout.
+ *
+ * The socket exchanges the ZMTP heartbeats (PING/PONG commands) with its peer,
+ * every heartbeatInterval milliseconds. If nothing at all arrives from the peer
+ * for heartbeatTimeout milliseconds, ZeroMQ drops the connection. The drop, as
+ * well as a regular disconnect (e.g., the peer process has died), is reported
+ * by the socket monitor, which is read out by checkConnection() while waiting
+ * for the peer's data. A slow transfer is never considered broken as long as
+ * the peer answers the heartbeats.
+ *
+ * Peers that do not know the heartbeats (ZMTP 3.0, e.g., libzmq older than 4.2)
+ * do not answer them, the heartbeats are therefore off unless switched on with
+ * setHeartbeat() (e.g., setHeartbeat(250,1000)) for peers known to support them.
+ * Without the heartbeats, only the regular disconnects are noticed, and a peer
+ * that has stopped sending is caught by the connection-broken timeout.
+ */
+class ConnectionMonitor
+{
+	///the period of the heartbeats, in milliseconds, 0 means no heartbeats (the default)
+	private static int heartbeatInterval = 0;
+	///after how long silence, in milliseconds, is the connection dropped
+	private static int heartbeatTimeout = 0;
+
+	/// sets this.heartbeatInterval and this.heartbeatTimeout, for the sockets created after this call
+	public static
+	void setHeartbeat(final int intervalMillis, final int timeoutMillis)
+	{
+		heartbeatInterval = intervalMillis < 0 ? 0 : intervalMillis;
+		heartbeatTimeout  = timeoutMillis < intervalMillis ? 4*heartbeatInterval : timeoutMillis;
+	}
+
+	/// reads current this.heartbeatInterval
+	public static
+	int getHeartbeatInterval()
+	{ return heartbeatInterval; }
+
+	/// reads current this.heartbeatTimeout
+	public static
+	int getHeartbeatTimeout()
+	{ return heartbeatTimeout; }
+
+
+	///the monitors of the watched sockets
+	private static final Map<ZMQ.Socket,ConnectionMonitor> monitors = new ConcurrentHashMap<>();
+	///to create unique inproc:// endpoints of the monitors
+	private static final AtomicInteger monitorsCounter = new AtomicInteger(0);
+	///the sockets whose waiting for the peer's data shall give up, see abort()
+	private static final Set<ZMQ.Socket> abortedSockets = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Makes the \e socket (of the \e zmqContext) to exchange the heartbeats and to be
+	 * watched, must be called before the \e socket is bound or connected.
+	 */
+	static
+	void attach(final ZMQ.Context zmqContext, final ZMQ.Socket socket)
+	{
+		if (heartbeatInterval > 0)
+		{
+			socket.setHeartbeatIvl(heartbeatInterval);
+			socket.setHeartbeatTimeout(heartbeatTimeout);
+			socket.setHeartbeatTtl(heartbeatTimeout);
+		}
+
+		final String addr = "inproc://imgtransfer-monitor-" + monitorsCounter.incrementAndGet();
+		if (!socket.monitor(addr, ZMQ.EVENT_CONNECTED | ZMQ.EVENT_ACCEPTED | ZMQ.EVENT_DISCONNECTED))
+			return;
+
+		final ZMQ.Socket events = zmqContext.socket(SocketType.PAIR);
+		events.connect(addr);
+		monitors.put(socket, new ConnectionMonitor(events, heartbeatInterval > 0));
+	}
+
+	///stops watching the \e socket, must be called before the \e socket is closed
+	static
+	void detach(final ZMQ.Socket socket)
+	{
+		abortedSockets.remove(socket);
+		final ConnectionMonitor m = monitors.remove(socket);
+		if (m == null) return;
+
+		socket.monitor(null, 0);
+		synchronized (m) { m.events.close(); }
+	}
+
+	/**
+	 * Throws the ConnectionBrokenException if the \e socket is watched and it has
+	 * lost its peer (and has not got another one since then). Meant to be called
+	 * while waiting for the peer's data, which has not arrived yet.
+	 *
+	 * Since the peer may have sent its last data just before it has gone, the loss
+	 * is reported only if the \e socket has no incoming data even after the loss
+	 * has been noticed.
+	 */
+	static
+	void checkConnection(final ZMQ.Socket socket)
+	{
+		checkAborted(socket);
+		final ConnectionMonitor m = monitors.get(socket);
+		if (m != null && m.isBroken()
+		  && !socket.hasReceiveMore() && (socket.getEvents() & ZMQ.Poller.POLLIN) == 0)
+			throw new ConnectionBrokenException("the peer has disconnected"
+			  + (m.heartbeats ? " or stopped answering the heartbeats" : ""));
+	}
+
+	/**
+	 * Makes the waiting for the peer's data on the \e socket to give up with the
+	 * ConnectionBrokenException (see checkAborted()). Unlike closing the \e socket
+	 * or interrupting the thread that uses it, this is safe to call from any thread.
+	 */
+	static
+	void abort(final ZMQ.Socket socket)
+	{ abortedSockets.add(socket); }
+
+	///throws the ConnectionBrokenException if abort() has been called on the \e socket
+	static
+	void checkAborted(final ZMQ.Socket socket)
+	{
+		if (abortedSockets.contains(socket))
+			throw new ConnectionBrokenException("the transfer has been closed");
+	}
+
+	///returns true if the \e socket exchanges the heartbeats (and the peer is thus known to be alive)
+	static
+	boolean hasHeartbeats(final ZMQ.Socket socket)
+	{
+		final ConnectionMonitor m = monitors.get(socket);
+		return m != null && m.heartbeats;
+	}
+
+
+	// -------- one monitor --------
+	///the socket that receives the events of the watched socket
+	private final ZMQ.Socket events;
+	///is the watched socket exchanging the heartbeats?
+	private final boolean heartbeats;
+
+	///the number of established connections of the watched socket
+	private int connections = 0;
+	///has any connection been lost?
+	private boolean lostConnection = false;
+
+	private ConnectionMonitor(final ZMQ.Socket _events, final boolean _heartbeats)
+	{ events = _events; heartbeats = _heartbeats; }
+
+	///reads out the pending events, returns true if the connection is lost
+	private synchronized
+	boolean isBroken()
+	{
+		ZMQ.Event e;
+		while ((e = ZMQ.Event.recv(events, ZMQ.DONTWAIT)) != null)
+		{
+			switch (e.getEvent())
+			{
+			case ZMQ.EVENT_CONNECTED:
+			case ZMQ.EVENT_ACCEPTED:
+				++connections;
+				break;
+			case ZMQ.EVENT_DISCONNECTED:
+				--connections;
+				lostConnection = true;
+				break;
+			default:
+			}
+		}
+		return lostConnection && connections <= 0;
+	}
+}
@@ -39,169 +39,371 @@ import net.imglib2.img.cell.CellImgFactory;
 import net.imglib2.img.planar.PlanarImg;
 import net.imglib2.img.planar.PlanarImgFactory;
 import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.ARGBType;
 import net.imglib2.type.numeric.integer.ByteType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
 import net.imglib2.type.numeric.integer.ShortType;
+import net.imglib2.type.numeric.integer.Unsigned12BitType;
 import net.imglib2.type.numeric.integer.UnsignedByteType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
 import net.imglib2.type.numeric.integer.UnsignedShortType;
 import net.imglib2.type.numeric.real.DoubleType;
 import net.imglib2.type.numeric.real.FloatType;
 
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 import java.util.StringTokenizer;
 
 import org.zeromq.ZMQ;
 
+import de.mpicbg.ulman.imgtransfer.metrics.Phase;
+import de.mpicbg.ulman.imgtransfer.metrics.TransferMetrics;
+import de.mpicbg.ulman.imgtransfer.metrics.TransferStats;
+
 public class ImgPacker
 {
 	// -------- transmission of the image, sockets --------
-	///list of supported voxel types: so far only scalar images are supported
+	///list of supported voxel types: the voxel data is always transmitted as-is, that is,
+	///in the basic-type storage array of the given type (e.g., the BitType and
+	///Unsigned12BitType are transmitted bit-packed in long[] arrays, the ARGBType in int[])
+	///NB: the BinaryHeader refers to the types by their index, new types must go at the end
 	static List<Class<? extends NativeType>> SUPPORTED_VOXEL_CLASSES =
 			Arrays.asList(ByteType.class, UnsignedByteType.class, ShortType.class,
-					UnsignedShortType.class, FloatType.class, DoubleType.class);
+					UnsignedShortType.class, FloatType.class, DoubleType.class,
+					IntType.class, UnsignedIntType.class, LongType.class,
+					UnsignedLongType.class, ARGBType.class, BitType.class,
+					Unsigned12BitType.class);
 
 	static <T extends NativeType<T>>
 	void packAndSend(final ImgPlus<T> imgP, final ZMQ.Socket socket,
 	                 final int timeOut, final ProgressCallback log)
+	{ packAndSend(imgP, socket, timeOut, log, false); }
+
+	static <T extends NativeType<T>>
+	void packAndSend(final ImgPlus<T> imgP, final ZMQ.Socket socket,
+	                 final int timeOut, final ProgressCallback log,
+	                 final boolean byReference)
+	{ packAndSend(imgP, socket, timeOut, log, new Session(byReference), null); }
+
+	static <T extends NativeType<T>>
+	void packAndSend(final ImgPlus<T> imgP, final ZMQ.Socket socket,
+	                 final int timeOut, final ProgressCallback log,
+	                 final Session session, final TransferStats stats)
+	{ packAndSend(imgP, socket, timeOut, log, session, stats, null); }
+
+	/**
+	 * Sends the image, or only its ticket (see InprocTransfer) if the \e session
+	 * says so, in which case the receiver must be living in this JVM.
+	 *
+	 * If \e stats is not null, the transfer is measured into it and
+	 * the stats are reported (see TransferMetrics) once this function is over.
+	 *
+	 * If \e packed is not null, its chunks and plane keys (see packAhead())
+	 * are used if they fit, otherwise they are made here as usual.
+	 */
+	static <T extends NativeType<T>>
+	void packAndSend(final ImgPlus<T> imgP, final ZMQ.Socket socket,
+	                 final int timeOut, final ProgressCallback log,
+	                 final Session session, final TransferStats stats,
+	                 final PackedImage packed)
+	{
+		try {
+			if (session.byReference)
+				packAndSendByReference(imgP, socket, timeOut, log, stats);
+			else
+			{
+				//offer the voxel data over the shared memory, the receiver may decline it
+				final ShmTransfer.Segment shm = ShmTransfer.offerSegment();
+				try {
+					packAndSendImage(imgP, socket, timeOut, log, session, shm, stats, packed);
+				}
+				finally {
+					//NB: the receiver has surely read the voxel data, or it will not at all
+					if (shm != null) shm.close();
+				}
+			}
+			if (stats != null) stats.setSucceeded(true);
+		}
+		finally {
+			if (stats != null) TransferMetrics.report(stats);
+		}
+	}
+
+	private static <T extends NativeType<T>>
+	void packAndSendImage(final ImgPlus<T> imgP, final ZMQ.Socket socket,
+	                      final int timeOut, final ProgressCallback log,
+	                      final Session session, final ShmTransfer.Segment shm,
+	                      final TransferStats stats, final PackedImage packed)
 	{
 		Class<?> voxelClass = imgP.firstElement().getClass();
 		if(!SUPPORTED_VOXEL_CLASSES.contains(voxelClass))
 			throw new RuntimeException("Unsupported voxel type, sorry.");
 
-		//"buffer" for the first and human-readable payload:
-		//protocol version
-		String msg = "v1";
-
-		//dimensionality data
-		msg += " dimNumber " + imgP.numDimensions();
-		for (int i=0; i < imgP.numDimensions(); ++i)
-			msg += " " + imgP.dimension(i);
-
-		//decipher the voxel type
-		msg += " " + voxelClass.getSimpleName();
-
-		//check we can handle the storage model of this image,
-		//and try to send everything (first the human readable payload, then raw voxel data)
+		//check we can handle the storage model of this image
 		Img<T> img = getUnderlyingImg(imgP);
+		final String backendStr;
 		if (img instanceof ArrayImg)
-		{
-			msg += " ArrayImg ";
-
-			//send header, metadata and voxel data afterwards
-			if (log != null) log.info("sending header: "+msg);
-			packAndSendHeader(msg, socket, timeOut);
-			if (log != null) log.info("sending the image...");
-			packAndSendPlusData(imgP, socket);
-			packAndSendArrayImg((ArrayImg<T,? extends ArrayDataAccess<?>>)img, socket);
-		}
+			backendStr = "ArrayImg";
 		else
 		if (img instanceof PlanarImg)
-		{
-			//possibly add additional configuration hints to 'msg'
-			msg += " PlanarImg "; //+((PlanarImg<T,?>)img).numSlices()+" ";
 			//NB: The number of planes is deterministically given by the image size/dimensions.
-			//    Hence, it is not necessary to provide such hint... 
-
-			//TODO: if cell image will also need not to add extra header hints,
-			//      we can move the 4 lines before this 3-branches-if
-
-			//send header, metadata and voxel data afterwards
-			if (log != null) log.info("sending header: "+msg);
-			packAndSendHeader(msg, socket, timeOut);
-			if (log != null) log.info("sending the image...");
-			packAndSendPlusData(imgP, socket);
-			packAndSendPlanarImg((PlanarImg<T,? extends ArrayDataAccess<?>>)img, socket);
-		}
+			//    Hence, it is not necessary to provide such hint...
+			backendStr = "PlanarImg";
 		else
 		if (img instanceof CellImg)
-		{
-			//possibly add additional configuration hints to 'msg'
-			msg += " CellImg ";
 			throw new RuntimeException("Cannot send CellImg images yet.");
-
-			//send header, metadata and voxel data afterwards
-			//if (log != null) log.info("sending header: "+msg);
-			//packAndSendHeader(msg, socket, timeOut);
-			//if (log != null) log.info("sending the image...");
-			//packAndSendPlusData(imgP, socket);
-			//packAndSendCellImg((CellImg<T,?>)img, socket);
-		}
 		else
 			throw new RuntimeException("Cannot determine the type of image, cannot send it.");
 
+		//send header (that includes the metadata if it is the binary one)...
+		final boolean binaryHeader = session.binaryHeader;
+		//the voxel data sent over the socket may be encoded chunk by chunk if the receiver understands it
+		final boolean adaptiveCodec = binaryHeader && session.chunkCodecs && CodecController.isEnabled();
+		//the receiver may have some of the planes already, tell it which planes we have
+		final String planeKeys = !(binaryHeader && session.planeCache && img instanceof PlanarImg) ? null :
+		  packed != null && packed.planeKeys != null ? packed.planeKeys :
+		  planeKeys(SUPPORTED_VOXEL_CLASSES.indexOf(voxelClass), (PlanarImg<T,? extends ArrayDataAccess<?>>)img);
+		session.header.setPlaneKeys(planeKeys);
+		final String confirmation = binaryHeader ?
+		  packAndSendBinaryHeader(imgP, voxelClass, backendStr, shm,
+		                          adaptiveCodec ? BinaryHeader.CODEC_ADAPTIVE : BinaryHeader.CODEC_RAW,
+		                          session.header, socket, timeOut, log) :
+		  packAndSendTextHeader(imgP, voxelClass, backendStr, shm, socket, timeOut, log);
+		session.readAdvertisedTokens(confirmation);
+		final boolean shmAccepted = shm != null && confirmation.startsWith(ShmTransfer.READY_SHM);
+		session.sharedMemory = shmAccepted;
+		//the chunks converted ahead are usable only if they have been made for this very transfer
+		final PackedImage chunks = packed != null && !shmAccepted ? packed : null;
+		if (stats != null) stats.lap(Phase.HANDSHAKE);
+		if (stats != null && shmAccepted) stats.setChannel(TransferStats.CHANNEL_SHM);
+
+		//...metadata and voxel data afterwards
+		if (log != null) log.info("sending the image"+(shmAccepted ? " via shared memory..." : "..."));
+		if (!binaryHeader) packAndSendPlusData(imgP, socket);
+		if (stats != null) stats.lap(Phase.METADATA);
+
+		final CodecController codecs = adaptiveCodec && !shmAccepted ? session.codecs : null;
+		if (codecs != null) codecs.startTransfer();
+		if (img instanceof ArrayImg)
+			packAndSendArrayImg((ArrayImg<T,? extends ArrayDataAccess<?>>)img, socket,
+			                    shmAccepted ? shm : null, codecs, session.rateLimiter, chunks, stats, log);
+		else
+		{
+			final PlanarImg<T,? extends ArrayDataAccess<?>> pImg = (PlanarImg<T,? extends ArrayDataAccess<?>>)img;
+			final boolean[] skip = planeKeys != null ?
+			  PlaneCache.parseHaveToken(confirmation, pImg.numSlices()) : null;
+			packAndSendPlanarImg(pImg, socket, shmAccepted ? shm : null, skip, codecs, session.rateLimiter,
+			                     chunks, stats, log);
+		}
+
 		//wait for confirmation from the receiver
 		ArrayPacker.waitForFirstMessage(socket);
-		msg = socket.recvStr();
+		final String msg = socket.recvStr();
 		if (! msg.startsWith("done"))
 			throw new RuntimeException("Protocol error, expected final confirmation from the receiver.");
+		if (stats != null) stats.lap(Phase.DONE_ACK);
+		if (codecs != null)
+		{
+			codecs.finishTransfer();
+			if (log != null) log.info("sent "+codecs);
+		}
 		if (log != null) log.info("sending finished...");
 	}
 
-	@SuppressWarnings("unchecked")
 	static
 	ImgPlus<?> receiveAndUnpack(final String header, final ZMQ.Socket socket,
 	                            final ProgressCallback log)
+	{ return receiveAndUnpack(header.getBytes(), socket, log, new Session(false), null); }
+
+	/**
+	 * Receives the image whose \e header has just arrived.
+	 *
+	 * If \e stats is not null, the transfer is measured into it and
+	 * the stats are reported (see TransferMetrics) once this function is over.
+	 */
+	static
+	ImgPlus<?> receiveAndUnpack(final byte[] header, final ZMQ.Socket socket,
+	                            final ProgressCallback log,
+	                            final Session session, final TransferStats stats)
 	{
-		if (log != null) log.info("received header: "+header);
-		StringTokenizer headerST = new StringTokenizer(header, " ");
-		if (! headerST.nextToken().startsWith("v1"))
-			throw new RuntimeException("Unknown protocol, expecting protocol v1.");
+		try {
+			//NB: the binary header is not a text, do not turn it into a String
+			final String textHeader = BinaryHeader.isBinaryHeader(header) ? null : new String(header);
+
+			final ImgPlus<?> imgP = textHeader != null && textHeader.startsWith("v1 byref") ?
+			  receiveByReference(textHeader, socket, log, stats) :
+			  receiveAndUnpackImage(header, textHeader, socket, log, session, stats);
+			if (stats != null) stats.setSucceeded(true);
+			return imgP;
+		}
+		finally {
+			if (stats != null) TransferMetrics.report(stats);
+		}
+	}
 
-		if (! headerST.nextToken().startsWith("dimNumber"))
-			throw new RuntimeException("Incorrect protocol, expecting dimNumber.");
-		final int n = Integer.valueOf(headerST.nextToken());
+	/**
+	 * Receives the image, the \e header is either the binary one (and \e textHeader
+	 * is null then) or the \e textHeader is its text form.
+	 */
+	@SuppressWarnings("unchecked")
+	private static
+	ImgPlus<?> receiveAndUnpackImage(final byte[] header, final String textHeader,
+	                                 final ZMQ.Socket socket, final ProgressCallback log,
+	                                 final Session session, final TransferStats stats)
+	{
+		//parse either of the headers into the same structure
+		final BinaryHeader hdr = session.header;
+		final String shmToken;
+		if (textHeader == null)
+		{
+			hdr.parse(header);
+			shmToken = hdr.getShmToken();
+		}
+		else
+			shmToken = parseTextHeader(textHeader, hdr);
+		if (log != null) log.info("received header: "+(textHeader == null ? hdr.toString() : textHeader));
 
-		//fill the dimensionality data
-		final int[] dims = new int[n];
-		for (int i=0; i < n; ++i)
-			dims[i] = Integer.valueOf(headerST.nextToken());
+		if (hdr.byteOrder != BinaryHeader.BIG_ENDIAN)
+			throw new RuntimeException("Unsupported byte order of the voxel data, sorry.");
+		if (hdr.codec != BinaryHeader.CODEC_RAW && hdr.codec != BinaryHeader.CODEC_ADAPTIVE)
+			throw new RuntimeException("Unsupported codec of the voxel data, sorry.");
 
-		final String typeStr = headerST.nextToken();
-		final String backendStr = headerST.nextToken();
+		//is the voxel data offered over the shared memory?
+		final ShmTransfer.Segment shm = ShmTransfer.acceptSegment(shmToken);
+		//NB: the voxel data in the shared memory is never encoded
+		final CodecController codecs =
+		  hdr.codec == BinaryHeader.CODEC_ADAPTIVE && shm == null ? session.codecs : null;
 
 		//envelope/header message is (mostly) parsed,
-		//start creating the output image of the appropriate type
-		Img<? extends NativeType<?>> img = createImg(dims, backendStr, createVoxelType(typeStr));
-
-		if (img == null)
-			throw new RuntimeException("Unsupported image backend type, sorry.");
+		//start creating the output image of the appropriate type,
+		//in the backend of the sender unless the receiver wants otherwise
+		final NativeType<?> type = createVoxelType(hdr.voxelType);
+		int backend = session.receivingBackend < 0 ? hdr.backend : session.receivingBackend;
+		if (backend != hdr.backend && type.getEntitiesPerPixel().getDenominator() != 1)
+		{
+			//NB: the bit-packed storage arrays cannot be scattered voxel-wise
+			if (log != null) log.info("cannot change the backend of bit-packed voxel types, keeping "
+			                          +BinaryHeader.BACKENDS[hdr.backend]);
+			backend = hdr.backend;
+		}
+		Img<? extends NativeType<?>> img = (Img)reusableImg(session, hdr, type, backend);
+		if (img == null) img = createImg(hdr, (NativeType)type, backend, session.receivingCellDims);
+		else if (log != null) log.info("reusing the image storage");
+
+		//the planes found in the PlaneCache are filled right away, and need not be sent
+		final String planeKeysStr = textHeader == null ? hdr.getMetadata(BinaryHeader.PLANEKEYS) : null;
+		final String[] planeKeys = planeKeysStr != null && backend == hdr.backend
+		  && img instanceof PlanarImg && PlaneCache.isEnabled() ? planeKeysStr.split(",") : null;
+		final boolean[] havePlanes = planeKeys != null ? fetchPlanes((PlanarImg)img, planeKeys) : null;
+		final String haveToken = havePlanes != null ? PlaneCache.haveToken(havePlanes) : null;
+		if (log != null && haveToken != null) log.info("reusing cached planes: "+haveToken);
 
 		//if we got here, we assume that we have everything prepared to receive
 		//the image, we therefore signal it to the sender
-		socket.send("ready");
-		if (log != null) log.info("receiving the image...");
+		socket.send((shm != null ? ShmTransfer.READY_SHM : "ready") + Session.advertisedTokens()
+		            + (haveToken != null ? " "+haveToken : ""));
+		if (stats != null) stats.lap(Phase.HANDSHAKE);
+		if (stats != null && shm != null) stats.setChannel(TransferStats.CHANNEL_SHM);
+		if (log != null) log.info("receiving the image"+(shm != null ? " via shared memory..." : "..."));
 
 		//the core Img is prepared, lets extend it with metadata and fill with voxel values afterwards
 		//create the ImgPlus from it -- there is fortunately no deep coping
 		ImgPlus<?> imgP = new ImgPlus<>(img);
-		receiveAndUnpackPlusData((ImgPlus)imgP, socket);
-
-		//populate with voxel data
-		if (backendStr.startsWith("ArrayImg"))
-		{
-			receiveAndUnpackArrayImg((ArrayImg)img, socket);
-		}
+		if (textHeader != null)
+			receiveAndUnpackPlusData((ImgPlus)imgP, socket);
 		else
-		if (backendStr.startsWith("PlanarImg"))
 		{
-			//read possible additional configuration hints from 'header'
-			//final int Slices = Integer.valueOf(headerST.nextToken());
-			//and fine-tune the img
-			receiveAndUnpackPlanarImg((PlanarImg)img, socket);
+			final String name = hdr.getMetadata(BinaryHeader.IMAGENAME);
+			if (name != null) imgP.setName(name);
 		}
-		else
-		if (backendStr.startsWith("CellImg"))
-		{
-			//read possible additional configuration hints from 'header'
-			//and fine-tune the img
-			throw new RuntimeException("Cannot receive CellImg images yet.");
-			//receiveAndUnpackCellImg((CellImg)img, socket);
+		if (stats != null) stats.lap(Phase.METADATA);
+
+		try {
+			//populate with voxel data
+			if (backend != hdr.backend)
+				receiveAndUnpackScattered(img, hdr, socket, shm, codecs, stats, log);
+			else
+			switch (BinaryHeader.BACKENDS[hdr.backend])
+			{
+			case "ArrayImg":
+				receiveAndUnpackArrayImg((ArrayImg)img, socket, shm, codecs, stats, log);
+				break;
+			case "PlanarImg":
+				receiveAndUnpackPlanarImg((PlanarImg)img, socket, shm, havePlanes, codecs, stats, log);
+				if (planeKeys != null) storePlanes((PlanarImg)img, planeKeys, havePlanes);
+				break;
+			default:
+				//NB: the CellImg is never sent, it can be only the receiver's choice (handled above)
+				throw new RuntimeException("Cannot receive CellImg images yet.");
+			}
+		}
+		finally {
+			if (shm != null) shm.close();
 		}
-		else
-			throw new RuntimeException("Unsupported image backend type, sorry.");
 
 		//send confirmation handshake after data has arrived
 		socket.send("done");
+		if (stats != null) stats.lap(Phase.DONE_ACK);
+		if (log != null) log.info("receiving finished...");
+
+		return imgP;
+	}
+
+
+	// -------- transmission of the image within one JVM --------
+	private static
+	void packAndSendByReference(final ImgPlus<?> imgP, final ZMQ.Socket socket,
+	                            final int timeOut, final ProgressCallback log,
+	                            final TransferStats stats)
+	{
+		if (stats != null) stats.setChannel(TransferStats.CHANNEL_REFERENCE);
+		final long ticket = InprocTransfer.deposit(imgP);
+		try {
+			final String msg = "v1 byref "+ticket;
+			if (log != null) log.info("sending header: "+msg);
+			socket.send(msg);
+			if (stats != null) stats.lap(Phase.HANDSHAKE);
+
+			//wait for confirmation from the receiver, after which the image is surely picked up
+			ArrayPacker.waitForFirstMessage(socket, timeOut);
+			if (! socket.recvStr().startsWith("done"))
+				throw new RuntimeException("Protocol error, expected final confirmation from the receiver.");
+			if (stats != null) stats.lap(Phase.DONE_ACK);
+			if (log != null) log.setProgress(1.0f);
+			if (log != null) log.info("sending finished...");
+		}
+		finally {
+			//NB: does nothing if the receiver has picked the image
+			InprocTransfer.withdraw(ticket);
+		}
+	}
+
+	private static
+	ImgPlus<?> receiveByReference(final String header, final ZMQ.Socket socket,
+	                              final ProgressCallback log, final TransferStats stats)
+	{
+		if (log != null) log.info("received header: "+header);
+		if (stats != null) stats.setChannel(TransferStats.CHANNEL_REFERENCE);
+		final StringTokenizer headerST = new StringTokenizer(header, " ");
+		headerST.nextToken(); //positions at "v1"
+		headerST.nextToken(); //positions at "byref"
+		if (! headerST.hasMoreTokens())
+			throw new RuntimeException("Protocol error, expected ticket of the handed over image.");
+
+		ImgPlus<?> imgP = InprocTransfer.withdraw(Long.parseLong(headerST.nextToken()));
+		if (imgP == null)
+			throw new RuntimeException("Protocol error, the handed over image is not available.");
+		if (InprocTransfer.getCopyOnReceive())
+			imgP = imgP.copy();
+		if (stats != null) stats.lap(Phase.HANDSHAKE);
+
+		socket.send("done");
+		if (stats != null) stats.lap(Phase.DONE_ACK);
+		if (log != null) log.setProgress(1.0f);
 		if (log != null) log.info("receiving finished...");
 
 		return imgP;
@@ -209,12 +411,72 @@ public class ImgPacker
 
 
 	// -------- support for the transmission of the image metadata --------
-	/// this function sends the header AND WAITS FOR RESPONSE
+	/**
+	 * Builds and sends the text header "v1", returns the receiver's reply.
+	 * The metadata must be sent afterwards with packAndSendPlusData().
+	 */
+	private static
+	String packAndSendTextHeader(final ImgPlus<?> imgP, final Class<?> voxelClass,
+	                             final String backendStr, final ShmTransfer.Segment shm,
+	                             final ZMQ.Socket socket, final int timeOut,
+	                             final ProgressCallback log)
+	{
+		//"buffer" for the first and human-readable payload:
+		//protocol version
+		final StringBuilder msg = new StringBuilder("v1");
+
+		//dimensionality data
+		msg.append(" dimNumber ").append(imgP.numDimensions());
+		for (int i=0; i < imgP.numDimensions(); ++i)
+			msg.append(' ').append(imgP.dimension(i));
+
+		//decipher the voxel type and the storage model
+		msg.append(' ').append(voxelClass.getSimpleName());
+		msg.append(' ').append(backendStr).append(' ');
+		if (shm != null) msg.append(shm.headerHint()).append(' ');
+
+		if (log != null) log.info("sending header: "+msg);
+		final byte[] hdr = msg.toString().getBytes();
+		return packAndSendHeader(hdr, hdr.length, socket, timeOut);
+	}
+
+	/**
+	 * Builds and sends the BinaryHeader, which includes also the metadata,
+	 * returns the receiver's reply.
+	 */
+	private static
+	String packAndSendBinaryHeader(final ImgPlus<?> imgP, final Class<?> voxelClass,
+	                               final String backendStr, final ShmTransfer.Segment shm,
+	                               final byte codec, final BinaryHeader hdr,
+	                               final ZMQ.Socket socket, final int timeOut,
+	                               final ProgressCallback log)
+	{
+		hdr.voxelType = SUPPORTED_VOXEL_CLASSES.indexOf(voxelClass);
+		hdr.backend   = BinaryHeader.backendIndex(backendStr);
+		hdr.byteOrder = BinaryHeader.BIG_ENDIAN;
+		hdr.codec     = codec;
+		hdr.setDimensions(imgP.numDimensions());
+		for (int i=0; i < imgP.numDimensions(); ++i)
+			hdr.dims[i] = imgP.dimension(i);
+		hdr.setShmToken(shm != null ? shm.headerHint() : null);
+		hdr.setImageName(imgP.getName());
+
+		if (log != null) log.info("sending header: "+hdr);
+		//NB: write() may need to enlarge the buffer, it must come before getBuffer()
+		final int length = hdr.write();
+		return packAndSendHeader(hdr.getBuffer(), length, socket, timeOut);
+	}
+
+	/**
+	 * this function sends the header AND WAITS FOR RESPONSE,
+	 * returns the response (that starts with "ready")
+	 */
 	private static
-	void packAndSendHeader(final String hdr, final ZMQ.Socket socket, final int timeOut)
+	String packAndSendHeader(final byte[] hdr, final int length,
+	                         final ZMQ.Socket socket, final int timeOut)
 	{
 		//send _complete_ message with just the header
-		socket.send(hdr.getBytes(), 0);
+		socket.send(hdr, 0, length, 0);
 		//NB: if message is not complete (i.e. SNDMORE is flagged),
 		//system/ZeroMQ will not be ready to listen for confirmation message
 
@@ -225,6 +487,43 @@ public class ImgPacker
 		final String confirmation = socket.recvStr();
 		if (! confirmation.startsWith("ready"))
 			throw new RuntimeException("Protocol error, expected initial confirmation from the receiver.");
+
+		return confirmation;
+	}
+
+	/**
+	 * Parses the text header "v1" into the \e hdr, returns the
+	 * optional token that follows the image backend (or null).
+	 */
+	private static
+	String parseTextHeader(final String header, final BinaryHeader hdr)
+	{
+		StringTokenizer headerST = new StringTokenizer(header, " ");
+		if (! headerST.nextToken().startsWith("v1"))
+			throw new RuntimeException("Unknown protocol, expecting protocol v1.");
+
+		if (! headerST.nextToken().startsWith("dimNumber"))
+			throw new RuntimeException("Incorrect protocol, expecting dimNumber.");
+		hdr.setDimensions(Integer.valueOf(headerST.nextToken()));
+
+		//fill the dimensionality data
+		for (int i=0; i < hdr.numDimensions; ++i)
+			hdr.dims[i] = Long.valueOf(headerST.nextToken());
+
+		hdr.voxelType = voxelTypeIndex(headerST.nextToken());
+
+		final String backendStr = headerST.nextToken();
+		hdr.backend = -1;
+		for (int i=0; i < BinaryHeader.BACKENDS.length; ++i)
+			if (backendStr.startsWith(BinaryHeader.BACKENDS[i])) hdr.backend = i;
+		if (hdr.backend == -1)
+			throw new RuntimeException("Unsupported image backend type, sorry.");
+
+		//the text header knows only this
+		hdr.byteOrder = BinaryHeader.BIG_ENDIAN;
+		hdr.codec     = BinaryHeader.CODEC_RAW;
+
+		return headerST.hasMoreTokens() ? headerST.nextToken() : null;
 	}
 
 
@@ -268,66 +567,292 @@ public class ImgPacker
 
 
 	// -------- support for the transmission of the payload/voxel data --------
+	// NB: if \e shm is given, the voxel data goes through it instead of the \e socket
 	private static <T extends NativeType<T>>
-	void packAndSendArrayImg(final ArrayImg<T,? extends ArrayDataAccess<?>> img, final ZMQ.Socket socket)
+	void packAndSendArrayImg(final ArrayImg<T,? extends ArrayDataAccess<?>> img, final ZMQ.Socket socket,
+	                         final ShmTransfer.Segment shm, final CodecController codecs,
+	                         final RateLimiter limiter,
+	                         final PackedImage packed,
+	                         final TransferStats stats, final ProgressCallback log)
 	{
 		if (img.size() == 0)
 			throw new RuntimeException("Refusing to send an empty image...");
 
 		final Object data = img.update(null).getCurrentStorageArray();
-		final ArrayPacker as = new ArrayPacker(data, socket, ArrayPacker.FROM_ARRAY_TO_SOCKET);
+		final ArrayPacker as = shm == null ?
+		  new ArrayPacker(data, socket, ArrayPacker.FROM_ARRAY_TO_SOCKET) :
+		  new ArrayPacker(data, openForWriting(shm, ArrayPacker.getByteSize(data)),
+		                  ArrayPacker.FROM_ARRAY_TO_SOCKET);
+		if (log != null) as.setProgressCallback(log, ArrayPacker.getByteSize(data));
+		if (codecs != null) as.setChunkCodecs(codecs);
+		as.setRateLimiter(limiter);
+		as.setPackedImage(packed);
 		as.transmitArray(data, false);
+
+		if (shm != null) announceShmWritten(shm, socket);
+		reportPayload(as, stats);
 	}
 
 	private static <T extends NativeType<T>>
-	void receiveAndUnpackArrayImg(final ArrayImg<T,? extends ArrayDataAccess<?>> img, final ZMQ.Socket socket)
+	void receiveAndUnpackArrayImg(final ArrayImg<T,? extends ArrayDataAccess<?>> img, final ZMQ.Socket socket,
+	                              final ShmTransfer.Segment shm, final CodecController codecs,
+	                              final TransferStats stats, final ProgressCallback log)
 	{
 		if (img.size() == 0)
 			throw new RuntimeException("Refusing to receive an empty image...");
 
 		final Object data = img.update(null).getCurrentStorageArray();
-		final ArrayPacker ar = new ArrayPacker(data, socket, ArrayPacker.FROM_SOCKET_TO_ARRAY);
+		final ArrayPacker ar = shm == null ?
+		  new ArrayPacker(data, socket, ArrayPacker.FROM_SOCKET_TO_ARRAY) :
+		  new ArrayPacker(data, waitForShmWritten(shm, socket, ArrayPacker.getByteSize(data)),
+		                  ArrayPacker.FROM_SOCKET_TO_ARRAY);
+		if (log != null) ar.setProgressCallback(log, ArrayPacker.getByteSize(data));
+		if (codecs != null) ar.setChunkCodecs(codecs);
 		ar.transmitArray(data, false);
+		ar.flush();
+		reportPayload(ar, stats);
 	}
 
 	private static <T extends NativeType<T>>
-	void packAndSendPlanarImg(final PlanarImg<T,? extends ArrayDataAccess<?>> img, final ZMQ.Socket socket)
+	void packAndSendPlanarImg(final PlanarImg<T,? extends ArrayDataAccess<?>> img, final ZMQ.Socket socket,
+	                          final ShmTransfer.Segment shm, final boolean[] skip,
+	                          final CodecController codecs, final RateLimiter limiter,
+	                          final PackedImage packed,
+	                          final TransferStats stats, final ProgressCallback log)
 	{
 		if (img.size() == 0)
 			throw new RuntimeException("Refusing to send an empty image...");
 
-		//TODO: remember the first array, transmitArray-it, and start for-cycle with slice=1
-		final ArrayPacker as = new ArrayPacker(img.getPlane(0).getCurrentStorageArray(),
-		                                           socket, ArrayPacker.FROM_ARRAY_TO_SOCKET);
-		for (int slice = 0; slice < img.numSlices()-1; ++slice)
+		//the planes flagged in \e skip are not sent at all (the receiver has them already)
+		int remainingSlices = countNotFlagged(skip, img.numSlices());
+		if (remainingSlices == 0) return;
+
+		final Object sampleData = img.getPlane(0).getCurrentStorageArray();
+		final long totalBytes = remainingSlices*ArrayPacker.getByteSize(sampleData);
+		final ArrayPacker as = shm == null ?
+		  new ArrayPacker(sampleData, socket, ArrayPacker.FROM_ARRAY_TO_SOCKET) :
+		  new ArrayPacker(sampleData, openForWriting(shm, totalBytes),
+		                  ArrayPacker.FROM_ARRAY_TO_SOCKET);
+		if (log != null) as.setProgressCallback(log, totalBytes);
+		if (codecs != null) as.setChunkCodecs(codecs);
+		as.setRateLimiter(limiter);
+		as.setPackedImage(packed);
+		for (int slice = 0; slice < img.numSlices(); ++slice)
 		{
+			if (skip != null && skip[slice]) continue;
 			final Object data = img.getPlane(slice).getCurrentStorageArray();
-			as.transmitArray(data, true);
-		}
-		{
-			final Object data = img.getPlane(img.numSlices()-1).getCurrentStorageArray();
-			as.transmitArray(data, false);
+			as.transmitArray(data, --remainingSlices > 0);
 		}
+
+		if (shm != null) announceShmWritten(shm, socket);
+		reportPayload(as, stats);
 	}
 
 	private static <T extends NativeType<T>>
-	void receiveAndUnpackPlanarImg(final PlanarImg<T,? extends ArrayDataAccess<?>> img, final ZMQ.Socket socket)
+	void receiveAndUnpackPlanarImg(final PlanarImg<T,? extends ArrayDataAccess<?>> img, final ZMQ.Socket socket,
+	                               final ShmTransfer.Segment shm, final boolean[] skip,
+	                               final CodecController codecs,
+	                               final TransferStats stats, final ProgressCallback log)
 	{
 		if (img.size() == 0)
 			throw new RuntimeException("Refusing to receive an empty image...");
 
-		//TODO: remember the first array, transmitArray-it, and start for-cycle with slice=1
-		final ArrayPacker ar = new ArrayPacker(img.getPlane(0).getCurrentStorageArray(),
-		                                           socket, ArrayPacker.FROM_SOCKET_TO_ARRAY);
-		for (int slice = 0; slice < img.numSlices()-1; ++slice)
+		//the planes flagged in \e skip are not sent at all (we have them already)
+		final int remainingSlices = countNotFlagged(skip, img.numSlices());
+		if (remainingSlices == 0) return;
+
+		final Object sampleData = img.getPlane(0).getCurrentStorageArray();
+		final long totalBytes = remainingSlices*ArrayPacker.getByteSize(sampleData);
+		final ArrayPacker ar = shm == null ?
+		  new ArrayPacker(sampleData, socket, ArrayPacker.FROM_SOCKET_TO_ARRAY) :
+		  new ArrayPacker(sampleData, waitForShmWritten(shm, socket, totalBytes),
+		                  ArrayPacker.FROM_SOCKET_TO_ARRAY);
+		if (log != null) ar.setProgressCallback(log, totalBytes);
+		if (codecs != null) ar.setChunkCodecs(codecs);
+		for (int slice = 0; slice < img.numSlices(); ++slice)
 		{
+			if (skip != null && skip[slice]) continue;
 			final Object data = img.getPlane(slice).getCurrentStorageArray();
 			ar.transmitArray(data, false);
 		}
+		ar.flush();
+		reportPayload(ar, stats);
+	}
+
+	/**
+	 * Receives the voxel data sent in the backend given in the \e hdr into
+	 * the \e img of another backend, the voxels are scattered right from
+	 * the received chunks into the storage arrays of the \e img (see
+	 * the ScatteringBuffer).
+	 */
+	private static
+	void receiveAndUnpackScattered(final Img<?> img, final BinaryHeader hdr, final ZMQ.Socket socket,
+	                               final ShmTransfer.Segment shm, final CodecController codecs,
+	                               final TransferStats stats, final ProgressCallback log)
+	{
+		if (img.size() == 0)
+			throw new RuntimeException("Refusing to receive an empty image...");
+
+		//how long are the storage arrays of the sender: the whole image or one plane
+		final long sourceLength =
+		  BinaryHeader.BACKENDS[hdr.backend].equals("PlanarImg") && hdr.numDimensions > 1 ?
+		  hdr.dims[0]*hdr.dims[1] : img.size();
+
+		final ScatteringBuffer sb = new ScatteringBuffer(img);
+		final long totalBytes = img.size()*sb.getElemSize();
+		final ArrayPacker ar = shm == null ?
+		  new ArrayPacker(sb, socket, ArrayPacker.FROM_SOCKET_TO_ARRAY) :
+		  new ArrayPacker(sb, waitForShmWritten(shm, socket, totalBytes),
+		                  ArrayPacker.FROM_SOCKET_TO_ARRAY);
+		if (log != null) ar.setProgressCallback(log, totalBytes);
+		if (codecs != null) ar.setChunkCodecs(codecs);
+		for (long start = 0; start < img.size(); start += sourceLength)
+			ar.transmitArray(new ScatteringBuffer.SourceArray(start, (int)sourceLength), false);
+		ar.flush();
+		reportPayload(ar, stats);
+	}
+
+	///returns how many of the first \e length items of the \e flags are false (all if \e flags is null)
+	private static
+	int countNotFlagged(final boolean[] flags, final int length)
+	{
+		int cnt = length;
+		if (flags != null)
+			for (int i=0; i < length; ++i)
+				if (flags[i]) --cnt;
+		return cnt;
+	}
+
+
+	/**
+	 * Converts the voxel data of the \e imgP into the chunks to be sent, and computes
+	 * its plane keys, in the way the previous image has been sent within the \e session.
+	 * Returns null if the image cannot be packed ahead, e.g., it would be handed over
+	 * by reference or via the shared memory, or its voxel data is larger than \e maxBytes.
+	 */
+	@SuppressWarnings("unchecked")
+	static <T extends NativeType<T>>
+	PackedImage packAhead(final ImgPlus<T> imgP, final Session session, final long maxBytes)
+	{
+		if (session.byReference || session.sharedMemory) return null;
+
+		final int voxelType = SUPPORTED_VOXEL_CLASSES.indexOf(imgP.firstElement().getClass());
+		if (voxelType < 0) return null;
+
+		//the storage arrays of the image
+		final Img<T> img = getUnderlyingImg(imgP);
+		final Object[] arrays;
+		if (img instanceof ArrayImg)
+			arrays = new Object[] { ((ArrayImg<T,? extends ArrayDataAccess<?>>)img).update(null).getCurrentStorageArray() };
+		else
+		if (img instanceof PlanarImg)
 		{
-			final Object data = img.getPlane(img.numSlices()-1).getCurrentStorageArray();
-			ar.transmitArray(data, false);
+			final PlanarImg<T,? extends ArrayDataAccess<?>> pImg = (PlanarImg<T,? extends ArrayDataAccess<?>>)img;
+			arrays = new Object[pImg.numSlices()];
+			for (int slice = 0; slice < arrays.length; ++slice)
+				arrays[slice] = pImg.getPlane(slice).getCurrentStorageArray();
+		}
+		else
+			return null;
+
+		long bytes = 0;
+		for (Object array : arrays) bytes += ArrayPacker.getByteSize(array);
+		if (bytes > maxBytes) return null;
+
+		final boolean binaryHeader = session.binaryHeader;
+		final PackedImage packed = new PackedImage(
+		  binaryHeader && session.planeCache && img instanceof PlanarImg ?
+		    planeKeys(voxelType, (PlanarImg<T,? extends ArrayDataAccess<?>>)img) : null);
+		for (Object array : arrays) packed.pack(array);
+		return packed;
+	}
+
+
+	// -------- support for the PlaneCache --------
+	///returns the comma-separated PlaneCache keys of all planes of the \e img
+	private static
+	String planeKeys(final int voxelType, final PlanarImg<?,? extends ArrayDataAccess<?>> img)
+	{
+		final StringBuilder sb = new StringBuilder();
+		for (int slice = 0; slice < img.numSlices(); ++slice)
+		{
+			if (slice > 0) sb.append(',');
+			sb.append(PlaneCache.key(voxelType, img.getPlane(slice).getCurrentStorageArray()));
 		}
+		return sb.toString();
+	}
+
+	///fills the planes of the \e img that are in the PlaneCache, returns which ones
+	private static
+	boolean[] fetchPlanes(final PlanarImg<?,? extends ArrayDataAccess<?>> img, final String[] keys)
+	{
+		if (keys.length != img.numSlices())
+			throw new RuntimeException("Protocol error, the number of plane keys does not match the image.");
+
+		final boolean[] have = new boolean[keys.length];
+		for (int slice = 0; slice < keys.length; ++slice)
+			have[slice] = PlaneCache.fetch(keys[slice], img.getPlane(slice).getCurrentStorageArray());
+		return have;
+	}
+
+	///stores the planes of the \e img that were not in the PlaneCache (are not flagged in \e have)
+	private static
+	void storePlanes(final PlanarImg<?,? extends ArrayDataAccess<?>> img, final String[] keys,
+	                 final boolean[] have)
+	{
+		for (int slice = 0; slice < keys.length; ++slice)
+			if (!have[slice]) PlaneCache.store(keys[slice], img.getPlane(slice).getCurrentStorageArray());
+	}
+
+	///moves the counters of the \e packer into the \e stats, and closes the PAYLOAD phase
+	private static
+	void reportPayload(final ArrayPacker packer, final TransferStats stats)
+	{
+		if (stats == null) return;
+		stats.addPayload(packer.transmittedBytes, packer.transmittedChunks);
+		stats.lap(Phase.PAYLOAD);
+	}
+
+
+	// -------- support for the transmission over the shared memory --------
+	private static
+	ShmTransfer.Segment openForWriting(final ShmTransfer.Segment shm, final long size)
+	{
+		try {
+			shm.openForWriting(size);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Cannot prepare shared memory: "+e.getMessage());
+		}
+		return shm;
+	}
+
+	///sends the last part of the (multi-part) message, the one that substitutes the voxel data
+	private static
+	void announceShmWritten(final ShmTransfer.Segment shm, final ZMQ.Socket socket)
+	{
+		socket.send(ShmTransfer.DATA_WRITTEN + shm.position, 0);
+	}
+
+	///waits for the announceShmWritten() and opens the \e shm for reading of \e size bytes
+	private static
+	ShmTransfer.Segment waitForShmWritten(final ShmTransfer.Segment shm, final ZMQ.Socket socket,
+	                                      final long size)
+	{
+		ArrayPacker.waitForNextMessage(socket);
+		final String msg = socket.recvStr();
+		if (! msg.startsWith(ShmTransfer.DATA_WRITTEN))
+			throw new RuntimeException("Protocol error, expected voxel data in the shared memory.");
+		if (Long.parseLong(msg.substring(ShmTransfer.DATA_WRITTEN.length()).trim()) != size)
+			throw new RuntimeException("Protocol error, unexpected size of the voxel data in the shared memory.");
+
+		try {
+			shm.openForReading(size);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Cannot read shared memory: "+e.getMessage());
+		}
+		return shm;
 	}
 
 
@@ -337,7 +862,7 @@ public class ImgPacker
 	 * until it gets to the underlying pure imglib2.Img.
 	 */
 	@SuppressWarnings("unchecked")
-	private static <Q>
+	static <Q>
 	Img<Q> getUnderlyingImg(final Img<Q> img)
 	{
 		if (img instanceof Dataset)
@@ -348,29 +873,86 @@ public class ImgPacker
 			return img;
 	}
 
-	@SuppressWarnings("rawtypes") // use raw type because of insufficient support of reflexive types in java
+	///returns the index of the voxel type \e typeStr into the SUPPORTED_VOXEL_CLASSES
 	private static
-	NativeType createVoxelType(String typeStr)
+	int voxelTypeIndex(final String typeStr)
 	{
-		for(Class<? extends NativeType> aClass : SUPPORTED_VOXEL_CLASSES)
-			if(typeStr.startsWith(aClass.getSimpleName()))
-				try {
-					return aClass.newInstance();
-				} catch (InstantiationException | IllegalAccessException e) {
-					throw new RuntimeException(e);
-				}
+		for (int i=0; i < SUPPORTED_VOXEL_CLASSES.size(); ++i)
+			if (typeStr.startsWith(SUPPORTED_VOXEL_CLASSES.get(i).getSimpleName()))
+				return i;
 		throw new RuntimeException("Unsupported voxel type, sorry.");
 	}
 
+	@SuppressWarnings("rawtypes") // use raw type because of insufficient support of reflexive types in java
+	private static
+	NativeType createVoxelType(final int voxelType)
+	{
+		if (voxelType < 0 || voxelType >= SUPPORTED_VOXEL_CLASSES.size())
+			throw new RuntimeException("Unsupported voxel type, sorry.");
+		try {
+			return SUPPORTED_VOXEL_CLASSES.get(voxelType).newInstance();
+		} catch (InstantiationException | IllegalAccessException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	///creates the image of the size given in the \e hdr, the \e cellDims is used only for the CellImg \e backend
 	private static <T extends NativeType<T>>
-	Img<T> createImg(int[] dims, String backendStr, T type)
+	Img<T> createImg(final BinaryHeader hdr, T type, final int backend, final int[] cellDims)
 	{
-		if (backendStr.startsWith("ArrayImg"))
+		final long[] dims = Arrays.copyOf(hdr.dims, hdr.numDimensions);
+		switch (BinaryHeader.BACKENDS[backend])
+		{
+		case "ArrayImg":
 			return new ArrayImgFactory<>(type).create(dims);
-		if (backendStr.startsWith("PlanarImg"))
+		case "PlanarImg":
 			return new PlanarImgFactory<>(type).create(dims);
-		if (backendStr.startsWith("CellImg"))
-			return new CellImgFactory<>(type).create(dims);
-		throw new RuntimeException("Unsupported image backend type, sorry.");
+		default:
+			return cellDims != null ? new CellImgFactory<>(type, cellDims).create(dims)
+			                        : new CellImgFactory<>(type).create(dims);
+		}
+	}
+
+	/**
+	 * Returns the receivingTarget of the \e session (which is consumed), or an image
+	 * from its receivingPool, that can hold the image described by the \e hdr in the
+	 * \e backend, or null if there is none.
+	 */
+	private static
+	Img<?> reusableImg(final Session session, final BinaryHeader hdr,
+	                   final NativeType<?> type, final int backend)
+	{
+		final Img<?> target = session.receivingTarget;
+		session.receivingTarget = null;
+		if (target != null && fitsImg(target, hdr, type, backend, session.receivingCellDims))
+			return target;
+
+		return session.receivingPool == null ? null :
+		  session.receivingPool.take(img -> fitsImg(img, hdr, type, backend, session.receivingCellDims));
+	}
+
+	///tests if the \e img is of the \e type, \e backend and dimensions of the \e hdr
+	private static
+	boolean fitsImg(final Img<?> img, final BinaryHeader hdr,
+	                final NativeType<?> type, final int backend, final int[] cellDims)
+	{
+		if (img.numDimensions() != hdr.numDimensions) return false;
+		for (int d = 0; d < hdr.numDimensions; ++d)
+			if (img.dimension(d) != hdr.dims[d]) return false;
+		if (img.firstElement().getClass() != type.getClass()) return false;
+
+		switch (BinaryHeader.BACKENDS[backend])
+		{
+		case "ArrayImg":
+			return img instanceof ArrayImg;
+		case "PlanarImg":
+			return img instanceof PlanarImg;
+		default:
+			if (!(img instanceof CellImg)) return false;
+			if (cellDims != null)
+				for (int d = 0; d < cellDims.length && d < img.numDimensions(); ++d)
+					if (((CellImg<?,?>)img).getCellGrid().cellDimension(d) != cellDims[d]) return false;
+			return true;
+		}
 	}
 }
@@ -0,0 +1,98 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import net.imglib2.img.Img;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.function.Predicate;
+
+/**
+ * Keeps the images their consumer is done with, so that their storage is reused
+ * for the next received images of the same voxel type, dimensions and backend,
+ * see ImgTransfer.setImgPool(). A stream of the same-shaped images (e.g., a time
+ * series) is then received with (almost) no new allocations.
+ *
+ * The consumer release()s an image once it is done with it, and must not use it
+ * afterwards because its voxel data is overwritten by some next received image.
+ * The pool can be shared by several receivers, also with the PrefetchingReceiver.
+ */
+public class ImgPool
+{
+	///how many images are kept at most
+	private final int capacity;
+	///the released images, the most recently released is the last
+	private final ArrayDeque<Img<?>> released = new ArrayDeque<>();
+
+	public ImgPool(final int _capacity)
+	{
+		if (_capacity < 1)
+			throw new IllegalArgumentException("The pool must be able to keep at least one image.");
+		capacity = _capacity;
+	}
+
+	/**
+	 * Gives the \e img (e.g., the ImgPlus of a received image) back for the reuse,
+	 * the least recently released image is dropped if the pool is full.
+	 */
+	public synchronized
+	void release(final Img<?> img)
+	{
+		if (img == null) return;
+		if (released.size() >= capacity) released.removeFirst();
+		released.addLast(ImgPacker.getUnderlyingImg(img));
+	}
+
+	///returns (and forgets) the most recently released image that \e fits, or null if there is none
+	synchronized
+	Img<?> take(final Predicate<Img<?>> fits)
+	{
+		final Iterator<Img<?>> it = released.descendingIterator();
+		while (it.hasNext())
+		{
+			final Img<?> img = it.next();
+			if (fits.test(img))
+			{
+				it.remove();
+				return img;
+			}
+		}
+		return null;
+	}
+
+	///returns how many images are kept now
+	public synchronized
+	int size()
+	{ return released.size(); }
+
+	///drops all kept images
+	public synchronized
+	void clear()
+	{ released.clear(); }
+}
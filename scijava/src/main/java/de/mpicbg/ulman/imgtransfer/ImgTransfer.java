@@ -28,6 +28,7 @@
 package de.mpicbg.ulman.imgtransfer;
 
 import net.imagej.ImgPlus;
+import net.imglib2.img.Img;
 import net.imglib2.type.NativeType;
 
 import org.zeromq.SocketType;
@@ -35,6 +36,13 @@ import org.zeromq.ZMQ;
 import org.zeromq.ZMQException;
 import java.io.IOException;
 import java.net.ProtocolException;
+import java.nio.file.Paths;
+
+import de.mpicbg.ulman.imgtransfer.capture.CaptureLog;
+import de.mpicbg.ulman.imgtransfer.capture.CapturingSocket;
+import de.mpicbg.ulman.imgtransfer.metrics.Phase;
+import de.mpicbg.ulman.imgtransfer.metrics.TransferMetrics;
+import de.mpicbg.ulman.imgtransfer.metrics.TransferStats;
 import java.util.StringTokenizer;
 
 /**
@@ -69,6 +77,19 @@ import java.util.StringTokenizer;
  * images, you can optionally read the hint with getExpectedNumberOfImages()
  * anytime after the first image has arrived.
  *
+ * When both peers happen to live in the same JVM, the images are not serialized
+ * at all, the receiver gets the sender's image by reference. This happens
+ * automatically, see InprocTransfer for details.
+ *
+ * The peer addresses are ZeroMQ endpoints, such as tcp://host:port or
+ * ipc:///path, see expandAddress(). Listeners bind always the tcp:// port,
+ * and optionally also the ipc:// endpoint given by ipcAddress(), see
+ * setIpcEndpoints().
+ *
+ * Every transfer of every image is measured (bytes, chunks, durations of
+ * the protocol phases) and reported to the listeners registered with
+ * metrics.TransferMetrics, e.g., to the metrics.EndpointHistograms.
+ *
  * Their might come, if requested, a third sort that would be collecting
  * convenience functions to send/receive an array of images.
  */
@@ -85,28 +106,49 @@ public class ImgTransfer
 	void sendImage(final ImgPlus<T> imgP, final String addr,
 	               final int timeOut, final ProgressCallback log)
 	throws IOException
+	{ sendImage(imgP, addr, timeOut, log, null); }
+
+	/**
+	 * Sends/pushes an image over network to someone who is receiving it,
+	 * within the bandwidth \e limiter (see setRateLimiter()).
+	 *
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void sendImage(final ImgPlus<T> imgP, final String addr,
+	               final int timeOut, final ProgressCallback log,
+	               final RateLimiter limiter)
+	throws IOException
 	{
 		if (log != null) log.info("sender started");
 
 		//init the communication side
-		ZMQ.Context zmqContext = ZMQ.context(1);
 		ZMQ.Socket writerSocket = null;
+		//is the peer living in this JVM?
+		final String inprocAddr = InprocTransfer.sameJvmAddress(addr);
+		final String usedAddr = inprocAddr != null ? inprocAddr : addr;
 		try {
-			writerSocket = zmqContext.socket(SocketType.PAIR);
+			writerSocket = createSocket(InprocTransfer.zmqContext);
 			if (writerSocket == null)
 				throw new Exception("cannot obtain local socket");
 
 			//peer to send data out
-			writerSocket.connect(addr);
+			writerSocket.connect(usedAddr);
 
 			//send the image
-			ImgPacker.packAndSend(imgP, writerSocket, timeOut, log);
+			final Session session = new Session(inprocAddr != null);
+			session.rateLimiter = limiter;
+			ImgPacker.packAndSend(imgP, writerSocket, timeOut, log, session,
+			                      TransferMetrics.newStats(usedAddr, true));
 
 			if (log != null) log.info("sender finished");
 		}
 		catch (ZMQException e) {
 			throw new IOException("sender crashed, ZeroMQ error: " + e.getMessage());
 		}
+		catch (ConnectionBrokenException e) {
+			throw new IOException("sender connection broken: " + e.getMessage());
+		}
 		catch (RuntimeException e) {
 			throw new ProtocolException("sender protocol error: " + e.getMessage());
 		}
@@ -117,11 +159,9 @@ public class ImgTransfer
 			if (log != null) log.info("sender cleaning");
 			if (writerSocket != null)
 			{
-				writerSocket.disconnect(addr);
-				writerSocket.close();
+				writerSocket.disconnect(usedAddr);
+				closeSocket(writerSocket);
 			}
-			//zmqContext.close();
-			//zmqContext.term();
 		}
 	}
 
@@ -146,28 +186,43 @@ public class ImgTransfer
 	ImgPlus<?> receiveImage(final int portNo,
 	                        final int timeOut, final ProgressCallback log)
 	throws IOException
+	{ return receiveImage(portNo, timeOut, log, false); }
+
+	/**
+	 * Receives an image over network from someone who is sending/pushing it,
+	 * listens also at the ipcAddress() of the port if \e ipcEndpoint
+	 * (see setIpcEndpoints()).
+	 *
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static
+	ImgPlus<?> receiveImage(final int portNo,
+	                        final int timeOut, final ProgressCallback log,
+	                        final boolean ipcEndpoint)
+	throws IOException
 	{
 		if (log != null) log.info("receiver started");
 		ImgPlus<?> imgP = null;
 
 		//init the communication side
-		ZMQ.Context zmqContext = ZMQ.context(1);
 		ZMQ.Socket listenerSocket = null;
 		try {
-			listenerSocket = zmqContext.socket(SocketType.PAIR);
+			listenerSocket = createSocket(InprocTransfer.zmqContext);
 			if (listenerSocket == null)
 				throw new Exception("cannot obtain local socket");
 
 			//port to listen for incoming data
-			listenerSocket.bind("tcp://*:" + portNo);
+			bindPort(listenerSocket, portNo, ipcEndpoint);
 
 			//"an entry point" for the input data
 			if (log != null) log.info("receiver waiting");
-			byte[] incomingData = waitForIncomingData(listenerSocket, "receiver", timeOut, log);
+			final TransferStats stats = TransferMetrics.newStats(listeningAddress(portNo), false);
+			byte[] incomingData = waitForIncomingData(listenerSocket, "receiver", timeOut, false, log);
+			if (stats != null) stats.lap(Phase.CONNECT);
 
 			//process incoming data if there is some...
 			if (incomingData != null) {
-				imgP = ImgPacker.receiveAndUnpack(new String(incomingData), listenerSocket, log);
+				imgP = ImgPacker.receiveAndUnpack(incomingData, listenerSocket, log, new Session(false), stats);
 				//NB: this guy returns the ImgPlus that we desire...
 			}
 			else
@@ -178,6 +233,9 @@ public class ImgTransfer
 		catch (ZMQException e) {
 			throw new IOException("receiver crashed, ZeroMQ error: " + e.getMessage());
 		}
+		catch (ConnectionBrokenException e) {
+			throw new IOException("receiver connection broken: " + e.getMessage());
+		}
 		catch (RuntimeException e) {
 			throw new ProtocolException("receiver protocol error: " + e.getMessage());
 		}
@@ -188,11 +246,9 @@ public class ImgTransfer
 			if (log != null) log.info("receiver cleaning");
 			if (listenerSocket != null)
 			{
-				listenerSocket.unbind("tcp://*:" + portNo);
-				listenerSocket.close();
+				unbindPort(listenerSocket, portNo);
+				closeSocket(listenerSocket);
 			}
-			//zmqContext.close();
-			//zmqContext.term();
 		}
 
 		return imgP;
@@ -221,39 +277,74 @@ public class ImgTransfer
 	void serveImage(final ImgPlus<T> imgP, final int portNo,
 	                final int timeOut, final ProgressCallback log)
 	throws IOException
+	{ serveImage(imgP, portNo, timeOut, log, null); }
+
+	/**
+	 * Serves an image over network to someone who is receiving/pulling it,
+	 * within the bandwidth \e limiter (see setRateLimiter()).
+	 *
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImage(final ImgPlus<T> imgP, final int portNo,
+	                final int timeOut, final ProgressCallback log,
+	                final RateLimiter limiter)
+	throws IOException
+	{ serveImage(imgP, portNo, timeOut, log, limiter, false); }
+
+	/**
+	 * Serves an image over network to someone who is receiving/pulling it,
+	 * within the bandwidth \e limiter (see setRateLimiter()), and listens
+	 * also at the ipcAddress() of the port if \e ipcEndpoint (see setIpcEndpoints()).
+	 *
+	 * Logging/reporting IS supported here whenever \e log != null.
+	 */
+	public static <T extends NativeType<T>>
+	void serveImage(final ImgPlus<T> imgP, final int portNo,
+	                final int timeOut, final ProgressCallback log,
+	                final RateLimiter limiter, final boolean ipcEndpoint)
+	throws IOException
 	{
 		if (log != null) log.info("server started");
 
 		//init the communication side
-		ZMQ.Context zmqContext = ZMQ.context(1);
 		ZMQ.Socket listenerSocket = null;
 		try {
-			listenerSocket = zmqContext.socket(SocketType.PAIR);
+			listenerSocket = createSocket(InprocTransfer.zmqContext);
 			if (listenerSocket == null)
 				throw new Exception("cannot obtain local socket");
 
 			//port to listen for incoming data
-			listenerSocket.bind("tcp://*:" + portNo);
+			bindPort(listenerSocket, portNo, ipcEndpoint);
 
 			//"an entry point" for the input data
 			if (log != null) log.info("server waiting for initial request");
-			byte[] incomingData = waitForIncomingData(listenerSocket, "server", timeOut, log);
+			final TransferStats stats = TransferMetrics.newStats(listeningAddress(portNo), true);
+			byte[] incomingData = waitForIncomingData(listenerSocket, "server", timeOut, false, log);
+			if (stats != null) stats.lap(Phase.CONNECT);
 
 			//if there is no incoming data, we need to close the server
 			if (incomingData == null)
 				throw new RuntimeException("Image not transferred, receiver has not connected yet.");
 
 			//there is some incoming data, check it:
-			if (! new String(incomingData).startsWith("can get"))
+			final String ping = new String(incomingData);
+			if (! ping.startsWith("can get"))
 				throw new RuntimeException("Protocol error, expected initial ping from the receiver.");
 
-			ImgPacker.packAndSend(imgP, listenerSocket, timeOut, log);
+			final Session session = new Session(ping.startsWith(PING_BYREF));
+			session.readAdvertisedTokens(ping);
+			session.rateLimiter = limiter;
+			ImgPacker.packAndSend(imgP, listenerSocket, timeOut, log, session, stats);
 
 			if (log != null) log.info("server finished");
 		}
 		catch (ZMQException e) {
 			throw new IOException("server crashed, ZeroMQ error: " + e.getMessage());
 		}
+		catch (ConnectionBrokenException e) {
+			throw new IOException("server connection broken: " + e.getMessage());
+		}
 		catch (RuntimeException e) {
 			throw new ProtocolException("server protocol error: " + e.getMessage());
 		}
@@ -264,11 +355,9 @@ public class ImgTransfer
 			if (log != null) log.info("server cleaning");
 			if (listenerSocket != null)
 			{
-				listenerSocket.unbind("tcp://*:" + portNo);
-				listenerSocket.close();
+				unbindPort(listenerSocket, portNo);
+				closeSocket(listenerSocket);
 			}
-			//zmqContext.close();
-			//zmqContext.term();
 		}
 	}
 
@@ -302,28 +391,32 @@ public class ImgTransfer
 		ImgPlus<?> imgP = null;
 
 		//init the communication side
-		ZMQ.Context zmqContext = ZMQ.context(1);
 		ZMQ.Socket writerSocket = null;
+		//is the peer living in this JVM?
+		final String inprocAddr = InprocTransfer.sameJvmAddress(addr);
+		final String usedAddr = inprocAddr != null ? inprocAddr : addr;
 		try {
-			writerSocket = zmqContext.socket(SocketType.PAIR);
+			writerSocket = createSocket(InprocTransfer.zmqContext);
 			if (writerSocket == null)
 				throw new Exception("cannot obtain local socket");
 
 			//peer to send data out
-			writerSocket.connect(addr);
+			writerSocket.connect(usedAddr);
 
 			//send the request
 			if (log != null) log.info("receiver initial request sent");
-			writerSocket.send("can get");
+			final TransferStats stats = TransferMetrics.newStats(usedAddr, false);
+			writerSocket.send((inprocAddr != null ? PING_BYREF : "can get") + Session.advertisedTokens());
 
 			//wait for connection to happen...
 			//wait for reply (already with image data)
 			if (log != null) log.info("receiver waiting");
-			byte[] incomingData = waitForIncomingData(writerSocket, "receiver", timeOut, log);
+			byte[] incomingData = waitForIncomingData(writerSocket, "receiver", timeOut, false, log);
+			if (stats != null) stats.lap(Phase.CONNECT);
 
 			//process incoming data if there is some...
 			if (incomingData != null)
-				imgP = ImgPacker.receiveAndUnpack(new String(incomingData), writerSocket, log);
+				imgP = ImgPacker.receiveAndUnpack(incomingData, writerSocket, log, new Session(false), stats);
 			else
 				throw new RuntimeException("Image not transferred, server has not replied yet.");
 
@@ -332,6 +425,9 @@ public class ImgTransfer
 		catch (ZMQException e) {
 			throw new IOException("receiver crashed, ZeroMQ error: " + e.getMessage());
 		}
+		catch (ConnectionBrokenException e) {
+			throw new IOException("receiver connection broken: " + e.getMessage());
+		}
 		catch (RuntimeException e) {
 			throw new ProtocolException("receiver protocol error: " + e.getMessage());
 		}
@@ -342,11 +438,9 @@ public class ImgTransfer
 			if (log != null) log.info("receiver cleaning");
 			if (writerSocket != null)
 			{
-				writerSocket.disconnect(addr);
-				writerSocket.close();
+				writerSocket.disconnect(usedAddr);
+				closeSocket(writerSocket);
 			}
-			//zmqContext.close();
-			//zmqContext.term();
 		}
 
 		return imgP;
@@ -455,10 +549,67 @@ public class ImgTransfer
 	 */
 	private boolean allTransferred = false;
 
+	///how many images have been received so far (when \e transferMode == RECEIVE or REQUEST)
+	private int receivedNumberOfImages = 0;
+
 	///reads the expectedNumberOfImages variable
 	public int getExpectedNumberOfImages()
 	{ return expectedNumberOfImages; }
 
+	/**
+	 * The images of one sequence can be transferred over several connections
+	 * in parallel, every connection transfers then one partition of the sequence:
+	 * the k-th image of the partition \e partitionIndex is the image no.
+	 * k*partitionCount + partitionIndex of the whole sequence. The sender
+	 * announces it in the v0 header, the receiver can read it anytime after
+	 * the first image has arrived, and restore the order of the sequence.
+	 */
+	private int partitionIndex = 0;
+	///the number of partitions, see partitionIndex
+	private int partitionCount = 1;
+
+	///declares that this SEND or SERVE transfer is the \e index-th partition out of \e count ones
+	public void setPartition(final int index, final int count)
+	{
+		if (count < 1 || index < 0 || index >= count)
+			throw new IllegalArgumentException("Invalid partition "+index+" of "+count);
+		partitionIndex = index;
+		partitionCount = count;
+	}
+
+	///reads the partitionIndex variable
+	public int getPartitionIndex()
+	{ return partitionIndex; }
+
+	///reads the partitionCount variable
+	public int getPartitionCount()
+	{ return partitionCount; }
+
+	///returns the "v0 header" that is sent before every image
+	private String v0Header()
+	{
+		return "v0 expect "+expectedNumberOfImages+" images"
+		  + (partitionCount > 1 ? " part "+partitionIndex+" of "+partitionCount : "");
+	}
+
+	///extracts the 'expectedNumberOfImages' and the partition from the v0 header \e msg
+	private void readV0Header(final String msg)
+	{
+		StringTokenizer headerST = new StringTokenizer(msg, " ");
+		headerST.nextToken(); //positions at "v0"
+		if (headerST.nextToken().startsWith("expect"))
+			expectedNumberOfImages = Integer.valueOf(headerST.nextToken());
+
+		//optional "images part <index> of <count>"
+		if (headerST.hasMoreTokens()) headerST.nextToken();
+		if (headerST.countTokens() == 4 && headerST.nextToken().equals("part"))
+		{
+			partitionIndex = Integer.valueOf(headerST.nextToken());
+			headerST.nextToken(); //positions at "of"
+			partitionCount = Integer.valueOf(headerST.nextToken());
+		}
+	}
+
 	///reads inverted value of the allTransferred variable
 	public boolean isThereNextImage()
 	{ return (allTransferred == false); }
@@ -467,15 +618,136 @@ public class ImgTransfer
 	public boolean hasNext()
 	{ return (allTransferred == false); }
 
+	///the backend to store the received images in, -1 for the sender's one (see setReceivingBackend())
+	private int receivingBackend = -1;
+	///the cell size for the CellImg receivingBackend
+	private int[] receivingCellDims = null;
+
+	/**
+	 * Makes the received images to be stored in the given \e backend, that is,
+	 * "ArrayImg", "PlanarImg" or "CellImg" (with the optional \e cellDims),
+	 * regardless of the backend of the sender's images. The voxel data is
+	 * then arranged into the \e backend as it arrives, no extra copy of the
+	 * image is made. The null \e backend restores the default, which is to
+	 * keep the backend of the sender.
+	 *
+	 * This has no effect on images handed over by reference (see InprocTransfer),
+	 * and on the bit-packed voxel types (e.g., BitType).
+	 */
+	public void setReceivingBackend(final String backend, final int... cellDims)
+	{
+		if (backend == null)
+		{
+			receivingBackend = -1;
+			receivingCellDims = null;
+		}
+		else
+		{
+			receivingBackend = BinaryHeader.backendIndex(backend);
+			if (receivingBackend == -1)
+				throw new RuntimeException("Unsupported image backend type: "+backend);
+			receivingCellDims = cellDims != null && cellDims.length > 0 ? cellDims.clone() : null;
+		}
+
+		if (session != null)
+		{
+			session.receivingBackend = receivingBackend;
+			session.receivingCellDims = receivingCellDims;
+		}
+	}
+
+
+	///the Img to store the next received image in (see setReceivingTarget())
+	private Img<?> receivingTarget = null;
+	///the released images to store the received images in (see setImgPool())
+	private ImgPool receivingPool = null;
+
+	/**
+	 * Makes the next received image to be stored in the given \e img, provided it has
+	 * the same voxel type, dimensions and backend (see setReceivingBackend()) as the
+	 * incoming image. Otherwise, a new image is created as usual. The caller can tell
+	 * the two cases apart by testing if the returned ImgPlus wraps the \e img.
+	 * This applies only to the next received image, the null \e img cancels it.
+	 *
+	 * This has no effect on images handed over by reference (see InprocTransfer).
+	 */
+	public void setReceivingTarget(final Img<?> img)
+	{
+		receivingTarget = img;
+		if (session != null) session.receivingTarget = img;
+	}
+
+	/**
+	 * Makes the received images to be stored in the images released into the \e pool
+	 * whenever some fits (see setReceivingTarget()), the null \e pool stops it.
+	 * Streams of the same-shaped images are then received without new allocations,
+	 * provided the consumer releases the images it is done with.
+	 */
+	public void setImgPool(final ImgPool pool)
+	{
+		receivingPool = pool;
+		if (session != null) session.receivingPool = pool;
+	}
+
+
+	///the bandwidth limit of the images sent (see setRateLimiter())
+	private RateLimiter rateLimiter = null;
+
+	/**
+	 * Makes the images sent (or served) by this object to be sent within the
+	 * bandwidth \e limiter (see RateLimiter.forTransfer()), which may be shared
+	 * with other ImgTransfers that transfer the same sequence. The null \e limiter
+	 * removes the limit of this transfer, the limit of the whole process still
+	 * applies (see RateLimiter.setProcessLimit()).
+	 */
+	public void setRateLimiter(final RateLimiter limiter)
+	{
+		rateLimiter = limiter;
+		if (session != null) session.rateLimiter = limiter;
+	}
+
+
+	///should the port be bound also at its ipcAddress() (see setIpcEndpoints())
+	private boolean bindIpcEndpoints = false;
+
+	/**
+	 * Makes this listener (receiver or server) to bind also the ipcAddress()
+	 * of its port, it must be called before the first image is transferred.
+	 * Default is false because ZeroMQ for Java emulates the ipc:// transport
+	 * over the loopback TCP (with the port number derived from the endpoint
+	 * name), it is thus neither faster than tcp:// nor compatible with the
+	 * ipc:// endpoints of the C++ library.
+	 *
+	 * Note that peers in the same JVM talk over inproc:// and peers on the
+	 * same computer pass the voxel data via shared memory anyway.
+	 */
+	public void setIpcEndpoints(final boolean enable)
+	{ bindIpcEndpoints = enable; }
+
+	public boolean getIpcEndpoints()
+	{ return bindIpcEndpoints; }
+
 
-	///holds the ZeroMQ context
-	private ZMQ.Context zmqContext = ZMQ.context(1);
+	///holds the ZeroMQ context, the shared one to allow for inproc:// connections
+	private ZMQ.Context zmqContext = InprocTransfer.zmqContext;
 	///holds, if not null, the opened ZeroMQ socket
-	private ZMQ.Socket zmqSocket = null;
+	///NB: volatile because abort() may be called from another thread
+	private volatile ZMQ.Socket zmqSocket = null;
+	///has abort() been called?
+	private volatile boolean aborted = false;
+
+	///the address actually connected to -- used for SEND, REQUEST
+	private String usedAddr = null;
+	///the state of the connection, e.g., is the peer living in this JVM? (if so, images are handed over by reference)
+	///NB: volatile because packAhead() may be called while another thread is sending
+	private volatile Session session = null;
 
 	///closes the ZeroMQ stuff
 	private void cleanUp()
 	{
+		//TransferMode.CLOSED, do nothing
+		if (transferMode == TransferMode.CLOSED) return;
+
 		if (log != null)
 		{
 			//report properly...
@@ -492,30 +764,63 @@ public class ImgTransfer
 				log.info("receiver cleaning");
 				break;
 			default:
-				//TransferMode.CLOSED, do nothing
-				return;
 			}
 		}
 
-		//this renders the object useless for transferring...
-		transferMode = TransferMode.CLOSED;
-
 		//close whatever remained opened
 		if (zmqSocket != null)
 		{
 			if (transferMode == TransferMode.SEND || transferMode == TransferMode.REQUEST)
-				zmqSocket.disconnect(addr);
+				zmqSocket.disconnect(usedAddr);
 			else
-				zmqSocket.unbind("tcp://*:" + portNo);
-			zmqSocket.close();
+				unbindPort(zmqSocket, portNo);
+			closeSocket(zmqSocket);
+			zmqSocket = null;
 		}
-		if (zmqContext != null)
-		{
-			//zmqContext.close();
-			//zmqContext.term();
+
+		//this renders the object useless for transferring...
+		transferMode = TransferMode.CLOSED;
+	}
+
+	/**
+	 * Converts the voxel data of the \e imgP into the chunks to be sent, as the previous
+	 * image has been sent, to be used later with sendImage() or serveImage(). Returns
+	 * null if it cannot be done (e.g., no image has been sent yet), or if the voxel data
+	 * is larger than \e maxBytes. It may run while the previous image is being sent.
+	 */
+	<T extends NativeType<T>>
+	PackedImage packAhead(final ImgPlus<T> imgP, final long maxBytes)
+	{
+		final Session s = session;
+		if (s == null || transferMode == TransferMode.CLOSED) return null;
+
+		try {
+			return ImgPacker.packAhead(imgP, s, maxBytes);
+		}
+		catch (RuntimeException e) {
+			//the problem will show up (and will be reported) when the image is sent
+			return null;
 		}
 	}
 
+	///closes the connection right away, e.g., when a receiver does not want the remaining images
+	///(senders shall rather use hangUpAndClose() to inform the receiver)
+	public void close()
+	{ cleanUp(); }
+
+	/**
+	 * Makes the transfer that is running in another thread to give up waiting for
+	 * the peer, it then fails with an IOException and closes the connection itself.
+	 * Unlike close(), this is safe to call from any thread. The transfers started
+	 * after this call fail too.
+	 */
+	public void abort()
+	{
+		aborted = true;
+		final ZMQ.Socket s = zmqSocket;
+		if (s != null) ConnectionMonitor.abort(s);
+	}
+
 	///(emergency) clean up...
 	@Override
 	public void finalize()
@@ -528,6 +833,12 @@ public class ImgTransfer
 	public <T extends NativeType<T>>
 	void sendImage(final ImgPlus<T> imgP)
 	throws IOException
+	{ sendImage(imgP, null); }
+
+	///the same as sendImage() with the voxel data possibly \e packed ahead, see packAhead()
+	<T extends NativeType<T>>
+	void sendImage(final ImgPlus<T> imgP, final PackedImage packed)
+	throws IOException
 	{
 		try {
 			if (this.transferMode != TransferMode.SEND)
@@ -539,20 +850,26 @@ public class ImgTransfer
 			if (zmqSocket == null)
 			{
 				//first run
-				zmqSocket = zmqContext.socket(SocketType.PAIR);
+				zmqSocket = createSocket(zmqContext);
 				if (zmqSocket == null)
 					throw new Exception("cannot obtain local socket");
-
-				//peer to send data out
-				zmqSocket.connect(addr);
+				if (aborted) ConnectionMonitor.abort(zmqSocket);
+
+				//peer to send data out, possibly living in this JVM
+				final String inprocAddr = InprocTransfer.sameJvmAddress(addr);
+				session = new Session(inprocAddr != null);
+				session.rateLimiter = rateLimiter;
+				usedAddr = session.byReference ? inprocAddr : addr;
+				zmqSocket.connect(usedAddr);
 			}
 
 			//send always the "hint" before the image
-			if (log != null) log.info("sending header: v0 expect "+expectedNumberOfImages+" images");
-			zmqSocket.send("v0 expect "+expectedNumberOfImages+" images");
+			final TransferStats stats = TransferMetrics.newStats(usedAddr, true);
+			if (log != null) log.info("sending header: "+v0Header());
+			zmqSocket.send(v0Header());
 
 			//send the image
-			ImgPacker.packAndSend(imgP, zmqSocket, timeOut, log);
+			ImgPacker.packAndSend(imgP, zmqSocket, timeOut, log, session, stats, packed);
 
 			if (log != null) log.info("sender finished");
 		}
@@ -560,6 +877,10 @@ public class ImgTransfer
 			cleanUp();
 			throw new IOException("sender crashed, ZeroMQ error: " + e.getMessage());
 		}
+		catch (ConnectionBrokenException e) {
+			cleanUp();
+			throw new IOException("sender connection broken: " + e.getMessage());
+		}
 		catch (RuntimeException e) {
 			cleanUp();
 			throw new ProtocolException("sender protocol error: " + e.getMessage());
@@ -596,6 +917,9 @@ public class ImgTransfer
 		catch (ZMQException e) {
 			throw new IOException("sender crashed, ZeroMQ error: " + e.getMessage());
 		}
+		catch (ConnectionBrokenException e) {
+			throw new IOException("sender connection broken: " + e.getMessage());
+		}
 		catch (RuntimeException e) {
 			throw new ProtocolException("sender protocol error: " + e.getMessage());
 		}
@@ -622,6 +946,7 @@ public class ImgTransfer
 				throw new Exception("this transferrer cannot be used for receiving");
 
 			if (log != null) log.info("receiver started");
+			final TransferStats stats = TransferMetrics.newStats(listeningAddress(portNo), false);
 
 			//input aux byte buffer:
 			byte[] incomingData = null;
@@ -630,16 +955,22 @@ public class ImgTransfer
 			if (zmqSocket == null)
 			{
 				//first run
-				zmqSocket = zmqContext.socket(SocketType.PAIR);
+				zmqSocket = createSocket(zmqContext);
 				if (zmqSocket == null)
 					throw new Exception("cannot obtain local socket");
+				if (aborted) ConnectionMonitor.abort(zmqSocket);
 
 				//port to listen for incoming data
-				zmqSocket.bind("tcp://*:" + portNo);
+				bindPort(zmqSocket, portNo, bindIpcEndpoints);
+				session = new Session(false);
+				session.receivingBackend = receivingBackend;
+				session.receivingCellDims = receivingCellDims;
+				session.receivingTarget = receivingTarget;
+				session.receivingPool = receivingPool;
 
 				//now should read the first "v0 header"
 				if (log != null) log.info("receiver waiting for first v0 header");
-				incomingData = waitForIncomingData(zmqSocket, "receiver", timeOut, log);
+				incomingData = waitForIncomingData(zmqSocket, "receiver", timeOut, false, log);
 
 				//process 'incomingData' and extract 'expectedNumberOfImages'
 				final String msg = incomingData != null ? new String(incomingData) : null;
@@ -648,11 +979,8 @@ public class ImgTransfer
 					if (log != null) log.info("received header: "+msg);
 					if (msg.startsWith("v0"))
 					{
-						//extract 'expectedNumberOfImages'
-						StringTokenizer headerST = new StringTokenizer(msg, " ");
-						headerST.nextToken(); //positions at "v0"
-						if (headerST.nextToken().startsWith("expect"))
-							expectedNumberOfImages = Integer.valueOf(headerST.nextToken());
+						//extract 'expectedNumberOfImages' and the partition
+						readV0Header(msg);
 					}
 					else
 						throw new RuntimeException("Protocol error, expected initial v0 header from the sender.");
@@ -660,20 +988,32 @@ public class ImgTransfer
 				else
 					//msg == null
 					throw new RuntimeException("Image not transferred, sender has not connected yet.");
+				if (stats != null) stats.lap(Phase.CONNECT);
 			}
 
 			//wait again for the proper image input data
-			incomingData = waitForIncomingData(zmqSocket, "receiver", timeOut, log);
+			incomingData = waitForIncomingData(zmqSocket, "receiver", timeOut, true, log);
 
 			//process incoming data if there is some...
 			if (incomingData != null) {
-				imgP = ImgPacker.receiveAndUnpack(new String(incomingData), zmqSocket, log);
+				imgP = ImgPacker.receiveAndUnpack(incomingData, zmqSocket, log, session, stats);
 				//NB: this guy returns the ImgPlus that we desire...
+				++receivedNumberOfImages;
 
 				//wait for the next "v0 header" to see if there is more images coming
 				//NB: this next header signifies there is a new image already being sent out
 				if (log != null) log.info("receiver waiting for next v0 header");
-				incomingData = waitForIncomingData(zmqSocket, "receiver", timeOut, log);
+				try {
+					incomingData = waitForIncomingData(zmqSocket, "receiver", timeOut, true, log);
+				}
+				catch (ConnectionBrokenException e) {
+					//if this was the last expected image, the sender has possibly exited before
+					//its hangup got delivered, so it is considered as the hangup (just like the
+					//timeout below), otherwise some images are missing and it is reported
+					if (receivedNumberOfImages != expectedNumberOfImages) throw e;
+					if (log != null) log.info("receiver lost the sender: " + e.getMessage());
+					incomingData = null;
+				}
 
 				if (log != null && incomingData != null)
 					log.info("received header: "+new String(incomingData));
@@ -699,6 +1039,10 @@ public class ImgTransfer
 			cleanUp();
 			throw new IOException("receiver crashed, ZeroMQ error: " + e.getMessage());
 		}
+		catch (ConnectionBrokenException e) {
+			cleanUp();
+			throw new IOException("receiver connection broken: " + e.getMessage());
+		}
 		catch (RuntimeException e) {
 			cleanUp();
 			throw new ProtocolException("receiver protocol error: " + e.getMessage());
@@ -718,43 +1062,56 @@ public class ImgTransfer
 	public <T extends NativeType<T>>
 	void serveImage(final ImgPlus<T> imgP)
 	throws IOException
+	{ serveImage(imgP, null); }
+
+	///the same as serveImage() with the voxel data possibly \e packed ahead, see packAhead()
+	<T extends NativeType<T>>
+	void serveImage(final ImgPlus<T> imgP, final PackedImage packed)
+	throws IOException
 	{
 		try {
 			if (this.transferMode != TransferMode.SERVE)
 				throw new Exception("this transferrer cannot be used for serving");
 
 			if (log != null) log.info("server started");
+			final TransferStats stats = TransferMetrics.newStats(listeningAddress(portNo), true);
 
 			//socket already obtained? aka first run?
 			if (zmqSocket == null)
 			{
 				//first run
-				zmqSocket = zmqContext.socket(SocketType.PAIR);
+				zmqSocket = createSocket(zmqContext);
 				if (zmqSocket == null)
 					throw new Exception("cannot obtain local socket");
+				if (aborted) ConnectionMonitor.abort(zmqSocket);
 
 				//port to listen for incoming data
-				zmqSocket.bind("tcp://*:" + portNo);
+				bindPort(zmqSocket, portNo, bindIpcEndpoints);
 
 				//wait for the ping from the requester
 				if (log != null) log.info("server waiting for initial request");
-				byte[] incomingData = waitForIncomingData(zmqSocket, "server", timeOut, log);
+				byte[] incomingData = waitForIncomingData(zmqSocket, "server", timeOut, false, log);
 
 				//if there is no incoming data, we need to close the server
 				if (incomingData == null)
 					throw new RuntimeException("Image not transferred, receiver has not connected yet.");
 
 				//there is some incoming data, check it:
-				if (! new String(incomingData).startsWith("can get"))
+				final String ping = new String(incomingData);
+				if (! ping.startsWith("can get"))
 					throw new RuntimeException("Protocol error, expected initial ping from the receiver.");
+				session = new Session(ping.startsWith(PING_BYREF));
+				session.readAdvertisedTokens(ping);
+				session.rateLimiter = rateLimiter;
+				if (stats != null) stats.lap(Phase.CONNECT);
 			}
 
 			//send always the "hint" before the image
-			if (log != null) log.info("sending header: v0 expect "+expectedNumberOfImages+" images");
-			zmqSocket.send("v0 expect "+expectedNumberOfImages+" images");
+			if (log != null) log.info("sending header: "+v0Header());
+			zmqSocket.send(v0Header());
 
 			//send the image
-			ImgPacker.packAndSend(imgP, zmqSocket, timeOut, log);
+			ImgPacker.packAndSend(imgP, zmqSocket, timeOut, log, session, stats, packed);
 
 			if (log != null) log.info("server finished");
 		}
@@ -762,6 +1119,10 @@ public class ImgTransfer
 			cleanUp();
 			throw new IOException("server crashed, ZeroMQ error: " + e.getMessage());
 		}
+		catch (ConnectionBrokenException e) {
+			cleanUp();
+			throw new IOException("server connection broken: " + e.getMessage());
+		}
 		catch (RuntimeException e) {
 			cleanUp();
 			throw new ProtocolException("server protocol error: " + e.getMessage());
@@ -787,6 +1148,7 @@ public class ImgTransfer
 				throw new Exception("this transferrer cannot be used for requesting");
 
 			if (log != null) log.info("receiver started");
+			final TransferStats stats = TransferMetrics.newStats(addr, false);
 
 			//input aux byte buffer:
 			byte[] incomingData = null;
@@ -795,20 +1157,28 @@ public class ImgTransfer
 			if (zmqSocket == null)
 			{
 				//first run
-				zmqSocket = zmqContext.socket(SocketType.PAIR);
+				zmqSocket = createSocket(zmqContext);
 				if (zmqSocket == null)
 					throw new Exception("cannot obtain local socket");
-
-				//peer to send data out
-				zmqSocket.connect(addr);
+				if (aborted) ConnectionMonitor.abort(zmqSocket);
+
+				//peer to send data out, possibly living in this JVM
+				final String inprocAddr = InprocTransfer.sameJvmAddress(addr);
+				session = new Session(inprocAddr != null);
+				session.receivingBackend = receivingBackend;
+				session.receivingCellDims = receivingCellDims;
+				session.receivingTarget = receivingTarget;
+				session.receivingPool = receivingPool;
+				usedAddr = session.byReference ? inprocAddr : addr;
+				zmqSocket.connect(usedAddr);
 
 				//very first thing: send the ping to the server
 				if (log != null) log.info("receiver initial request sent");
-				zmqSocket.send("can get");
+				zmqSocket.send((session.byReference ? PING_BYREF : "can get") + Session.advertisedTokens());
 
 				//now should read the first "v0 header"
 				if (log != null) log.info("receiver waiting for first v0 header");
-				incomingData = waitForIncomingData(zmqSocket, "receiver", timeOut, log);
+				incomingData = waitForIncomingData(zmqSocket, "receiver", timeOut, false, log);
 
 				//process 'incomingData' and extract 'expectedNumberOfImages'
 				final String msg = incomingData != null ? new String(incomingData) : null;
@@ -817,11 +1187,8 @@ public class ImgTransfer
 					if (log != null) log.info("received header: "+msg);
 					if (msg.startsWith("v0"))
 					{
-						//extract 'expectedNumberOfImages'
-						StringTokenizer headerST = new StringTokenizer(msg, " ");
-						headerST.nextToken(); //positions at "v0"
-						if (headerST.nextToken().startsWith("expect"))
-							expectedNumberOfImages = Integer.valueOf(headerST.nextToken());
+						//extract 'expectedNumberOfImages' and the partition
+						readV0Header(msg);
 					}
 					else
 						throw new RuntimeException("Protocol error, expected initial v0 header from the sender.");
@@ -829,20 +1196,32 @@ public class ImgTransfer
 				else
 					//msg == null
 					throw new RuntimeException("Image not transferred, server has not replied yet.");
+				if (stats != null) stats.lap(Phase.CONNECT);
 			}
 
 			//wait again for the proper image input data
-			incomingData = waitForIncomingData(zmqSocket, "receiver", timeOut, log);
+			incomingData = waitForIncomingData(zmqSocket, "receiver", timeOut, true, log);
 
 			//process incoming data if there is some...
 			if (incomingData != null) {
-				imgP = ImgPacker.receiveAndUnpack(new String(incomingData), zmqSocket, log);
+				imgP = ImgPacker.receiveAndUnpack(incomingData, zmqSocket, log, session, stats);
 				//NB: this guy returns the ImgPlus that we desire...
+				++receivedNumberOfImages;
 
 				//wait for the next "v0 header" to see if there is more images coming
 				//NB: this next header signifies there is a new image already being sent out
 				if (log != null) log.info("receiver waiting for next v0 header");
-				incomingData = waitForIncomingData(zmqSocket, "receiver", timeOut, log);
+				try {
+					incomingData = waitForIncomingData(zmqSocket, "receiver", timeOut, true, log);
+				}
+				catch (ConnectionBrokenException e) {
+					//if this was the last expected image, the sender has possibly exited before
+					//its hangup got delivered, so it is considered as the hangup (just like the
+					//timeout below), otherwise some images are missing and it is reported
+					if (receivedNumberOfImages != expectedNumberOfImages) throw e;
+					if (log != null) log.info("receiver lost the sender: " + e.getMessage());
+					incomingData = null;
+				}
 
 				if (log != null && incomingData != null)
 					log.info("received header: "+new String(incomingData));
@@ -868,6 +1247,10 @@ public class ImgTransfer
 			cleanUp();
 			throw new IOException("receiver crashed, ZeroMQ error: " + e.getMessage());
 		}
+		catch (ConnectionBrokenException e) {
+			cleanUp();
+			throw new IOException("receiver connection broken: " + e.getMessage());
+		}
 		catch (RuntimeException e) {
 			cleanUp();
 			throw new ProtocolException("receiver protocol error: " + e.getMessage());
@@ -881,36 +1264,218 @@ public class ImgTransfer
 	}
 
 
+// ------------------ capturing of the traffic ------------------
+
+	///the log into which all traffic is recorded, if not null
+	private static CaptureLog captureLog = null;
+
+	/**
+	 * Starts recording of every frame that is sent or received by any transfer
+	 * (static or non-static one) that opens its socket after this call. The frames
+	 * are recorded, together with their timing, into the binary log \e fileName.
+	 * Use the capture.ReplayTransfer to replay such log later.
+	 *
+	 * Any previous capturing is stopped.
+	 */
+	public static synchronized
+	void startCapture(final String fileName)
+	throws IOException
+	{
+		stopCapture();
+		captureLog = new CaptureLog(fileName);
+	}
+
+	///stops the recording, and closes the log
+	public static synchronized
+	void stopCapture()
+	throws IOException
+	{
+		if (captureLog != null)
+		{
+			captureLog.finish();
+			captureLog = null;
+		}
+	}
+
+	///returns a new PAIR socket, a recording one if the capture mode is on,
+	///that is watched by the ConnectionMonitor
+	static synchronized
+	ZMQ.Socket createSocket(final ZMQ.Context zmqContext)
+	{
+		final ZMQ.Socket socket = captureLog != null
+			? new CapturingSocket(zmqContext, SocketType.PAIR, captureLog)
+			: zmqContext.socket(SocketType.PAIR);
+		ConnectionMonitor.attach(zmqContext, socket);
+		return socket;
+	}
+
+	///closes the socket obtained from createSocket()
+	static
+	void closeSocket(final ZMQ.Socket socket)
+	{
+		ConnectionMonitor.detach(socket);
+		socket.close();
+	}
+
+	/**
+	 * Sets the period of the heartbeats exchanged with the peer, and
+	 * after how long silence of the peer is the connection considered
+	 * broken, both in milliseconds. The heartbeats are off by default (0),
+	 * switch them on (e.g., 250 and 1000) only if the peer supports them
+	 * (libzmq 4.2 or newer, jeromq 0.4.1 or newer).
+	 * Applies to the transfers started after this call.
+	 */
+	public static
+	void setHeartbeat(final int intervalMillis, final int timeoutMillis)
+	{ ConnectionMonitor.setHeartbeat(intervalMillis, timeoutMillis); }
+
+
+// ------------------ addressing ------------------
+
+	/**
+	 * Returns the \e addr if it is already a full ZeroMQ endpoint (that is,
+	 * it contains the transport prefix such as tcp:// or ipc://), otherwise
+	 * returns it prefixed with tcp:// -- so that users can enter just host:port.
+	 */
+	public static
+	String expandAddress(final String addr)
+	{
+		return addr.contains("://") ? addr : "tcp://" + addr;
+	}
+
+	/**
+	 * Returns the address of the \e index-th of the parallel connections
+	 * (see setPartition()) that start at the \e addr, that is, the port number
+	 * (or the number that ends the ipc:// endpoint, see ipcAddress()) of
+	 * the \e addr is increased by the \e index.
+	 */
+	public static
+	String shiftAddress(final String addr, final int index)
+	{
+		if (index == 0) return addr;
+
+		int pos = addr.length();
+		while (pos > 0 && Character.isDigit(addr.charAt(pos-1))) --pos;
+		if (pos == addr.length())
+			throw new IllegalArgumentException("The address "+addr+" does not end with a port number.");
+
+		return addr.substring(0,pos) + (Integer.parseInt(addr.substring(pos)) + index);
+	}
+
+	/**
+	 * Returns the ipc:// endpoint on which the listeners of this computer
+	 * are reachable (in addition to their tcp:// port) if setIpcEndpoints(true).
+	 */
+	public static
+	String ipcAddress(final int portNo)
+	{
+		return "ipc://" + Paths.get(System.getProperty("java.io.tmpdir"), "imgtransfer-" + portNo);
+	}
+
+
 // ------------------ helper functions ------------------
 
+	///the initial ping of the requester that can accept images by reference
+	private static final String PING_BYREF = "can get byref";
+
+	///the TCP endpoint the listeners bind, also the name of the listener in the TransferStats
+	private static
+	String listeningAddress(final int portNo)
+	{ return "tcp://*:" + portNo; }
+
+	/**
+	 * Binds the socket to listen on the given port, and to listen also on the
+	 * inproc:// endpoint that is used by the peers living in this JVM, and
+	 * also on the ipc:// endpoint if \e ipcEndpoint (see setIpcEndpoints()).
+	 */
+	private static
+	void bindPort(final ZMQ.Socket socket, final int portNo, final boolean ipcEndpoint)
+	{
+		bindRetrying(socket, listeningAddress(portNo));
+		bindRetrying(socket, InprocTransfer.inprocAddress(portNo));
+		InprocTransfer.registerPort(portNo);
+
+		if (ipcEndpoint)
+			bindRetrying(socket, ipcAddress(portNo));
+	}
+
+	/**
+	 * Sockets of the shared context are closed asynchronously, the address
+	 * of a just-closed listener may thus be still occupied for a short while.
+	 */
+	private static
+	void bindRetrying(final ZMQ.Socket socket, final String addr)
+	{
+		int attemptsLeft = 50;
+		while (true)
+		{
+			try {
+				socket.bind(addr);
+				return;
+			}
+			catch (ZMQException e) {
+				if (e.getErrorCode() != ZMQ.Error.EADDRINUSE.getCode() || --attemptsLeft == 0)
+					throw e;
+			}
+			try {
+				Thread.sleep(20);
+			}
+			catch (InterruptedException e) {
+				throw new RuntimeException("interrupted while waiting for " + addr);
+			}
+		}
+	}
+
+	///the counterpart to the bindPort()
+	private static
+	void unbindPort(final ZMQ.Socket socket, final int portNo)
+	{
+		InprocTransfer.unregisterPort(portNo);
+		socket.unbind(InprocTransfer.inprocAddress(portNo));
+		socket.unbind(listeningAddress(portNo));
+		//NB: does nothing if it was not bound
+		socket.unbind(ipcAddress(portNo));
+	}
+
 	/**
 	 * This is an internal helper function to poll socket for incoming data,
 	 * it reports progress of the polling too.
 	 *
+	 * If the peer is \e connected already, the connection is also watched and
+	 * ConnectionBrokenException is thrown as soon as the peer is found gone.
+	 *
 	 * Returns null if no data has arrived during the \e timeOut interval,
 	 * otherwise returns the data itself.
 	 */
 	private static byte[] waitForIncomingData(final ZMQ.Socket socket,
-		final String waiter, final int timeOut, final ProgressCallback log)
+		final String waiter, final int timeOut, final boolean connected,
+		final ProgressCallback log)
 	throws InterruptedException
 	{
 		//"an entry point" for the input data
-		byte[] incomingData = null;
+		byte[] incomingData = socket.recv(ZMQ.NOBLOCK);
 
 		//"busy wait" up to the given period of time
-		int timeAlreadyWaited = 0;
-		while (timeAlreadyWaited < timeOut && incomingData == null)
+		final long startTime = System.nanoTime();
+		int reportedSeconds = 0;
+		while (incomingData == null)
 		{
-			if (timeAlreadyWaited % 10 == 0 && timeAlreadyWaited > 0)
-				if (log != null) log.info(waiter+" waiting already " + timeAlreadyWaited + " seconds");
+			if (connected) ConnectionMonitor.checkConnection(socket);
+			else ConnectionMonitor.checkAborted(socket);
 
-			//check if there is some data from a sender
-			incomingData = socket.recv(ZMQ.NOBLOCK);
+			final int timeAlreadyWaited = (int)((System.nanoTime() - startTime) / 1000000000L);
+			if (timeAlreadyWaited >= timeOut) break;
+			if (timeAlreadyWaited >= reportedSeconds + 10)
+			{
+				reportedSeconds = timeAlreadyWaited - timeAlreadyWaited % 10;
+				if (log != null) log.info(waiter+" waiting already " + reportedSeconds + " seconds");
+			}
 
 			//if nothing found, wait a while before another checking attempt
-			if (incomingData == null) Thread.sleep(1000);
+			Thread.sleep(ArrayPacker.POLLING_PERIOD);
 
-			++timeAlreadyWaited;
+			//check if there is some data from a sender
+			incomingData = socket.recv(ZMQ.NOBLOCK);
 		}
 
 		return incomingData;
@@ -0,0 +1,173 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import net.imagej.ImgPlus;
+
+import org.zeromq.ZMQ;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Support for the transfers between two peers living in the same JVM.
+ *
+ * Every ImgTransfer that listens on some port (RECEIVE and SERVE modes) binds
+ * also an inproc:// endpoint and registers the port here. When the other peer
+ * (SEND and REQUEST modes) is given an address of this host with such port, it
+ * connects to the inproc:// endpoint instead, and the images are then handed
+ * over by reference -- the protocol messages (headers, hints, hangup, ready/done
+ * confirmations) are still exchanged, only the metadata and voxel data are not.
+ *
+ * The received image is therefore the very same object as the sent one, which
+ * the receiver should not modify unless setCopyOnReceive(true) was called.
+ */
+public class InprocTransfer
+{
+	///the context shared by all sockets of this JVM, inproc:// works only within one context
+	static final ZMQ.Context zmqContext = ZMQ.context(1);
+
+	///ports on which some ImgTransfer of this JVM is currently listening
+	private static final Set<Integer> boundPorts = ConcurrentHashMap.newKeySet();
+
+	static
+	String inprocAddress(final int portNo)
+	{ return "inproc://imgtransfer-"+portNo; }
+
+	static
+	void registerPort(final int portNo)
+	{ boundPorts.add(portNo); }
+
+	static
+	void unregisterPort(final int portNo)
+	{ boundPorts.remove(portNo); }
+
+	/**
+	 * Returns the inproc:// address that leads to the same peer as the \e addr,
+	 * provided the peer lives in this JVM, or null otherwise. The \e addr is
+	 * expected in the form tcp://host:port, ipc://path or inproc://something,
+	 * the latter is returned untouched.
+	 */
+	static
+	String sameJvmAddress(final String addr)
+	{
+		if (addr.startsWith("inproc://")) return addr;
+		if (addr.startsWith("ipc://"))
+		{
+			for (int portNo : boundPorts)
+				if (ImgTransfer.ipcAddress(portNo).equals(addr)) return inprocAddress(portNo);
+			return null;
+		}
+		if (!addr.startsWith("tcp://")) return null;
+
+		final int colonPos = addr.lastIndexOf(':');
+		if (colonPos < "tcp://".length()) return null;
+
+		final int portNo;
+		try {
+			portNo = Integer.parseInt(addr.substring(colonPos+1));
+		}
+		catch (NumberFormatException e) {
+			return null;
+		}
+		if (!boundPorts.contains(portNo)) return null;
+
+		//the port is ours, is also the host ours?
+		return isLocalHost(addr.substring("tcp://".length(), colonPos)) ? inprocAddress(portNo) : null;
+	}
+
+	/**
+	 * Returns true if the \e host name or IP address denotes this computer at an
+	 * address that our listeners bind, that is, if connecting to the \e host
+	 * surely reaches our listener and not some other process at the same port.
+	 *
+	 * The listeners bind the IPv4 wildcard address (see ImgTransfer.bindPort()),
+	 * and ZeroMQ connects to the first IPv4 address of the \e host. The IPv6
+	 * addresses are therefore not ours even if they are local: some other
+	 * process may listen at, e.g., [::1] with the same port.
+	 */
+	static
+	boolean isLocalHost(final String host)
+	{
+		//NB: the IPv6 literals come in the brackets
+		final String name = host.startsWith("[") && host.endsWith("]") ?
+		  host.substring(1, host.length()-1) : host;
+
+		try {
+			for (InetAddress a : InetAddress.getAllByName(name))
+				if (a instanceof Inet4Address)
+					return a.isAnyLocalAddress() || a.isLoopbackAddress()
+					    || NetworkInterface.getByInetAddress(a) != null;
+			return false;
+		}
+		catch (UnknownHostException | SocketException e) {
+			return false;
+		}
+	}
+
+
+	// -------- the handing over of the images --------
+	///images that are being handed over, and are not yet picked by their receivers
+	private static final ConcurrentHashMap<Long,ImgPlus<?>> images = new ConcurrentHashMap<>();
+	private static final AtomicLong lastTicket = new AtomicLong(0);
+
+	///stores the image and returns the ticket under which the receiver can pick it up
+	static
+	long deposit(final ImgPlus<?> imgP)
+	{
+		final long ticket = lastTicket.incrementAndGet();
+		images.put(ticket, imgP);
+		return ticket;
+	}
+
+	///returns the deposited image (once), or null if there is no such
+	static
+	ImgPlus<?> withdraw(final long ticket)
+	{ return images.remove(ticket); }
+
+
+	///should the receivers get their own copy of the handed over images?
+	private static boolean copyOnReceive = false;
+
+	/**
+	 * If set, the receiver gets a (deep) copy of the sent image instead
+	 * of the sent image itself. Default is false, no copying happens.
+	 */
+	public static
+	void setCopyOnReceive(final boolean copy)
+	{ copyOnReceive = copy; }
+
+	public static
+	boolean getCopyOnReceive()
+	{ return copyOnReceive; }
+}
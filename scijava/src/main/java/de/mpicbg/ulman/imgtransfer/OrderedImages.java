@@ -0,0 +1,166 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import net.imagej.ImgPlus;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Collects the images received over several parallel connections (by several
+ * producer threads), and hands them over in their original order, see
+ * ImgTransfer.setPartition(). The images that arrive ahead of their turn
+ * are kept here until all images before them have been taken.
+ *
+ * At most \e capacity images are kept here, a producer that is ahead of the
+ * others waits in put() until the consumer has taken enough images, only the
+ * image that is next in turn is always accepted. A lagging connection thus
+ * slows the others down instead of filling the memory with their images.
+ */
+public class OrderedImages
+{
+	///the images that arrived but have not been taken yet, by their positions
+	private final TreeMap<Integer,ImgPlus<?>> waiting = new TreeMap<>();
+
+	///the positions of the images whose producers wait in put() for a free room
+	private final TreeSet<Integer> blockedPuts = new TreeSet<>();
+
+	///how many images may be kept in this.waiting
+	private final int capacity;
+
+	///the position of the image to be taken next
+	private int nextPosition = 0;
+
+	///how many producers may still put() some images
+	private int runningProducers;
+
+	///whether the consumer has given up taking the images, see close()
+	private boolean closed = false;
+
+	///keeps any number of images
+	public OrderedImages(final int producers)
+	{ this(producers, Integer.MAX_VALUE); }
+
+	///keeps at most \e capacity images
+	public OrderedImages(final int producers, final int capacity)
+	{
+		runningProducers = producers;
+		this.capacity = capacity > 0 ? capacity : 1;
+	}
+
+	/**
+	 * Returns the position of the \e k-th image received by the \e receiver,
+	 * the \e receiver must have received at least one image already.
+	 */
+	public static
+	int position(final ImgTransfer receiver, final int k)
+	{ return k*receiver.getPartitionCount() + receiver.getPartitionIndex(); }
+
+	/**
+	 * Stores the \e img that is at the \e position of the original sequence,
+	 * waits while this object is full unless the \e img is next in turn.
+	 * The \e img is dropped if this object has been close()-d.
+	 */
+	public synchronized
+	void put(final int position, final ImgPlus<?> img)
+	throws InterruptedException
+	{
+		if (!closed && waiting.size() >= capacity && position != nextPosition)
+		{
+			blockedPuts.add(position);
+			//NB: the consumer may need to learn that all producers are waiting, see takeNext()
+			notifyAll();
+			try {
+				while (!closed && waiting.size() >= capacity && position != nextPosition)
+					wait();
+			}
+			finally {
+				blockedPuts.remove(position);
+			}
+		}
+		if (closed) return;
+
+		waiting.put(position, img);
+		notifyAll();
+	}
+
+	///to be called by every producer when it won't put() anything anymore
+	public synchronized
+	void producerFinished()
+	{
+		--runningProducers;
+		notifyAll();
+	}
+
+	/**
+	 * Returns the next image of the original sequence, waits for it if necessary.
+	 * Returns null when all images have been taken and no producer is running.
+	 * If a producer has finished prematurely (e.g., its connection has failed),
+	 * its missing images are skipped.
+	 */
+	public synchronized
+	ImgPlus<?> takeNext()
+	throws InterruptedException
+	{
+		while (!waiting.containsKey(nextPosition))
+		{
+			//all running producers wait for a free room, the next image must be
+			//then of a finished producer and will never come, it is skipped
+			if (runningProducers <= blockedPuts.size() && !blockedPuts.contains(nextPosition))
+			{
+				if (waiting.isEmpty() && blockedPuts.isEmpty()) return null;
+
+				//NB: the running producers put their images in the increasing order,
+				//    and so none of them can put an image before the blocked ones
+				if (blockedPuts.isEmpty()) nextPosition = waiting.firstKey();
+				else if (waiting.isEmpty()) nextPosition = blockedPuts.first();
+				else nextPosition = Math.min(waiting.firstKey(), blockedPuts.first());
+				notifyAll();
+				continue;
+			}
+			wait();
+		}
+
+		final ImgPlus<?> img = waiting.remove(nextPosition++);
+		notifyAll();
+		return img;
+	}
+
+	/**
+	 * To be called by the consumer when it won't takeNext() anything anymore,
+	 * e.g. when it fails. The kept images are dropped, and so are all images
+	 * put() from now on, and the producers waiting in put() are released.
+	 */
+	public synchronized
+	void close()
+	{
+		closed = true;
+		waiting.clear();
+		notifyAll();
+	}
+}
@@ -0,0 +1,103 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import de.mpicbg.ulman.imgtransfer.buffers.Buffer;
+import de.mpicbg.ulman.imgtransfer.buffers.ParallelConverter;
+import de.mpicbg.ulman.imgtransfer.sockets.Socket;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Queue;
+
+/**
+ * The voxel data of one image already converted into the chunks to be sent over the
+ * socket, and its PlaneCache keys, see ImgPacker.packAhead(). The PipelinedSender
+ * prepares it while the previous image is being sent, the sending then only pushes
+ * the chunks to the socket.
+ *
+ * It is made according to what the peer has told about itself when the previous
+ * image was sent. If the peer replies differently for this image (e.g., it takes
+ * the shared memory), the chunks are not used.
+ */
+class PackedImage
+{
+	///the PlaneCache keys of the image, or null if not computed
+	final String planeKeys;
+
+	///the chunks of the storage arrays of the image, in the order they are to be sent
+	private final Map<Object,Queue<ByteBuffer>> chunks = new IdentityHashMap<>();
+
+	PackedImage(final String _planeKeys)
+	{
+		planeKeys = _planeKeys;
+	}
+
+	///converts the storage \e array into the chunks
+	void pack(final Object array)
+	{
+		final Buffer buffer = ArrayPacker.createBuffer(array);
+		final Queue<ByteBuffer> arrayChunks = new ArrayDeque<>();
+
+		final ArrayPacker packer = new ArrayPacker(buffer, new Packer(buffer, arrayChunks));
+		packer.transmitArray(array, false);
+		chunks.put(array, arrayChunks);
+	}
+
+	///returns (and forgets) the chunks of the storage \e array, or null if it has not been packed
+	Queue<ByteBuffer> takeChunks(final Object array)
+	{ return chunks.remove(array); }
+
+	/**
+	 * Stores the chunks, with the spare leading byte for the codec,
+	 * exactly as the SendToSocket would have made them.
+	 */
+	static class Packer implements Socket
+	{
+		final Buffer sender;
+		final Queue<ByteBuffer> chunks;
+
+		Packer(final Buffer _sender, final Queue<ByteBuffer> _chunks)
+		{
+			sender = _sender;
+			chunks = _chunks;
+		}
+
+		@Override
+		public
+		void transmit(final Object array, int offset, int length, final int sendOnlyFlags)
+		{
+			final ByteBuffer buf = ByteBuffer.allocateDirect(sender.getElemSize()*length + 1);
+			buf.position(1);
+			ParallelConverter.send(sender, buf, array, offset, length);
+			chunks.add(buf);
+		}
+	}
+}
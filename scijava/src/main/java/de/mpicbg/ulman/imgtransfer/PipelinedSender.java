@@ -0,0 +1,192 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.NativeType;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sends, or serves, the images of one ImgTransfer in a background thread while
+ * the next image is being prepared: its voxel data is converted into the chunks
+ * (and its PlaneCache keys are computed) by the caller of send() meanwhile.
+ * The CPU cost of the conversion thus hides behind the network transfer.
+ *
+ * At most one image is being sent and one is packed ahead, the voxel data
+ * larger than \e maxPackedBytes is not packed ahead (but sent as usual).
+ * The images must not be changed once they are given to send().
+ *
+ * Use it in place of the ImgTransfer's sendImage() (or serveImage()) loop:
+ *
+ * PipelinedSender s = new PipelinedSender(new ImgTransfer(addr,N,timeout,log), false, 1L<<30);
+ * for (ImgPlus<?> img : images) s.send(img, progress::imageFinished);
+ * s.hangUpAndClose();
+ *
+ * Since send() returns before the image is sent, the progress of the whole
+ * transfer shall be updated from the \e whenSent callback of send().
+ *
+ * If the loop fails, close() shall be called (e.g., from a 'finally' block)
+ * to stop the sending thread and to close the underlying transfer:
+ *
+ * try { for (...) s.send(img); s.hangUpAndClose(); }
+ * finally { s.close(); }
+ */
+public class PipelinedSender
+{
+	///the underlying transfer
+	private final ImgTransfer sender;
+	///should the images be served (or sent)?
+	private final boolean serving;
+	///how large voxel data can be packed ahead
+	private final long maxPackedBytes;
+
+	///the background thread that does the sending
+	private final ExecutorService sendingThread = Executors.newSingleThreadExecutor(r -> {
+		final Thread t = new Thread(r, "ImgTransfer sender");
+		t.setDaemon(true);
+		return t;
+	});
+	///the image being sent, null if none
+	private Future<?> sending = null;
+
+	public PipelinedSender(final ImgTransfer _sender, final boolean _serving, final long _maxPackedBytes)
+	{
+		sender = _sender;
+		serving = _serving;
+		maxPackedBytes = _maxPackedBytes;
+	}
+
+	///returns the underlying transfer
+	public ImgTransfer getSender()
+	{ return sender; }
+
+	/**
+	 * Packs the \e imgP and hands it over for sending once the previous image is sent,
+	 * returns without waiting for its sending. An error of the sending of the previous
+	 * image is reported here, an error of the last image in hangUpAndClose().
+	 */
+	public <T extends NativeType<T>>
+	void send(final ImgPlus<T> imgP)
+	throws IOException
+	{ send(imgP, null); }
+
+	/**
+	 * The same as send() above, and \e whenSent (if not null) is run in the sending
+	 * thread once the \e imgP has been sent (and its receiver has confirmed it).
+	 */
+	public <T extends NativeType<T>>
+	void send(final ImgPlus<T> imgP, final Runnable whenSent)
+	throws IOException
+	{
+		//pack this image while the previous one is still being sent
+		final PackedImage packed = sender.packAhead(imgP, maxPackedBytes);
+
+		waitForSending();
+		sending = sendingThread.submit(() -> {
+			if (serving) sender.serveImage(imgP, packed);
+			else         sender.sendImage(imgP, packed);
+			if (whenSent != null) whenSent.run();
+			return null;
+		});
+	}
+
+	///waits until all images are sent, and then hangs up
+	public
+	void hangUpAndClose()
+	throws IOException
+	{
+		try {
+			waitForSending();
+			sender.hangUpAndClose();
+		}
+		finally {
+			sendingThread.shutdown();
+		}
+	}
+
+	/**
+	 * Stops the sending without hanging up, e.g., after a failure: the image being
+	 * sent is abandoned (see ImgTransfer.abort()), the sending thread is waited for,
+	 * and the underlying transfer is closed (its port is thus free again). It does
+	 * nothing after hangUpAndClose(). To be called from the thread that calls send().
+	 */
+	public
+	void close()
+	{
+		sender.abort();
+		sendingThread.shutdown();
+
+		//NB: the transfer must not be closed while the sending thread may still use it
+		boolean interrupted = false;
+		while (!sendingThread.isTerminated())
+		{
+			try {
+				sendingThread.awaitTermination(1, TimeUnit.SECONDS);
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		sending = null;
+		sender.close();
+
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	///waits until the image being sent is sent, rethrows its failure
+	private
+	void waitForSending()
+	throws IOException
+	{
+		if (sending == null) return;
+
+		try {
+			sending.get();
+		}
+		catch (ExecutionException e) {
+			sendingThread.shutdown();
+			if (e.getCause() instanceof IOException) throw (IOException)e.getCause();
+			throw new IOException("sender error: " + e.getCause().getMessage());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			sending.cancel(true);
+			sendingThread.shutdown();
+			throw new IOException("interrupted while sending");
+		}
+		finally {
+			sending = null;
+		}
+	}
+}
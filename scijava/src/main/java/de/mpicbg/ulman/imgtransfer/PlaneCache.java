@@ -0,0 +1,227 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import de.mpicbg.ulman.imgtransfer.buffers.Buffer;
+
+/**
+ * The receiver's bounded, content-addressed cache of the planes of the
+ * received PlanarImgs, with which the planes that the receiver already
+ * has need not be sent again (e.g., a reference channel, unchanged z-slices).
+ *
+ * It works as follows (on v2 connections only):
+ * - the receiver with the cache enabled (see setCapacity()) advertises
+ *   the token Session.CAN_PLANE_CACHE,
+ * - the sender of a PlanarImg then adds the keys (see key()) of all its
+ *   planes into the BinaryHeader (as the metadata BinaryHeader.PLANEKEYS),
+ * - the receiver fills the planes that it finds in this cache right away,
+ *   and tells the sender which ones in its "ready" reply, e.g. "ready v2 have:0,3",
+ * - the sender then sends only the other planes, and the receiver stores
+ *   them into this cache.
+ *
+ * The key of a plane is made of the voxel type, the plane length and the
+ * SHA-256 digest of the plane's voxel data.
+ *
+ * The cache is shared by all connections of this process, and the least
+ * recently used planes are evicted from it once it exceeds its capacity.
+ */
+public class PlaneCache
+{
+	/**
+	 * How many bytes the cached planes may occupy, zero disables
+	 * the cache (and it is not advertised then). Default is 0.
+	 */
+	private static long capacity = 0;
+
+	///how many bytes the cached planes occupy now
+	private static long usedBytes = 0;
+
+	///the cached copies of the planes, in the order from the least recently used
+	private static final LinkedHashMap<String,Object> planes = new LinkedHashMap<>(16, 0.75f, true);
+
+	/// sets this.capacity, evicts the planes that do not fit into it anymore
+	public static synchronized
+	void setCapacity(final long bytes)
+	{
+		capacity = bytes < 0 ? 0 : bytes;
+		evict();
+	}
+
+	/// reads current this.capacity
+	public static synchronized
+	long getCapacity()
+	{ return capacity; }
+
+	/// is the cache enabled? (has non-zero capacity)
+	public static synchronized
+	boolean isEnabled()
+	{ return capacity > 0; }
+
+	/// how many bytes the cached planes occupy now
+	public static synchronized
+	long getUsedBytes()
+	{ return usedBytes; }
+
+	/// removes all cached planes
+	public static synchronized
+	void clear()
+	{
+		planes.clear();
+		usedBytes = 0;
+	}
+
+	/**
+	 * Copies the cached plane of the \e key into the \e array,
+	 * returns false (and does nothing) if there is no such plane.
+	 */
+	static synchronized
+	boolean fetch(final String key, final Object array)
+	{
+		final Object plane = planes.get(key);
+		if (plane == null) return false;
+
+		System.arraycopy(plane, 0, array, 0, Array.getLength(plane));
+		return true;
+	}
+
+	///stores the copy of the \e array under the \e key (if it fits into the cache)
+	static synchronized
+	void store(final String key, final Object array)
+	{
+		final long bytes = ArrayPacker.getByteSize(array);
+		if (bytes > capacity || planes.containsKey(key)) return;
+
+		final int length = Array.getLength(array);
+		final Object copy = Array.newInstance(array.getClass().getComponentType(), length);
+		System.arraycopy(array, 0, copy, 0, length);
+
+		planes.put(key, copy);
+		usedBytes += bytes;
+		evict();
+	}
+
+	private static
+	void evict()
+	{
+		final Iterator<Map.Entry<String,Object>> it = planes.entrySet().iterator();
+		while (usedBytes > capacity && it.hasNext())
+		{
+			usedBytes -= ArrayPacker.getByteSize(it.next().getValue());
+			it.remove();
+		}
+	}
+
+
+	///the token of the receiver's reply that lists the planes it has
+	static final String HAVE_TOKEN = "have:";
+
+	///returns the token listing the planes flagged in \e have, or null if none is flagged
+	static
+	String haveToken(final boolean[] have)
+	{
+		final StringBuilder sb = new StringBuilder(HAVE_TOKEN);
+		for (int i=0; i < have.length; ++i)
+			if (have[i]) sb.append(sb.length() > HAVE_TOKEN.length() ? "," : "").append(i);
+		return sb.length() > HAVE_TOKEN.length() ? sb.toString() : null;
+	}
+
+	///parses the haveToken() from the receiver's \e reply, returns null if there is none
+	static
+	boolean[] parseHaveToken(final String reply, final int numPlanes)
+	{
+		final int pos = reply.indexOf(" "+HAVE_TOKEN);
+		if (pos == -1) return null;
+
+		int end = reply.indexOf(' ', pos+1);
+		if (end == -1) end = reply.length();
+
+		final boolean[] have = new boolean[numPlanes];
+		for (String idx : reply.substring(pos+1+HAVE_TOKEN.length(), end).split(","))
+		{
+			final int i = Integer.parseInt(idx);
+			if (i < 0 || i >= numPlanes)
+				throw new RuntimeException("Protocol error, the receiver claims to have a non-existing plane.");
+			have[i] = true;
+		}
+		return have;
+	}
+
+	///how many bytes of the plane are digested at once
+	private static final int DIGEST_BLOCK = 1 << 20;
+
+	/**
+	 * Returns the key of the plane \e array of the voxel type \e voxelType
+	 * (index into ImgPacker.SUPPORTED_VOXEL_CLASSES), the key contains no
+	 * spaces nor commas.
+	 */
+	static
+	String key(final int voxelType, final Object array)
+	{
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException("Cannot hash the planes: "+e.getMessage());
+		}
+
+		if (array instanceof byte[])
+			digest.update((byte[])array);
+		else
+		{
+			//digest the array in blocks, converted to the bytes of the wire format
+			final Buffer buffer = ArrayPacker.createBuffer(array);
+			final int elemSize = buffer.getElemSize();
+			final int length = buffer.getElemCount(array);
+			final int blockLength = DIGEST_BLOCK / elemSize;
+			final ByteBuffer bytes = ByteBuffer.allocate(Math.min(length, blockLength) * elemSize);
+			for (int offset = 0; offset < length; offset += blockLength)
+			{
+				final int len = Math.min(blockLength, length-offset);
+				bytes.clear();
+				buffer.send(bytes, array, offset, len);
+				bytes.limit(len*elemSize);
+				digest.update(bytes);
+			}
+		}
+
+		final StringBuilder sb = new StringBuilder();
+		sb.append(voxelType).append('x').append(Array.getLength(array)).append('x');
+		for (byte b : digest.digest())
+			sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,248 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.RealType;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+
+/**
+ * Receives, or requests, the images of one ImgTransfer in a background thread
+ * and keeps them here until they are taken with next(). The network is thus
+ * busy with the next images while the caller processes the current one.
+ *
+ * At most \e depth images are kept here (not counting the one being received),
+ * and no new image starts to be received when the kept images occupy already
+ * \e maxBytes or more. Depth of 1 is the classical double buffering, depth of 0
+ * switches the prefetching off (images are received only inside next()).
+ *
+ * Use it in place of the ImgTransfer's isThereNextImage() and receiveImage()
+ * (or requestImage()) loop:
+ *
+ * PrefetchingReceiver r = new PrefetchingReceiver(new ImgTransfer(port,timeout,log), false, 2, 1L<<30);
+ * while (r.hasNext()) process(r.next());
+ */
+public class PrefetchingReceiver
+{
+	///the underlying transfer
+	private final ImgTransfer receiver;
+	///should the images be requested (or received)?
+	private final boolean requesting;
+
+	///how many images can be kept here
+	private final int depth;
+	///how many bytes can the kept images occupy
+	private final long maxBytes;
+
+	///the received images, and their sizes, that have not been taken yet
+	private final ArrayDeque<ImgPlus<?>> images = new ArrayDeque<>();
+	private final ArrayDeque<Long> imagesBytes = new ArrayDeque<>();
+	///how many bytes are occupied by the this.images
+	private long keptBytes = 0;
+
+	///the background thread, null if not prefetching
+	private final Thread prefetcher;
+	///has the background thread finished receiving?
+	private boolean finished = false;
+	///has close() been called?
+	private volatile boolean closing = false;
+	///the failure of the background thread, to be thrown from next()
+	private IOException failure = null;
+
+	/**
+	 * Starts prefetching the images with the \e receiver, which shall be fresh
+	 * (not used yet), either by receiveImage() or, if \e requesting, by requestImage().
+	 */
+	public PrefetchingReceiver(final ImgTransfer _receiver, final boolean _requesting,
+	                           final int _depth, final long _maxBytes)
+	{
+		if (_depth < 0 || _maxBytes < 0)
+			throw new IllegalArgumentException("Depth and the memory limit must not be negative.");
+
+		receiver = _receiver;
+		requesting = _requesting;
+		depth = _depth;
+		maxBytes = _maxBytes;
+
+		if (depth > 0)
+		{
+			prefetcher = new Thread(this::prefetch, "ImgTransfer prefetcher");
+			prefetcher.setDaemon(true);
+			prefetcher.start();
+		}
+		else
+			prefetcher = null;
+	}
+
+	///returns the underlying transfer, e.g., for getExpectedNumberOfImages()
+	public ImgTransfer getReceiver()
+	{ return receiver; }
+
+	///the main loop of the background thread
+	private
+	void prefetch()
+	{
+		try {
+			while (!closing && receiver.isThereNextImage())
+			{
+				//wait for some free space
+				synchronized (this)
+				{
+					while (!closing && !images.isEmpty() && (images.size() >= depth || keptBytes >= maxBytes))
+						wait();
+				}
+				if (closing) break;
+
+				final ImgPlus<?> img = requesting ? receiver.requestImage() : receiver.receiveImage();
+				if (img == null) continue;
+
+				synchronized (this)
+				{
+					if (closing) break;
+					final long bytes = sizeInBytes(img);
+					images.add(img);
+					imagesBytes.add(bytes);
+					keptBytes += bytes;
+					notifyAll();
+				}
+			}
+		}
+		catch (IOException e) {
+			//NB: the failure caused by close() is not reported
+			if (!closing) synchronized (this) { failure = e; }
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		finally {
+			//NB: the receiver is closed here, in the thread that uses its socket
+			receiver.close();
+			synchronized (this)
+			{
+				finished = true;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Returns true if there is one more image to be taken, waits until
+	 * it is received, or until it is clear that no more will arrive.
+	 */
+	public
+	boolean hasNext()
+	throws IOException
+	{
+		if (prefetcher == null) return receiver.isThereNextImage();
+
+		synchronized (this)
+		{
+			try {
+				while (images.isEmpty() && !finished) wait();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("interrupted while waiting for the next image");
+			}
+
+			if (!images.isEmpty()) return true;
+			if (failure != null) throw failure;
+			return false;
+		}
+	}
+
+	/**
+	 * Returns the next image, waits for it if necessary. Returns null if there is
+	 * no more image, or if the transfer has not delivered any (as the receiveImage()).
+	 */
+	public
+	ImgPlus<?> next()
+	throws IOException
+	{
+		if (prefetcher == null)
+			return requesting ? receiver.requestImage() : receiver.receiveImage();
+
+		if (!hasNext()) return null;
+		synchronized (this)
+		{
+			keptBytes -= imagesBytes.remove();
+			notifyAll();
+			return images.remove();
+		}
+	}
+
+	/**
+	 * Stops the prefetching and closes the receiver, the images not taken yet are
+	 * dropped. Returns once the background thread has finished (and the receiver's
+	 * port is thus free again). It is safe to call it more than once, and also
+	 * after all images have been taken, e.g., from a 'finally' block.
+	 */
+	public
+	void close()
+	{
+		if (prefetcher == null)
+		{
+			receiver.close();
+			return;
+		}
+
+		//NB: the background thread is not interrupted, it may be inside ZeroMQ calls
+		closing = true;
+		receiver.abort();
+		synchronized (this)
+		{
+			images.clear();
+			imagesBytes.clear();
+			keptBytes = 0;
+			notifyAll();
+		}
+
+		boolean interrupted = false;
+		while (prefetcher.isAlive())
+		{
+			try {
+				prefetcher.join();
+			}
+			catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) Thread.currentThread().interrupt();
+	}
+
+	///returns the (approximate) size of the voxel data of the \e img
+	static
+	long sizeInBytes(final ImgPlus<?> img)
+	{
+		final Object type = img.firstElement();
+		final int bits = type instanceof RealType ? ((RealType<?>)type).getBitsPerPixel() : 64;
+		return img.size() * bits / 8;
+	}
+}
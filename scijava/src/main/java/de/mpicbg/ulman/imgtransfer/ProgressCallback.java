@@ -46,6 +46,13 @@ public interface ProgressCallback
 	 * where 0.0 indicated "not yet even started" and 1.0 indicates
 	 * "all work is done". It is assumed that the parameter is submitted
 	 * further to some progress bar widgets.
+	 *
+	 * The ImgPacker reports this way how many bytes of the currently
+	 * transferred image have been transferred already, that is, the values
+	 * start over from 0.0 with every image. The reports are throttled (see
+	 * ArrayPacker.setProgressReportPeriod()) and come from the thread that
+	 * does the transfer. See ProgressEstimator to turn them into a progress
+	 * of multiple images and into an estimate of the remaining time.
 	 */
 	void setProgress(final float howFar);
 }
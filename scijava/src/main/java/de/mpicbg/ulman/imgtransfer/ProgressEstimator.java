@@ -0,0 +1,113 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+/**
+ * Combines the per-image progress (as reported via ProgressCallback.setProgress())
+ * with the number of images already transferred into the overall progress of
+ * a transfer of multiple images, and estimates the remaining time from it.
+ *
+ * The estimate assumes the remaining data flows at the average speed seen so
+ * far, where the time is counted since the first progress report (so that the
+ * waiting for the peer to connect is not included).
+ *
+ * It may be updated from several threads, e.g., the per-image progress from
+ * the thread that receives the images and the finished images from the thread
+ * that consumes them (see PrefetchingReceiver).
+ */
+public class ProgressEstimator
+{
+	private int imagesTotal;
+	private int imagesDone = 0;
+
+	///the last reported progress of the current image
+	private float imageProgress = 0.f;
+
+	///when the first progress report has arrived, 0 if not yet
+	private long startTime = 0;
+
+	public ProgressEstimator(final int _imagesTotal)
+	{ setImagesTotal(_imagesTotal); }
+
+	///the total may be unknown at the beginning, e.g., before the first image has arrived
+	public synchronized
+	void setImagesTotal(final int _imagesTotal)
+	{ imagesTotal = _imagesTotal > 0 ? _imagesTotal : 1; }
+
+	///to be called after every transferred image
+	public synchronized
+	void imageFinished()
+	{
+		if (startTime == 0) startTime = System.currentTimeMillis();
+		++imagesDone;
+		imageProgress = 0.f;
+	}
+
+	/**
+	 * Notes the progress of the currently transferred image, that is,
+	 * the value given to the ProgressCallback.setProgress().
+	 */
+	public synchronized
+	void setImageProgress(final float howFar)
+	{
+		if (startTime == 0) startTime = System.currentTimeMillis();
+		imageProgress = howFar < 0.f ? 0.f : (howFar > 1.f ? 1.f : howFar);
+	}
+
+	///returns the overall progress, between 0.0 and 1.0
+	public synchronized
+	float getProgress()
+	{
+		final float p = ((float)imagesDone + imageProgress) / (float)imagesTotal;
+		return p > 1.f ? 1.f : p;
+	}
+
+	///returns the estimated remaining time in milliseconds, or -1 if it cannot be estimated yet
+	public synchronized
+	long getRemainingMillis()
+	{
+		final float p = getProgress();
+		if (startTime == 0 || p <= 0.f) return -1;
+
+		final long elapsed = System.currentTimeMillis() - startTime;
+		return (long)((double)elapsed * (1.0 - p) / (double)p);
+	}
+
+	///returns, e.g., "2:05 remaining", or an empty string if it cannot be estimated yet
+	public
+	String getRemainingTime()
+	{
+		final long ms = getRemainingMillis();
+		if (ms < 0) return "";
+
+		final long secs = (ms+999) / 1000;
+		if (secs >= 3600)
+			return String.format("%d:%02d:%02d remaining", secs/3600, (secs/60)%60, secs%60);
+		return String.format("%d:%02d remaining", secs/60, secs%60);
+	}
+}
@@ -0,0 +1,270 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Token bucket that limits how fast the voxel data is sent out over the sockets.
+ *
+ * There is one bucket for the whole process, shared by all transfers running
+ * concurrently, and every transfer takes its share of it through its own bucket.
+ * The bucket of a transfer is created with forTransfer() once for all its images,
+ * and it may be given to several ImgTransfers (e.g., to all connections that send
+ * one sequence in parallel), see ImgTransfer.setRateLimiter(). Sending of every
+ * chunk of the voxel data (see SendToSocket) waits until both buckets have enough
+ * tokens (bytes) for it. The buckets are refilled with the configured rate up to
+ * the configured burst size, which is how many bytes can be sent at once after
+ * the sending was idle for a while.
+ *
+ * The limit of the process bucket is the lowest of the limit set with
+ * setProcessLimit() and the limits requested by the transfers that are
+ * running (see forTransfer()). A transfer started later, possibly without
+ * any limit, thus never lifts the limit of the transfers still running.
+ *
+ * The limit of the process bucket is shared fairly: every transfer that is
+ * sending (that has acquired some bytes within the last second) may use only
+ * its share of it, no matter over how many connections it sends. The transfers
+ * without their own bucket (see NO_TRANSFER_LIMIT) share one such share.
+ *
+ * The chunks are never split, a chunk larger than the burst is therefore
+ * sent at once but the following chunk is delayed accordingly, which keeps
+ * the average rate.
+ *
+ * The voxel data passed over the shared memory is not limited.
+ *
+ * Note that unless the heartbeats are on (see ImgTransfer.setHeartbeat()),
+ * the receiver gives up waiting for the next chunk after
+ * ArrayPacker.getConnectionBrokenTimeout(), the rate should be therefore
+ * high enough to send the largest chunk within this time.
+ */
+public class RateLimiter
+{
+	///the bucket shared by all transfers of this process, 0 rate means no limit
+	private static final RateLimiter processLimiter = new RateLimiter(0,0,0);
+
+	///the limit of all transfers of this process set with setProcessLimit(), 0 rate means no limit
+	private static long processRate = 0;
+	private static long processBurst = 0;
+
+	///the buckets of the running transfers that have requested a limit of the whole process
+	private static final List<RateLimiter> processLimitRequests = new ArrayList<>();
+
+	///the buckets of all transfers that are not close()-d yet, they share the process bucket
+	private static final List<RateLimiter> transfers = new ArrayList<>();
+
+	///the bucket of the transfers that have not been given any, it limits them only with the process bucket
+	public static final RateLimiter NO_TRANSFER_LIMIT = new RateLimiter(0,0,0);
+
+	static
+	{
+		NO_TRANSFER_LIMIT.share = new RateLimiter(0,0,0);
+		transfers.add(NO_TRANSFER_LIMIT);
+	}
+
+	///a transfer that has acquired some bytes within this time takes its share of the process bucket
+	private static final long ACTIVE_NANOS = 1000000000L;
+
+	/**
+	 * Limits all transfers of this process together to \e bytesPerSecond,
+	 * allowing for bursts of \e burstBytes (if not positive, one second
+	 * worth of data is used). Zero \e bytesPerSecond switches this limit off,
+	 * the limits requested by the running transfers still apply.
+	 */
+	public static synchronized
+	void setProcessLimit(final long bytesPerSecond, final long burstBytes)
+	{
+		processRate  = bytesPerSecond < 0 ? 0 : bytesPerSecond;
+		processBurst = burstBytes;
+		updateProcessLimit();
+	}
+
+	/// reads the current limit of all transfers of this process
+	public static synchronized
+	long getProcessLimit()
+	{
+		return processLimiter.rate;
+	}
+
+	/// convenience: turns the megabytes per second, e.g. from a dialog, into bytes per second
+	public static
+	long fromMegaBytesPerSecond(final double mbps)
+	{
+		return mbps > 0 ? (long)(mbps * 1024.0*1024.0) : 0;
+	}
+
+	/**
+	 * Returns the bucket for a new transfer that limits it to \e bytesPerSecond,
+	 * allowing for bursts of \e burstBytes (if not positive, one second worth of
+	 * data is used), and that limits all transfers of this process together to
+	 * \e processBytesPerSecond until this bucket is close()-d. Zero rates mean
+	 * no limit.
+	 */
+	public static synchronized
+	RateLimiter forTransfer(final long bytesPerSecond, final long burstBytes,
+	                        final long processBytesPerSecond)
+	{
+		final RateLimiter l = new RateLimiter(bytesPerSecond, burstBytes, processBytesPerSecond);
+		l.share = new RateLimiter(0,0,0);
+		transfers.add(l);
+		if (l.requestedProcessRate > 0)
+		{
+			processLimitRequests.add(l);
+			updateProcessLimit();
+		}
+		return l;
+	}
+
+	///sets the process bucket to the lowest of the limits, must be called with the class locked
+	private static
+	void updateProcessLimit()
+	{
+		long rate = processRate, burst = processBurst;
+		for (final RateLimiter l : processLimitRequests)
+			if (rate == 0 || l.requestedProcessRate < rate)
+			{
+				rate  = l.requestedProcessRate;
+				burst = 0;
+			}
+		processLimiter.setRate(rate, burst);
+	}
+
+	/**
+	 * Marks the \e transfer as sending, and sets its share of the process bucket
+	 * according to how many transfers are sending now. Returns the bucket of the share.
+	 */
+	private static synchronized
+	RateLimiter shareOf(final RateLimiter transfer)
+	{
+		final long now = System.nanoTime();
+		transfer.lastAcquireNanos = now;
+
+		int sending = 0;
+		for (final RateLimiter l : transfers)
+			if (now - l.lastAcquireNanos < ACTIVE_NANOS) ++sending;
+
+		final long rate = processLimiter.rate / sending;
+		if (transfer.share.rate != rate)
+			transfer.share.setRate(rate, processLimiter.burst / sending);
+		return transfer.share;
+	}
+
+	// --------------------------------------------
+	///bytes per second, and the size of the bucket
+	private long rate, burst;
+	///how many bytes can be now sent, negative if some chunk is already waiting for them
+	private double tokens;
+	///when the tokens were last updated
+	private long lastRefillNanos;
+
+	///the limit of the whole process requested by this transfer, 0 means none
+	private final long requestedProcessRate;
+
+	///the share of this transfer of the process bucket, null if this is not a bucket of a transfer
+	private RateLimiter share = null;
+	///when this transfer has last acquired some bytes, guarded by the class lock
+	private long lastAcquireNanos = System.nanoTime() - ACTIVE_NANOS;
+
+	private
+	RateLimiter(final long bytesPerSecond, final long burstBytes, final long processBytesPerSecond)
+	{
+		setRate(bytesPerSecond, burstBytes);
+		requestedProcessRate = processBytesPerSecond < 0 ? 0 : processBytesPerSecond;
+	}
+
+	/**
+	 * Changes the rate and the burst size. The tokens collected so far are kept
+	 * (up to the new burst size), only a bucket that has not limited anything
+	 * so far starts full.
+	 */
+	private synchronized
+	void setRate(final long bytesPerSecond, final long burstBytes)
+	{
+		final long newRate = bytesPerSecond < 0 ? 0 : bytesPerSecond;
+		final long newBurst = burstBytes > 0 ? burstBytes : newRate;
+		final long now = System.nanoTime();
+
+		if (rate == 0)
+			tokens = newBurst;
+		else
+			tokens = Math.min(newBurst, tokens + (now-lastRefillNanos)*1e-9*rate);
+
+		rate  = newRate;
+		burst = newBurst;
+		lastRefillNanos = now;
+	}
+
+	/**
+	 * Takes the \e bytes from this bucket, and returns for how many
+	 * nanoseconds the caller has to wait before it may send them.
+	 */
+	private synchronized
+	long reserve(final long bytes)
+	{
+		if (rate == 0) return 0;
+
+		final long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now-lastRefillNanos)*1e-9*rate);
+		lastRefillNanos = now;
+
+		tokens -= bytes;
+		return tokens >= 0 ? 0 : (long)(-tokens / rate * 1e9);
+	}
+
+	/**
+	 * Blocks until the \e bytes may be sent under the limit of this transfer,
+	 * its share of the limit of the whole process, and that limit itself.
+	 */
+	public
+	void acquire(final long bytes)
+	{
+		final long waitNanos = Math.max(Math.max(reserve(bytes), shareOf(this).reserve(bytes)),
+		                                processLimiter.reserve(bytes));
+		if (waitNanos <= 0) return;
+
+		try {
+			Thread.sleep(waitNanos / 1000000, (int)(waitNanos % 1000000));
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while limiting the sending rate.");
+		}
+	}
+
+	///withdraws the limit of the whole process requested by this transfer, call it when the transfer is over
+	public
+	void close()
+	{
+		synchronized (RateLimiter.class)
+		{
+			if (this != NO_TRANSFER_LIMIT) transfers.remove(this);
+			if (processLimitRequests.remove(this)) updateProcessLimit();
+		}
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.cell.Cell;
+import net.imglib2.img.cell.CellGrid;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.util.IntervalIndexer;
+import net.imglib2.view.Views;
+
+import de.mpicbg.ulman.imgtransfer.buffers.Buffer;
+
+/**
+ * Receives the voxel data sent in the layout of the sender's image directly
+ * into the storage arrays of a receiver's image of another layout (backend),
+ * e.g., planes of the sender's PlanarImg into cells of a CellImg.
+ *
+ * The sender's storage arrays, in the order they are sent, make up one long
+ * linear sequence of voxels (the flat iteration order of the image). To
+ * receive one such array, the ArrayPacker is given a SourceArray that only
+ * tells where in this sequence the array starts and how long it is. This
+ * object then, while the voxel data is read out of the ByteBuffer, scatters
+ * the voxels into the runs of the target storage arrays. No copy of the
+ * whole image is ever made.
+ *
+ * The recv() may be called concurrently for distinct parts of the chunk
+ * (see ParallelConverter).
+ *
+ * The bit-packed voxel types are not supported as their storage arrays
+ * do not map voxel-wise onto the linear sequence.
+ */
+class ScatteringBuffer implements Buffer
+{
+	///one storage array of the sender, a stretch of the linear sequence of voxels
+	static class SourceArray
+	{
+		final long start;
+		final int length;
+
+		SourceArray(final long _start, final int _length)
+		{ start = _start; length = _length; }
+	}
+
+	///the connector to the basic-type arrays of the target image
+	final Buffer arrayVsBuffer;
+	///cached value, helper: how many bytes the basic type occupies
+	final int arrayElemSize;
+
+	///the target image's sizes, and the target's storage arrays
+	final long[] dims;
+	final Object[] arrays;
+
+	///for the PlanarImg: number of voxels in one plane, otherwise 0
+	final long planeSize;
+	///for the CellImg: the cell grid and its size, otherwise null
+	final CellGrid grid;
+	final long[] gridDims;
+
+	///aux variables and outputs of locate(), one per recv() as it may run in parallel
+	private static class Run
+	{
+		final long[] pos, cellPos, cellMin;
+		final int[] cellDims;
+
+		//the target array, offset in it, and how many voxels fit from there
+		Object array;
+		int offset;
+		long length;
+
+		Run(final int n)
+		{
+			pos = new long[n];
+			cellPos = new long[n];
+			cellMin = new long[n];
+			cellDims = new int[n];
+		}
+	}
+
+	ScatteringBuffer(final Img<?> target)
+	{
+		dims = new long[target.numDimensions()];
+		target.dimensions(dims);
+
+		if (target instanceof ArrayImg)
+		{
+			arrays = new Object[] { ((ArrayImg<?,? extends ArrayDataAccess<?>>)target).update(null).getCurrentStorageArray() };
+			planeSize = 0;
+			grid = null;
+			gridDims = null;
+		}
+		else
+		if (target instanceof PlanarImg)
+		{
+			final PlanarImg<?,? extends ArrayDataAccess<?>> img = (PlanarImg<?,? extends ArrayDataAccess<?>>)target;
+			arrays = new Object[img.numSlices()];
+			for (int slice = 0; slice < arrays.length; ++slice)
+				arrays[slice] = img.getPlane(slice).getCurrentStorageArray();
+			planeSize = dims.length < 2 ? target.size() : dims[0]*dims[1];
+			grid = null;
+			gridDims = null;
+		}
+		else
+		if (target instanceof CellImg)
+		{
+			final CellImg<?,? extends ArrayDataAccess<?>> img = (CellImg<?,? extends ArrayDataAccess<?>>)target;
+			//NB: the flat iteration order of the cells is the order of their indices in the grid
+			final ArrayList<Object> cells = new ArrayList<>();
+			final Cursor<? extends Cell<? extends ArrayDataAccess<?>>> c = Views.flatIterable(img.getCells()).cursor();
+			while (c.hasNext())
+				cells.add(c.next().getData().getCurrentStorageArray());
+			arrays = cells.toArray();
+			planeSize = 0;
+			grid = img.getCellGrid();
+			gridDims = grid.getGridDimensions();
+		}
+		else
+			throw new RuntimeException("Cannot receive into this image backend, sorry.");
+
+		arrayVsBuffer = ArrayPacker.createBuffer(arrays[0]);
+		arrayElemSize = arrayVsBuffer.getElemSize();
+	}
+
+	/**
+	 * Finds where the voxel at the \e index of the linear sequence is stored,
+	 * and how many consecutive voxels of the sequence are stored right after it
+	 * in the same array. The results are in the \e run.
+	 */
+	private
+	void locate(final long index, final Run run)
+	{
+		if (grid == null)
+		{
+			if (planeSize == 0)
+			{
+				run.array  = arrays[0];
+				run.offset = (int)index;
+				run.length = arrayVsBuffer.getElemCount(run.array) - index;
+			}
+			else
+			{
+				run.array  = arrays[(int)(index / planeSize)];
+				run.offset = (int)(index % planeSize);
+				run.length = planeSize - run.offset;
+			}
+			return;
+		}
+
+		final long[] pos = run.pos;
+		final long[] cellPos = run.cellPos;
+		final long[] cellMin = run.cellMin;
+		final int[] cellDims = run.cellDims;
+
+		//the CellImg: the run is the rest of the image row within the cell
+		long rest = index;
+		for (int d=0; d < dims.length; ++d)
+		{
+			pos[d] = rest % dims[d];
+			rest  /= dims[d];
+		}
+		grid.getCellPosition(pos, cellPos);
+		grid.getCellDimensions(cellPos, cellMin, cellDims);
+
+		int offset = 0;
+		for (int d=dims.length-1; d >= 0; --d)
+			offset = offset*cellDims[d] + (int)(pos[d]-cellMin[d]);
+
+		run.array  = arrays[(int)IntervalIndexer.positionToIndex(cellPos, gridDims)];
+		run.offset = offset;
+		run.length = cellMin[0]+cellDims[0] - pos[0];
+	}
+
+	public
+	void send(final ByteBuffer bufWrite, final Object arrayRead, int offset, int length)
+	{ throw new RuntimeException("The ScatteringBuffer is for receiving only."); }
+
+	public
+	void recv(final ByteBuffer bufRead, final Object arrayWrite, int offset, int length)
+	{
+		final int basePosition = bufRead.position();
+		long index = ((SourceArray)arrayWrite).start + offset;
+		final Run run = new Run(dims.length);
+
+		int done = 0;
+		while (done < length)
+		{
+			locate(index, run);
+			final int len = (int)Math.min(run.length, length-done);
+
+			//NB: the buffer views (e.g., asFloatBuffer()) start at the current position
+			bufRead.position(basePosition + done*arrayElemSize);
+			arrayVsBuffer.recv(bufRead, run.array, run.offset, len);
+
+			done  += len;
+			index += len;
+		}
+		bufRead.position(basePosition);
+	}
+
+	public
+	int getElemSize()
+	{ return arrayElemSize; }
+
+	public
+	int getElemCount(final Object array)
+	{ return ((SourceArray)array).length; }
+}
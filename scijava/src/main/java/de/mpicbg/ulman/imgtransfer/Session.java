@@ -0,0 +1,116 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import net.imglib2.img.Img;
+
+/**
+ * The state of one connection that outlives the transfer of a single image:
+ * what the peer has told us it understands, and buffers that are reused from
+ * image to image. ImgTransfer keeps one for every connection it opens, the
+ * ImgPacker reads and updates it with every image.
+ *
+ * The peers advertise what they understand with tokens appended to their
+ * "ready" reply or to their initial "can get" request, e.g. "ready shm v2".
+ * Older peers ignore such tokens.
+ */
+class Session
+{
+	///the token advertising that the BinaryHeader is understood
+	static final String CAN_BINARY_HEADER = "v2";
+	///the token advertising that the BinaryHeader.CODEC_ADAPTIVE is understood
+	static final String CAN_CHUNK_CODECS = "zc";
+	///the token advertising that the receiver keeps the PlaneCache
+	static final String CAN_PLANE_CACHE = "pc";
+
+	///are the images handed over by reference? (is the peer in this JVM?)
+	final boolean byReference;
+
+	///has the peer advertised it understands the BinaryHeader?
+	boolean binaryHeader = false;
+	///has the peer advertised it understands the encoded chunks?
+	boolean chunkCodecs = false;
+	///has the peer advertised it keeps the PlaneCache?
+	boolean planeCache = false;
+	///has the peer accepted the shared memory for the last image?
+	boolean sharedMemory = false;
+
+	///decides on the encodings of the chunks sent, and (de)codes them
+	final CodecController codecs = new CodecController();
+
+	///the bandwidth limit of the images sent, or null for no limit of this transfer
+	RateLimiter rateLimiter = null;
+
+	///reused for writing and parsing of the BinaryHeaders
+	final BinaryHeader header = new BinaryHeader();
+
+	///the backend (index into BinaryHeader.BACKENDS) to store the received images in, -1 for the sender's one
+	int receivingBackend = -1;
+	///the cell size for the CellImg receivingBackend, null for the imglib2 default
+	int[] receivingCellDims = null;
+	///the Img to store the next received image in if it fits, null to create a new one
+	Img<?> receivingTarget = null;
+	///the released images to store the received images in if they fit, or null
+	ImgPool receivingPool = null;
+
+	Session(final boolean _byReference)
+	{ byReference = _byReference; }
+
+	///returns the tokens to advertise what this side understands, starts with a space
+	static
+	String advertisedTokens()
+	{
+		return " " + CAN_BINARY_HEADER + " " + CAN_CHUNK_CODECS
+		     + (PlaneCache.isEnabled() ? " " + CAN_PLANE_CACHE : "");
+	}
+
+	///reads the tokens from the peer's "ready" reply or "can get" request
+	void readAdvertisedTokens(final String msg)
+	{
+		binaryHeader |= hasToken(msg, CAN_BINARY_HEADER);
+		chunkCodecs  |= hasToken(msg, CAN_CHUNK_CODECS);
+		//NB: the receiver may disable its cache any time
+		planeCache    = hasToken(msg, CAN_PLANE_CACHE);
+	}
+
+	///tests if the space-delimited \e msg contains the \e token, except for its first word
+	static
+	boolean hasToken(final String msg, final String token)
+	{
+		int pos = msg.indexOf(' ');
+		while (pos > -1)
+		{
+			++pos;
+			if (msg.startsWith(token, pos)
+			  && (pos+token.length() == msg.length() || msg.charAt(pos+token.length()) == ' '))
+				return true;
+			pos = msg.indexOf(' ', pos);
+		}
+		return false;
+	}
+}
@@ -0,0 +1,302 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Support for the transfers between two peers living on the same computer
+ * (but not necessarily in the same JVM, or in Java at all).
+ *
+ * The sender creates an (empty) file in a shared-memory directory, typically
+ * /dev/shm, and appends "shm:" with the file's path to the v1 header. The
+ * receiver that can see this file replies "ready shm", otherwise just "ready"
+ * and the transfer continues over the socket as usual. The file is thus, at
+ * the same time, a test that both peers share the same memory.
+ *
+ * When agreed, the sender writes all voxel data into the file (in the same
+ * byte order as it would go over the socket), and sends "shm <bytes>" as the
+ * last part after the metadata instead of the voxel data. The receiver maps
+ * the file and reads the voxels out of it, and confirms with "done" as usual.
+ * Only the sender, the creator of the file, removes the file.
+ *
+ * The receiver accepts only the segments (the "imgtransfer-" files) from its own
+ * shared-memory directory, so that a peer cannot make it read any other file.
+ * Both peers must therefore use the same directory.
+ */
+public class ShmTransfer
+{
+	///where the segments are created, or null if this transport is disabled
+	private static Path shmDirectory = defaultDirectory();
+
+	private static
+	Path defaultDirectory()
+	{
+		final Path dir = Paths.get("/dev/shm");
+		return Files.isDirectory(dir) && Files.isWritable(dir) ? dir : null;
+	}
+
+	/**
+	 * Sets the directory in which the shared-memory segments are created, and
+	 * from which the offered segments are accepted, null disables this transport.
+	 * Default is /dev/shm if it is available on this system.
+	 */
+	public static
+	void setDirectory(final String dir)
+	{ shmDirectory = dir != null ? Paths.get(dir) : null; }
+
+	public static
+	String getDirectory()
+	{ return shmDirectory != null ? shmDirectory.toString() : null; }
+
+
+	///the prefix of the file names of the segments
+	static final String SEGMENT_PREFIX = "imgtransfer-";
+
+	///the prefix of the v1 header token that carries the path to the segment
+	static final String HEADER_HINT = "shm:";
+
+	///the prefix of the "ready" reply that accepts the segment
+	static final String READY_SHM = "ready shm";
+
+	///the prefix of the message that substitutes the voxel data
+	static final String DATA_WRITTEN = "shm ";
+
+
+	/**
+	 * Creates a new segment to be offered to the receiver, or returns null
+	 * if this transport is disabled or the segment cannot be created.
+	 */
+	static
+	Segment offerSegment()
+	{
+		final Path dir = shmDirectory;
+		if (dir == null) return null;
+
+		try {
+			return new Segment(Files.createTempFile(dir, SEGMENT_PREFIX, ".shm"), true);
+		}
+		catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Opens the segment offered by the sender in the \e headerToken, or returns
+	 * null if it is not accessible from here, or if it is not a segment in our
+	 * shared-memory directory (after the symbolic links are resolved).
+	 */
+	static
+	Segment acceptSegment(final String headerToken)
+	{
+		if (headerToken == null || !headerToken.startsWith(HEADER_HINT)) return null;
+
+		final Path dir = shmDirectory;
+		if (dir == null) return null;
+
+		final Path file;
+		try {
+			file = Paths.get(headerToken.substring(HEADER_HINT.length())).toRealPath();
+			if (!dir.toRealPath().equals(file.getParent())) return null;
+		}
+		catch (IOException | InvalidPathException e) {
+			return null;
+		}
+		if (!file.getFileName().toString().startsWith(SEGMENT_PREFIX)) return null;
+		if (!Files.isRegularFile(file) || !Files.isReadable(file)) return null;
+
+		return new Segment(file, false);
+	}
+
+
+	// -------- explicit unmapping of the segments --------
+	///the Java 9+ way of unmapping: Unsafe.invokeCleaner() on this Unsafe instance
+	private static Object unsafe = null;
+	private static Method invokeCleaner = null;
+
+	///the Java 8 way of unmapping: DirectBuffer.cleaner().clean()
+	private static Method cleaner = null;
+	private static Method clean = null;
+
+	static
+	{
+		try {
+			final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			final Method m = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			final Field f = unsafeClass.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			unsafe = f.get(null);
+			invokeCleaner = m;
+		}
+		catch (Exception e) {
+			try {
+				final Method c = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner");
+				clean = Class.forName("sun.misc.Cleaner").getMethod("clean");
+				cleaner = c;
+			}
+			catch (Exception ee) { /* cannot unmap explicitly */ }
+		}
+	}
+
+	/**
+	 * Releases the mapping of the \e buffer right away, otherwise it would last
+	 * until the \e buffer is garbage collected, which may be long after its file
+	 * is removed, and so the shared memory would stay occupied. The \e buffer,
+	 * and every buffer derived from it, must not be used afterwards. If the JVM
+	 * does not allow for this, it is left to the garbage collector.
+	 */
+	static
+	void unmap(final MappedByteBuffer buffer)
+	{
+		try {
+			if (invokeCleaner != null) invokeCleaner.invoke(unsafe, buffer);
+			else if (cleaner != null)
+			{
+				final Object c = cleaner.invoke(buffer);
+				if (c != null) clean.invoke(c);
+			}
+		}
+		catch (Exception e) { /* left to the garbage collector */ }
+	}
+
+
+	/**
+	 * One file in the shared memory. It is mapped in windows, which allows
+	 * for images larger than the 2GB limit of one MappedByteBuffer. A window
+	 * is unmapped as soon as the next one is mapped, or the segment is closed.
+	 */
+	public static class Segment implements AutoCloseable
+	{
+		///the maximal size of one mapping
+		private static final long WINDOW_SIZE = 1L << 30;
+
+		final Path file;
+		final boolean isOwner;
+
+		private FileChannel channel = null;
+		private MappedByteBuffer window = null;
+		private long windowStart = 0;
+
+		///the position in the file for the next slice()
+		long position = 0;
+
+		Segment(final Path _file, final boolean _isOwner)
+		{
+			file = _file;
+			isOwner = _isOwner;
+		}
+
+		String headerHint()
+		{ return HEADER_HINT + file.toString(); }
+
+		///prepares the segment for writing \e size bytes
+		void openForWriting(final long size)
+		throws IOException
+		{
+			channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+			channel.truncate(0);
+			if (size > 0)
+			{
+				//grow the file to the required size
+				channel.write(ByteBuffer.allocate(1), size-1);
+			}
+			position = 0;
+		}
+
+		///prepares the segment for reading \e size bytes
+		void openForReading(final long size)
+		throws IOException
+		{
+			channel = FileChannel.open(file, StandardOpenOption.READ);
+			if (channel.size() < size)
+				throw new IOException("shared memory segment is shorter than announced");
+			position = 0;
+		}
+
+		/**
+		 * Returns a buffer (of the network byte order) that covers next \e length
+		 * bytes of this segment, and advances the position accordingly. The buffer
+		 * is valid only until the next slice() or close().
+		 */
+		public
+		ByteBuffer slice(final int length)
+		throws IOException
+		{
+			if (window == null || position < windowStart
+			  || position+length > windowStart+window.capacity())
+			{
+				final long size = Math.max(length, Math.min(WINDOW_SIZE, channel.size()-position));
+				if (window != null)
+				{
+					unmap(window);
+					window = null;
+				}
+				window = channel.map(isOwner ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+				                     position, size);
+				windowStart = position;
+			}
+
+			final ByteBuffer buf = window.duplicate();
+			buf.position((int)(position-windowStart));
+			buf.limit(buf.position()+length);
+			position += length;
+			return buf.slice();
+		}
+
+		///closes the segment, the owner also removes its file
+		public void close()
+		{
+			if (window != null)
+			{
+				unmap(window);
+				window = null;
+			}
+			if (channel != null)
+			{
+				try { channel.close(); }
+				catch (IOException e) { /* nothing to be done */ }
+				channel = null;
+			}
+			if (isOwner)
+			{
+				try { Files.deleteIfExists(file); }
+				catch (IOException e) { /* nothing to be done */ }
+			}
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer.buffers;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts between the ByteBuffer and the basic-type array (with the Buffer)
+ * using multiple threads: large chunks are split into parts that are converted
+ * in parallel, each part with its own view (ByteBuffer.duplicate()) on the
+ * ByteBuffer and into its own range of the array. Chunks shorter than
+ * minParallelBytes are converted directly by the calling thread.
+ *
+ * The recvAsync() allows the receiver to convert one chunk while it is
+ * already receiving the next one (see RecvFromSocket).
+ */
+public class ParallelConverter
+{
+	/**
+	 * Chunks of at least this many bytes are converted in parallel,
+	 * and every part has at least half of this many bytes.
+	 * Default is 4 MB.
+	 */
+	private static int minParallelBytes = 4 << 20;
+
+	/// sets this.minParallelBytes
+	public static
+	void setMinParallelBytes(final int bytes)
+	{
+		minParallelBytes = bytes < 2 ? 4 << 20 : bytes;
+	}
+
+	/// reads current this.minParallelBytes
+	public static
+	int getMinParallelBytes()
+	{
+		return minParallelBytes;
+	}
+
+	/**
+	 * The maximal number of threads used for the conversions,
+	 * it is applied only before the first parallel conversion.
+	 * Default is the number of available processors.
+	 */
+	private static int parallelism = Runtime.getRuntime().availableProcessors();
+
+	/// sets this.parallelism
+	public static synchronized
+	void setParallelism(final int threads)
+	{
+		parallelism = threads < 1 ? Runtime.getRuntime().availableProcessors() : threads;
+	}
+
+	/// reads current this.parallelism
+	public static
+	int getParallelism()
+	{
+		return parallelism;
+	}
+
+	///the threads for the conversions, created on the first use
+	private static ForkJoinPool pool = null;
+
+	private static synchronized
+	ForkJoinPool getPool()
+	{
+		if (pool == null) pool = new ForkJoinPool(parallelism);
+		return pool;
+	}
+
+
+	///is the chunk of \e length elements of the \e buffer worth the parallel conversion?
+	public static
+	boolean isParallel(final Buffer buffer, final int length)
+	{
+		return parallelism > 1 && (long)length * buffer.getElemSize() >= minParallelBytes;
+	}
+
+	/// the same as Buffer.send() but possibly in parallel, returns when all is converted
+	public static
+	void send(final Buffer buffer, final ByteBuffer bufWrite, final Object arrayRead, int offset, int length)
+	{
+		if (isParallel(buffer, length))
+			getPool().invoke(new Conversion(true, buffer, bufWrite, arrayRead, offset, length));
+		else
+			buffer.send(bufWrite, arrayRead, offset, length);
+	}
+
+	/// the same as Buffer.recv() but possibly in parallel, returns when all is converted
+	public static
+	void recv(final Buffer buffer, final ByteBuffer bufRead, final Object arrayWrite, int offset, int length)
+	{
+		if (isParallel(buffer, length))
+			getPool().invoke(new Conversion(false, buffer, bufRead, arrayWrite, offset, length));
+		else
+			buffer.recv(bufRead, arrayWrite, offset, length);
+	}
+
+	/**
+	 * Starts the recv() in the background, returns immediately. The caller
+	 * must not touch the \e bufRead and the \e arrayWrite until waitFor()
+	 * on the returned object is over.
+	 *
+	 * The chunks that are not isParallel() are converted right here, and
+	 * the returned object is already over: handing them over to another
+	 * thread would cost more than their conversion. Their failure is still
+	 * reported only from the waitFor().
+	 */
+	public static
+	Future<?> recvAsync(final Buffer buffer, final ByteBuffer bufRead, final Object arrayWrite, int offset, int length)
+	{
+		if (isParallel(buffer, length))
+			return getPool().submit(new Conversion(false, buffer, bufRead, arrayWrite, offset, length));
+
+		final CompletableFuture<?> conversion = new CompletableFuture<>();
+		try {
+			buffer.recv(bufRead, arrayWrite, offset, length);
+			conversion.complete(null);
+		}
+		catch (RuntimeException e) {
+			conversion.completeExceptionally(e);
+		}
+		return conversion;
+	}
+
+	///waits until the \e conversion from recvAsync() is over, forwards its failure if any
+	public static
+	void waitFor(final Future<?> conversion)
+	{
+		try {
+			conversion.get();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("Interrupted while converting the voxel data.");
+		}
+		catch (ExecutionException e) {
+			final Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) throw (RuntimeException)cause;
+			throw new RuntimeException("Cannot convert the voxel data: "+cause.getMessage());
+		}
+	}
+
+
+	///converts its part, or splits it into halves while it is long enough
+	private static
+	class Conversion extends RecursiveAction
+	{
+		final boolean toBuffer;
+		final Buffer buffer;
+		final ByteBuffer bytes;
+		final Object array;
+		final int offset, length;
+
+		Conversion(final boolean _toBuffer, final Buffer _buffer,
+		           final ByteBuffer _bytes, final Object _array, int _offset, int _length)
+		{
+			toBuffer = _toBuffer;
+			buffer = _buffer;
+			bytes  = _bytes;
+			array  = _array;
+			offset = _offset;
+			length = _length;
+		}
+
+		@Override
+		protected void compute()
+		{
+			if (isParallel(buffer, length) && length > 1)
+			{
+				//NB: the buffer views (e.g., asFloatBuffer()) start at the current position
+				final int half = length/2;
+				final ByteBuffer secondBytes = bytes.duplicate();
+				secondBytes.position(bytes.position() + half*buffer.getElemSize());
+				invokeAll(new Conversion(toBuffer, buffer, bytes.duplicate(), array, offset, half),
+				          new Conversion(toBuffer, buffer, secondBytes, array, offset+half, length-half));
+			}
+			else
+			if (toBuffer)
+				buffer.send(bytes, array, offset, length);
+			else
+				buffer.recv(bytes, array, offset, length);
+		}
+	}
+}
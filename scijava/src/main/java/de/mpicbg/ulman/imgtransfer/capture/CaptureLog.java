@@ -0,0 +1,186 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes a compact binary log of all frames that went through the sockets
+ * created while the capture mode was enabled (see ImgTransfer.startCapture()).
+ *
+ * The log starts with the MAGIC string, followed by a sequence of records.
+ * Every record starts with its type (one Byte), the session number (int),
+ * and the time in nanoseconds since the capture has started (long).
+ * Records of the type BIND and CONNECT continue with the endpoint address
+ * (as modified UTF-8 string), records of the type SENT and RECEIVED continue
+ * with the ZeroMQ flags (one Byte: 1 if more parts follow, 0 otherwise),
+ * length of the frame (int), and the frame itself. The CLOSE record has no
+ * additional data. Java's network byte order (big-endian) is used throughout.
+ *
+ * One session corresponds to one ZeroMQ socket, records of all sessions
+ * are interleaved in the order in which they have happened.
+ */
+public class CaptureLog
+{
+	///the file format identification
+	public static final String MAGIC = "DAIScap1";
+
+	///record types
+	public static final byte BIND     = 'B';
+	public static final byte CONNECT  = 'C';
+	public static final byte SENT     = 'S';
+	public static final byte RECEIVED = 'R';
+	public static final byte CLOSE    = 'X';
+
+	private final DataOutputStream out;
+	private final long startTime;
+
+	///the last session number handed out
+	private int lastSession = -1;
+
+	public CaptureLog(final String fileName)
+	throws IOException
+	{
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName), 1 << 20));
+		out.writeBytes(MAGIC);
+		startTime = System.nanoTime();
+	}
+
+	///returns new session number, one per newly created socket
+	synchronized
+	int newSession()
+	{ return ++lastSession; }
+
+
+	synchronized
+	void endpoint(final int session, final byte type, final String addr)
+	{
+		try {
+			writeRecordHeader(type, session);
+			out.writeUTF(addr);
+		}
+		catch (IOException e) {
+			reportFailure(e);
+		}
+	}
+
+	synchronized
+	void close(final int session)
+	{
+		try {
+			writeRecordHeader(CLOSE, session);
+			out.flush();
+		}
+		catch (IOException e) {
+			reportFailure(e);
+		}
+	}
+
+	synchronized
+	void frame(final int session, final byte type, final int flags,
+	           final byte[] data, final int offset, final int length)
+	{
+		try {
+			writeRecordHeader(type, session);
+			out.writeByte(flags);
+			out.writeInt(length);
+			out.write(data, offset, length);
+		}
+		catch (IOException e) {
+			reportFailure(e);
+		}
+	}
+
+	/**
+	 * Records the content of the \e data between its position and limit,
+	 * the position of the \e data is not changed.
+	 */
+	synchronized
+	void frame(final int session, final byte type, final int flags, final ByteBuffer data)
+	{
+		try {
+			writeRecordHeader(type, session);
+			out.writeByte(flags);
+			out.writeInt(data.remaining());
+
+			if (data.hasArray())
+				out.write(data.array(), data.arrayOffset()+data.position(), data.remaining());
+			else
+			{
+				//direct buffer, copy it out in pieces
+				final ByteBuffer d = data.duplicate();
+				final byte[] aux = new byte[Math.min(d.remaining(), 1 << 16)];
+				while (d.hasRemaining())
+				{
+					final int len = Math.min(d.remaining(), aux.length);
+					d.get(aux, 0, len);
+					out.write(aux, 0, len);
+				}
+			}
+		}
+		catch (IOException e) {
+			reportFailure(e);
+		}
+	}
+
+	private
+	void writeRecordHeader(final byte type, final int session)
+	throws IOException
+	{
+		out.writeByte(type);
+		out.writeInt(session);
+		out.writeLong(System.nanoTime() - startTime);
+	}
+
+	///flag to report the failure only once
+	private boolean failureReported = false;
+
+	/**
+	 * The capturing must never break the transfer itself, failures
+	 * are therefore only reported (once) and the transfer goes on.
+	 */
+	private
+	void reportFailure(final IOException e)
+	{
+		if (failureReported) return;
+		System.err.println("capture log failed, the log is incomplete: "+e.getMessage());
+		failureReported = true;
+	}
+
+	///flushes and closes the log file
+	public synchronized
+	void finish()
+	throws IOException
+	{
+		out.close();
+	}
+}
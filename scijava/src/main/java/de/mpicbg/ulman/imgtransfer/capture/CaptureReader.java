@@ -0,0 +1,133 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer.capture;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+/**
+ * Reads, record after record, the log written by the CaptureLog.
+ * Please, see CaptureLog for the description of the file format.
+ */
+public class CaptureReader
+{
+	private final DataInputStream in;
+
+	public CaptureReader(final String fileName)
+	throws IOException
+	{
+		in = new DataInputStream(new BufferedInputStream(new FileInputStream(fileName), 1 << 20));
+
+		final byte[] magic = new byte[CaptureLog.MAGIC.length()];
+		in.readFully(magic);
+		if (! new String(magic).equals(CaptureLog.MAGIC))
+		{
+			in.close();
+			throw new IOException("Not a capture log: "+fileName);
+		}
+	}
+
+	// -------- the current record --------
+	public byte type;
+	public int session;
+	public long time;
+
+	///valid only for CaptureLog.BIND and CaptureLog.CONNECT records
+	public String addr;
+
+	///valid only for CaptureLog.SENT and CaptureLog.RECEIVED records
+	public boolean comingMore;
+	///valid only for CaptureLog.SENT and CaptureLog.RECEIVED records
+	public int length;
+	///valid only for CaptureLog.SENT and CaptureLog.RECEIVED records, might be longer than this.length
+	public byte[] data = new byte[1024];
+
+	/**
+	 * Reads the next record into the public attributes of this object, returns
+	 * false if there are no more records. The frame content is read only if
+	 * \e withData is true, the content is otherwise skipped over (this.length
+	 * is, however, always valid).
+	 */
+	public
+	boolean next(final boolean withData)
+	throws IOException
+	{
+		try {
+			type = in.readByte();
+		}
+		catch (EOFException e) {
+			return false;
+		}
+		session = in.readInt();
+		time = in.readLong();
+
+		switch (type)
+		{
+		case CaptureLog.BIND:
+		case CaptureLog.CONNECT:
+			addr = in.readUTF();
+			break;
+		case CaptureLog.SENT:
+		case CaptureLog.RECEIVED:
+			comingMore = in.readByte() != 0;
+			length = in.readInt();
+			if (withData)
+			{
+				if (data.length < length) data = new byte[length];
+				in.readFully(data, 0, length);
+			}
+			else
+			{
+				long toSkip = length;
+				while (toSkip > 0)
+				{
+					final long skipped = in.skip(toSkip);
+					if (skipped <= 0) throw new EOFException("Truncated capture log.");
+					toSkip -= skipped;
+				}
+			}
+			break;
+		case CaptureLog.CLOSE:
+			break;
+		default:
+			throw new IOException("Corrupted capture log, unknown record type "+type);
+		}
+
+		return true;
+	}
+
+	public
+	void close()
+	throws IOException
+	{
+		in.close();
+	}
+}
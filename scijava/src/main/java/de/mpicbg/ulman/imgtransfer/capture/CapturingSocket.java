@@ -0,0 +1,148 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer.capture;
+
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+import java.nio.ByteBuffer;
+
+/**
+ * A ZeroMQ socket that behaves exactly like the standard one, except that it
+ * additionally records every frame it has sent or received into the CaptureLog.
+ *
+ * Only the "bottom" send/recv methods are overridden, the convenience ones
+ * (e.g., send(String) or recvStr()) end up calling these anyway.
+ */
+public class CapturingSocket extends ZMQ.Socket
+{
+	final CaptureLog log;
+	final int session;
+
+	public
+	CapturingSocket(final ZMQ.Context context, final SocketType type, final CaptureLog _log)
+	{
+		super(context, type);
+		log = _log;
+		session = log.newSession();
+	}
+
+
+	@Override
+	public boolean bind(final String addr)
+	{
+		log.endpoint(session, CaptureLog.BIND, addr);
+		return super.bind(addr);
+	}
+
+	@Override
+	public boolean connect(final String addr)
+	{
+		log.endpoint(session, CaptureLog.CONNECT, addr);
+		return super.connect(addr);
+	}
+
+	@Override
+	public void close()
+	{
+		log.close(session);
+		super.close();
+	}
+
+
+	@Override
+	public boolean send(final byte[] data, final int flags)
+	{
+		final boolean ok = super.send(data, flags);
+		if (ok) log.frame(session, CaptureLog.SENT, moreFlag(flags), data, 0, data.length);
+		return ok;
+	}
+
+	@Override
+	public boolean send(final byte[] data, final int off, final int length, final int flags)
+	{
+		final boolean ok = super.send(data, off, length, flags);
+		if (ok) log.frame(session, CaptureLog.SENT, moreFlag(flags), data, off, length);
+		return ok;
+	}
+
+	@Override
+	public int sendByteBuffer(final ByteBuffer data, final int flags)
+	{
+		//NB: record before sending as the sending moves the buffer's position
+		final ByteBuffer d = data.duplicate();
+		final int cnt = super.sendByteBuffer(data, flags);
+		if (cnt >= 0)
+		{
+			d.limit(d.position()+cnt);
+			log.frame(session, CaptureLog.SENT, moreFlag(flags), d);
+		}
+		return cnt;
+	}
+
+
+	@Override
+	public byte[] recv(final int flags)
+	{
+		final byte[] data = super.recv(flags);
+		if (data != null)
+			log.frame(session, CaptureLog.RECEIVED, moreFlag(), data, 0, data.length);
+		return data;
+	}
+
+	@Override
+	public int recv(final byte[] buffer, final int offset, final int len, final int flags)
+	{
+		final int cnt = super.recv(buffer, offset, len, flags);
+		if (cnt >= 0)
+			log.frame(session, CaptureLog.RECEIVED, moreFlag(), buffer, offset, Math.min(cnt,len));
+		return cnt;
+	}
+
+	@Override
+	public int recvByteBuffer(final ByteBuffer buffer, final int flags)
+	{
+		final int startPos = buffer.position();
+		final int cnt = super.recvByteBuffer(buffer, flags);
+		if (cnt >= 0)
+		{
+			final ByteBuffer d = buffer.duplicate();
+			d.position(startPos).limit(startPos+cnt);
+			log.frame(session, CaptureLog.RECEIVED, moreFlag(), d);
+		}
+		return cnt;
+	}
+
+
+	private static
+	int moreFlag(final int sendFlags)
+	{ return (sendFlags & ZMQ.SNDMORE) != 0 ? 1 : 0; }
+
+	private
+	int moreFlag()
+	{ return hasReceiveMore() ? 1 : 0; }
+}
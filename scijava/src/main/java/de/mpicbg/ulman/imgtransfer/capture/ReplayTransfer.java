@@ -0,0 +1,270 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer.capture;
+
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Drives one side of the image transfer protocol from a capture log
+ * (see CaptureLog and ImgTransfer.startCapture()).
+ *
+ * The replay takes the chosen session, that is, the traffic seen by one socket
+ * of the original transfer, and plays the role of this socket: every frame
+ * that the original socket has sent is sent again, and every frame that the
+ * original socket has received is expected to arrive from the (real) peer.
+ * Frames are sent either with the original timing or as fast as possible.
+ *
+ * Usage:
+ *   ReplayTransfer captureLog
+ *     lists the sessions found in the log
+ *
+ *   ReplayTransfer captureLog sessionNo [-max] [-endpoint addr] [-timeout seconds]
+ *     replays the given session, optionally as fast as possible (-max),
+ *     optionally binding/connecting to some other address than the original one
+ */
+public class ReplayTransfer
+{
+	public static
+	void main(final String... args)
+	{
+		if (args.length == 0)
+		{
+			System.out.println("Usage: ReplayTransfer captureLog [sessionNo [-max] [-endpoint addr] [-timeout seconds]]");
+			return;
+		}
+
+		try {
+			if (args.length == 1)
+			{
+				listSessions(args[0]);
+				return;
+			}
+
+			boolean maxSpeed = false;
+			String endpoint = null;
+			int timeOut = 60;
+			for (int i=2; i < args.length; ++i)
+			{
+				if (args[i].equals("-max")) maxSpeed = true;
+				else
+				if (args[i].equals("-endpoint") && i+1 < args.length) endpoint = args[++i];
+				else
+				if (args[i].equals("-timeout") && i+1 < args.length) timeOut = Integer.parseInt(args[++i]);
+				else
+					throw new IllegalArgumentException("Unrecognized option: "+args[i]);
+			}
+
+			new ReplayTransfer(args[0], Integer.parseInt(args[1]), maxSpeed, endpoint, timeOut).replay();
+		}
+		catch (IOException | RuntimeException e) {
+			System.out.println("replay failed: "+e.getMessage());
+		}
+	}
+
+	///prints overview of all sessions found in the \e logFile
+	public static
+	void listSessions(final String logFile)
+	throws IOException
+	{
+		//session -> {frames sent, Bytes sent, frames received, Bytes received}
+		final Map<Integer,long[]> stats = new TreeMap<>();
+		final Map<Integer,String> endpoints = new TreeMap<>();
+
+		final CaptureReader r = new CaptureReader(logFile);
+		while (r.next(false))
+		{
+			final long[] s = stats.computeIfAbsent(r.session, k -> new long[4]);
+			switch (r.type)
+			{
+			case CaptureLog.BIND:
+				endpoints.put(r.session, "bind "+r.addr);
+				break;
+			case CaptureLog.CONNECT:
+				endpoints.put(r.session, "connect "+r.addr);
+				break;
+			case CaptureLog.SENT:
+				s[0]++; s[1] += r.length;
+				break;
+			case CaptureLog.RECEIVED:
+				s[2]++; s[3] += r.length;
+				break;
+			}
+		}
+		r.close();
+
+		for (int session : stats.keySet())
+		{
+			final long[] s = stats.get(session);
+			System.out.println("session "+session+": "+endpoints.getOrDefault(session,"no endpoint")
+			  +", sent "+s[0]+" frames ("+s[1]+" B), received "+s[2]+" frames ("+s[3]+" B)");
+		}
+	}
+
+
+	// -------- the replay itself --------
+	final String logFile;
+	final int session;
+	final boolean maxSpeed;
+	final String endpoint;
+	final int timeOut;
+
+	public
+	ReplayTransfer(final String _logFile, final int _session, final boolean _maxSpeed,
+	               final String _endpoint, final int _timeOut)
+	{
+		logFile = _logFile;
+		session = _session;
+		maxSpeed = _maxSpeed;
+		endpoint = _endpoint;
+		timeOut = _timeOut;
+	}
+
+	/**
+	 * Replays the session, returns the number of Bytes sent and received.
+	 * Throws RuntimeException if the peer does not behave as in the log.
+	 */
+	public
+	long replay()
+	throws IOException
+	{
+		final CaptureReader r = new CaptureReader(logFile);
+		final ZMQ.Context zmqContext = ZMQ.context(1);
+		ZMQ.Socket socket = null;
+		String usedAddr = null;
+		boolean usedBind = false;
+
+		//statistics
+		long framesSent = 0, framesRecv = 0, bytesSent = 0, bytesRecv = 0, lengthMismatches = 0;
+
+		//replay timing: pairs of the recorded time and of the wall time, that are
+		//considered to represent the same moment, it is updated after every receive
+		//to compensate for the speed of the (real) peer
+		long anchorRecTime = -1, anchorWallTime = 0;
+		final long startWallTime = System.nanoTime();
+
+		try {
+			while (r.next(true))
+			{
+				if (r.session != session) continue;
+				if (anchorRecTime < 0)
+				{
+					anchorRecTime = r.time;
+					anchorWallTime = System.nanoTime();
+				}
+
+				switch (r.type)
+				{
+				case CaptureLog.BIND:
+				case CaptureLog.CONNECT:
+					socket = zmqContext.socket(SocketType.PAIR);
+					socket.setReceiveTimeOut(timeOut * 1000);
+					usedAddr = endpoint != null ? endpoint : r.addr;
+					usedBind = r.type == CaptureLog.BIND;
+					if (usedBind) socket.bind(usedAddr);
+					else socket.connect(usedAddr);
+					System.out.println((usedBind ? "bound to " : "connected to ")+usedAddr);
+					break;
+
+				case CaptureLog.SENT:
+					if (socket == null) throw new RuntimeException("Log is missing the session's endpoint.");
+					if (!maxSpeed)
+					{
+						final long waitTime = (anchorWallTime + (r.time - anchorRecTime)) - System.nanoTime();
+						if (waitTime > 0) sleepNanos(waitTime);
+					}
+					socket.send(r.data, 0, r.length, r.comingMore ? ZMQ.SNDMORE : 0);
+					++framesSent;
+					bytesSent += r.length;
+					break;
+
+				case CaptureLog.RECEIVED:
+					if (socket == null) throw new RuntimeException("Log is missing the session's endpoint.");
+					final byte[] data = socket.recv(0);
+					if (data == null)
+						throw new RuntimeException("Peer has not delivered frame no. "+(framesRecv+1)
+						  +" within "+timeOut+" seconds.");
+					if (data.length != r.length) ++lengthMismatches;
+					else
+					if (r.length < 256 && !Arrays.equals(data, Arrays.copyOf(r.data, r.length)))
+						//short frames are the protocol messages, they should match exactly
+						System.out.println("protocol message differs: got \""+new String(data)
+						  +"\", recorded \""+new String(r.data,0,r.length)+"\"");
+					++framesRecv;
+					bytesRecv += data.length;
+
+					anchorRecTime = r.time;
+					anchorWallTime = System.nanoTime();
+					break;
+
+				case CaptureLog.CLOSE:
+					//wait for the peer to read everything, then close
+					closeSocket(socket, usedAddr, usedBind);
+					socket = null;
+					break;
+				}
+			}
+		}
+		finally {
+			r.close();
+			if (socket != null) closeSocket(socket, usedAddr, usedBind);
+		}
+
+		final double secs = (System.nanoTime() - startWallTime) / 1e9;
+		System.out.println("replayed session "+session+" in "+String.format("%.3f",secs)+" s: sent "
+		  +framesSent+" frames ("+bytesSent+" B), received "+framesRecv+" frames ("+bytesRecv+" B), "
+		  +String.format("%.2f",(bytesSent+bytesRecv)/secs/(1 << 20))+" MB/s");
+		if (lengthMismatches > 0)
+			System.out.println("WARNING: "+lengthMismatches+" received frames differ in length from the log");
+
+		return bytesSent+bytesRecv;
+	}
+
+	private static
+	void closeSocket(final ZMQ.Socket socket, final String addr, final boolean wasBound)
+	{
+		socket.setLinger(1000 * 60);
+		if (wasBound) socket.unbind(addr);
+		else socket.disconnect(addr);
+		socket.close();
+	}
+
+	private static
+	void sleepNanos(final long nanos)
+	{
+		try {
+			Thread.sleep(nanos / 1000000, (int)(nanos % 1000000));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
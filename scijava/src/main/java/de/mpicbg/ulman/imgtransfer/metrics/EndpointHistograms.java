@@ -0,0 +1,213 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer.metrics;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Aggregates the reported transfers per endpoint and direction into counters
+ * and histograms (of throughput and of durations of the individual phases),
+ * and renders them in the Prometheus text exposition format.
+ *
+ * Typical use in a long-running process:
+ * <pre>
+ *   EndpointHistograms h = new EndpointHistograms();
+ *   TransferMetrics.addListener(h);
+ *   h.exposeOverHttp(9100); //serves http://host:9100/metrics
+ * </pre>
+ */
+public class EndpointHistograms implements TransferListener
+{
+	///upper bounds of the throughput buckets, in MB/s
+	static final double[] MBPS_BUCKETS = { 1, 5, 10, 50, 100, 250, 500, 1000, 2500, 5000 };
+
+	///upper bounds of the phase duration buckets, in seconds
+	static final double[] SECONDS_BUCKETS = { 0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 60 };
+
+	static class Histogram
+	{
+		final double[] bounds;
+		final long[] counts;
+		double sum = 0;
+		long count = 0;
+
+		Histogram(final double[] _bounds)
+		{
+			bounds = _bounds;
+			counts = new long[bounds.length];
+		}
+
+		void observe(final double value)
+		{
+			for (int i=0; i < bounds.length; ++i)
+				if (value <= bounds[i]) ++counts[i];
+			sum += value;
+			++count;
+		}
+
+		void render(final StringBuilder sb, final String name, final String labels)
+		{
+			for (int i=0; i < bounds.length; ++i)
+				sb.append(name).append("_bucket{").append(labels).append(",le=\"")
+				  .append(bounds[i]).append("\"} ").append(counts[i]).append('\n');
+			sb.append(name).append("_bucket{").append(labels).append(",le=\"+Inf\"} ")
+			  .append(count).append('\n');
+			sb.append(name).append("_sum{").append(labels).append("} ").append(sum).append('\n');
+			sb.append(name).append("_count{").append(labels).append("} ").append(count).append('\n');
+		}
+	}
+
+	static class Aggregate
+	{
+		long transfers = 0;
+		long failures = 0;
+		long bytes = 0;
+		long chunks = 0;
+		final Histogram throughput = new Histogram(MBPS_BUCKETS);
+		final Histogram[] phases = new Histogram[Phase.values().length];
+
+		Aggregate()
+		{
+			for (int i=0; i < phases.length; ++i)
+				phases[i] = new Histogram(SECONDS_BUCKETS);
+		}
+	}
+
+	///keys are the rendered labels, e.g. endpoint="tcp://*:54545",direction="recv"
+	private final Map<String,Aggregate> aggregates = new TreeMap<>();
+
+	private HttpServer server = null;
+
+
+	@Override
+	public synchronized
+	void transferFinished(final TransferStats stats)
+	{
+		final String labels = "endpoint=\"" + stats.getEndpoint().replace("\"","\\\"")
+		                    + "\",direction=\"" + (stats.isSending() ? "send" : "recv") + "\"";
+		Aggregate a = aggregates.get(labels);
+		if (a == null)
+		{
+			a = new Aggregate();
+			aggregates.put(labels, a);
+		}
+
+		++a.transfers;
+		if (!stats.isSucceeded())
+		{
+			//failed transfers are only counted, their timing would spoil the histograms
+			++a.failures;
+			return;
+		}
+
+		a.bytes  += stats.getBytes();
+		a.chunks += stats.getChunks();
+		a.throughput.observe(stats.getMegaBytesPerSecond());
+		for (Phase p : Phase.values())
+			a.phases[p.ordinal()].observe((double)stats.getPhaseNanos(p) / 1e9);
+	}
+
+	///forgets everything aggregated so far
+	public synchronized
+	void reset()
+	{ aggregates.clear(); }
+
+	///returns the current state in the Prometheus text exposition format
+	public synchronized
+	String scrape()
+	{
+		final StringBuilder sb = new StringBuilder();
+
+		sb.append("# TYPE imgtransfer_transfers_total counter\n");
+		for (Map.Entry<String,Aggregate> e : aggregates.entrySet())
+			sb.append("imgtransfer_transfers_total{").append(e.getKey()).append("} ")
+			  .append(e.getValue().transfers).append('\n');
+
+		sb.append("# TYPE imgtransfer_failures_total counter\n");
+		for (Map.Entry<String,Aggregate> e : aggregates.entrySet())
+			sb.append("imgtransfer_failures_total{").append(e.getKey()).append("} ")
+			  .append(e.getValue().failures).append('\n');
+
+		sb.append("# TYPE imgtransfer_bytes_total counter\n");
+		for (Map.Entry<String,Aggregate> e : aggregates.entrySet())
+			sb.append("imgtransfer_bytes_total{").append(e.getKey()).append("} ")
+			  .append(e.getValue().bytes).append('\n');
+
+		sb.append("# TYPE imgtransfer_chunks_total counter\n");
+		for (Map.Entry<String,Aggregate> e : aggregates.entrySet())
+			sb.append("imgtransfer_chunks_total{").append(e.getKey()).append("} ")
+			  .append(e.getValue().chunks).append('\n');
+
+		sb.append("# TYPE imgtransfer_throughput_mbps histogram\n");
+		for (Map.Entry<String,Aggregate> e : aggregates.entrySet())
+			e.getValue().throughput.render(sb, "imgtransfer_throughput_mbps", e.getKey());
+
+		sb.append("# TYPE imgtransfer_phase_seconds histogram\n");
+		for (Map.Entry<String,Aggregate> e : aggregates.entrySet())
+			for (Phase p : Phase.values())
+				e.getValue().phases[p.ordinal()].render(sb, "imgtransfer_phase_seconds",
+					e.getKey() + ",phase=\"" + p.name().toLowerCase() + "\"");
+
+		return sb.toString();
+	}
+
+	/**
+	 * Starts a tiny HTTP server that answers scrape() at http://*:port/metrics.
+	 * The server runs in its own thread until stopHttp() is called.
+	 */
+	public synchronized
+	void exposeOverHttp(final int port)
+	throws IOException
+	{
+		if (server != null)
+			throw new RuntimeException("Metrics are already exposed at port "+server.getAddress().getPort());
+
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/metrics", exchange -> {
+			final byte[] body = scrape().getBytes(StandardCharsets.UTF_8);
+			exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream os = exchange.getResponseBody()) { os.write(body); }
+		});
+		server.start();
+	}
+
+	public synchronized
+	void stopHttp()
+	{
+		if (server == null) return;
+		server.stop(0);
+		server = null;
+	}
+}
@@ -0,0 +1,76 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer.metrics;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * The registry of TransferListeners, every image transfer of this JVM
+ * reports its TransferStats to all of them.
+ */
+public class TransferMetrics
+{
+	private static final List<TransferListener> listeners = new CopyOnWriteArrayList<>();
+
+	public static
+	void addListener(final TransferListener l)
+	{ listeners.add(l); }
+
+	public static
+	void removeListener(final TransferListener l)
+	{ listeners.remove(l); }
+
+	///returns true if there is at least one listener, i.e., if it makes sense to measure
+	public static
+	boolean isEnabled()
+	{ return !listeners.isEmpty(); }
+
+	/**
+	 * Returns new TransferStats to measure a transfer with, or null
+	 * if there is no listener (and thus no need to measure anything).
+	 */
+	public static
+	TransferStats newStats(final String endpoint, final boolean sending)
+	{ return isEnabled() ? new TransferStats(endpoint, sending) : null; }
+
+	///hands the \e stats to all listeners, a failing listener does not stop the others
+	public static
+	void report(final TransferStats stats)
+	{
+		for (TransferListener l : listeners)
+		{
+			try {
+				l.transferFinished(stats);
+			}
+			catch (RuntimeException e) {
+				//the listener's problem, not the transfer's one
+			}
+		}
+	}
+}
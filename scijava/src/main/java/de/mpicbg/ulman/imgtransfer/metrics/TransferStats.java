@@ -0,0 +1,144 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer.metrics;
+
+/**
+ * Measurements of one image transfer, as seen from one of the peers.
+ *
+ * The phases are timed as laps: lap(p) adds the time elapsed since the
+ * previous lap (or since the creation of this object) to the phase p.
+ * The CONNECT phase is measured only for the first image of a connection
+ * and only where it can be told apart, that is, not for the sender that
+ * connects (ZeroMQ connects lazily, which is accounted into HANDSHAKE then).
+ */
+public class TransferStats
+{
+	public static final String CHANNEL_SOCKET    = "socket";
+	public static final String CHANNEL_SHM       = "shm";
+	public static final String CHANNEL_REFERENCE = "reference";
+
+	private final String endpoint;
+	private final boolean sending;
+	private final long startTime = System.currentTimeMillis();
+
+	private final long[] phaseNanos = new long[Phase.values().length];
+	private long lastLap = System.nanoTime();
+
+	private String channel = CHANNEL_SOCKET;
+	private long bytes = 0;
+	private long chunks = 0;
+	private boolean succeeded = false;
+
+	public TransferStats(final String _endpoint, final boolean _sending)
+	{
+		endpoint = _endpoint;
+		sending = _sending;
+	}
+
+	///adds the time elapsed since the previous lap to the \e phase
+	public
+	void lap(final Phase phase)
+	{
+		final long now = System.nanoTime();
+		phaseNanos[phase.ordinal()] += now - lastLap;
+		lastLap = now;
+	}
+
+	public
+	void addPayload(final long _bytes, final long _chunks)
+	{
+		bytes += _bytes;
+		chunks += _chunks;
+	}
+
+	public
+	void setChannel(final String _channel)
+	{ channel = _channel; }
+
+	public
+	void setSucceeded(final boolean _succeeded)
+	{ succeeded = _succeeded; }
+
+	// -------- readers --------
+	///the peer's address, or the listening endpoint
+	public String getEndpoint() { return endpoint; }
+	///true for the sending (or serving) side, false for the receiving (or requesting) side
+	public boolean isSending() { return sending; }
+	///one of the CHANNEL_ constants, tells how the voxel data travelled
+	public String getChannel() { return channel; }
+	///when the transfer has started, in milliseconds since the epoch
+	public long getStartTime() { return startTime; }
+	public long getBytes() { return bytes; }
+	public long getChunks() { return chunks; }
+	public boolean isSucceeded() { return succeeded; }
+
+	public
+	long getPhaseNanos(final Phase phase)
+	{ return phaseNanos[phase.ordinal()]; }
+
+	///the duration of the transfer, excluding the CONNECT phase
+	public
+	long getTransferNanos()
+	{
+		long sum = 0;
+		for (Phase p : Phase.values())
+			if (p != Phase.CONNECT) sum += phaseNanos[p.ordinal()];
+		return sum;
+	}
+
+	///bytes per the duration of the transfer (excluding the CONNECT phase), in MB/s
+	public
+	double getMegaBytesPerSecond()
+	{
+		final long nanos = getTransferNanos();
+		return nanos > 0 ? (double)bytes * 1000.0 / (double)nanos : 0.0;
+	}
+
+	///bytes per the duration of the PAYLOAD phase, in MB/s
+	public
+	double getPayloadMegaBytesPerSecond()
+	{
+		final long nanos = getPhaseNanos(Phase.PAYLOAD);
+		return nanos > 0 ? (double)bytes * 1000.0 / (double)nanos : 0.0;
+	}
+
+	@Override
+	public
+	String toString()
+	{
+		final StringBuilder sb = new StringBuilder();
+		sb.append(sending ? "sent " : "received ").append(succeeded ? "" : "(FAILED) ")
+		  .append(bytes).append(" B in ").append(chunks).append(" chunks via ").append(channel)
+		  .append(", ").append(endpoint).append(':');
+		for (Phase p : Phase.values())
+			sb.append(' ').append(p.name().toLowerCase()).append('=')
+			  .append(String.format("%.1f", getPhaseNanos(p)/1e6)).append("ms");
+		sb.append(String.format(", %.1f MB/s", getMegaBytesPerSecond()));
+		return sb.toString();
+	}
+}
@@ -0,0 +1,32 @@
+package de.mpicbg.ulman.imgtransfer.sockets;
+
+import de.mpicbg.ulman.imgtransfer.buffers.Buffer;
+import de.mpicbg.ulman.imgtransfer.buffers.ParallelConverter;
+import de.mpicbg.ulman.imgtransfer.ShmTransfer;
+import java.io.IOException;
+
+public class RecvFromShm implements Socket
+{
+	final ShmTransfer.Segment segment;
+	final Buffer sender;
+
+	public
+	RecvFromShm(final ShmTransfer.Segment _segment, final Buffer _sender)
+	{
+		segment = _segment;
+		sender = _sender;
+	}
+
+
+	public
+	void transmit(final Object arrayWrite, int offset, int length,
+	              final int sendOnlyFlags)
+	{
+		try {
+			ParallelConverter.recv(sender, segment.slice(sender.getElemSize()*length), arrayWrite, offset, length);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Cannot read from shared memory: "+e.getMessage());
+		}
+	}
+}
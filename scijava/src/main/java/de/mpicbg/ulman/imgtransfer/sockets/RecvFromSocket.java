@@ -28,17 +28,28 @@
 package de.mpicbg.ulman.imgtransfer.sockets;
 
 import de.mpicbg.ulman.imgtransfer.buffers.Buffer;
+import de.mpicbg.ulman.imgtransfer.buffers.ParallelConverter;
 import de.mpicbg.ulman.imgtransfer.ArrayPacker;
+import de.mpicbg.ulman.imgtransfer.CodecController;
 import org.zeromq.ZMQ;
 import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
 
 public class RecvFromSocket implements Socket
 {
 	final ZMQ.Socket socket;
 	final Buffer sender;
 
-	//a handle on a local buffer to be potentially re-used
-	ByteBuffer buf = null;
+	//handles on two local buffers to be potentially re-used: while the chunk
+	//in one is being converted into the array, the next chunk is received into the other
+	final ByteBuffer[] bufs = new ByteBuffer[2];
+	int currentBuf = 0;
+
+	//the conversion of the previous chunk, if still running
+	Future<?> pendingConversion = null;
+
+	//if not null, every chunk comes with the leading codec byte and is possibly encoded
+	CodecController codecs = null;
 
 	public
 	RecvFromSocket(final ZMQ.Socket _socket, final Buffer _sender)
@@ -53,24 +64,53 @@ public class RecvFromSocket implements Socket
 	              final int sendOnlyFlags)
 	{
 		//the optimal length of the aux ByteBuffer for the current data
-		final int arrayLength = sender.getElemSize()*length;
+		//NB: the encoded chunk is never longer than the raw one
+		final int arrayLength = sender.getElemSize()*length + (codecs != null ? 1 : 0);
 
-		if (buf != null)
-		{
-			//buffer exist, is long enough?
-			//NB: must be limited to the exact length, otherwise ZMQ waits to fill it...
-			if (buf.limit() > arrayLength) buf.limit(arrayLength);
-			buf.rewind();
-		}
-		if (buf == null || buf.limit() < arrayLength)
+		//NB: the other buffer may be still in use by the pendingConversion
+		ByteBuffer buf = bufs[currentBuf];
+		if (buf == null || buf.capacity() < arrayLength)
 		{
 			//no buffer, or one with an inadequate length
 			buf = ByteBuffer.allocateDirect(arrayLength);
+			bufs[currentBuf] = buf;
+		}
+		else
+		{
+			//buffer exist and is long enough
+			//NB: must be limited to the exact length, otherwise ZMQ waits to fill it...
+			buf.limit(arrayLength);
+			buf.rewind();
 		}
 
 		ArrayPacker.waitForNextMessage(socket);
-		socket.recvByteBuffer(buf, 0);
+		final int size = socket.recvByteBuffer(buf, 0);
 		buf.rewind();
-		sender.recv(buf, arrayWrite, offset, length);
+
+		//NB: the raw chunk is decoded just into a view on the buf
+		final ByteBuffer data = codecs == null ? buf :
+		  codecs.getCodec().decode(buf, size, sender.getElemSize()*length);
+
+		//convert this chunk in the background while the next one is being received,
+		//but never more than one chunk at a time
+		flush();
+		pendingConversion = ParallelConverter.recvAsync(sender, data, arrayWrite, offset, length);
+		currentBuf = 1 - currentBuf;
+	}
+
+	///makes every chunk to be expected with the leading codec byte, and to be decoded
+	public
+	void setChunkCodecs(final CodecController _codecs)
+	{ codecs = _codecs; }
+
+	@Override
+	public
+	void flush()
+	{
+		if (pendingConversion == null) return;
+
+		final Future<?> conversion = pendingConversion;
+		pendingConversion = null;
+		ParallelConverter.waitFor(conversion);
 	}
 }
@@ -0,0 +1,33 @@
+package de.mpicbg.ulman.imgtransfer.sockets;
+
+import de.mpicbg.ulman.imgtransfer.buffers.Buffer;
+import de.mpicbg.ulman.imgtransfer.buffers.ParallelConverter;
+import de.mpicbg.ulman.imgtransfer.ShmTransfer;
+import java.io.IOException;
+
+public class SendToShm implements Socket
+{
+	final ShmTransfer.Segment segment;
+	final Buffer sender;
+
+	public
+	SendToShm(final ShmTransfer.Segment _segment, final Buffer _sender)
+	{
+		segment = _segment;
+		sender = _sender;
+	}
+
+
+	public
+	void transmit(final Object arrayRead, int offset, int length,
+	              final int sendOnlyFlags)
+	{
+		//the data goes directly into the shared memory, no flags are relevant
+		try {
+			ParallelConverter.send(sender, segment.slice(sender.getElemSize()*length), arrayRead, offset, length);
+		}
+		catch (IOException e) {
+			throw new RuntimeException("Cannot write into shared memory: "+e.getMessage());
+		}
+	}
+}
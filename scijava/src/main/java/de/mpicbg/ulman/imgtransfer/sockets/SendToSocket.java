@@ -28,14 +28,29 @@
 package de.mpicbg.ulman.imgtransfer.sockets;
 
 import de.mpicbg.ulman.imgtransfer.buffers.Buffer;
+import de.mpicbg.ulman.imgtransfer.buffers.ParallelConverter;
+import de.mpicbg.ulman.imgtransfer.ChunkCodec;
+import de.mpicbg.ulman.imgtransfer.CodecController;
+import de.mpicbg.ulman.imgtransfer.RateLimiter;
 import org.zeromq.ZMQ;
 import java.nio.ByteBuffer;
+import java.util.Queue;
 
 public class SendToSocket implements Socket
 {
 	final ZMQ.Socket socket;
 	final Buffer sender;
 
+	//the bandwidth limit of this transfer
+	RateLimiter limiter = RateLimiter.NO_TRANSFER_LIMIT;
+
+	//if not null, every chunk is sent with the leading codec byte and possibly encoded
+	CodecController codecs = null;
+
+	//if not null, the chunks of the array being sent have been already converted (with the
+	//spare leading byte for the codec), they are taken from here instead of being converted
+	Queue<ByteBuffer> packedChunks = null;
+
 	public
 	SendToSocket(final ZMQ.Socket _socket, final Buffer _sender)
 	{
@@ -51,10 +66,61 @@ public class SendToSocket implements Socket
 		//ZMQ.Socket does not copy ByteBuffer into its own space;
 		//at the same time, it does not signal back if the data was transfered;
 		//so, we need to create an extra ByteBuffer for every individual transfer
-		final ByteBuffer buf = ByteBuffer.allocateDirect(sender.getElemSize()*length);
+		final int bytes = sender.getElemSize()*length;
+		ByteBuffer buf = packedChunks != null ? packedChunks.poll() : null;
+
+		if (buf != null && buf.capacity() == bytes+1)
+		{
+			buf.position(1);
+			if (codecs == null) buf = buf.slice();
+		}
+		else
+		{
+			//the chunks converted ahead do not fit, converting this and the remaining chunks here
+			packedChunks = null;
+			buf = ByteBuffer.allocateDirect(bytes + (codecs != null ? 1 : 0));
 
-		sender.send(buf, arrayRead, offset, length);
+			if (codecs != null) buf.position(1);
+			ParallelConverter.send(sender, buf, arrayRead, offset, length);
+		}
+
+		if (codecs != null)
+		{
+			final byte encoding = codecs.choose(buf, bytes);
+			final long start = System.nanoTime();
+			final int size = codecs.getCodec().encode(encoding, buf, bytes);
+			final long nanos = System.nanoTime() - start;
+			if (size > 0)
+			{
+				//NB: the array is copied by ZMQ, the codec can reuse it for the next chunk
+				codecs.chunkSent(encoding, bytes, size, nanos, encoding);
+				limiter.acquire(size);
+				socket.send(codecs.getCodec().getEncoded(), 0, size, sendOnlyFlags);
+				return;
+			}
+
+			//the encoding has not paid off, sending raw
+			codecs.chunkSent(encoding, bytes, bytes+1, nanos, ChunkCodec.RAW);
+			buf.put(0, ChunkCodec.RAW);
+		}
 		buf.rewind();
+
+		limiter.acquire(buf.limit());
 		socket.sendByteBuffer(buf, sendOnlyFlags);
 	}
+
+	///makes every chunk to be sent with the leading codec byte, encoded as the \e codecs decide
+	public
+	void setChunkCodecs(final CodecController _codecs)
+	{ codecs = _codecs; }
+
+	///makes the chunks to be sent within the bandwidth \e limiter of this transfer, null for no limit
+	public
+	void setRateLimiter(final RateLimiter _limiter)
+	{ limiter = _limiter != null ? _limiter : RateLimiter.NO_TRANSFER_LIMIT; }
+
+	///makes the next chunks to be taken from the \e chunks converted ahead, null stops it
+	public
+	void setPackedChunks(final Queue<ByteBuffer> chunks)
+	{ packedChunks = chunks; }
 }
@@ -40,4 +40,11 @@ public interface Socket
 	 */
 	void transmit(final Object array, int offset, int length,
 	              final int sendOnlyFlags);
+
+	/**
+	 * Returns once all transmit()-ed data is really in place, e.g., the
+	 * receiver may be still converting the last chunk in the background.
+	 */
+	default
+	void flush() {}
 }
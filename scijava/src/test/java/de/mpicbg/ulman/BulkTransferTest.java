@@ -0,0 +1,58 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+public class BulkTransferTest
+{
+	@Test
+	public void fileNameStaysInTheOutputFolder()
+	{
+		final Set<String> used = new HashSet<>();
+		assertEquals("image_1.tif", BulkTransfer.fileName(".", 1, used));
+		assertEquals("image_2.tif", BulkTransfer.fileName("..", 2, used));
+		assertEquals("image_3.tif", BulkTransfer.fileName("", 3, used));
+		assertEquals("image_4.tif", BulkTransfer.fileName(null, 4, used));
+		assertEquals(".._.._etc_passwd", BulkTransfer.fileName("../../etc/passwd", 5, used));
+	}
+
+	@Test
+	public void fileNamesAreUnique()
+	{
+		final Set<String> used = new HashSet<>();
+		assertEquals("cells.tif", BulkTransfer.fileName("cells", 1, used));
+		assertEquals("cells_2.tif", BulkTransfer.fileName("cells", 2, used));
+		assertEquals("cells_3.tif", BulkTransfer.fileName("cells.tif", 3, used));
+	}
+}
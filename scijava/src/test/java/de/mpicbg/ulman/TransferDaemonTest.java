@@ -0,0 +1,192 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class TransferDaemonTest
+{
+	///the jobs the daemon has run, every one as its words
+	private final List<List<String>> jobs = Collections.synchronizedList(new ArrayList<>());
+
+	///how many runners were created
+	private int runners = 0;
+
+	private int port;
+	private Thread daemon;
+
+	///NB: the token files go into the temporary home folder
+	@Rule
+	public TemporaryFolder home = new TemporaryFolder();
+	private String userHome;
+
+	///returns a runner that records the jobs instead of transferring anything
+	private
+	TransferDaemon.JobRunner recordingRunner()
+	{
+		++runners;
+		return (mode, peer, paths) -> {
+			final List<String> words = new ArrayList<>();
+			words.add(mode);
+			words.add(peer);
+			words.addAll(paths);
+			jobs.add(words);
+			return "job "+jobs.size();
+		};
+	}
+
+	@Before
+	public void startDaemon()
+	throws IOException, InterruptedException
+	{
+		userHome = System.getProperty("user.home");
+		System.setProperty("user.home", home.getRoot().getPath());
+
+		try (ServerSocket s = new ServerSocket(0)) {
+			port = s.getLocalPort();
+		}
+		final TransferDaemon.JobRunner runner = recordingRunner();
+		daemon = new Thread(() -> new TransferDaemon(runner).serve(port));
+		daemon.start();
+
+		//the daemon is ready once it has written its token
+		for (int i=0; i < 500 && !hasToken(); ++i) Thread.sleep(10);
+		assertTrue(hasToken());
+	}
+
+	private
+	boolean hasToken()
+	{
+		final String token = TransferDaemon.readToken(port);
+		return token != null && !token.isEmpty();
+	}
+
+	@After
+	public void stopDaemon()
+	throws InterruptedException
+	{
+		if (daemon.isAlive()) TransferDaemon.submit(port, Arrays.asList("shutdown"));
+		daemon.join(10000);
+		System.setProperty("user.home", userHome);
+	}
+
+	@Test
+	public void jobsReuseTheRunningDaemon()
+	{
+		assertEquals("ok job 1", TransferDaemon.submit(port, Arrays.asList("send", "otherhost:54545", "/data/a.tif")));
+		assertTrue(daemon.isAlive());
+		assertEquals("ok 0 jobs running", TransferDaemon.submit(port, Arrays.asList("status")));
+		assertEquals("ok job 2", TransferDaemon.submit(port, Arrays.asList("receive", "54546", "/data/out")));
+
+		//both jobs were run by the one daemon, at its one control channel, with its one runner
+		assertEquals(1, runners);
+		assertEquals(Arrays.asList("send", "otherhost:54545", "/data/a.tif"), jobs.get(0));
+		assertEquals(Arrays.asList("receive", "54546", "/data/out"), jobs.get(1));
+		assertTrue(daemon.isAlive());
+	}
+
+	@Test
+	public void wordsWithSpacesArePassedWhole()
+	{
+		assertEquals("ok job 1", TransferDaemon.submit(port, Arrays.asList("send", "host:1", "/my data/a b.tif")));
+		assertEquals(Arrays.asList("send", "host:1", "/my data/a b.tif"), jobs.get(0));
+	}
+
+	@Test
+	public void unknownJobIsRefused()
+	{
+		assertTrue(TransferDaemon.submit(port, Arrays.asList("copy", "a", "b")).startsWith("error unknown job"));
+		assertTrue(TransferDaemon.submit(port, Arrays.asList("send", "host:1")).startsWith("error unknown job"));
+		assertTrue(jobs.isEmpty());
+	}
+
+	@Test
+	public void shutdownStopsTheDaemon()
+	throws InterruptedException
+	{
+		assertTrue(TransferDaemon.submit(port, Arrays.asList("shutdown")).startsWith("ok"));
+		daemon.join(10000);
+		assertFalse(daemon.isAlive());
+	}
+
+	@Test
+	public void requestWithoutTheTokenIsRefused()
+	{
+		try (ZMQ.Context ctx = ZMQ.context(1); ZMQ.Socket socket = ctx.socket(SocketType.REQ))
+		{
+			socket.setLinger(0);
+			socket.connect(TransferDaemon.controlAddress(port));
+			socket.sendMore("0123456789abcdef");
+			socket.send("send host:1 /data/a.tif");
+			assertTrue(socket.recvStr().startsWith("error not authorized"));
+
+			//the job alone, without any token
+			socket.send("send host:1 /data/a.tif");
+			assertTrue(socket.recvStr().startsWith("error not authorized"));
+		}
+		assertTrue(jobs.isEmpty());
+	}
+
+	@Test
+	public void tokenIsReadableOnlyByTheUser()
+	throws IOException
+	{
+		final Path file = TransferDaemon.controlTokenFile(port);
+		if (file.getFileSystem().supportedFileAttributeViews().contains("posix"))
+			assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(file)));
+	}
+
+	@Test
+	public void tokenIsRemovedAtShutdown()
+	throws InterruptedException
+	{
+		TransferDaemon.submit(port, Arrays.asList("shutdown"));
+		daemon.join(10000);
+		assertFalse(Files.exists(TransferDaemon.controlTokenFile(port)));
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class BinaryHeaderTest
+{
+	private static
+	BinaryHeader fullHeader()
+	{
+		final BinaryHeader h = new BinaryHeader();
+		h.voxelType = 4;
+		h.backend = 1;
+		h.codec = BinaryHeader.CODEC_ADAPTIVE;
+		h.setDimensions(3);
+		h.dims[0] = 512; h.dims[1] = 256; h.dims[2] = 1L << 33;
+		h.setShmToken("shm:/dev/shm/imgtransfer-1.shm");
+		h.setImageName("name with spaces and ünicode");
+		h.setPlaneKeys("4x10xab,4x10xcd");
+		return h;
+	}
+
+	///returns a copy of the written header, as it would arrive over the socket
+	private static
+	byte[] written(final BinaryHeader h)
+	{
+		final int length = h.write();
+		return Arrays.copyOf(h.getBuffer(), length);
+	}
+
+	@Test
+	public void layoutOfTheFixedPart()
+	{
+		final byte[] data = written(fullHeader());
+
+		assertTrue(BinaryHeader.isBinaryHeader(data));
+		assertEquals('v', data[0]);
+		assertEquals('2', data[1]);
+		assertEquals(BinaryHeader.LAYOUT_REVISION, data[2]);
+		assertEquals(4, data[3]);
+		assertEquals(1, data[4]);
+		assertEquals(BinaryHeader.BIG_ENDIAN, data[5]);
+		assertEquals(BinaryHeader.CODEC_ADAPTIVE, data[6]);
+		assertEquals(3, data[7]);
+
+		//the sizes are big-endian longs right after the fixed part
+		assertArrayEquals(new byte[] {0,0,0,0,0,0,2,0}, Arrays.copyOfRange(data, 8, 16));
+		assertArrayEquals(new byte[] {0,0,0,2,0,0,0,0}, Arrays.copyOfRange(data, 24, 32));
+
+		//followed by the length of the shm token (2 bytes) and the token itself
+		final byte[] shm = "shm:/dev/shm/imgtransfer-1.shm".getBytes(StandardCharsets.UTF_8);
+		assertEquals(shm.length, ((data[32] & 0xFF) << 8) | (data[33] & 0xFF));
+		assertArrayEquals(shm, Arrays.copyOfRange(data, 34, 34+shm.length));
+
+		//and by the number of the metadata entries
+		final int pos = 34+shm.length;
+		assertEquals(2, ((data[pos] & 0xFF) << 8) | (data[pos+1] & 0xFF));
+	}
+
+	@Test
+	public void writtenHeaderIsParsedBack()
+	{
+		final BinaryHeader h = new BinaryHeader();
+		h.parse(written(fullHeader()));
+
+		assertEquals(4, h.voxelType);
+		assertEquals(1, h.backend);
+		assertEquals(BinaryHeader.BIG_ENDIAN, h.byteOrder);
+		assertEquals(BinaryHeader.CODEC_ADAPTIVE, h.codec);
+		assertEquals(3, h.numDimensions);
+		assertEquals(512, h.dims[0]);
+		assertEquals(256, h.dims[1]);
+		assertEquals(1L << 33, h.dims[2]);
+		assertEquals("shm:/dev/shm/imgtransfer-1.shm", h.getShmToken());
+		assertEquals("name with spaces and ünicode", h.getMetadata(BinaryHeader.IMAGENAME));
+		assertEquals("4x10xab,4x10xcd", h.getMetadata(BinaryHeader.PLANEKEYS));
+		assertNull(h.getMetadata("unknown"));
+	}
+
+	@Test
+	public void optionalPartsMayBeMissing()
+	{
+		final BinaryHeader w = new BinaryHeader();
+		w.setDimensions(2);
+		w.dims[0] = 10; w.dims[1] = 20;
+		final byte[] data = written(w);
+		assertEquals(8 + 2*8 + 2 + 2, data.length);
+
+		final BinaryHeader h = new BinaryHeader();
+		h.parse(data);
+		assertEquals(2, h.numDimensions);
+		assertNull(h.getShmToken());
+		assertNull(h.getMetadata(BinaryHeader.IMAGENAME));
+	}
+
+	@Test
+	public void reusedHeaderForgetsThePreviousContent()
+	{
+		final BinaryHeader w = fullHeader();
+		written(w);
+		w.setShmToken(null);
+		w.setPlaneKeys(null);
+
+		final BinaryHeader h = new BinaryHeader();
+		h.parse(written(w));
+		assertNull(h.getShmToken());
+		assertNull(h.getMetadata(BinaryHeader.PLANEKEYS));
+		assertEquals("name with spaces and ünicode", h.getMetadata(BinaryHeader.IMAGENAME));
+	}
+
+	@Test
+	public void headerLongerThanItsBufferIsWrittenWhole()
+	{
+		final BinaryHeader w = fullHeader();
+		final String longName = String.join("", Collections.nCopies(100, "long name "));
+		w.setImageName(longName);
+
+		final BinaryHeader h = new BinaryHeader();
+		h.parse(written(w));
+		assertEquals(longName, h.getMetadata(BinaryHeader.IMAGENAME));
+	}
+
+	@Test
+	public void longHeaderIsSentWhole()
+	throws Exception
+	{
+		final String shmDirectory = ShmTransfer.getDirectory();
+		ShmTransfer.setDirectory(null);
+		final ImgPlus<FloatType> img = Loopback.createImage(String.join("", Collections.nCopies(100, "long name ")), 32, 16);
+		final Session senderSession = new Session(false);
+		final Session receiverSession = new Session(false);
+		final List<byte[]> headers = new ArrayList<>();
+
+		try (Loopback l = new Loopback()) {
+			//the first image agrees on the binary header
+			final List<ImgPlus<?>> got = l.transfer(Arrays.asList(img, img), senderSession, receiverSession, headers);
+			assertTrue(BinaryHeader.isBinaryHeader(headers.get(1)));
+			Loopback.assertSameImage(img, got.get(1));
+		}
+		finally {
+			ShmTransfer.setDirectory(shmDirectory);
+		}
+	}
+
+	@Test
+	public void textHeaderIsNotBinary()
+	{
+		assertFalse(BinaryHeader.isBinaryHeader("v1 dimNumber 2 10 20 FloatType ArrayImg".getBytes()));
+		assertFalse(BinaryHeader.isBinaryHeader(new byte[] {'v'}));
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void truncatedHeaderIsRejected()
+	{
+		final byte[] data = written(fullHeader());
+		new BinaryHeader().parse(Arrays.copyOf(data, data.length-1));
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void newerRevisionIsRejected()
+	{
+		final byte[] data = written(fullHeader());
+		data[2] = BinaryHeader.LAYOUT_REVISION+1;
+		new BinaryHeader().parse(data);
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void unknownBackendIsRejected()
+	{
+		final byte[] data = written(fullHeader());
+		data[4] = (byte)BinaryHeader.BACKENDS.length;
+		new BinaryHeader().parse(data);
+	}
+}
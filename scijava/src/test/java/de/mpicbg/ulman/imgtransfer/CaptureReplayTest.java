@@ -0,0 +1,151 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+
+import de.mpicbg.ulman.imgtransfer.capture.CaptureLog;
+import de.mpicbg.ulman.imgtransfer.capture.CaptureReader;
+import de.mpicbg.ulman.imgtransfer.capture.CapturingSocket;
+import de.mpicbg.ulman.imgtransfer.capture.ReplayTransfer;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+public class CaptureReplayTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String shmDirectory;
+
+	@Before
+	public void disableShm()
+	{
+		shmDirectory = ShmTransfer.getDirectory();
+		//NB: the replayed log would refer to the shared memory that is gone
+		ShmTransfer.setDirectory(null);
+	}
+
+	@After
+	public void restoreShm()
+	{ ShmTransfer.setDirectory(shmDirectory); }
+
+	private final List<ImgPlus<FloatType>> imgs = Arrays.asList(
+	  Loopback.createImage("first", 32, 32), Loopback.createImage("second", 200, 100, 3));
+
+	///captures the sender of the this.imgs into the returned log, \e address[0] is set to the receiver's address
+	private
+	String captureSender(final String[] address)
+	throws Exception
+	{
+		final String logFile = folder.newFile().getPath();
+		final CaptureLog log = new CaptureLog(logFile);
+		try (Loopback l = new Loopback(new CapturingSocket(Loopback.zmqContext, SocketType.PAIR, log))) {
+			address[0] = l.address;
+			final List<ImgPlus<?>> got = l.transfer(imgs, new Session(false), new Session(false), null);
+			Loopback.assertSameImage(imgs.get(0), got.get(0));
+			Loopback.assertSameImage(imgs.get(1), got.get(1));
+		}
+		finally {
+			log.finish();
+		}
+		return logFile;
+	}
+
+	@Test
+	public void logRecordsTheWholeSession()
+	throws Exception
+	{
+		final String[] address = new String[1];
+		final String logFile = captureSender(address);
+
+		int connects = 0, sent = 0, received = 0, closes = 0;
+		final CaptureReader r = new CaptureReader(logFile);
+		try {
+			while (r.next(false))
+			{
+				assertEquals(0, r.session);
+				switch (r.type)
+				{
+				case CaptureLog.CONNECT:
+					assertEquals(address[0], r.addr);
+					++connects;
+					break;
+				case CaptureLog.SENT:     ++sent; break;
+				case CaptureLog.RECEIVED: ++received; break;
+				case CaptureLog.CLOSE:    ++closes; break;
+				}
+			}
+		}
+		finally {
+			r.close();
+		}
+		assertEquals(1, connects);
+		assertEquals(1, closes);
+		assertTrue(sent > 2);
+		//NB: at least the "ready" and "done" replies of both images
+		assertTrue(received >= 4);
+	}
+
+	@Test
+	public void replayedSenderDeliversTheSameImages()
+	throws Exception
+	{
+		final String logFile = captureSender(new String[1]);
+
+		final ZMQ.Socket receiver = Loopback.zmqContext.socket(SocketType.PAIR);
+		try {
+			receiver.setLinger(0);
+			final String address = "tcp://127.0.0.1:"+receiver.bindToRandomPort("tcp://127.0.0.1");
+			final Future<List<ImgPlus<?>>> received = Loopback.receive(2, new Session(false), null, receiver);
+
+			final long bytes = new ReplayTransfer(logFile, 0, true, address, Loopback.TIMEOUT).replay();
+			final List<ImgPlus<?>> got = Loopback.waitFor(received);
+
+			Loopback.assertSameImage(imgs.get(0), got.get(0));
+			Loopback.assertSameImage(imgs.get(1), got.get(1));
+			assertTrue(bytes > 200*100*3*4 / 2);
+		}
+		finally {
+			receiver.close();
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+public class ChunkCodecTest
+{
+	private final ChunkCodec codec = new ChunkCodec();
+
+	@After
+	public void close()
+	{ codec.close(); }
+
+	private static
+	byte[] compressible(final int length)
+	{
+		final byte[] data = new byte[length];
+		for (int i=0; i < length; ++i) data[i] = (byte)(i / 100);
+		return data;
+	}
+
+	///encodes the \e data with the \e encoding, and returns the encoded chunk (with the codec byte)
+	private
+	byte[] encode(final byte encoding, final byte[] data)
+	{
+		final int size = codec.encode(encoding, ByteBuffer.wrap(data), data.length);
+		assertTrue("chunk should have been compressed", size > 0);
+		return Arrays.copyOf(codec.getEncoded(), size);
+	}
+
+	private
+	byte[] decode(final byte[] chunk, final int length)
+	{
+		final ByteBuffer decoded = codec.decode(ByteBuffer.wrap(chunk), chunk.length, length);
+		final byte[] data = new byte[decoded.remaining()];
+		decoded.get(data);
+		return data;
+	}
+
+	@Test
+	public void compressedChunksAreDecodedBack()
+	{
+		final byte[] data = compressible(100000);
+		for (byte encoding : new byte[] { ChunkCodec.FAST, ChunkCodec.STRONG })
+		{
+			final byte[] chunk = encode(encoding, data);
+			assertEquals(encoding, chunk[0]);
+			assertTrue(chunk.length < data.length);
+			assertArrayEquals(data, decode(chunk, data.length));
+		}
+	}
+
+	@Test
+	public void encodingStartsAtTheBufferPosition()
+	{
+		final byte[] data = compressible(10000);
+		final ByteBuffer buf = ByteBuffer.wrap(data);
+		buf.position(1000);
+
+		final int size = codec.encode(ChunkCodec.FAST, buf, 5000);
+		assertTrue(size > 0);
+		assertEquals(1000, buf.position());
+		assertArrayEquals(Arrays.copyOfRange(data, 1000, 6000),
+		  decode(Arrays.copyOf(codec.getEncoded(), size), 5000));
+	}
+
+	@Test
+	public void incompressibleChunkStaysRaw()
+	{
+		final byte[] data = new byte[10000];
+		new Random(42).nextBytes(data);
+		assertEquals(-1, codec.encode(ChunkCodec.STRONG, ByteBuffer.wrap(data), data.length));
+		assertEquals(-1, codec.encode(ChunkCodec.RAW, ByteBuffer.wrap(compressible(100)), 100));
+	}
+
+	@Test
+	public void rawChunkIsDecodedWithoutCopying()
+	{
+		final byte[] chunk = { ChunkCodec.RAW, 1, 2, 3 };
+		final ByteBuffer decoded = codec.decode(ByteBuffer.wrap(chunk), chunk.length, 3);
+		assertEquals(3, decoded.remaining());
+		assertEquals(1, decoded.get(0));
+		assertEquals(3, decoded.get(2));
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void rawChunkOfWrongLengthIsRejected()
+	{
+		codec.decode(ByteBuffer.wrap(new byte[] { ChunkCodec.RAW, 1, 2, 3 }), 4, 5);
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void unknownCodecIsRejected()
+	{
+		codec.decode(ByteBuffer.wrap(new byte[] { ChunkCodec.COUNT, 1, 2, 3 }), 4, 3);
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void chunkDecodedIntoWrongLengthIsRejected()
+	{
+		final byte[] data = compressible(10000);
+		decode(encode(ChunkCodec.FAST, data), data.length+1);
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void corruptedChunkIsRejected()
+	{
+		final byte[] chunk = encode(ChunkCodec.FAST, compressible(10000));
+		for (int i=1; i < chunk.length; ++i) chunk[i] ^= 0x5A;
+		decode(chunk, 10000);
+	}
+}
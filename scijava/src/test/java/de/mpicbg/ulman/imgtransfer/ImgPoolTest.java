@@ -0,0 +1,157 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class ImgPoolTest
+{
+	@Test
+	public void poolKeepsTheMostRecentlyReleased()
+	{
+		final ImgPool pool = new ImgPool(2);
+		final Img<FloatType> a = ArrayImgs.floats(10, 10);
+		final Img<FloatType> b = ArrayImgs.floats(10, 10);
+		final Img<FloatType> c = ArrayImgs.floats(10, 10);
+		pool.release(a);
+		pool.release(b);
+		pool.release(c);
+		assertEquals(2, pool.size());
+
+		assertSame(c, pool.take(img -> true));
+		assertSame(b, pool.take(img -> true));
+		assertNull(pool.take(img -> true));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void poolMustKeepSomething()
+	{ new ImgPool(0); }
+
+	///sends the \e img within the sessions, returns the received image
+	private static
+	ImgPlus<?> transfer(final Loopback l, final ImgPlus<FloatType> img,
+	                    final Session senderSession, final Session receiverSession)
+	throws Exception
+	{ return l.transfer(Collections.singletonList(img), senderSession, receiverSession, null).get(0); }
+
+	@Test
+	public void releasedImageIsReused()
+	throws Exception
+	{
+		final ImgPool pool = new ImgPool(4);
+		try (Loopback l = new Loopback())
+		{
+			final Session senderSession = new Session(false);
+			final Session receiverSession = new Session(false);
+			receiverSession.receivingPool = pool;
+
+			final ImgPlus<?> first = transfer(l, Loopback.createImage("first", 60, 40), senderSession, receiverSession);
+			pool.release(first);
+			final Img<?> released = ImgPacker.getUnderlyingImg(first);
+
+			//another shape is received into a new image, and the released one stays in the pool
+			final ImgPlus<FloatType> other = Loopback.createImage("other", 40, 60);
+			final ImgPlus<?> got = transfer(l, other, senderSession, receiverSession);
+			assertNotSame(released, ImgPacker.getUnderlyingImg(got));
+			Loopback.assertSameImage(other, got);
+			assertEquals(1, pool.size());
+
+			final ImgPlus<FloatType> same = Loopback.createImage("same shape", 60, 40);
+			for (FloatType v : same) v.set(-v.get());
+			final ImgPlus<?> reused = transfer(l, same, senderSession, receiverSession);
+			assertSame(released, ImgPacker.getUnderlyingImg(reused));
+			Loopback.assertSameImage(same, reused);
+			assertEquals(0, pool.size());
+		}
+	}
+
+	@Test
+	public void receivingTargetIsUsedOnlyOnce()
+	throws Exception
+	{
+		try (Loopback l = new Loopback())
+		{
+			final Session senderSession = new Session(false);
+			final Session receiverSession = new Session(false);
+			final Img<FloatType> target = ArrayImgs.floats(30, 20);
+			receiverSession.receivingTarget = target;
+
+			final List<ImgPlus<FloatType>> imgs = Arrays.asList(
+			  Loopback.createImage("into target", 30, 20), Loopback.createImage("new one", 30, 20));
+			final List<ImgPlus<?>> got = l.transfer(imgs, senderSession, receiverSession, null);
+			assertSame(target, ImgPacker.getUnderlyingImg(got.get(0)));
+			assertNotSame(target, ImgPacker.getUnderlyingImg(got.get(1)));
+			Loopback.assertSameImage(imgs.get(0), got.get(0));
+			Loopback.assertSameImage(imgs.get(1), got.get(1));
+		}
+	}
+
+	@Test
+	public void cachedPlanesAreCopiedIntoTheReusedImage()
+	throws Exception
+	{
+		final ImgPool pool = new ImgPool(1);
+		try (Loopback l = new Loopback())
+		{
+			final Session senderSession = new Session(false);
+			final Session receiverSession = new Session(false);
+			receiverSession.receivingPool = pool;
+
+			final ImgPlus<FloatType> img = new ImgPlus<>(PlanarImgs.floats(50, 40, 3));
+			img.setName("planes");
+			int i = 0;
+			for (FloatType v : img) v.set(i++ % 91);
+
+			//NB: the second transfer fills the PlaneCache, the third one finds the planes there
+			final ImgPlus<?> first = transfer(l, img, senderSession, receiverSession);
+			final ImgPlus<?> second = transfer(l, img, senderSession, receiverSession);
+			pool.release(first);
+			//the reused storage must not be shared with the second image
+			for (Object v : ImgPacker.getUnderlyingImg(first)) ((FloatType)v).set(-1);
+
+			final ImgPlus<?> third = transfer(l, img, senderSession, receiverSession);
+			assertSame(ImgPacker.getUnderlyingImg(first), ImgPacker.getUnderlyingImg(third));
+			Loopback.assertSameImage(img, third);
+			Loopback.assertSameImage(img, second);
+		}
+	}
+}
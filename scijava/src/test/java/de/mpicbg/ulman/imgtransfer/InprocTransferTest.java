@@ -0,0 +1,220 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assume.assumeNoException;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class InprocTransferTest
+{
+	private final ImgPlus<FloatType> img = Loopback.createImage("byref", 64, 32, 2);
+
+	///returns a port on which nobody is listening now
+	static
+	int freePort()
+	throws IOException
+	{
+		try (ServerSocket s = new ServerSocket(0)) {
+			return s.getLocalPort();
+		}
+	}
+
+	///waits until some ImgTransfer of this JVM listens at the \e port
+	static
+	void waitForListener(final int port)
+	throws InterruptedException
+	{
+		for (int i=0; i < Loopback.TIMEOUT*100; ++i)
+		{
+			if (InprocTransfer.sameJvmAddress("tcp://localhost:"+port) != null) return;
+			Thread.sleep(10);
+		}
+		throw new AssertionError("nobody has started listening at the port "+port);
+	}
+
+	@Test
+	public void onlyRegisteredLocalPortsAreInSameJvm()
+	throws IOException
+	{
+		final int port = freePort();
+		assertNull(InprocTransfer.sameJvmAddress("tcp://localhost:"+port));
+		assertEquals("inproc://somewhere", InprocTransfer.sameJvmAddress("inproc://somewhere"));
+
+		InprocTransfer.registerPort(port);
+		try {
+			assertEquals(InprocTransfer.inprocAddress(port), InprocTransfer.sameJvmAddress("tcp://localhost:"+port));
+			assertEquals(InprocTransfer.inprocAddress(port), InprocTransfer.sameJvmAddress("tcp://127.0.0.1:"+port));
+			//NB: 192.0.2.0/24 is reserved for documentation, it is never this computer
+			assertNull(InprocTransfer.sameJvmAddress("tcp://192.0.2.1:"+port));
+			assertNull(InprocTransfer.sameJvmAddress("tcp://localhost:"+(port+1)));
+		}
+		finally {
+			InprocTransfer.unregisterPort(port);
+		}
+		assertNull(InprocTransfer.sameJvmAddress("tcp://localhost:"+port));
+	}
+
+	/**
+	 * Listens at the port given in the first argument, and once a line arrives
+	 * on its standard input, prints the sameJvmAddress() of every following
+	 * argument (addresses with the port as %d) on its standard output.
+	 */
+	static class Listener
+	{
+		public static void main(String[] args)
+		throws Exception
+		{
+			final int port = Integer.parseInt(args[0]);
+			final PrefetchingReceiver ours = new PrefetchingReceiver(new ImgTransfer(port, Loopback.TIMEOUT, null), false, 1, 1L << 30);
+			waitForListener(port);
+			System.out.println("listening");
+
+			new BufferedReader(new InputStreamReader(System.in)).readLine();
+			for (int i=1; i < args.length; ++i)
+				System.out.println(InprocTransfer.sameJvmAddress(String.format(args[i], port)));
+			ours.close();
+		}
+	}
+
+	@Test(timeout = 60000)
+	public void otherProcessAtTheSamePortOfAnotherAddressIsNotInSameJvm()
+	throws Exception
+	{
+		//NB: the listener in the JVM with IPv4-only sockets leaves the IPv6 addresses of its port to others
+		final int port = freePort();
+		final Process jvm = new ProcessBuilder(
+		  Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+		  "-Djava.net.preferIPv4Stack=true", "-cp", System.getProperty("java.class.path"),
+		  Listener.class.getName(), Integer.toString(port), "tcp://[::1]:%d", "tcp://127.0.0.1:%d")
+		  .redirectErrorStream(true).start();
+
+		try (ServerSocket other = new ServerSocket())
+		{
+			final BufferedReader out = new BufferedReader(new InputStreamReader(jvm.getInputStream()));
+			String line;
+			while ((line = out.readLine()) != null && !line.equals("listening"));
+			assertEquals("listening", line);
+
+			//another process takes the same port at the IPv6 loopback, and gets the connections to it
+			try {
+				other.bind(new InetSocketAddress(InetAddress.getByName("::1"), port));
+			}
+			catch (IOException e) {
+				assumeNoException("no IPv6 loopback here", e);
+			}
+			try (Socket s = new Socket("::1", port); Socket accepted = other.accept()) {
+				assertEquals(port, accepted.getLocalPort());
+			}
+
+			jvm.getOutputStream().write('\n');
+			jvm.getOutputStream().flush();
+			assertEquals("null", out.readLine());
+			assertEquals(InprocTransfer.inprocAddress(port), out.readLine());
+		}
+		finally {
+			jvm.destroy();
+			jvm.waitFor();
+		}
+	}
+
+	@Test
+	public void receivedImageIsTheSentObject()
+	throws Exception
+	{
+		final int port = freePort();
+		final ExecutorService thread = Executors.newSingleThreadExecutor();
+		try {
+			final Future<ImgPlus<?>> received = thread.submit(() -> ImgTransfer.receiveImage(port, Loopback.TIMEOUT));
+			waitForListener(port);
+			ImgTransfer.sendImage(img, "tcp://localhost:"+port, Loopback.TIMEOUT);
+			assertSame(img, received.get());
+		}
+		finally {
+			thread.shutdown();
+		}
+	}
+
+	@Test
+	public void requestedImageIsTheServedObject()
+	throws Exception
+	{
+		final int port = freePort();
+		final ExecutorService thread = Executors.newSingleThreadExecutor();
+		try {
+			final Future<?> served = thread.submit(() -> { ImgTransfer.serveImage(img, port, Loopback.TIMEOUT); return null; });
+			waitForListener(port);
+			assertSame(img, ImgTransfer.requestImage("tcp://127.0.0.1:"+port, Loopback.TIMEOUT));
+			served.get();
+		}
+		finally {
+			thread.shutdown();
+		}
+	}
+
+	@Test
+	public void copyOnReceiveGivesEqualImage()
+	throws Exception
+	{
+		final int port = freePort();
+		final ExecutorService thread = Executors.newSingleThreadExecutor();
+		InprocTransfer.setCopyOnReceive(true);
+		try {
+			final Future<ImgPlus<?>> received = thread.submit(() -> ImgTransfer.receiveImage(port, Loopback.TIMEOUT));
+			waitForListener(port);
+			ImgTransfer.sendImage(img, "tcp://localhost:"+port, Loopback.TIMEOUT);
+
+			final ImgPlus<?> got = received.get();
+			assertNotSame(img, got);
+			assertNotSame(img.getImg(), got.getImg());
+			Loopback.assertSameImage(img, got);
+		}
+		finally {
+			InprocTransfer.setCopyOnReceive(false);
+			thread.shutdown();
+		}
+	}
+}
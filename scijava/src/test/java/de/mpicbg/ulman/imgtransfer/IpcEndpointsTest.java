@@ -0,0 +1,100 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+import org.zeromq.ZMQException;
+
+public class IpcEndpointsTest
+{
+	///tests if the \e addr is free by binding it for a moment
+	private static
+	boolean isFree(final String addr)
+	{
+		final ZMQ.Socket socket = Loopback.zmqContext.socket(SocketType.PAIR);
+		try {
+			socket.setLinger(0);
+			socket.bind(addr);
+			socket.unbind(addr);
+			return true;
+		}
+		catch (ZMQException e) {
+			return false;
+		}
+		finally {
+			socket.close();
+		}
+	}
+
+	///starts the \e receiver listening, returns once it listens
+	private static
+	PrefetchingReceiver startListening(final ImgTransfer receiver, final int port)
+	throws InterruptedException
+	{
+		final PrefetchingReceiver r = new PrefetchingReceiver(receiver, false, 1, 1L << 30);
+		InprocTransferTest.waitForListener(port);
+		return r;
+	}
+
+	@Test
+	public void onlyTheConfiguredListenerBindsItsIpcEndpoint()
+	throws Exception
+	{
+		final int withIpc = InprocTransferTest.freePort();
+		final int withoutIpc = InprocTransferTest.freePort();
+
+		final ImgTransfer first = new ImgTransfer(withIpc, Loopback.TIMEOUT, null);
+		first.setIpcEndpoints(true);
+		final ImgTransfer second = new ImgTransfer(withoutIpc, Loopback.TIMEOUT, null);
+		assertFalse(second.getIpcEndpoints());
+
+		final PrefetchingReceiver r1 = startListening(first, withIpc);
+		final PrefetchingReceiver r2 = startListening(second, withoutIpc);
+		try {
+			//NB: the ipc:// endpoint is bound right after the port is registered
+			boolean bound = false;
+			for (int i=0; i < 100 && !bound; ++i)
+			{
+				bound = !isFree(ImgTransfer.ipcAddress(withIpc));
+				if (!bound) Thread.sleep(10);
+			}
+			assertTrue(bound);
+			assertTrue(isFree(ImgTransfer.ipcAddress(withoutIpc)));
+		}
+		finally {
+			r1.close();
+			r2.close();
+		}
+		assertTrue(isFree(ImgTransfer.ipcAddress(withIpc)));
+	}
+}
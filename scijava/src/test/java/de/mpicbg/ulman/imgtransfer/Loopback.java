@@ -0,0 +1,201 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import static org.junit.Assert.assertEquals;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.numeric.real.FloatType;
+import org.zeromq.SocketType;
+import org.zeromq.ZMQ;
+
+import de.mpicbg.ulman.imgtransfer.capture.CaptureReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A connected pair of PAIR sockets for the round trips in the tests. The sockets
+ * talk over the loopback tcp, so that the traffic can be also captured and
+ * replayed (see CaptureLog), and the images go through the ImgPacker just
+ * like in the ImgTransfer.
+ */
+class Loopback implements AutoCloseable
+{
+	static final ZMQ.Context zmqContext = ZMQ.context(1);
+
+	///how long the round trips may wait for their peer, in seconds
+	static final int TIMEOUT = 10;
+
+	final ZMQ.Socket sender;
+	final ZMQ.Socket receiver;
+	final String address;
+
+	///the connection with a plain sender socket
+	Loopback()
+	{ this(zmqContext.socket(SocketType.PAIR)); }
+
+	///the connection with the given \e senderSocket, e.g. a CapturingSocket
+	Loopback(final ZMQ.Socket senderSocket)
+	{
+		receiver = zmqContext.socket(SocketType.PAIR);
+		receiver.setLinger(0);
+		address = "tcp://127.0.0.1:"+receiver.bindToRandomPort("tcp://127.0.0.1");
+
+		sender = senderSocket;
+		sender.setLinger(0);
+		sender.connect(address);
+	}
+
+	/**
+	 * Sends the \e imgs one after another within the \e senderSession, receives
+	 * them (in another thread) within the \e receiverSession, and returns them.
+	 * The headers the receiver has seen are added to the \e headers if not null.
+	 */
+	<T extends NativeType<T>>
+	List<ImgPlus<?>> transfer(final List<ImgPlus<T>> imgs,
+	                          final Session senderSession, final Session receiverSession,
+	                          final List<byte[]> headers)
+	throws Exception
+	{ return transfer(imgs, senderSession, receiverSession, headers, receiver); }
+
+	///the same as above but the images are received by the \e receiverSocket
+	<T extends NativeType<T>>
+	List<ImgPlus<?>> transfer(final List<ImgPlus<T>> imgs,
+	                          final Session senderSession, final Session receiverSession,
+	                          final List<byte[]> headers, final ZMQ.Socket receiverSocket)
+	throws Exception
+	{
+		final Future<List<ImgPlus<?>>> received = receive(imgs.size(), receiverSession, headers, receiverSocket);
+		for (ImgPlus<T> img : imgs)
+			ImgPacker.packAndSend(img, sender, TIMEOUT, null, senderSession, null);
+		return waitFor(received);
+	}
+
+	///starts receiving of \e count images by the \e receiverSocket in another thread
+	static
+	Future<List<ImgPlus<?>>> receive(final int count, final Session receiverSession,
+	                                 final List<byte[]> headers, final ZMQ.Socket receiverSocket)
+	{
+		final ExecutorService thread = Executors.newSingleThreadExecutor();
+		try {
+			return thread.submit(() -> {
+				final List<ImgPlus<?>> got = new ArrayList<>(count);
+				for (int i=0; i < count; ++i)
+				{
+					ArrayPacker.waitForFirstMessage(receiverSocket, TIMEOUT);
+					final byte[] header = receiverSocket.recv();
+					if (headers != null) headers.add(header);
+					got.add(ImgPacker.receiveAndUnpack(header, receiverSocket, null, receiverSession, null));
+				}
+				return got;
+			});
+		}
+		finally {
+			thread.shutdown();
+		}
+	}
+
+	///returns the images from receive(), or throws what has failed there
+	static
+	List<ImgPlus<?>> waitFor(final Future<List<ImgPlus<?>>> received)
+	throws Exception
+	{
+		try {
+			return received.get();
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof Exception) throw (Exception)e.getCause();
+			throw e;
+		}
+	}
+
+	@Override
+	public void close()
+	{
+		sender.close();
+		receiver.close();
+	}
+
+
+	///returns the frames of the \e type (e.g., CaptureLog.SENT) recorded in the \e logFile
+	static
+	List<byte[]> capturedFrames(final String logFile, final byte type)
+	throws IOException
+	{
+		final List<byte[]> frames = new ArrayList<>();
+		final CaptureReader r = new CaptureReader(logFile);
+		try {
+			while (r.next(true))
+				if (r.type == type) frames.add(Arrays.copyOf(r.data, r.length));
+		}
+		finally {
+			r.close();
+		}
+		return frames;
+	}
+
+
+	// -------- the images --------
+	///returns an ArrayImg of the \e dims, filled with a pattern that is not all the same
+	static
+	ImgPlus<FloatType> createImage(final String name, final long... dims)
+	{
+		final Img<FloatType> img = ArrayImgs.floats(dims);
+		int i = 0;
+		for (FloatType v : img) v.set((i++ % 1000) * 0.5f);
+		final ImgPlus<FloatType> imgP = new ImgPlus<>(img);
+		imgP.setName(name);
+		return imgP;
+	}
+
+	///asserts that both images have the same name, sizes, and voxel values
+	static
+	void assertSameImage(final ImgPlus<?> expected, final ImgPlus<?> actual)
+	{
+		assertEquals(expected.getName(), actual.getName());
+		assertEquals(expected.numDimensions(), actual.numDimensions());
+		for (int d=0; d < expected.numDimensions(); ++d)
+			assertEquals(expected.dimension(d), actual.dimension(d));
+
+		final Cursor<?> e = expected.cursor();
+		final Cursor<?> a = actual.cursor();
+		while (e.hasNext())
+			assertEquals(e.next(), a.next());
+	}
+}
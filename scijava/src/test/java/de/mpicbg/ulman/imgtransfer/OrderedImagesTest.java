@@ -0,0 +1,181 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.array.ArrayImgs;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class OrderedImagesTest
+{
+	private static
+	ImgPlus<?> image(final int position)
+	{
+		final ImgPlus<?> img = new ImgPlus<>(ArrayImgs.bytes(1));
+		img.setName(Integer.toString(position));
+		return img;
+	}
+
+	///takes all images, and returns their positions
+	private static
+	List<Integer> takeAll(final OrderedImages images)
+	throws InterruptedException
+	{
+		final List<Integer> positions = new ArrayList<>();
+		ImgPlus<?> img;
+		while ((img = images.takeNext()) != null)
+			positions.add(Integer.parseInt(img.getName()));
+		return positions;
+	}
+
+	///starts the producer of the partition \e part (out of \e parts) of \e count images
+	private static
+	Thread producer(final OrderedImages images, final int part, final int parts, final int count,
+	                final int stopAt, final long delayMillis)
+	{
+		final Thread t = new Thread(() -> {
+			try {
+				for (int k = 0; k < count; ++k)
+				{
+					if (k == stopAt) return;
+					if (delayMillis > 0) Thread.sleep(delayMillis);
+					images.put(k*parts + part, image(k*parts + part));
+				}
+			}
+			catch (InterruptedException e) { /* just stop */ }
+			finally {
+				images.producerFinished();
+			}
+		});
+		t.start();
+		return t;
+	}
+
+	private static
+	List<Integer> range(final int from, final int to)
+	{
+		final List<Integer> l = new ArrayList<>();
+		for (int i = from; i < to; ++i) l.add(i);
+		return l;
+	}
+
+	@Test
+	public void imagesAreTakenInTheOriginalOrder()
+	throws InterruptedException
+	{
+		final OrderedImages images = new OrderedImages(1);
+		for (int p : new int[] { 3, 1, 0, 4, 2 }) images.put(p, image(p));
+		images.producerFinished();
+		assertEquals(range(0,5), takeAll(images));
+	}
+
+	@Test
+	public void parallelProducersAreReordered()
+	throws InterruptedException
+	{
+		final OrderedImages images = new OrderedImages(3, 4);
+		producer(images, 0, 3, 10, -1, 0);
+		producer(images, 1, 3, 10, -1, 3);
+		producer(images, 2, 3, 10, -1, 1);
+		assertEquals(range(0,30), takeAll(images));
+	}
+
+	@Test(timeout = 10000)
+	public void imagesOfFailedProducerAreSkipped()
+	throws InterruptedException
+	{
+		//the producer 1 fails after its 4th image, the other one is slow
+		final OrderedImages images = new OrderedImages(3, 2);
+		producer(images, 0, 3, 10, -1, 0);
+		producer(images, 1, 3, 10, 4, 0);
+		producer(images, 2, 3, 10, -1, 5);
+
+		final List<Integer> expected = range(0,13);
+		for (int p = 14; p < 30; ++p) if (p % 3 != 1) expected.add(p);
+		assertEquals(expected, takeAll(images));
+	}
+
+	@Test(timeout = 10000)
+	public void producerAheadWaitsForRoom()
+	throws InterruptedException
+	{
+		final OrderedImages images = new OrderedImages(2, 2);
+		final Thread ahead = producer(images, 1, 2, 5, -1, 0);
+
+		//the producer 1 can put only two images before the image 0 arrives
+		ahead.join(500);
+		assertTrue(ahead.isAlive());
+
+		producer(images, 0, 2, 5, -1, 0);
+		assertEquals(range(0,10), takeAll(images));
+		ahead.join(1000);
+		assertFalse(ahead.isAlive());
+	}
+
+	@Test(timeout = 10000)
+	public void imageNextInTurnIsAcceptedWhenFull()
+	throws InterruptedException
+	{
+		final OrderedImages images = new OrderedImages(1, 1);
+		images.put(2, image(2));
+		images.put(0, image(0));
+		assertEquals("0", images.takeNext().getName());
+	}
+
+	@Test(timeout = 10000)
+	public void closeReleasesWaitingProducers()
+	throws InterruptedException
+	{
+		final OrderedImages images = new OrderedImages(2, 1);
+		final Thread ahead = producer(images, 1, 2, 5, -1, 0);
+		ahead.join(200);
+		assertTrue(ahead.isAlive());
+
+		images.close();
+		ahead.join(1000);
+		assertFalse(ahead.isAlive());
+	}
+
+	@Test
+	public void nothingIsReturnedAfterAllProducersFinished()
+	throws InterruptedException
+	{
+		final OrderedImages images = new OrderedImages(2);
+		images.producerFinished();
+		images.producerFinished();
+		assertNull(images.takeNext());
+	}
+}
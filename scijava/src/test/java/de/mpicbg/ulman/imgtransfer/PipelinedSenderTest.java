@@ -0,0 +1,196 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.basictypeaccess.array.ArrayDataAccess;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class PipelinedSenderTest
+{
+	private String shmDirectory;
+
+	@Before
+	public void disableShm()
+	{
+		shmDirectory = ShmTransfer.getDirectory();
+		//NB: the images packed ahead are sent only over the socket
+		ShmTransfer.setDirectory(null);
+	}
+
+	@After
+	public void restoreShm()
+	{ ShmTransfer.setDirectory(shmDirectory); }
+
+	///returns a PlanarImg of the \e dims, filled with a pattern that differs for each \e name
+	private static
+	ImgPlus<FloatType> createPlanarImage(final String name, final long... dims)
+	{
+		final Img<FloatType> img = PlanarImgs.floats(dims);
+		int i = name.length();
+		for (FloatType v : img) v.set((i++ % 777) * 0.25f);
+		final ImgPlus<FloatType> imgP = new ImgPlus<>(img);
+		imgP.setName(name);
+		return imgP;
+	}
+
+	@Test
+	public void packedImagesAreSentLikeTheUnpackedOnes()
+	throws Exception
+	{
+		final List<ImgPlus<FloatType>> first = Arrays.asList(
+		  Loopback.createImage("array", 300, 200), createPlanarImage("planar", 120, 80, 5));
+		//NB: other planes than before, otherwise the PlaneCache would skip them
+		final List<ImgPlus<FloatType>> imgs = Arrays.asList(
+		  Loopback.createImage("array again", 300, 200), createPlanarImage("planar again", 120, 80, 5));
+
+		try (Loopback l = new Loopback())
+		{
+			final Session senderSession = new Session(false);
+			final Session receiverSession = new Session(false);
+
+			//the first round agrees on the session, the second one sends the images packed ahead
+			final Future<List<ImgPlus<?>>> received =
+			  Loopback.receive(2*imgs.size(), receiverSession, null, l.receiver);
+			for (ImgPlus<FloatType> img : first)
+				ImgPacker.packAndSend(img, l.sender, Loopback.TIMEOUT, null, senderSession, null);
+			for (ImgPlus<FloatType> img : imgs)
+			{
+				final PackedImage packed = ImgPacker.packAhead(img, senderSession, 1L << 30);
+				assertNotNull(packed);
+				ImgPacker.packAndSend(img, l.sender, Loopback.TIMEOUT, null, senderSession, null, packed);
+				//all chunks have been used up
+				assertNull(packed.takeChunks(firstStorageArray(img)));
+			}
+
+			final List<ImgPlus<?>> got = Loopback.waitFor(received);
+			for (int i=0; i < imgs.size(); ++i)
+			{
+				Loopback.assertSameImage(first.get(i), got.get(i));
+				Loopback.assertSameImage(imgs.get(i), got.get(i + first.size()));
+			}
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static
+	Object firstStorageArray(final ImgPlus<FloatType> imgP)
+	{
+		final Img<FloatType> img = imgP.getImg();
+		return img instanceof PlanarImg ?
+		  ((PlanarImg<FloatType,? extends ArrayDataAccess<?>>)img).getPlane(0).getCurrentStorageArray() :
+		  ((ArrayImg<FloatType,? extends ArrayDataAccess<?>>)img).update(null).getCurrentStorageArray();
+	}
+
+	@Test
+	public void largeImagesAreNotPacked()
+	{
+		final ImgPlus<FloatType> img = Loopback.createImage("large", 100, 100);
+		assertNotNull(ImgPacker.packAhead(img, new Session(false), 100*100*4));
+		assertNull(ImgPacker.packAhead(img, new Session(false), 100*100*4 - 1));
+	}
+
+	@Test
+	public void imagesGoingAroundTheSocketAreNotPacked()
+	{
+		final ImgPlus<FloatType> img = Loopback.createImage("small", 10, 10);
+		assertNull(ImgPacker.packAhead(img, new Session(true), 1L << 30));
+
+		final Session shm = new Session(false);
+		shm.sharedMemory = true;
+		assertNull(ImgPacker.packAhead(img, shm, 1L << 30));
+	}
+
+	@Test
+	public void pipelineSendsAllImagesInOrder()
+	throws Exception
+	{
+		final int port = InprocTransferTest.freePort();
+		final ExecutorService receiverThread = Executors.newSingleThreadExecutor();
+		try {
+			final Future<List<String>> received = receiverThread.submit(() -> {
+				final ImgTransfer receiver = new ImgTransfer(port, Loopback.TIMEOUT, null);
+				final List<String> names = new ArrayList<>();
+				while (receiver.isThereNextImage()) names.add(receiver.receiveImage().getName());
+				return names;
+			});
+
+			InprocTransferTest.waitForListener(port);
+			final PipelinedSender s = new PipelinedSender(
+			  new ImgTransfer("tcp://localhost:"+port, 4, Loopback.TIMEOUT, null), false, 1L << 30);
+			final List<String> sent = Collections.synchronizedList(new ArrayList<>());
+			for (int i=0; i < 4; ++i)
+			{
+				final String name = Integer.toString(i);
+				s.send(createPlanarImage(name, 40, 30, 3), () -> sent.add(name));
+				//at most the previous image is still being sent
+				assertTrue(sent.size() >= i-1);
+			}
+			s.hangUpAndClose();
+
+			//every image is reported once it has been sent
+			assertEquals(Arrays.asList("0", "1", "2", "3"), sent);
+			assertEquals(Arrays.asList("0", "1", "2", "3"), received.get());
+		}
+		finally {
+			receiverThread.shutdownNow();
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void failureOfTheLastImageIsThrownFromHangUp()
+	throws IOException
+	{
+		//nobody receives
+		final PipelinedSender s = new PipelinedSender(
+		  new ImgTransfer("tcp://localhost:"+InprocTransferTest.freePort(), 1, 1, null), false, 1L << 30);
+		s.send(Loopback.createImage("lost", 10, 10));
+		s.hangUpAndClose();
+	}
+}
@@ -0,0 +1,219 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zeromq.SocketType;
+
+import de.mpicbg.ulman.imgtransfer.capture.CaptureLog;
+import de.mpicbg.ulman.imgtransfer.capture.CapturingSocket;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+
+public class PlaneCacheTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private long capacity;
+	private String shmDirectory;
+
+	@Before
+	public void emptyCache()
+	{
+		capacity = PlaneCache.getCapacity();
+		PlaneCache.clear();
+		shmDirectory = ShmTransfer.getDirectory();
+		ShmTransfer.setDirectory(null);
+	}
+
+	@After
+	public void restoreCache()
+	{
+		PlaneCache.setCapacity(capacity);
+		PlaneCache.clear();
+		ShmTransfer.setDirectory(shmDirectory);
+	}
+
+	private static
+	short[] plane(final int length, final int seed)
+	{
+		final short[] p = new short[length];
+		for (int i=0; i < length; ++i) p[i] = (short)(i*seed);
+		return p;
+	}
+
+	@Test
+	public void keyDependsOnlyOnTheContent()
+	{
+		final String k = PlaneCache.key(3, plane(1000, 7));
+		assertEquals(k, PlaneCache.key(3, plane(1000, 7)));
+		assertNotEquals(k, PlaneCache.key(3, plane(1000, 8)));
+		assertNotEquals(k, PlaneCache.key(2, plane(1000, 7)));
+		assertNotEquals(k, PlaneCache.key(3, plane(1001, 7)));
+		assertTrue(k.startsWith("3x1000x"));
+	}
+
+	@Test
+	public void keyIsUsableInTheTokens()
+	{
+		for (Object p : new Object[] { plane(10, 3), new byte[] {1,2,3}, new float[] {1.5f}, new long[0] })
+		{
+			final String k = PlaneCache.key(0, p);
+			assertFalse(k.contains(" "));
+			assertFalse(k.contains(","));
+		}
+	}
+
+	@Test
+	public void keyOfLongPlaneIsDigestedInBlocks()
+	{
+		//NB: longer than the digest block, the last block is shorter
+		final int length = (1 << 20) / 2 * 3 + 17;
+		final short[] p = plane(length, 5);
+		final String k = PlaneCache.key(3, p);
+		assertEquals(k, PlaneCache.key(3, p.clone()));
+		p[length-1]++;
+		assertNotEquals(k, PlaneCache.key(3, p));
+	}
+
+	@Test
+	public void haveTokenListsFlaggedPlanes()
+	{
+		assertNull(PlaneCache.haveToken(new boolean[] { false, false }));
+		assertEquals("have:0,2", PlaneCache.haveToken(new boolean[] { true, false, true }));
+		assertEquals("have:1", PlaneCache.haveToken(new boolean[] { false, true }));
+	}
+
+	@Test
+	public void haveTokenIsParsedFromTheReply()
+	{
+		final boolean[] have = { true, false, true, true };
+		final String reply = "ready v2 "+PlaneCache.haveToken(have)+" pc";
+		assertArrayEquals(have, PlaneCache.parseHaveToken(reply, 4));
+		assertArrayEquals(have, PlaneCache.parseHaveToken("ready "+PlaneCache.haveToken(have), 4));
+		assertNull(PlaneCache.parseHaveToken("ready v2 pc", 4));
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void haveTokenOfNonExistingPlaneIsRejected()
+	{
+		PlaneCache.parseHaveToken("ready have:1,4", 4);
+	}
+
+	@Test
+	public void storedPlaneIsFetchedAsCopy()
+	{
+		PlaneCache.setCapacity(1 << 20);
+		final short[] p = plane(100, 3);
+		final String k = PlaneCache.key(3, p);
+		PlaneCache.store(k, p);
+		p[0] = 42;
+
+		final short[] fetched = new short[100];
+		assertTrue(PlaneCache.fetch(k, fetched));
+		assertArrayEquals(plane(100, 3), fetched);
+		assertFalse(PlaneCache.fetch("3x100xnone", fetched));
+	}
+
+	@Test
+	public void leastRecentlyUsedPlaneIsEvicted()
+	{
+		//room for two planes of 1000 shorts
+		PlaneCache.setCapacity(4000);
+		final short[] a = plane(1000, 1), b = plane(1000, 2), c = plane(1000, 3);
+		final short[] tmp = new short[1000];
+		PlaneCache.store("a", a);
+		PlaneCache.store("b", b);
+		assertTrue(PlaneCache.fetch("a", tmp));
+		PlaneCache.store("c", c);
+
+		assertTrue(PlaneCache.fetch("a", tmp));
+		assertFalse(PlaneCache.fetch("b", tmp));
+		assertTrue(PlaneCache.fetch("c", tmp));
+		assertEquals(4000, PlaneCache.getUsedBytes());
+	}
+
+	@Test
+	public void planeLargerThanTheCacheIsNotStored()
+	{
+		PlaneCache.setCapacity(100);
+		PlaneCache.store("big", plane(1000, 1));
+		assertFalse(PlaneCache.fetch("big", new short[1000]));
+		assertEquals(0, PlaneCache.getUsedBytes());
+	}
+
+	@Test
+	public void cachedPlanesAreNotSentAgain()
+	throws Exception
+	{
+		PlaneCache.setCapacity(1 << 20);
+		final ImgPlus<FloatType> img = new ImgPlus<>(PlanarImgs.floats(64, 64, 3));
+		int i = 0;
+		for (FloatType v : img) v.set(i++);
+		img.setName("planes");
+
+		//the first image agrees on the session, the cache is used by the later ones
+		final List<ImgPlus<FloatType>> imgs = Arrays.asList(img, img, img);
+		final String logFile = folder.newFile().getPath();
+		final CaptureLog log = new CaptureLog(logFile);
+		try (Loopback l = new Loopback(new CapturingSocket(Loopback.zmqContext, SocketType.PAIR, log))) {
+			for (ImgPlus<?> got : l.transfer(imgs, new Session(false), new Session(false), null))
+				Loopback.assertSameImage(img, got);
+		}
+		finally {
+			log.finish();
+		}
+
+		//the receiver has replied that it has all planes of the last image
+		boolean haveAll = false;
+		for (byte[] f : Loopback.capturedFrames(logFile, CaptureLog.RECEIVED))
+		{
+			final String reply = new String(f, StandardCharsets.UTF_8);
+			if (reply.startsWith("ready"))
+				haveAll |= Arrays.equals(new boolean[] {true,true,true}, PlaneCache.parseHaveToken(reply, 3));
+		}
+		assertTrue(haveAll);
+	}
+}
@@ -0,0 +1,204 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class PrefetchingReceiverTest
+{
+	private static final int COUNT = 5;
+
+	private int port;
+	private final ExecutorService senderThread = Executors.newSingleThreadExecutor();
+	///how many images the sender has sent completely
+	private final AtomicInteger sent = new AtomicInteger(0);
+
+	@Before
+	public void choosePort()
+	throws IOException
+	{ port = InprocTransferTest.freePort(); }
+
+	@After
+	public void stopSender()
+	{ senderThread.shutdownNow(); }
+
+	///starts sending the images "0", "1", ... to this.port once somebody listens there
+	private
+	Future<?> startSender()
+	{
+		return senderThread.submit(() -> {
+			InprocTransferTest.waitForListener(port);
+			final ImgTransfer sender = new ImgTransfer("tcp://localhost:"+port, COUNT, Loopback.TIMEOUT, null);
+			for (int i=0; i < COUNT; ++i)
+			{
+				sender.sendImage(Loopback.createImage(Integer.toString(i), 16, 16));
+				sent.incrementAndGet();
+			}
+			sender.hangUpAndClose();
+			return null;
+		});
+	}
+
+	///waits until the sender has sent \e count images, and a while longer to see it does not send more
+	private
+	void assertSenderStopsAt(final int count)
+	throws InterruptedException
+	{
+		for (int i=0; i < 500 && sent.get() < count; ++i) Thread.sleep(10);
+		Thread.sleep(300);
+		assertEquals(count, sent.get());
+	}
+
+	///takes all images from the \e r, returns their names
+	private static
+	List<String> takeAll(final PrefetchingReceiver r)
+	throws IOException
+	{
+		final List<String> names = new ArrayList<>();
+		while (r.hasNext()) names.add(r.next().getName());
+		return names;
+	}
+
+	private static
+	List<String> allNames()
+	{
+		final List<String> names = new ArrayList<>();
+		for (int i=0; i < COUNT; ++i) names.add(Integer.toString(i));
+		return names;
+	}
+
+	@Test
+	public void imagesArriveInOrder()
+	throws Exception
+	{
+		final Future<?> sender = startSender();
+		final PrefetchingReceiver r = new PrefetchingReceiver(new ImgTransfer(port, Loopback.TIMEOUT, null), false, 2, 1L << 30);
+		assertEquals(allNames(), takeAll(r));
+		assertNull(r.next());
+		sender.get();
+	}
+
+	@Test
+	public void atMostDepthImagesAreKept()
+	throws Exception
+	{
+		final Future<?> sender = startSender();
+		final PrefetchingReceiver r = new PrefetchingReceiver(new ImgTransfer(port, Loopback.TIMEOUT, null), false, 2, 1L << 30);
+
+		//nothing is taken, the prefetcher stops after the depth
+		assertSenderStopsAt(2);
+		assertEquals("0", r.next().getName());
+		assertSenderStopsAt(3);
+
+		assertEquals(allNames().subList(1, COUNT), takeAll(r));
+		sender.get();
+	}
+
+	@Test
+	public void memoryLimitStopsThePrefetching()
+	throws Exception
+	{
+		final Future<?> sender = startSender();
+		final PrefetchingReceiver r = new PrefetchingReceiver(new ImgTransfer(port, Loopback.TIMEOUT, null), false, 4, 1);
+
+		//one image is always kept, even if over the limit
+		assertSenderStopsAt(1);
+		assertEquals(allNames(), takeAll(r));
+		sender.get();
+	}
+
+	@Test
+	public void depthZeroReceivesOnlyInNext()
+	throws Exception
+	{
+		final Future<?> sender = startSender();
+		final PrefetchingReceiver r = new PrefetchingReceiver(new ImgTransfer(port, Loopback.TIMEOUT, null), false, 0, 0);
+		//NB: nobody listens until the first next()
+		Thread.sleep(300);
+		assertEquals(0, sent.get());
+
+		final List<String> names = new ArrayList<>();
+		while (r.hasNext()) names.add(r.next().getName());
+		assertEquals(allNames(), names);
+		sender.get();
+	}
+
+	@Test(expected = IOException.class)
+	public void failureIsThrownFromHasNext()
+	throws IOException
+	{
+		//nobody sends anything
+		final PrefetchingReceiver r = new PrefetchingReceiver(new ImgTransfer(port, 1, null), false, 2, 1L << 30);
+		r.hasNext();
+	}
+
+	@Test
+	public void closeStopsTheReceiving()
+	throws Exception
+	{
+		final PrefetchingReceiver r = new PrefetchingReceiver(new ImgTransfer(port, Loopback.TIMEOUT, null), false, 2, 1L << 30);
+		InprocTransferTest.waitForListener(port);
+		r.close();
+
+		//the receiver has stopped listening once close() returns, and it is not a failure
+		assertNull(InprocTransfer.sameJvmAddress("tcp://localhost:"+port));
+		assertFalse(r.hasNext());
+		r.close();
+	}
+
+	@Test
+	public void closeDropsTheImagesNotTaken()
+	throws Exception
+	{
+		startSender();
+		final PrefetchingReceiver r = new PrefetchingReceiver(new ImgTransfer(port, Loopback.TIMEOUT, null), false, 2, 1L << 30);
+		assertEquals("0", r.next().getName());
+		assertSenderStopsAt(3);
+		r.close();
+
+		assertFalse(r.hasNext());
+		assertNull(r.next());
+	}
+}
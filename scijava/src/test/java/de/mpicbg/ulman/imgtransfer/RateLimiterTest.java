@@ -0,0 +1,164 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class RateLimiterTest
+{
+	private static final long RATE = 4 << 20;
+	private static final long CHUNK = 64 << 10;
+
+	@After
+	public void noLimits()
+	{ RateLimiter.setProcessLimit(0, 0); }
+
+	///acquires the \e bytes in chunks from the \e limiter, returns how long it took in seconds
+	static
+	double acquire(final RateLimiter limiter, final long bytes)
+	{
+		final long start = System.nanoTime();
+		for (long sent = 0; sent < bytes; sent += CHUNK)
+			limiter.acquire(CHUNK);
+		return (System.nanoTime() - start) * 1e-9;
+	}
+
+	///asserts the \e seconds are about the \e expected ones
+	static
+	void assertAbout(final double expected, final double seconds)
+	{
+		assertTrue("took "+seconds+" s instead of "+expected+" s",
+		           seconds > 0.8*expected && seconds < 1.5*expected + 0.1);
+	}
+
+	@Test
+	public void noLimitDoesNotWait()
+	{ assertAbout(0, acquire(RateLimiter.forTransfer(0, 0, 0), 100*RATE)); }
+
+	@Test
+	public void transferIsLimited()
+	{
+		//NB: the first chunk goes out of the full bucket
+		assertAbout(0.5, acquire(RateLimiter.forTransfer(RATE, CHUNK, 0), RATE/2 + CHUNK));
+	}
+
+	@Test
+	public void bucketIsKeptForAllImagesOfTheTransfer()
+	{
+		//the images smaller than the burst must not start with a full bucket each
+		final RateLimiter limiter = RateLimiter.forTransfer(RATE, 0, 0);
+		final long start = System.nanoTime();
+		for (int i=0; i < 6; ++i) acquire(limiter, RATE/4);
+		assertAbout(0.5, (System.nanoTime() - start) * 1e-9);
+	}
+
+	@Test
+	public void processLimitIsSharedByTheTransfers()
+	throws Exception
+	{
+		RateLimiter.setProcessLimit(RATE, CHUNK);
+		final RateLimiter first = RateLimiter.forTransfer(0, 0, 0);
+		final RateLimiter second = RateLimiter.NO_TRANSFER_LIMIT;
+
+		final ExecutorService thread = Executors.newSingleThreadExecutor();
+		try {
+			final long start = System.nanoTime();
+			final Future<Double> other = thread.submit(() -> acquire(second, RATE/4));
+			acquire(first, RATE/4 + CHUNK);
+			other.get();
+			assertAbout(0.5, (System.nanoTime() - start) * 1e-9);
+		}
+		finally {
+			thread.shutdown();
+		}
+	}
+
+	@Test
+	public void processLimitIsSharedFairlyByTheTransfers()
+	throws Exception
+	{
+		//the transfer over three connections must not take three quarters of the process limit
+		RateLimiter.setProcessLimit(RATE, CHUNK);
+		final RateLimiter greedy = RateLimiter.forTransfer(0, 0, 0);
+		final RateLimiter modest = RateLimiter.forTransfer(0, 0, 0);
+
+		final ExecutorService threads = Executors.newFixedThreadPool(3);
+		final AtomicBoolean modestDone = new AtomicBoolean(false);
+		try {
+			final List<Future<?>> connections = new ArrayList<>(3);
+			for (int c = 0; c < 3; ++c)
+				connections.add(threads.submit(() -> {
+					while (!modestDone.get()) greedy.acquire(CHUNK);
+				}));
+
+			//NB: modest's share is half of the process limit
+			assertAbout(0.5, acquire(modest, RATE/4 + CHUNK));
+			modestDone.set(true);
+			for (final Future<?> connection : connections) connection.get();
+		}
+		finally {
+			modestDone.set(true);
+			threads.shutdown();
+			greedy.close();
+			modest.close();
+		}
+	}
+
+	@Test
+	public void lowestRequestedProcessLimitHoldsUntilClosed()
+	{
+		final RateLimiter limited = RateLimiter.forTransfer(0, 0, RATE);
+		assertEquals(RATE, RateLimiter.getProcessLimit());
+
+		//neither a transfer without the limit, nor a higher process limit lift it
+		final RateLimiter unlimited = RateLimiter.forTransfer(0, 0, 0);
+		RateLimiter.setProcessLimit(2*RATE, 0);
+		assertEquals(RATE, RateLimiter.getProcessLimit());
+		final RateLimiter lower = RateLimiter.forTransfer(0, 0, RATE/2);
+		assertEquals(RATE/2, RateLimiter.getProcessLimit());
+
+		lower.close();
+		assertEquals(RATE, RateLimiter.getProcessLimit());
+		limited.close();
+		unlimited.close();
+		assertEquals(2*RATE, RateLimiter.getProcessLimit());
+		RateLimiter.setProcessLimit(0, 0);
+		assertEquals(0, RateLimiter.getProcessLimit());
+	}
+}
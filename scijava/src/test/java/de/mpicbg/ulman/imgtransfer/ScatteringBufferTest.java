@@ -0,0 +1,186 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import net.imagej.ImgPlus;
+import net.imglib2.Cursor;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImg;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.cell.CellImg;
+import net.imglib2.img.cell.CellImgFactory;
+import net.imglib2.img.planar.PlanarImg;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.real.FloatType;
+import net.imglib2.view.Views;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+public class ScatteringBufferTest
+{
+	private String shmDirectory;
+
+	@Before
+	public void disableShm()
+	{
+		shmDirectory = ShmTransfer.getDirectory();
+		ShmTransfer.setDirectory(null);
+	}
+
+	@After
+	public void restoreShm()
+	{ ShmTransfer.setDirectory(shmDirectory); }
+
+	///returns the big-endian floats \e from, \e from+1, ..., as they would arrive over the socket
+	private static
+	ByteBuffer sequence(final int from, final int length)
+	{
+		final ByteBuffer buf = ByteBuffer.allocate(4*length);
+		for (int i=0; i < length; ++i) buf.putFloat(from+i);
+		buf.flip();
+		return buf;
+	}
+
+	///asserts that the voxels of the \e img, in the flat iteration order, are 0, 1, 2, ...
+	private static
+	void assertLinearSequence(final Img<FloatType> img)
+	{
+		int i = 0;
+		for (FloatType v : Views.flatIterable(img))
+			assertEquals(i++, v.get(), 0);
+		assertEquals(img.size(), i);
+	}
+
+	///asserts the same sizes and the same voxels in the flat iteration order
+	private static
+	void assertSameVoxels(final Img<?> expected, final Img<?> actual)
+	{
+		assertTrue(Arrays.equals(Views.flatIterable(expected).dimensionsAsLongArray(),
+		                         Views.flatIterable(actual).dimensionsAsLongArray()));
+		final Cursor<?> e = Views.flatIterable(expected).cursor();
+		final Cursor<?> a = Views.flatIterable(actual).cursor();
+		while (e.hasNext())
+			assertEquals(e.next(), a.next());
+	}
+
+	@Test
+	public void planesAreScatteredIntoCells()
+	{
+		//NB: the cells do not divide the image evenly
+		final CellImg<FloatType,?> target = new CellImgFactory<>(new FloatType(), 4,3,2).create(10,7,3);
+		final ScatteringBuffer sb = new ScatteringBuffer(target);
+
+		//the sender's planes, the second one in two chunks
+		sb.recv(sequence(0, 70), new ScatteringBuffer.SourceArray(0, 70), 0, 70);
+		sb.recv(sequence(70, 33), new ScatteringBuffer.SourceArray(70, 70), 0, 33);
+		sb.recv(sequence(103, 37), new ScatteringBuffer.SourceArray(70, 70), 33, 37);
+		sb.recv(sequence(140, 70), new ScatteringBuffer.SourceArray(140, 70), 0, 70);
+
+		assertLinearSequence(target);
+	}
+
+	@Test
+	public void arrayIsScatteredIntoPlanes()
+	{
+		final PlanarImg<FloatType,?> target = PlanarImgs.floats(9, 5, 4);
+		final ScatteringBuffer sb = new ScatteringBuffer(target);
+
+		//one long array of the sender, in chunks that cross the planes
+		final ScatteringBuffer.SourceArray src = new ScatteringBuffer.SourceArray(0, 180);
+		sb.recv(sequence(0, 50), src, 0, 50);
+		sb.recv(sequence(50, 130), src, 50, 130);
+
+		assertLinearSequence(target);
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void isForReceivingOnly()
+	{
+		new ScatteringBuffer(ArrayImgs.floats(4, 4)).send(ByteBuffer.allocate(64), new float[16], 0, 16);
+	}
+
+	@Test
+	public void receiverChoosesTheBackend()
+	throws Exception
+	{
+		final ImgPlus<FloatType> arrayImg = Loopback.createImage("array", 50, 30, 4);
+		final Img<FloatType> planes = PlanarImgs.floats(50, 30, 4);
+		int i = 0;
+		for (FloatType v : planes) v.set(i++);
+		final ImgPlus<FloatType> planarImg = new ImgPlus<>(planes);
+		planarImg.setName("planar");
+
+		try (Loopback l = new Loopback()) {
+			final Session receiverSession = new Session(false);
+			receiverSession.receivingBackend = BinaryHeader.backendIndex("CellImg");
+			receiverSession.receivingCellDims = new int[] { 16, 16, 3 };
+			//the first with the text header, the others with the binary one
+			final List<ImgPlus<?>> cells = l.transfer(Arrays.asList(arrayImg, planarImg, arrayImg),
+			                                          new Session(false), receiverSession, null);
+			for (int n=0; n < 3; ++n)
+			{
+				assertTrue(cells.get(n).getImg() instanceof CellImg);
+				assertSameVoxels(n == 1 ? planarImg : arrayImg, cells.get(n));
+			}
+			assertEquals(16, ((CellImg<?,?>)cells.get(0).getImg()).getCellGrid().cellDimension(0));
+
+			receiverSession.receivingBackend = BinaryHeader.backendIndex("ArrayImg");
+			final ImgPlus<?> array = l.transfer(Arrays.asList(planarImg), new Session(false), receiverSession, null).get(0);
+			assertTrue(array.getImg() instanceof ArrayImg);
+			assertSameVoxels(planarImg, array);
+		}
+	}
+
+	@Test
+	public void bitPackedTypesKeepTheirBackend()
+	throws Exception
+	{
+		final Img<BitType> bits = ArrayImgs.bits(100, 10);
+		int i = 0;
+		for (BitType v : bits) v.set((i++ % 3) == 0);
+		final ImgPlus<BitType> imgP = new ImgPlus<>(bits);
+		imgP.setName("bits");
+
+		try (Loopback l = new Loopback()) {
+			final Session receiverSession = new Session(false);
+			receiverSession.receivingBackend = BinaryHeader.backendIndex("PlanarImg");
+			final ImgPlus<?> got = l.transfer(Arrays.asList(imgP), new Session(false), receiverSession, null).get(0);
+			assertTrue(got.getImg() instanceof ArrayImg);
+			Loopback.assertSameImage(imgP, got);
+		}
+	}
+}
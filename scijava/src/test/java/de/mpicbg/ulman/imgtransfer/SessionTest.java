@@ -0,0 +1,140 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.imagej.ImgPlus;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class SessionTest
+{
+	private String shmDirectory;
+
+	@Before
+	public void disableShm()
+	{
+		shmDirectory = ShmTransfer.getDirectory();
+		ShmTransfer.setDirectory(null);
+	}
+
+	@After
+	public void restoreShm()
+	{ ShmTransfer.setDirectory(shmDirectory); }
+
+	@Test
+	public void tokenIsNotTheFirstWord()
+	{
+		assertTrue(Session.hasToken("ready v2 zc", "v2"));
+		assertTrue(Session.hasToken("ready v2 zc", "zc"));
+		assertFalse(Session.hasToken("v2 ready", "v2"));
+		assertFalse(Session.hasToken("ready", "ready"));
+	}
+
+	@Test
+	public void tokenMustMatchWholeWord()
+	{
+		assertFalse(Session.hasToken("ready v2x zcc", "v2"));
+		assertFalse(Session.hasToken("ready v2x zcc", "zc"));
+		assertFalse(Session.hasToken("ready xv2", "v2"));
+		assertFalse(Session.hasToken("ready have:1,2", "pc"));
+		assertTrue(Session.hasToken("ready have:1,2 pc", "pc"));
+		assertFalse(Session.hasToken("ready v", "v2"));
+	}
+
+	@Test
+	public void advertisedTokensAreRead()
+	{
+		final Session s = new Session(false);
+		s.readAdvertisedTokens("ready"+Session.advertisedTokens());
+		assertTrue(s.binaryHeader);
+		assertTrue(s.chunkCodecs);
+		assertEquals(PlaneCache.isEnabled(), s.planeCache);
+	}
+
+	@Test
+	public void onlyPlaneCacheCanBeWithdrawn()
+	{
+		final Session s = new Session(false);
+		s.readAdvertisedTokens("ready v2 zc pc");
+		assertTrue(s.planeCache);
+
+		//the receiver has disabled its cache, the rest stays agreed
+		s.readAdvertisedTokens("ready");
+		assertFalse(s.planeCache);
+		assertTrue(s.binaryHeader);
+		assertTrue(s.chunkCodecs);
+	}
+
+	@Test
+	public void binaryHeaderIsUsedOnceAgreed()
+	throws Exception
+	{
+		final List<ImgPlus<FloatType>> imgs = Arrays.asList(
+		  Loopback.createImage("first", 64, 32), Loopback.createImage("second", 64, 32, 3));
+		final Session senderSession = new Session(false);
+		final Session receiverSession = new Session(false);
+		final List<byte[]> headers = new ArrayList<>();
+
+		try (Loopback l = new Loopback()) {
+			final List<ImgPlus<?>> got = l.transfer(imgs, senderSession, receiverSession, headers);
+			Loopback.assertSameImage(imgs.get(0), got.get(0));
+			Loopback.assertSameImage(imgs.get(1), got.get(1));
+		}
+
+		//the first image goes with the text header, the receiver advertises then what it understands
+		assertFalse(BinaryHeader.isBinaryHeader(headers.get(0)));
+		assertTrue(BinaryHeader.isBinaryHeader(headers.get(1)));
+		assertTrue(senderSession.binaryHeader);
+		assertTrue(senderSession.chunkCodecs);
+	}
+
+	@Test
+	public void newSessionStartsWithTextHeader()
+	throws Exception
+	{
+		final List<ImgPlus<FloatType>> imgs = Arrays.asList(Loopback.createImage("one", 16, 16));
+		final List<byte[]> headers = new ArrayList<>();
+
+		try (Loopback l = new Loopback()) {
+			l.transfer(imgs, new Session(false), new Session(false), headers);
+			l.transfer(imgs, new Session(false), new Session(false), headers);
+		}
+		assertFalse(BinaryHeader.isBinaryHeader(headers.get(0)));
+		assertFalse(BinaryHeader.isBinaryHeader(headers.get(1)));
+	}
+}
@@ -0,0 +1,209 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.Img;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.numeric.real.FloatType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zeromq.SocketType;
+
+import de.mpicbg.ulman.imgtransfer.capture.CaptureLog;
+import de.mpicbg.ulman.imgtransfer.capture.CapturingSocket;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class ShmTransferTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String shmDirectory;
+
+	@Before
+	public void rememberShm()
+	{ shmDirectory = ShmTransfer.getDirectory(); }
+
+	@After
+	public void restoreShm()
+	{ ShmTransfer.setDirectory(shmDirectory); }
+
+	///1 MB as an ArrayImg, and the same as a PlanarImg
+	private final List<ImgPlus<FloatType>> imgs = Arrays.asList(
+	  Loopback.createImage("array", 256, 256, 4), planarImage("planar", 256, 256, 4));
+
+	private static
+	ImgPlus<FloatType> planarImage(final String name, final long... dims)
+	{
+		final Img<FloatType> img = PlanarImgs.floats(dims);
+		int i = 0;
+		for (FloatType v : img) v.set(i++ % 777);
+		final ImgPlus<FloatType> imgP = new ImgPlus<>(img);
+		imgP.setName(name);
+		return imgP;
+	}
+
+	///transfers this.imgs, checks them, and returns how many bytes the sender has sent over the socket
+	private
+	long transferAndCountSentBytes()
+	throws Exception
+	{
+		final String logFile = folder.newFile().getPath();
+		final CaptureLog log = new CaptureLog(logFile);
+		try (Loopback l = new Loopback(new CapturingSocket(Loopback.zmqContext, SocketType.PAIR, log))) {
+			final List<ImgPlus<?>> got = l.transfer(imgs, new Session(false), new Session(false), null);
+			Loopback.assertSameImage(imgs.get(0), got.get(0));
+			Loopback.assertSameImage(imgs.get(1), got.get(1));
+		}
+		finally {
+			log.finish();
+		}
+
+		long bytes = 0;
+		for (byte[] frame : Loopback.capturedFrames(logFile, CaptureLog.SENT)) bytes += frame.length;
+		return bytes;
+	}
+
+	///returns the names of the segments currently in the \e dir
+	private static
+	Set<String> segments(final String dir)
+	{
+		final Set<String> names = new HashSet<>();
+		final String[] files = new File(dir).list();
+		if (files != null)
+			for (String f : files)
+				if (f.startsWith("imgtransfer-")) names.add(f);
+		return names;
+	}
+
+	@Test
+	public void voxelsGoThroughSharedMemory()
+	throws Exception
+	{
+		assumeTrue(shmDirectory != null);
+		final Set<String> before = segments(shmDirectory);
+
+		final long sent = transferAndCountSentBytes();
+		assertTrue("sent "+sent+" bytes over the socket", sent < 64 << 10);
+		assertEquals(before, segments(shmDirectory));
+	}
+
+	@Test
+	public void segmentsAreCreatedInTheGivenDirectory()
+	throws Exception
+	{
+		final String dir = folder.newFolder().getPath();
+		ShmTransfer.setDirectory(dir);
+
+		final long sent = transferAndCountSentBytes();
+		assertTrue("sent "+sent+" bytes over the socket", sent < 64 << 10);
+		assertTrue(segments(dir).isEmpty());
+	}
+
+	@Test
+	public void disabledTransportSendsOverSocket()
+	throws Exception
+	{
+		ShmTransfer.setDirectory(null);
+		assertNull(ShmTransfer.offerSegment());
+
+		final long sent = transferAndCountSentBytes();
+		assertTrue("sent "+sent+" bytes over the socket", sent > 2 * 256*256*4*4);
+	}
+
+	@Test
+	public void inaccessibleSegmentIsNotAccepted()
+	throws IOException
+	{
+		assertNull(ShmTransfer.acceptSegment(null));
+		assertNull(ShmTransfer.acceptSegment("name"));
+		assertNull(ShmTransfer.acceptSegment(ShmTransfer.HEADER_HINT+folder.getRoot().getPath()+"/missing"));
+		assertNull(ShmTransfer.acceptSegment(ShmTransfer.HEADER_HINT+folder.newFolder().getPath()));
+	}
+
+	@Test
+	public void onlySegmentsInOurDirectoryAreAccepted()
+	throws IOException
+	{
+		final File dir = folder.newFolder("shm");
+		final File elsewhere = folder.newFolder("elsewhere");
+		ShmTransfer.setDirectory(dir.getPath());
+
+		final Path segment = Files.createFile(dir.toPath().resolve("imgtransfer-1.shm"));
+		final ShmTransfer.Segment s = ShmTransfer.acceptSegment(ShmTransfer.HEADER_HINT+segment);
+		assertNotNull(s);
+		s.close();
+
+		//not a segment, or not in our directory
+		final Path other = Files.createFile(dir.toPath().resolve("secret.txt"));
+		assertNull(ShmTransfer.acceptSegment(ShmTransfer.HEADER_HINT+other));
+		final Path outside = Files.createFile(elsewhere.toPath().resolve("imgtransfer-2.shm"));
+		assertNull(ShmTransfer.acceptSegment(ShmTransfer.HEADER_HINT+outside));
+		assertNull(ShmTransfer.acceptSegment(ShmTransfer.HEADER_HINT+dir+"/../elsewhere/imgtransfer-2.shm"));
+
+		//a segment-like link in our directory to some other file
+		final Path link = dir.toPath().resolve("imgtransfer-3.shm");
+		try {
+			Files.createSymbolicLink(link, other);
+		}
+		catch (UnsupportedOperationException e) {
+			return;
+		}
+		assertNull(ShmTransfer.acceptSegment(ShmTransfer.HEADER_HINT+link));
+	}
+
+	@Test
+	public void disabledTransportAcceptsNothing()
+	throws IOException
+	{
+		final File dir = folder.newFolder("shm");
+		ShmTransfer.setDirectory(dir.getPath());
+		final Path segment = Files.createFile(dir.toPath().resolve("imgtransfer-1.shm"));
+
+		ShmTransfer.setDirectory(null);
+		assertNull(ShmTransfer.acceptSegment(ShmTransfer.HEADER_HINT+segment));
+	}
+}
@@ -0,0 +1,208 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import net.imagej.ImgPlus;
+import net.imglib2.img.Img;
+import net.imglib2.img.array.ArrayImgs;
+import net.imglib2.img.planar.PlanarImgFactory;
+import net.imglib2.img.planar.PlanarImgs;
+import net.imglib2.type.NativeType;
+import net.imglib2.type.logic.BitType;
+import net.imglib2.type.numeric.ARGBType;
+import net.imglib2.type.numeric.integer.IntType;
+import net.imglib2.type.numeric.integer.LongType;
+import net.imglib2.type.numeric.integer.Unsigned12BitType;
+import net.imglib2.type.numeric.integer.UnsignedIntType;
+import net.imglib2.type.numeric.integer.UnsignedLongType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.zeromq.SocketType;
+
+import de.mpicbg.ulman.imgtransfer.capture.CaptureLog;
+import de.mpicbg.ulman.imgtransfer.capture.CapturingSocket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+
+public class VoxelTypesTest
+{
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private String shmDirectory;
+
+	@Before
+	public void rememberShm()
+	{ shmDirectory = ShmTransfer.getDirectory(); }
+
+	@After
+	public void restoreShm()
+	{ ShmTransfer.setDirectory(shmDirectory); }
+
+	/**
+	 * Sends the \e img three times within one session: with the text header and
+	 * then with the binary header over the shared memory (if available), and with
+	 * the binary header over the socket. Checks the received images.
+	 */
+	private
+	<T extends NativeType<T>> void roundTrips(final Img<T> img)
+	throws Exception
+	{
+		final ImgPlus<T> imgP = new ImgPlus<>(img);
+		imgP.setName(img.firstElement().getClass().getSimpleName());
+
+		final Session senderSession = new Session(false);
+		final List<byte[]> headers = new ArrayList<>();
+		try (Loopback l = new Loopback()) {
+			final Future<List<ImgPlus<?>>> received = Loopback.receive(3, new Session(false), headers, l.receiver);
+			ImgPacker.packAndSend(imgP, l.sender, Loopback.TIMEOUT, null, senderSession, null);
+			ImgPacker.packAndSend(imgP, l.sender, Loopback.TIMEOUT, null, senderSession, null);
+			ShmTransfer.setDirectory(null);
+			ImgPacker.packAndSend(imgP, l.sender, Loopback.TIMEOUT, null, senderSession, null);
+
+			for (ImgPlus<?> got : Loopback.waitFor(received))
+			{
+				assertEquals(img.firstElement().getClass(), got.firstElement().getClass());
+				Loopback.assertSameImage(imgP, got);
+			}
+		}
+		finally {
+			ShmTransfer.setDirectory(shmDirectory);
+		}
+		assertFalse(BinaryHeader.isBinaryHeader(headers.get(0)));
+		assertTrue(BinaryHeader.isBinaryHeader(headers.get(1)));
+		assertTrue(BinaryHeader.isBinaryHeader(headers.get(2)));
+	}
+
+	@Test
+	public void intTypes()
+	throws Exception
+	{
+		final Img<IntType> a = ArrayImgs.ints(100, 50, 3);
+		int i = 0;
+		for (IntType v : a) v.set(i++ * 7 - 1000);
+		roundTrips(a);
+
+		final Img<UnsignedIntType> u = PlanarImgs.unsignedInts(60, 40, 2);
+		i = 0;
+		for (UnsignedIntType v : u) v.set(0xFFFFFFFFL - i++);
+		roundTrips(u);
+	}
+
+	@Test
+	public void longTypes()
+	throws Exception
+	{
+		final Img<LongType> p = PlanarImgs.longs(77, 33, 4);
+		int i = 0;
+		for (LongType v : p) v.set(((long)i++) << 33);
+		roundTrips(p);
+
+		final Img<UnsignedLongType> a = ArrayImgs.unsignedLongs(50, 20);
+		i = 0;
+		for (UnsignedLongType v : a) v.set(i++ * 1234567L);
+		roundTrips(a);
+	}
+
+	@Test
+	public void argbType()
+	throws Exception
+	{
+		final Img<ARGBType> a = ArrayImgs.argbs(64, 64);
+		int i = 0;
+		for (ARGBType v : a) v.set(i++ * 12345);
+		roundTrips(a);
+	}
+
+	@Test
+	public void bitType()
+	throws Exception
+	{
+		//NB: the sizes are not multiples of 64, the last long is thus only partially used
+		final Img<BitType> a = ArrayImgs.bits(301, 203, 3);
+		int i = 0;
+		for (BitType v : a) v.set((i++ % 3) == 0);
+		roundTrips(a);
+
+		final Img<BitType> p = PlanarImgs.bits(301, 203, 3);
+		i = 0;
+		for (BitType v : p) v.set((i++ % 5) == 0);
+		roundTrips(p);
+	}
+
+	@Test
+	public void unsigned12BitType()
+	throws Exception
+	{
+		final Img<Unsigned12BitType> a = ArrayImgs.unsigned12Bits(1000, 100);
+		int i = 0;
+		for (Unsigned12BitType v : a) v.set(i++ % 4096);
+		roundTrips(a);
+
+		final Img<Unsigned12BitType> p = new PlanarImgFactory<>(new Unsigned12BitType()).create(123, 45, 3);
+		i = 0;
+		for (Unsigned12BitType v : p) v.set((i++ * 31) % 4096);
+		roundTrips(p);
+	}
+
+	@Test
+	public void bitsAreSentPacked()
+	throws Exception
+	{
+		ShmTransfer.setDirectory(null);
+		final Img<BitType> img = ArrayImgs.bits(1000, 1000);
+		int i = 0;
+		for (BitType v : img) v.set((i++ % 7) == 0);
+		final ImgPlus<BitType> imgP = new ImgPlus<>(img);
+		imgP.setName("bits");
+
+		final String logFile = folder.newFile().getPath();
+		final CaptureLog log = new CaptureLog(logFile);
+		try (Loopback l = new Loopback(new CapturingSocket(Loopback.zmqContext, SocketType.PAIR, log))) {
+			Loopback.assertSameImage(imgP, l.transfer(Arrays.asList(imgP), new Session(false), new Session(false), null).get(0));
+		}
+		finally {
+			log.finish();
+		}
+
+		long bytes = 0;
+		for (byte[] frame : Loopback.capturedFrames(logFile, CaptureLog.SENT)) bytes += frame.length;
+		//one bit per voxel, and some for the header
+		assertTrue("sent "+bytes+" bytes", bytes < 1000*1000/8 + 1024);
+	}
+}
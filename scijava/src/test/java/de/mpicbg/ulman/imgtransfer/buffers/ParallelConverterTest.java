@@ -0,0 +1,165 @@
+/*
+ * BSD 2-Clause License
+ *
+ * Copyright (c) 2017, Vladimír Ulman
+ * All rights reserved.
+ *
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ *
+ * 1. Redistributions of source code must retain the above copyright notice, this
+ *    list of conditions and the following disclaimer.
+ *
+ * 2. Redistributions in binary form must reproduce the above copyright notice,
+ *    this list of conditions and the following disclaimer in the documentation
+ *    and/or other materials provided with the distribution.
+ *
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE ARE
+ * DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE LIABLE
+ * FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL
+ * DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR
+ * SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER
+ * CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT LIABILITY,
+ * OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN ANY WAY OUT OF THE USE
+ * OF THIS SOFTWARE, EVEN IF ADVISED OF THE POSSIBILITY OF SUCH DAMAGE.
+ */
+package de.mpicbg.ulman.imgtransfer.buffers;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Future;
+
+public class ParallelConverterTest
+{
+	private int minParallelBytes, parallelism;
+
+	@Before
+	public void lowerTheThreshold()
+	{
+		minParallelBytes = ParallelConverter.getMinParallelBytes();
+		parallelism = ParallelConverter.getParallelism();
+		ParallelConverter.setMinParallelBytes(4096);
+		ParallelConverter.setParallelism(4);
+	}
+
+	@After
+	public void restoreTheThreshold()
+	{
+		ParallelConverter.setMinParallelBytes(minParallelBytes);
+		ParallelConverter.setParallelism(parallelism);
+	}
+
+	private final Buffer floats = new FloatBuffer();
+
+	private static
+	float[] pattern(final int length)
+	{
+		final float[] a = new float[length];
+		for (int i=0; i < length; ++i) a[i] = i * 0.25f - 1000;
+		return a;
+	}
+
+	@Test
+	public void onlyLargeChunksAreParallel()
+	{
+		assertFalse(ParallelConverter.isParallel(floats, 1023));
+		assertTrue(ParallelConverter.isParallel(floats, 1024));
+
+		ParallelConverter.setParallelism(1);
+		assertFalse(ParallelConverter.isParallel(floats, 1 << 20));
+	}
+
+	@Test
+	public void parallelConversionEqualsTheSerialOne()
+	{
+		//NB: odd length and offset, the parts are then not of the same length
+		final float[] array = pattern(100003);
+		final int offset = 7, length = array.length - 2*offset;
+
+		final ByteBuffer serial = ByteBuffer.allocate(4*length);
+		floats.send(serial, array, offset, length);
+		final ByteBuffer parallel = ByteBuffer.allocate(4*length);
+		ParallelConverter.send(floats, parallel, array, offset, length);
+		assertArrayEquals(serial.array(), parallel.array());
+		assertEquals(0, parallel.position());
+
+		final float[] back = new float[array.length];
+		ParallelConverter.recv(floats, parallel, back, offset, length);
+		//NB: the voxels outside the converted range are not touched
+		for (int i=0; i < offset; ++i)
+		{
+			assertTrue(back[i] == 0 && back[back.length-1-i] == 0);
+			back[i] = array[i];
+			back[back.length-1-i] = array[array.length-1-i];
+		}
+		assertArrayEquals(array, back, 0);
+	}
+
+	@Test
+	public void asyncReceiveIsOverAfterWaitFor()
+	{
+		final float[] array = pattern(50000);
+		final ByteBuffer bytes = ByteBuffer.allocate(4*array.length);
+		floats.send(bytes, array, 0, array.length);
+
+		for (int length : new int[] { array.length, 100 })
+		{
+			final float[] back = new float[array.length];
+			ParallelConverter.waitFor(ParallelConverter.recvAsync(floats, bytes, back, 0, length));
+			for (int i=0; i < length; ++i)
+				if (back[i] != array[i]) throw new AssertionError("differs at "+i);
+		}
+	}
+
+	@Test(expected = BufferUnderflowException.class)
+	public void waitForForwardsTheFailure()
+	{
+		final ByteBuffer tooShort = ByteBuffer.allocate(4*1000);
+		ParallelConverter.waitFor(ParallelConverter.recvAsync(floats, tooShort, new float[2000], 0, 2000));
+	}
+
+	@Test
+	public void smallChunkIsReceivedInTheCallingThread()
+	{
+		final Thread[] convertedBy = new Thread[1];
+		final Buffer recording = new FloatBuffer() {
+			@Override
+			public void recv(final ByteBuffer bufRead, final Object arrayWrite, int offset, int length)
+			{
+				convertedBy[0] = Thread.currentThread();
+				super.recv(bufRead, arrayWrite, offset, length);
+			}
+		};
+
+		final float[] array = pattern(100);
+		final ByteBuffer bytes = ByteBuffer.allocate(4*array.length);
+		floats.send(bytes, array, 0, array.length);
+
+		final float[] back = new float[array.length];
+		final Future<?> conversion = ParallelConverter.recvAsync(recording, bytes, back, 0, back.length);
+		assertTrue(conversion.isDone());
+		assertSame(Thread.currentThread(), convertedBy[0]);
+		ParallelConverter.waitFor(conversion);
+		assertArrayEquals(array, back, 0f);
+	}
+
+	@Test(expected = BufferUnderflowException.class)
+	public void smallChunkFailsOnlyInWaitFor()
+	{
+		final ByteBuffer tooShort = ByteBuffer.allocate(4*10);
+		final Future<?> conversion = ParallelConverter.recvAsync(floats, tooShort, new float[20], 0, 20);
+		ParallelConverter.waitFor(conversion);
+	}
+}